@@ -5,6 +5,7 @@
 package com.opensymphony.oscache.base;
 
 import com.opensymphony.oscache.base.algorithm.AbstractConcurrentReadCache;
+import com.opensymphony.oscache.base.algorithm.EntryWeigher;
 import com.opensymphony.oscache.base.events.*;
 import com.opensymphony.oscache.base.persistence.PersistenceListener;
 import com.opensymphony.oscache.util.StringUtil;
@@ -14,8 +15,6 @@ import org.apache.commons.logging.LogFactory;
 
 import java.util.*;
 
-import javax.swing.event.EventListenerList;
-
 /**
  * An AbstractCacheAdministrator defines an abstract cache administrator, implementing all
  * the basic operations related to the configuration of a cache, including assigning
@@ -48,6 +47,67 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      */
     public final static String CACHE_CAPACITY_KEY = "cache.capacity";
 
+    /**
+     * A long cache configuration property that specifies the maximum number of
+     * bytes the entries held in memory may take, as estimated by the entry
+     * weigher. Entries are evicted through the cache algorithm when the budget
+     * is exceeded. If no {@link #CACHE_CAPACITY_KEY} is set as well, the number
+     * of entries is left unbounded, and the configured algorithm, or LRU if
+     * none is configured, evicts by bytes only. The budget is ignored if the
+     * algorithm is {@link com.opensymphony.oscache.base.algorithm.UnlimitedCache},
+     * which never evicts.
+     */
+    public final static String CACHE_CAPACITY_BYTES_KEY = "cache.capacity.bytes";
+
+    /**
+     * A String cache configuration property that specifies the classname of the
+     * {@link com.opensymphony.oscache.base.algorithm.EntryWeigher} estimating the
+     * size of the entries for the {@link #CACHE_CAPACITY_BYTES_KEY} budget. By default
+     * {@link com.opensymphony.oscache.base.algorithm.SizeEntryWeigher} is used.
+     */
+    public final static String CACHE_CAPACITY_WEIGHER_KEY = "cache.capacity.weigher";
+
+    /**
+     * A boolean cache configuration property that specifies whether entries
+     * removed from the memory cache are unlinked in place from the table, rather
+     * than by copying the entries ahead of them. This requires a Java 5 or later
+     * virtual machine. Defaults to <code>false</code>.
+     */
+    public final static String CACHE_STORAGE_UNLINKING_KEY = "cache.storage.unlinking";
+
+    /**
+     * A String cache configuration property that specifies how the memory cache
+     * holds the cached values: <code>soft</code> or <code>weak</code> to let the
+     * garbage collector reclaim them, <code>strong</code> to keep them until they
+     * are removed. Collected values are read back from the persistent cache, if
+     * any. Defaults to <code>strong</code>.
+     */
+    public final static String CACHE_MEMORY_REFERENCES_KEY = "cache.memory.references";
+
+    /**
+     * A long cache configuration property that specifies the capacity in bytes
+     * of the off-heap tier. The entries evicted from memory are then kept,
+     * serialized, in direct buffers outside of the Java heap, and read back
+     * when they are requested again. By default there is no off-heap tier.
+     */
+    public final static String CACHE_OFFHEAP_BYTES_KEY = "cache.offheap.bytes";
+
+    /**
+     * A float cache configuration property that specifies the fraction of the
+     * capacity above which a background thread starts evicting entries, in
+     * batches, until the {@link #CACHE_EVICTION_LOW_WATERMARK_KEY} is reached.
+     * The capacity itself stays a hard ceiling. Background eviction is disabled
+     * by default.
+     */
+    public final static String CACHE_EVICTION_HIGH_WATERMARK_KEY = "cache.eviction.highWatermark";
+
+    /**
+     * A float cache configuration property that specifies the fraction of the
+     * capacity the background evictor brings the cache back to. Defaults to
+     * 90% of the {@link #CACHE_EVICTION_HIGH_WATERMARK_KEY}.
+     */
+    public final static String CACHE_EVICTION_LOW_WATERMARK_KEY = "cache.eviction.lowWatermark";
+
     /**
      * A String cache configuration property that specifies the classname of
      * an alternate caching algorithm. This class must extend
@@ -75,6 +135,13 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      */
     public final static String CACHE_BLOCKING_KEY = "cache.blocking";
 
+    /**
+     * An integer cache configuration property that specifies how long, in
+     * milliseconds, a request waits for another thread building the entry it
+     * needs before giving up. By default requests wait until the entry is built.
+     */
+    public final static String CACHE_BLOCKING_TIMEOUT_KEY = "cache.blocking.timeout";
+
     /**
      * A String cache configuration property that specifies the classname that will
      * be used to provide cache persistence. This class must extend {@link PersistenceListener}.
@@ -93,13 +160,114 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      * to the cache.
      */
     public static final String CACHE_ENTRY_EVENT_LISTENERS_KEY = "cache.event.listeners";
+
+    /**
+     * An integer cache configuration property that specifies the number of
+     * independently locked segments the in-memory cache is split into. Writes
+     * to different segments do not contend with each other. Defaults to
+     * <code>1</code>, ie. a single lock for the whole cache.
+     */
+    public static final String CACHE_CONCURRENCY_LEVEL_KEY = "cache.concurrency.level";
+
+    /**
+     * An integer cache configuration property that specifies the number of
+     * entries the in-memory cache is expected to hold. Its table is sized for
+     * them up front, so that it doesn't have to be resized while it fills up.
+     */
+    public static final String CACHE_EXPECTED_SIZE_KEY = "cache.expected.size";
+
+    /**
+     * An integer cache configuration property that specifies the lifetime of
+     * the cache entries in seconds. Entries older than that are stale. By
+     * default entries only expire according to their refresh period.
+     */
+    public static final String CACHE_EXPIRY_TTL_KEY = "cache.expiry.ttl";
+
+    /**
+     * An integer cache configuration property that specifies, in milliseconds,
+     * how often expired entries are removed from the cache by a background
+     * thread. By default expired entries are only found stale when they are
+     * requested, and stay in memory until then.
+     */
+    public static final String CACHE_EXPIRY_TICK_KEY = "cache.expiry.tick";
+
+    /**
+     * A String cache configuration property that specifies the classname of
+     * a {@link CacheLoader} that rebuilds the stale entries in the background.
+     * Callers finding a stale entry then get the stale content straight away.
+     * By default the first caller finding a stale entry rebuilds it.
+     */
+    public static final String CACHE_REFRESH_LOADER_KEY = "cache.refresh.loader";
+
+    /**
+     * An integer cache configuration property that specifies the number of
+     * threads rebuilding the stale entries. Defaults to <code>1</code>.
+     */
+    public static final String CACHE_REFRESH_THREADS_KEY = "cache.refresh.threads";
+
+    /**
+     * An integer cache configuration property that specifies how many stale
+     * entries may wait for a refresh thread. Defaults to <code>1000</code>.
+     */
+    public static final String CACHE_REFRESH_QUEUE_KEY = "cache.refresh.queue";
+
+    /**
+     * A float cache configuration property that specifies the fraction of
+     * their lifetime after which the entries are refreshed in the background,
+     * ahead of their expiry. By default entries are only refreshed once stale.
+     */
+    public static final String CACHE_REFRESH_AHEAD_KEY = "cache.refresh.ahead";
+
+    /**
+     * An integer cache configuration property that specifies how many events
+     * may wait for the event dispatcher thread. When set, the listeners that
+     * don't implement {@link com.opensymphony.oscache.base.events.SynchronousEventListener}
+     * are notified asynchronously. By default every listener is notified by
+     * the thread performing the cache operation.
+     */
+    public static final String CACHE_EVENT_QUEUE_KEY = "cache.event.queue";
+
+    /**
+     * An integer cache configuration property that specifies how many events
+     * the event dispatcher delivers at once. Defaults to <code>100</code>.
+     */
+    public static final String CACHE_EVENT_BATCH_KEY = "cache.event.batch";
+
+    /**
+     * A String cache configuration property that specifies what happens to
+     * the events fired while the event queue is full: <code>block</code>
+     * (the default), <code>drop</code> or <code>coalesce</code>.
+     */
+    public static final String CACHE_EVENT_OVERFLOW_KEY = "cache.event.overflow";
+
+    /**
+     * A boolean cache configuration property that specifies whether the keys
+     * of the cache are indexed, so that the pattern flushes only look at the
+     * keys containing the pattern. Defaults to <code>false</code>.
+     */
+    public static final String CACHE_KEY_INDEX_KEY = "cache.key.index";
+
+    /**
+     * A boolean cache configuration property that specifies whether the
+     * groups are flushed by generation, in constant time, instead of entry by
+     * entry. Defaults to <code>false</code>.
+     */
+    public static final String CACHE_GROUP_GENERATIONS_KEY = "cache.group.generations";
+
+    /**
+     * An integer cache configuration property that specifies how many entries
+     * per second the flush sweeper looks at, when removing the entries left
+     * stale by a flush of the whole cache or of its scope. By default the
+     * flushed entries stay in the cache until read or evicted.
+     */
+    public static final String CACHE_FLUSH_SWEEP_RATE_KEY = "cache.flush.sweep.rate";
     protected Config config = null;
 
     /**
-     * Holds a list of all the registered event listeners. Event listeners are specified
-     * using the {@link #CACHE_ENTRY_EVENT_LISTENERS_KEY} configuration key.
+     * Holds the registered event listeners, split by listener interface. Event listeners
+     * are specified using the {@link #CACHE_ENTRY_EVENT_LISTENERS_KEY} configuration key.
      */
-    protected EventListenerList listenerList = new EventListenerList();
+    protected ListenerRegistry listenerRegistry = new ListenerRegistry();
 
     /**
      * The algorithm class being used, as specified by the {@link #CACHE_ALGORITHM_KEY}
@@ -113,6 +281,12 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      */
     protected int cacheCapacity = -1;
 
+    /**
+     * The cache capacity in bytes, as specified by the {@link #CACHE_CAPACITY_BYTES_KEY}
+     * configuration property. <code>0</code> if there is no byte budget.
+     */
+    protected long cacheCapacityBytes = 0;
+
     /**
      * Whether the cache blocks waiting for content to be build, or serves stale
      * content instead. This value can be specified using the {@link #CACHE_BLOCKING_KEY}
@@ -120,6 +294,13 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      */
     private boolean blocking = false;
 
+    /**
+     * How long a request waits for another thread building the entry, in
+     * milliseconds, as specified by the {@link #CACHE_BLOCKING_TIMEOUT_KEY}
+     * configuration property. <code>0</code> to wait until it is built.
+     */
+    private long blockingTimeout = 0;
+
     /**
      * Whether or not to store the cache entries in memory. This is configurable using the
      * {@link com.opensymphony.oscache.base.AbstractCacheAdministrator#CACHE_MEMORY_KEY} property.
@@ -139,6 +320,104 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      */
     private boolean unlimitedDiskCache;
 
+    /**
+     * The number of lock segments of the cache, as specified by the
+     * {@link #CACHE_CONCURRENCY_LEVEL_KEY} configuration property.
+     */
+    private int concurrencyLevel = AbstractConcurrentReadCache.DEFAULT_CONCURRENCY_LEVEL;
+
+    /**
+     * The number of entries the cache table is sized for, as specified by the
+     * {@link #CACHE_EXPECTED_SIZE_KEY} configuration property. <code>0</code>
+     * to leave the default size.
+     */
+    private int expectedSize = 0;
+
+    /**
+     * The lifetime of the cache entries in seconds, as specified by the
+     * {@link #CACHE_EXPIRY_TTL_KEY} configuration property.
+     */
+    private int timeToLive = CacheEntry.INDEFINITE_EXPIRY;
+
+    /**
+     * The resolution of the expiry scheduling in milliseconds, as specified by
+     * the {@link #CACHE_EXPIRY_TICK_KEY} configuration property. <code>0</code>
+     * if expired entries are not removed in the background.
+     */
+    private long expiryTick = 0;
+
+    /**
+     * Whether removed entries are unlinked in place from the memory cache table.
+     * This can be set via the {@link #CACHE_STORAGE_UNLINKING_KEY} configuration property.
+     */
+    private boolean unlinkingStorage;
+
+    /**
+     * How the memory cache holds its values, as specified by the
+     * {@link #CACHE_MEMORY_REFERENCES_KEY} configuration property.
+     */
+    private int valueReferences = AbstractConcurrentReadCache.STRONG_REFERENCES;
+
+    /**
+     * The capacity of the off-heap tier in bytes, as specified by the
+     * {@link #CACHE_OFFHEAP_BYTES_KEY} configuration property. <code>0</code>
+     * if there is no off-heap tier.
+     */
+    private long offHeapBytes = 0;
+
+    /**
+     * The eviction watermarks, as specified by the {@link #CACHE_EVICTION_HIGH_WATERMARK_KEY}
+     * and {@link #CACHE_EVICTION_LOW_WATERMARK_KEY} configuration properties.
+     * <code>0</code> if there is no background eviction.
+     */
+    private float evictionHighWatermark = 0;
+    private float evictionLowWatermark = 0;
+
+    /**
+     * The number of refresh threads and the size of their queue, as specified
+     * by the {@link #CACHE_REFRESH_THREADS_KEY} and {@link #CACHE_REFRESH_QUEUE_KEY}
+     * configuration properties.
+     */
+    private int refreshThreads = 1;
+    private int refreshQueueSize = 1000;
+
+    /**
+     * The fraction of their lifetime after which the entries are refreshed, as
+     * specified by the {@link #CACHE_REFRESH_AHEAD_KEY} configuration property.
+     * <code>0</code> if they are only refreshed once stale.
+     */
+    private float refreshAhead = 0;
+
+    /**
+     * The size of the event queue, the number of events delivered at once and
+     * the overflow policy of the queue, as specified by the {@link #CACHE_EVENT_QUEUE_KEY},
+     * {@link #CACHE_EVENT_BATCH_KEY} and {@link #CACHE_EVENT_OVERFLOW_KEY}
+     * configuration properties. <code>0</code> if the events are delivered
+     * synchronously.
+     */
+    private int eventQueueSize = 0;
+    private int eventBatchSize = 100;
+    private int eventOverflowPolicy = Cache.EVENT_OVERFLOW_BLOCK;
+
+    /**
+     * Whether the keys are indexed for the pattern flushes, as specified by
+     * the {@link #CACHE_KEY_INDEX_KEY} configuration property.
+     */
+    private boolean keyIndex = false;
+
+    /**
+     * Whether the groups are flushed by generation, as specified by the
+     * {@link #CACHE_GROUP_GENERATIONS_KEY} configuration property.
+     */
+    private boolean groupGenerations = false;
+
+    /**
+     * The number of entries per second the flush sweeper looks at, as
+     * specified by the {@link #CACHE_FLUSH_SWEEP_RATE_KEY} configuration
+     * property. <code>0</code> if the flushed entries are not swept.
+     */
+    private int flushSweepRate = 0;
+
     /**
      * Create the AbstractCacheAdministrator.
      * This will initialize all values and load the properties from oscache.properties.
@@ -206,6 +485,16 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
         return memoryCaching;
     }
 
+    /**
+     * Retrieves the number of lock segments the caches of this
+     * administrator are created with.
+     *
+     * @return The configured concurrency level.
+     */
+    public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+
     /**
      * Retrieves the value of one of the configuration properties.
      *
@@ -272,6 +561,73 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
         return listeners;
     }
 
+    /**
+     * Instantiates the {@link EntryWeigher} specified by the
+     * {@link #CACHE_CAPACITY_WEIGHER_KEY} configuration property.
+     *
+     * @return The weigher, or <code>null</code> if none is configured or it
+     * could not be created.
+     */
+    protected EntryWeigher getEntryWeigher() {
+        String className = getProperty(CACHE_CAPACITY_WEIGHER_KEY);
+
+        if ((className == null) || (className.length() == 0)) {
+            return null;
+        }
+
+        try {
+            Class clazz = Class.forName(className);
+
+            if (!EntryWeigher.class.isAssignableFrom(clazz)) {
+                log.error("Specified weigher class '" + className + "' does not implement EntryWeigher. Using the default weigher.");
+            } else {
+                return (EntryWeigher) clazz.newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            log.error("EntryWeigher class '" + className + "' not found. Using the default weigher.", e);
+        } catch (InstantiationException e) {
+            log.error("EntryWeigher class '" + className + "' could not be instantiated because it is not a concrete class. Using the default weigher.", e);
+        } catch (IllegalAccessException e) {
+            log.error("EntryWeigher class '" + className + "' could not be instantiated because it is not public. Using the default weigher.", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Instantiates the {@link CacheLoader} specified by the
+     * {@link #CACHE_REFRESH_LOADER_KEY} configuration property. If the class
+     * cannot be found or instantiated, an error is logged and the stale
+     * entries are rebuilt by the callers.
+     *
+     * @return the loader rebuilding the stale entries, or <code>null</code>
+     */
+    protected CacheLoader getRefresher() {
+        String className = getProperty(CACHE_REFRESH_LOADER_KEY);
+
+        if ((className == null) || (className.length() == 0)) {
+            return null;
+        }
+
+        try {
+            Class clazz = Class.forName(className);
+
+            if (!CacheLoader.class.isAssignableFrom(clazz)) {
+                log.error("Specified refresh loader class '" + className + "' does not implement CacheLoader. Stale entries are rebuilt by the callers.");
+            } else {
+                return (CacheLoader) clazz.newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            log.error("CacheLoader class '" + className + "' not found. Stale entries are rebuilt by the callers.", e);
+        } catch (InstantiationException e) {
+            log.error("CacheLoader class '" + className + "' could not be instantiated because it is not a concrete class. Stale entries are rebuilt by the callers.", e);
+        } catch (IllegalAccessException e) {
+            log.error("CacheLoader class '" + className + "' could not be instantiated because it is not public. Stale entries are rebuilt by the callers.", e);
+        }
+
+        return null;
+    }
+
     /**
      * If there is a <code>PersistenceListener</code> in the configuration
      * it will be instantiated and applied to the given cache object. If the
@@ -302,6 +658,79 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
         return cache;
     }
 
+    /**
+     * Applies the tuning settings that are not part of the {@link Cache}
+     * constructor, such as the concurrency level, to the supplied cache object.
+     * This must be called before the cache is populated.
+     *
+     * @param cache The cache to apply the configuration to.
+     * @return cache The configured cache object.
+     */
+    protected Cache configureCacheSettings(Cache cache) {
+        cache.setConcurrencyLevel(concurrencyLevel);
+
+        if (expectedSize > 0) {
+            cache.setExpectedSize(expectedSize);
+        }
+
+        cache.setUnlinkingStorage(unlinkingStorage);
+        cache.setValueReferences(valueReferences);
+
+        if (offHeapBytes > 0) {
+            cache.setOffHeapBytes(offHeapBytes);
+        }
+
+        if (cacheCapacityBytes > 0) {
+            EntryWeigher weigher = getEntryWeigher();
+
+            if (weigher != null) {
+                cache.setEntryWeigher(weigher);
+            }
+
+            try {
+                cache.setCapacityBytes(cacheCapacityBytes);
+            } catch (IllegalArgumentException e) {
+                log.error("The cache algorithm can't enforce the cache capacity in bytes, " + cacheCapacityBytes + ". The byte capacity setting is being ignored.");
+            }
+        }
+
+        if (evictionHighWatermark > 0) {
+            cache.setEvictionWatermarks(evictionHighWatermark, evictionLowWatermark);
+        }
+
+        cache.setTimeToLive(timeToLive);
+        cache.setBlockingTimeout(blockingTimeout);
+
+        if (expiryTick > 0) {
+            cache.setExpiryTick(expiryTick);
+        }
+
+        CacheLoader refresher = getRefresher();
+
+        if (refresher != null) {
+            cache.setRefresher(refresher, refreshThreads, refreshQueueSize);
+            cache.setRefreshAhead(refreshAhead);
+        }
+
+        if (eventQueueSize > 0) {
+            cache.setEventQueue(eventQueueSize, eventBatchSize, eventOverflowPolicy);
+        }
+
+        if (keyIndex) {
+            cache.setKeyIndex(true);
+        }
+
+        if (groupGenerations) {
+            cache.setGroupGenerations(true);
+        }
+
+        if (flushSweepRate > 0) {
+            cache.setFlushSweeper(flushSweepRate);
+        }
+
+        return cache;
+    }
+
     /**
      * Applies all of the recognised listener classes to the supplied
      * cache object. Recognised classes are {@link CacheEntryEventListener}
@@ -353,12 +782,12 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
             return;
         }
 
-        Object[] listeners = cache.listenerList.getListenerList();
+        CacheEventListener[] listeners = cache.listenerRegistry.getListeners();
 
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i + 1] instanceof LifecycleAware) {
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (listeners[i] instanceof LifecycleAware) {
                 try {
-                    ((LifecycleAware) listeners[i + 1]).finialize();
+                    ((LifecycleAware) listeners[i]).finialize();
                 } catch (FinalizationException e) {
                     log.error("Listener could not be finalized", e);
                 }
@@ -372,9 +801,29 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
      * <ul>
      * <li>the algorithm class ({@link #CACHE_ALGORITHM_KEY})</li>
      * <li>the cache size ({@link #CACHE_CAPACITY_KEY})</li>
+     * <li>the cache size in bytes ({@link #CACHE_CAPACITY_BYTES_KEY})</li>
+     * <li>whether removed entries are unlinked in place ({@link #CACHE_STORAGE_UNLINKING_KEY})</li>
+     * <li>how the memory cache references its values ({@link #CACHE_MEMORY_REFERENCES_KEY})</li>
+     * <li>the capacity of the off-heap tier ({@link #CACHE_OFFHEAP_BYTES_KEY})</li>
+     * <li>the eviction watermarks ({@link #CACHE_EVICTION_HIGH_WATERMARK_KEY} and
+     * {@link #CACHE_EVICTION_LOW_WATERMARK_KEY})</li>
      * <li>whether the cache is blocking or non-blocking ({@link #CACHE_BLOCKING_KEY})</li>
+     * <li>how long requests wait for an entry being built ({@link #CACHE_BLOCKING_TIMEOUT_KEY})</li>
      * <li>whether caching to memory is enabled ({@link #CACHE_MEMORY_KEY})</li>
      * <li>whether the persistent cache is unlimited in size ({@link #CACHE_DISK_UNLIMITED_KEY})</li>
+     * <li>the number of lock segments ({@link #CACHE_CONCURRENCY_LEVEL_KEY})</li>
+     * <li>the expected number of entries ({@link #CACHE_EXPECTED_SIZE_KEY})</li>
+     * <li>the lifetime of the entries ({@link #CACHE_EXPIRY_TTL_KEY})</li>
+     * <li>the resolution of the expiry scheduling ({@link #CACHE_EXPIRY_TICK_KEY})</li>
+     * <li>the number of refresh threads and the size of their queue
+     * ({@link #CACHE_REFRESH_THREADS_KEY} and {@link #CACHE_REFRESH_QUEUE_KEY})</li>
+     * <li>the refresh-ahead fraction of the entry lifetime ({@link #CACHE_REFRESH_AHEAD_KEY})</li>
+     * <li>the size, batch size and overflow policy of the event queue
+     * ({@link #CACHE_EVENT_QUEUE_KEY}, {@link #CACHE_EVENT_BATCH_KEY} and
+     * {@link #CACHE_EVENT_OVERFLOW_KEY})</li>
+     * <li>whether the keys are indexed for the pattern flushes ({@link #CACHE_KEY_INDEX_KEY})</li>
+     * <li>whether the groups are flushed by generation ({@link #CACHE_GROUP_GENERATIONS_KEY})</li>
+     * <li>the rate of the flush sweeper ({@link #CACHE_FLUSH_SWEEP_RATE_KEY})</li>
      * </ul>
      */
     private void initCacheParameters() {
@@ -382,6 +831,22 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
 
         blocking = "true".equalsIgnoreCase(getProperty(CACHE_BLOCKING_KEY));
 
+        String blockingTimeoutStr = getProperty(CACHE_BLOCKING_TIMEOUT_KEY);
+
+        try {
+            if ((blockingTimeoutStr != null) && (blockingTimeoutStr.length() > 0)) {
+                long value = Long.parseLong(blockingTimeoutStr);
+
+                if (value >= 0) {
+                    blockingTimeout = value;
+                } else {
+                    log.error("The value supplied for the cache blocking timeout, '" + blockingTimeoutStr + "', must not be negative. The blocking timeout setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache blocking timeout, '" + blockingTimeoutStr + "', is not a valid number. The blocking timeout setting is being ignored.");
+        }
+
         String cacheMemoryStr = getProperty(CACHE_MEMORY_KEY);
 
         if ((cacheMemoryStr != null) && cacheMemoryStr.equalsIgnoreCase("false")) {
@@ -390,6 +855,19 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
 
         unlimitedDiskCache = Boolean.valueOf(config.getProperty(CACHE_DISK_UNLIMITED_KEY)).booleanValue();
         overflowPersistence = Boolean.valueOf(config.getProperty(CACHE_PERSISTENCE_OVERFLOW_KEY)).booleanValue();
+        unlinkingStorage = Boolean.valueOf(config.getProperty(CACHE_STORAGE_UNLINKING_KEY)).booleanValue();
+
+        String references = getProperty(CACHE_MEMORY_REFERENCES_KEY);
+
+        if ((references != null) && (references.length() > 0)) {
+            if (references.equalsIgnoreCase("soft")) {
+                valueReferences = AbstractConcurrentReadCache.SOFT_REFERENCES;
+            } else if (references.equalsIgnoreCase("weak")) {
+                valueReferences = AbstractConcurrentReadCache.WEAK_REFERENCES;
+            } else if (!references.equalsIgnoreCase("strong")) {
+                log.error("The value supplied for the cache memory references, '" + references + "', is not one of soft, weak or strong. The memory references setting is being ignored.");
+            }
+        }
 
         String cacheSize = getProperty(CACHE_CAPACITY_KEY);
 
@@ -400,6 +878,213 @@ public abstract class AbstractCacheAdministrator implements java.io.Serializable
         } catch (NumberFormatException e) {
             log.error("The value supplied for the cache capacity, '" + cacheSize + "', is not a valid number. The cache capacity setting is being ignored.");
         }
+
+        String capacityBytes = getProperty(CACHE_CAPACITY_BYTES_KEY);
+
+        try {
+            if ((capacityBytes != null) && (capacityBytes.length() > 0)) {
+                cacheCapacityBytes = Math.max(0, Long.parseLong(capacityBytes));
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache capacity in bytes, '" + capacityBytes + "', is not a valid number. The byte capacity setting is being ignored.");
+        }
+
+        String offHeap = getProperty(CACHE_OFFHEAP_BYTES_KEY);
+
+        try {
+            if ((offHeap != null) && (offHeap.length() > 0)) {
+                offHeapBytes = Math.max(0, Long.parseLong(offHeap));
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the off-heap capacity, '" + offHeap + "', is not a valid number. The off-heap capacity setting is being ignored.");
+        }
+
+        if ((cacheCapacityBytes > 0) && (cacheCapacity <= 0)) {
+            // Only an evicting algorithm can enforce the byte budget
+            cacheCapacity = Integer.MAX_VALUE;
+        }
+
+        String level = getProperty(CACHE_CONCURRENCY_LEVEL_KEY);
+
+        try {
+            if ((level != null) && (level.length() > 0)) {
+                int value = Integer.parseInt(level);
+
+                if (value > 0) {
+                    concurrencyLevel = value;
+                } else {
+                    log.error("The value supplied for the cache concurrency level, '" + level + "', must be at least 1. The concurrency level setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache concurrency level, '" + level + "', is not a valid number. The concurrency level setting is being ignored.");
+        }
+
+        String expected = getProperty(CACHE_EXPECTED_SIZE_KEY);
+
+        try {
+            if ((expected != null) && (expected.length() > 0)) {
+                expectedSize = Math.max(0, Integer.parseInt(expected));
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache expected size, '" + expected + "', is not a valid number. The expected size setting is being ignored.");
+        }
+
+        String ttl = getProperty(CACHE_EXPIRY_TTL_KEY);
+
+        try {
+            if ((ttl != null) && (ttl.length() > 0)) {
+                timeToLive = Integer.parseInt(ttl);
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache entry lifetime, '" + ttl + "', is not a valid number. The lifetime setting is being ignored.");
+        }
+
+        String tick = getProperty(CACHE_EXPIRY_TICK_KEY);
+
+        try {
+            if ((tick != null) && (tick.length() > 0)) {
+                expiryTick = Math.max(0, Long.parseLong(tick));
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache expiry tick, '" + tick + "', is not a valid number. The expiry tick setting is being ignored.");
+        }
+
+        String threads = getProperty(CACHE_REFRESH_THREADS_KEY);
+
+        try {
+            if ((threads != null) && (threads.length() > 0)) {
+                int value = Integer.parseInt(threads);
+
+                if (value > 0) {
+                    refreshThreads = value;
+                } else {
+                    log.error("The value supplied for the cache refresh threads, '" + threads + "', must be at least 1. The refresh threads setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache refresh threads, '" + threads + "', is not a valid number. The refresh threads setting is being ignored.");
+        }
+
+        String queue = getProperty(CACHE_REFRESH_QUEUE_KEY);
+
+        try {
+            if ((queue != null) && (queue.length() > 0)) {
+                int value = Integer.parseInt(queue);
+
+                if (value > 0) {
+                    refreshQueueSize = value;
+                } else {
+                    log.error("The value supplied for the cache refresh queue, '" + queue + "', must be at least 1. The refresh queue setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache refresh queue, '" + queue + "', is not a valid number. The refresh queue setting is being ignored.");
+        }
+
+        String ahead = getProperty(CACHE_REFRESH_AHEAD_KEY);
+
+        try {
+            if ((ahead != null) && (ahead.length() > 0)) {
+                float value = Float.parseFloat(ahead);
+
+                if ((value >= 0) && (value < 1)) {
+                    refreshAhead = value;
+                } else {
+                    log.error("The value supplied for the cache refresh-ahead fraction, '" + ahead + "', must verify 0 <= fraction < 1. The refresh-ahead setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache refresh-ahead fraction, '" + ahead + "', is not a valid number. The refresh-ahead setting is being ignored.");
+        }
+
+        String eventQueue = getProperty(CACHE_EVENT_QUEUE_KEY);
+
+        try {
+            if ((eventQueue != null) && (eventQueue.length() > 0)) {
+                int value = Integer.parseInt(eventQueue);
+
+                if (value >= 0) {
+                    eventQueueSize = value;
+                } else {
+                    log.error("The value supplied for the cache event queue, '" + eventQueue + "', must not be negative. The event queue setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache event queue, '" + eventQueue + "', is not a valid number. The event queue setting is being ignored.");
+        }
+
+        String eventBatch = getProperty(CACHE_EVENT_BATCH_KEY);
+
+        try {
+            if ((eventBatch != null) && (eventBatch.length() > 0)) {
+                int value = Integer.parseInt(eventBatch);
+
+                if (value > 0) {
+                    eventBatchSize = value;
+                } else {
+                    log.error("The value supplied for the cache event batch, '" + eventBatch + "', must be at least 1. The event batch setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache event batch, '" + eventBatch + "', is not a valid number. The event batch setting is being ignored.");
+        }
+
+        String overflow = getProperty(CACHE_EVENT_OVERFLOW_KEY);
+
+        if ((overflow != null) && (overflow.length() > 0)) {
+            if ("block".equalsIgnoreCase(overflow)) {
+                eventOverflowPolicy = Cache.EVENT_OVERFLOW_BLOCK;
+            } else if ("drop".equalsIgnoreCase(overflow)) {
+                eventOverflowPolicy = Cache.EVENT_OVERFLOW_DROP;
+            } else if ("coalesce".equalsIgnoreCase(overflow)) {
+                eventOverflowPolicy = Cache.EVENT_OVERFLOW_COALESCE;
+            } else {
+                log.error("The value supplied for the cache event overflow policy, '" + overflow + "', is not one of block, drop or coalesce. The event overflow setting is being ignored.");
+            }
+        }
+
+        keyIndex = "true".equalsIgnoreCase(getProperty(CACHE_KEY_INDEX_KEY));
+        groupGenerations = "true".equalsIgnoreCase(getProperty(CACHE_GROUP_GENERATIONS_KEY));
+
+        String sweepRate = getProperty(CACHE_FLUSH_SWEEP_RATE_KEY);
+
+        try {
+            if ((sweepRate != null) && (sweepRate.length() > 0)) {
+                int value = Integer.parseInt(sweepRate);
+
+                if (value >= 0) {
+                    flushSweepRate = value;
+                } else {
+                    log.error("The value supplied for the cache flush sweep rate, '" + sweepRate + "', must not be negative. The flush sweep rate setting is being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The value supplied for the cache flush sweep rate, '" + sweepRate + "', is not a valid number. The flush sweep rate setting is being ignored.");
+        }
+
+        String highWatermark = getProperty(CACHE_EVICTION_HIGH_WATERMARK_KEY);
+        String lowWatermark = getProperty(CACHE_EVICTION_LOW_WATERMARK_KEY);
+
+        try {
+            if ((highWatermark != null) && (highWatermark.length() > 0)) {
+                float high = Float.parseFloat(highWatermark);
+                float low = high * 0.9f;
+
+                if ((lowWatermark != null) && (lowWatermark.length() > 0)) {
+                    low = Float.parseFloat(lowWatermark);
+                }
+
+                if ((high > 0) && (high <= 1) && (low > 0) && (low < high)) {
+                    evictionHighWatermark = high;
+                    evictionLowWatermark = low;
+                } else {
+                    log.error("The values supplied for the cache eviction watermarks, '" + highWatermark + "' and '" + lowWatermark + "', must verify 0 < low < high <= 1. The eviction watermark settings are being ignored.");
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("The values supplied for the cache eviction watermarks, '" + highWatermark + "' and '" + lowWatermark + "', are not valid numbers. The eviction watermark settings are being ignored.");
+        }
     }
 
     /**
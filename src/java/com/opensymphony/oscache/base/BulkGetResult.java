@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of {@link Cache#getAll(String[], int)}: the content of the
+ * entries that could be served, and the keys of the missing or stale entries
+ * the caller has to rebuild.
+ * <p>
+ * As with a <code>NeedsRefreshException</code>, the calling thread owns the
+ * update of each key to rebuild: other threads requesting it may be blocked
+ * until the caller puts new content in the cache, or cancels the update with
+ * {@link Cache#cancelUpdate(String)}.
+ *
+ * @version        $Revision$
+ */
+public final class BulkGetResult {
+    private final Map hits;
+    private final List keysToRebuild;
+    private final List timedOutKeys;
+    private final Map staleContent;
+
+    BulkGetResult(Map hits, List keysToRebuild, List timedOutKeys, Map staleContent) {
+        this.hits = Collections.unmodifiableMap(hits);
+        this.keysToRebuild = Collections.unmodifiableList(keysToRebuild);
+        this.timedOutKeys = Collections.unmodifiableList(timedOutKeys);
+        this.staleContent = staleContent;
+    }
+
+    /**
+     * @return the content of the entries that were served, by key.
+     */
+    public Map getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the keys the caller has to rebuild, in key order.
+     */
+    public List getKeysToRebuild() {
+        return keysToRebuild;
+    }
+
+    /**
+     * @return the keys of the entries without content that another thread
+     * was building for longer than the blocking timeout of the cache, in key
+     * order. The caller does not own their update, and must neither put them
+     * in the cache nor cancel their update.
+     */
+    public List getTimedOutKeys() {
+        return timedOutKeys;
+    }
+
+    /**
+     * Retrieve the stale content of an entry to rebuild, which may be served
+     * while the entry is being rebuilt.
+     *
+     * @param key the key of an entry to rebuild
+     * @return the stale content, or <code>null</code> if the entry was missing
+     */
+    public Object getStaleContent(String key) {
+        return staleContent.get(key);
+    }
+
+    /**
+     * @return <code>true</code> if every requested entry was served.
+     */
+    public boolean isComplete() {
+        return keysToRebuild.isEmpty() && timedOutKeys.isEmpty();
+    }
+}
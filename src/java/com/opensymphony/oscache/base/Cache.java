@@ -5,11 +5,12 @@
 package com.opensymphony.oscache.base;
 
 import com.opensymphony.oscache.base.algorithm.AbstractConcurrentReadCache;
+import com.opensymphony.oscache.base.algorithm.EntryWeigher;
 import com.opensymphony.oscache.base.algorithm.LRUCache;
 import com.opensymphony.oscache.base.algorithm.UnlimitedCache;
 import com.opensymphony.oscache.base.events.*;
 import com.opensymphony.oscache.base.persistence.PersistenceListener;
-import com.opensymphony.oscache.util.FastCronParser;
+import com.opensymphony.oscache.util.CronSchedule;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,12 +40,53 @@ public class Cache implements Serializable {
      * An event that origininated from within another event.
      */
     public static final String NESTED_EVENT = "NESTED";
+
+    /**
+     * Overflow policy of the event queue: the thread firing an event waits
+     * for room in the queue.
+     */
+    public static final int EVENT_OVERFLOW_BLOCK = 0;
+
+    /**
+     * Overflow policy of the event queue: the events fired while the queue
+     * is full are dropped.
+     */
+    public static final int EVENT_OVERFLOW_DROP = 1;
+
+    /**
+     * Overflow policy of the event queue: an event fired while the queue is
+     * full replaces a queued event of the same type for the same key, group
+     * or pattern, or else waits for room in the queue.
+     */
+    public static final int EVENT_OVERFLOW_COALESCE = 2;
     private static transient final Log log = LogFactory.getLog(Cache.class);
 
     /**
-     * A list of all registered event listeners for this cache.
+     * The bulk operations, as dispatched to the {@link CacheBulkEventListener}s.
      */
-    protected EventListenerList listenerList = new EventListenerList();
+    private static final int BULK_ACCESSED = 0;
+    private static final int BULK_PUT = 1;
+    private static final int BULK_FLUSHED = 2;
+
+    /**
+     * Returned by {@link #lookup(String, int, String, boolean, long, CacheEntry[])} when the
+     * wait for another thread building an entry without content timed out.
+     */
+    private static final Object UPDATE_TIMED_OUT = new Object();
+
+    /**
+     * The kinds of events handed to the event dispatcher.
+     */
+    private static final int EVENT_ENTRY = 0;
+    private static final int EVENT_GROUP = 1;
+    private static final int EVENT_PATTERN = 2;
+    private static final int EVENT_CACHEWIDE = 3;
+    private static final int EVENT_BULK = 4;
+
+    /**
+     * The registered event listeners for this cache, split by listener interface.
+     */
+    protected ListenerRegistry listenerRegistry = new ListenerRegistry();
 
     /**
      * The actual cache map. This is where the cached objects are held.
@@ -56,6 +98,11 @@ public class Cache implements Serializable {
      */
     private Date flushDateTime = null;
 
+    /**
+     * Number of stripes of the update state map, a power of two.
+     */
+    private static final int UPDATE_STATE_STRIPES = 64;
+
     /**
      * A map that holds keys of cache entries that are currently being built, and EntryUpdateState instance as values. This is used to coordinate threads
      * that modify/access a same key in concurrence.
@@ -73,8 +120,11 @@ public class Cache implements Serializable {
      * It is not possible to locate this into the CacheEntry because this would require to have a CacheEntry instance for all cache misses, and
      * may therefore generate a memory leak. More over, the CacheEntry instance may not be hold in memory in the case no
      * memory cache is configured.
+     * <p>
+     * The map is split into {@link #UPDATE_STATE_STRIPES} stripes by the hash of the keys, each stripe being a map guarded
+     * by its own monitor, so that the threads dealing with unrelated keys don't contend for a single lock.
      */
-    private Map updateStates = new HashMap();
+    private final Map[] updateStates = newUpdateStates();
 
     /**
      * Indicates whether the cache blocks requests until new content has
@@ -82,6 +132,94 @@ public class Cache implements Serializable {
      */
     private boolean blocking = false;
 
+    /**
+     * How long a request waits for another thread building the entry, in
+     * milliseconds, or <code>0</code> to wait until the entry is built.
+     */
+    private long blockingTimeout = 0;
+
+    /**
+     * The number of requests that gave up waiting for another thread
+     * building the entry, in its only element. The array is also the lock
+     * guarding the count, so that counting doesn't contend with the methods
+     * synchronized on the cache.
+     */
+    private final long[] nbTimedOutWaits = new long[1];
+
+    /**
+     * The lifetime of the entries, in seconds, from the time they are put in
+     * the cache. {@link CacheEntry#INDEFINITE_EXPIRY} if they don't expire.
+     */
+    private int timeToLive = CacheEntry.INDEFINITE_EXPIRY;
+
+    /**
+     * Schedules the removal of the expired entries, or <code>null</code> if
+     * they are only found stale when they are requested.
+     */
+    private transient volatile ExpiryWheel expiryWheel = null;
+
+    /**
+     * Rebuilds the stale entries in the background, or <code>null</code> if
+     * the callers rebuild them.
+     */
+    private transient volatile RefreshExecutor refreshExecutor = null;
+
+    /**
+     * The fraction of their lifetime after which the entries are refreshed
+     * ahead of their expiry, or <code>0</code> if they are only refreshed
+     * once stale.
+     */
+    private float refreshAhead = 0;
+
+    /**
+     * Delivers the events to the asynchronous listeners, or <code>null</code>
+     * if every listener is notified by the thread firing the event.
+     */
+    private transient volatile EventDispatcher eventDispatcher = null;
+
+    /**
+     * Indexes the keys of the cache for the pattern flushes, or
+     * <code>null</code> if the pattern flushes test every key.
+     */
+    private transient volatile KeyIndex keyIndex = null;
+
+    /**
+     * The generation each flushed group was last flushed with, by group name,
+     * or <code>null</code> if the groups are flushed entry by entry. The map
+     * is replaced when a group is first flushed, and never modified.
+     */
+    private transient volatile Map groupGenerations = null;
+
+    /**
+     * The last generation handed out to a group flush. The entries record the
+     * generation they were written under.
+     */
+    private transient volatile long generation = 0;
+
+    /**
+     * Removes the entries left stale by the cache-wide flushes in the
+     * background, or <code>null</code> if they stay until read or evicted.
+     */
+    private transient volatile FlushSweeper flushSweeper = null;
+
+    /**
+     * The maximum number of cron expressions whose schedules are kept.
+     */
+    private static final int MAX_CRON_SCHEDULES = 256;
+
+    /**
+     * Marks the cron expressions that could not be compiled.
+     */
+    private static final Object INVALID_CRON_EXPRESSION = new Object();
+
+    /**
+     * The compiled cron expressions the entries have been requested with, by
+     * expression: a {@link CronSchedule}, or {@link #INVALID_CRON_EXPRESSION}.
+     * The map is copied when an expression is added, so that it can be read
+     * without locking. <code>null</code> until the first expression is added.
+     */
+    private transient volatile Map cronSchedules = null;
+
     /**
      * Create a new Cache
      *
@@ -116,49 +254,658 @@ public class Cache implements Serializable {
      * @param algorithmClass The class implementing the desired algorithm
      * @param capacity The capacity
      */
-    public Cache(boolean useMemoryCaching, boolean unlimitedDiskCache, boolean overflowPersistence, boolean blocking, String algorithmClass, int capacity) {
-        // Instantiate the algo class if valid
-        if (((algorithmClass != null) && (algorithmClass.length() > 0)) && (capacity > 0)) {
-            try {
-                cacheMap = (AbstractConcurrentReadCache) Class.forName(algorithmClass).newInstance();
-                cacheMap.setMaxEntries(capacity);
-            } catch (Exception e) {
-                log.error("Invalid class name for cache algorithm class. " + e.toString());
-            }
-        }
+    public Cache(boolean useMemoryCaching, boolean unlimitedDiskCache, boolean overflowPersistence, boolean blocking, String algorithmClass, int capacity) {
+        // Instantiate the algo class if valid
+        if (((algorithmClass != null) && (algorithmClass.length() > 0)) && (capacity > 0)) {
+            try {
+                cacheMap = (AbstractConcurrentReadCache) Class.forName(algorithmClass).newInstance();
+                cacheMap.setMaxEntries(capacity);
+            } catch (Exception e) {
+                log.error("Invalid class name for cache algorithm class. " + e.toString());
+            }
+        }
+
+        if (cacheMap == null) {
+            // If we have a capacity, use LRU cache otherwise use unlimited Cache
+            if (capacity > 0) {
+                cacheMap = new LRUCache(capacity);
+            } else {
+                cacheMap = new UnlimitedCache();
+            }
+        }
+
+        cacheMap.setUnlimitedDiskCache(unlimitedDiskCache);
+        cacheMap.setOverflowPersistence(overflowPersistence);
+        cacheMap.setMemoryCaching(useMemoryCaching);
+
+        this.blocking = blocking;
+    }
+    
+    /**
+     * @return the maximum number of items to cache can hold.
+     */
+    public int getCapacity() {
+        return cacheMap.getMaxEntries();
+    }
+
+    /**
+     * Allows the capacity of the cache to be altered dynamically. Note that
+     * some cache implementations may choose to ignore this setting (eg the
+     * {@link UnlimitedCache} ignores this call).
+     *
+     * @param capacity the maximum number of items to hold in the cache.
+     */
+    public void setCapacity(int capacity) {
+        cacheMap.setMaxEntries(capacity);
+    }
+
+    /**
+     * Sets the capacity of the in-memory cache in bytes, as estimated by the
+     * entry weigher. Entries are evicted through the cache algorithm while the
+     * cache is over this budget. The cache must have been created with an
+     * evicting algorithm, or with a capacity so that it uses the LRU algorithm;
+     * to bound the cache by bytes only, create it with a capacity of
+     * <code>Integer.MAX_VALUE</code>.
+     *
+     * @param capacityBytes the byte budget, or <code>0</code> to disable it.
+     * @throws IllegalArgumentException if the cache uses the {@link UnlimitedCache},
+     * which can't enforce a byte budget.
+     * @see AbstractConcurrentReadCache#setMaxBytes(long)
+     */
+    public void setCapacityBytes(long capacityBytes) {
+        cacheMap.setMaxBytes(capacityBytes);
+    }
+
+    /**
+     * @return the maximum number of bytes the cache can hold, <code>0</code> if unbounded.
+     */
+    public long getCapacityBytes() {
+        return cacheMap.getMaxBytes();
+    }
+
+    /**
+     * Chooses whether removed entries are unlinked in place from the memory
+     * cache table, rather than by copying the entries ahead of them. This
+     * produces less garbage, but requires a Java 5 or later virtual machine.
+     *
+     * @param unlinkingStorage <code>true</code> to unlink removed entries in place
+     * @see AbstractConcurrentReadCache#setUnlinkingStorage(boolean)
+     */
+    public void setUnlinkingStorage(boolean unlinkingStorage) {
+        cacheMap.setUnlinkingStorage(unlinkingStorage);
+    }
+
+    /**
+     * Chooses how the in-memory cache holds the cached values, so that the
+     * garbage collector may reclaim them under memory pressure. Like the
+     * concurrency level, this must be set before the cache is populated.
+     *
+     * @param references one of {@link AbstractConcurrentReadCache#STRONG_REFERENCES},
+     * {@link AbstractConcurrentReadCache#SOFT_REFERENCES} or
+     * {@link AbstractConcurrentReadCache#WEAK_REFERENCES}
+     * @see AbstractConcurrentReadCache#setValueReferences(int)
+     */
+    public void setValueReferences(int references) {
+        cacheMap.setValueReferences(references);
+    }
+
+    /**
+     * Sets the capacity of the off-heap tier receiving the entries evicted
+     * from the in-memory cache, serialized outside of the Java heap. Like the
+     * concurrency level, this must be set before the cache is populated.
+     *
+     * @param bytes the capacity of the tier, or <code>0</code> for no tier.
+     * @see AbstractConcurrentReadCache#setOffHeapBytes(long)
+     */
+    public void setOffHeapBytes(long bytes) {
+        cacheMap.setOffHeapBytes(bytes);
+    }
+
+    /**
+     * Enables batch eviction by a background thread between two watermarks,
+     * expressed as fractions of the capacity. The capacity stays a hard
+     * ceiling enforced by the writers.
+     *
+     * @param high the fraction of the capacity above which entries get evicted
+     * @param low the fraction of the capacity the cache is brought back to
+     * @see AbstractConcurrentReadCache#setEvictionWatermarks(float, float)
+     */
+    public void setEvictionWatermarks(float high, float low) {
+        cacheMap.setEvictionWatermarks(high, low);
+    }
+
+    /**
+     * @return for how many milliseconds the background evictor has been
+     * lagging behind the high watermark, <code>0</code> if it is not.
+     */
+    public long getEvictionLag() {
+        return cacheMap.getEvictionLag();
+    }
+
+    /**
+     * Sets how the entries are weighed against the byte capacity.
+     *
+     * @param weigher the weigher, or <code>null</code> for the default one.
+     */
+    public void setEntryWeigher(EntryWeigher weigher) {
+        cacheMap.setEntryWeigher(weigher);
+    }
+
+    /**
+     * Sets the number of independently locked segments of the in-memory
+     * cache. Only an empty cache can be re-segmented, so this is meant to
+     * be called right after the cache has been created.
+     *
+     * @param level the number of segments, rounded up to a power of two.
+     * @see AbstractConcurrentReadCache#setConcurrencyLevel(int)
+     */
+    public void setConcurrencyLevel(int level) {
+        cacheMap.setConcurrencyLevel(level);
+    }
+
+    /**
+     * Retrieves the number of independently locked segments of the in-memory cache.
+     */
+    public int getConcurrencyLevel() {
+        return cacheMap.getConcurrencyLevel();
+    }
+
+    /**
+     * Sizes the in-memory cache for the number of entries it is expected to
+     * hold, so that its table is not resized while it fills up. Like the
+     * concurrency level, this is meant to be called right after the cache
+     * has been created.
+     *
+     * @param expectedSize the expected number of entries.
+     * @see AbstractConcurrentReadCache#setExpectedSize(int)
+     */
+    public void setExpectedSize(int expectedSize) {
+        cacheMap.setExpectedSize(expectedSize);
+    }
+
+    /**
+     * Sets how long a request waits for another thread building the entry it
+     * asks for, which it does when the entry doesn't exist yet or when the
+     * cache is blocking. A request giving up is served the stale content of
+     * the entry, if any, and otherwise gets an {@link UpdateTimeoutException}.
+     * This keeps a rebuild hanging on a slow backend from holding up every
+     * request for the entry.
+     *
+     * @param timeout the maximum wait, in milliseconds, or <code>0</code> to
+     * wait until the entry is built.
+     */
+    public void setBlockingTimeout(long timeout) {
+        this.blockingTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * @return how long a request waits for another thread building the
+     * entry, in milliseconds, or <code>0</code> if it waits until the entry
+     * is built.
+     */
+    public long getBlockingTimeout() {
+        return blockingTimeout;
+    }
+
+    /**
+     * @return the number of requests that gave up waiting for another thread
+     * building the entry, since the cache was created.
+     */
+    public long getNbTimedOutWaits() {
+        synchronized (nbTimedOutWaits) {
+            return nbTimedOutWaits[0];
+        }
+    }
+
+    /**
+     * Sets the lifetime of the cache entries. An entry older than that is
+     * stale, whatever the refresh period it is requested with.
+     *
+     * @param timeToLive the lifetime of the entries, in seconds, or
+     * {@link CacheEntry#INDEFINITE_EXPIRY} for no limit.
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = (timeToLive < 0) ? CacheEntry.INDEFINITE_EXPIRY : timeToLive;
+    }
+
+    /**
+     * @return the lifetime of the entries, in seconds, or
+     * {@link CacheEntry#INDEFINITE_EXPIRY} if they don't expire.
+     */
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Schedules the removal of the entries once they have expired, instead of
+     * leaving them in memory until they are next requested or evicted. The
+     * deadline of an entry is taken from the time to live of the cache (see
+     * {@link #setTimeToLive(int)}), from its refresh policy when it is an
+     * {@link ExpiringRefreshPolicy}, and from the cron expression it is
+     * requested with. A background thread removes the expired entries, one
+     * tick at a time; entries already in the cache are not scheduled.
+     *
+     * @param tickMillis the resolution of the expiry in milliseconds, or
+     * <code>0</code> to only find expired entries when they are requested.
+     */
+    public synchronized void setExpiryTick(long tickMillis) {
+        if (expiryWheel != null) {
+            expiryWheel.shutdown();
+            expiryWheel = null;
+        }
+
+        if (tickMillis > 0) {
+            expiryWheel = new ExpiryWheel(this, tickMillis);
+        }
+    }
+
+    /**
+     * @return the resolution of the expiry scheduling in milliseconds, or
+     * <code>0</code> if the expiry is not scheduled.
+     */
+    public long getExpiryTick() {
+        ExpiryWheel wheel = expiryWheel;
+
+        return (wheel == null) ? 0 : wheel.getTickMillis();
+    }
+
+    /**
+     * Registers a refresher that rebuilds the stale entries in the background.
+     * A caller finding a stale entry then gets the stale content straight away,
+     * even if the cache is blocking, while the key is handed to a bounded pool
+     * of refresh threads that load the new content with the refresher and put
+     * it in the cache. Only missing entries still have to be built by the
+     * callers, as a <code>NeedsRefreshException</code> or through a
+     * {@link CacheLoader} requires. A refresh that fails is logged, and the
+     * entry is submitted again the next time it is found stale.
+     *
+     * @param refresher the loader rebuilding the stale entries, or
+     * <code>null</code> to have them rebuilt by the callers again.
+     * @param threads the number of refresh threads.
+     * @param queueSize the maximum number of keys waiting for a refresh
+     * thread. Stale entries found while the queue is full are served stale
+     * and not queued.
+     */
+    public synchronized void setRefresher(CacheLoader refresher, int threads, int queueSize) {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+            refreshExecutor = null;
+        }
+
+        if (refresher != null) {
+            refreshExecutor = new RefreshExecutor(this, refresher, threads, queueSize);
+        }
+    }
+
+    /**
+     * @return the loader rebuilding the stale entries in the background, or
+     * <code>null</code> if they are rebuilt by the callers.
+     */
+    public CacheLoader getRefresher() {
+        RefreshExecutor executor = refreshExecutor;
+
+        return (executor == null) ? null : executor.getLoader();
+    }
+
+    /**
+     * Refreshes the entries ahead of their expiry, once they have lived for a
+     * fraction of their lifetime. The lifetime of an entry is the refresh
+     * period it is requested with, the time to live of the cache or the expiry
+     * time of its {@link ExpiringRefreshPolicy}, whichever is the shortest.
+     * A hit on an entry past the fraction of its lifetime returns the entry and
+     * submits it to the refresher, so that the entry is usually rebuilt before
+     * anyone finds it stale. This only applies once a refresher is registered
+     * with {@link #setRefresher(CacheLoader, int, int)}.
+     *
+     * @param fraction the fraction of their lifetime after which the entries
+     * are refreshed, between <code>0</code> and <code>1</code>, or
+     * <code>0</code> to refresh the entries once they are stale only.
+     */
+    public void setRefreshAhead(float fraction) {
+        if ((fraction < 0) || (fraction >= 1)) {
+            throw new IllegalArgumentException("Refresh-ahead fraction must be at least 0 and less than 1");
+        }
+
+        this.refreshAhead = fraction;
+    }
+
+    /**
+     * @return the fraction of their lifetime after which the entries are
+     * refreshed, or <code>0</code> if they are refreshed once stale only.
+     */
+    public float getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * @return the number of entries waiting for a background refresh, or
+     * being refreshed.
+     */
+    public int getNbPendingRefreshes() {
+        RefreshExecutor executor = refreshExecutor;
+
+        return (executor == null) ? 0 : executor.size();
+    }
+
+    /**
+     * Delivers the events to the listeners asynchronously. The events are
+     * published into a bounded queue, and a dispatcher thread delivers them
+     * in batches, in the order they were fired. The listeners implementing
+     * {@link SynchronousEventListener} are still notified by the thread firing
+     * the event, before the cache operation returns; the map access events
+     * are always delivered that way, as they are fired by every request.
+     * <p>
+     * The events delivered asynchronously hold the cache entries as they are
+     * when the event is delivered, which may have changed since it was fired.
+     *
+     * @param queueSize the maximum number of events waiting for the
+     * dispatcher thread, or <code>0</code> to notify every listener
+     * synchronously.
+     * @param batchSize the maximum number of events the dispatcher thread
+     * takes from the queue at once.
+     * @param overflowPolicy what happens to the events fired while the queue
+     * is full: {@link #EVENT_OVERFLOW_BLOCK}, {@link #EVENT_OVERFLOW_DROP} or
+     * {@link #EVENT_OVERFLOW_COALESCE}.
+     */
+    public synchronized void setEventQueue(int queueSize, int batchSize, int overflowPolicy) {
+        EventDispatcher dispatcher = null;
+
+        if (queueSize > 0) {
+            dispatcher = new EventDispatcher(this, queueSize, batchSize, overflowPolicy);
+        }
+
+        if (eventDispatcher != null) {
+            // The queued events are still delivered
+            eventDispatcher.shutdown();
+        }
+
+        eventDispatcher = dispatcher;
+    }
+
+    /**
+     * @return the maximum number of events waiting for the dispatcher thread,
+     * or <code>0</code> if the events are delivered synchronously.
+     */
+    public int getEventQueueSize() {
+        EventDispatcher dispatcher = eventDispatcher;
+
+        return (dispatcher == null) ? 0 : dispatcher.getQueueSize();
+    }
+
+    /**
+     * @return the number of events waiting for the dispatcher thread.
+     */
+    public int getEventQueueDepth() {
+        EventDispatcher dispatcher = eventDispatcher;
+
+        return (dispatcher == null) ? 0 : dispatcher.size();
+    }
+
+    /**
+     * @return the number of events dropped because the event queue was full,
+     * since the queue was set up.
+     */
+    public long getNbDroppedEvents() {
+        EventDispatcher dispatcher = eventDispatcher;
+
+        return (dispatcher == null) ? 0 : dispatcher.getDroppedCount();
+    }
+
+    /**
+     * @return the number of events merged into a queued event because the
+     * event queue was full, since the queue was set up.
+     */
+    public long getNbCoalescedEvents() {
+        EventDispatcher dispatcher = eventDispatcher;
+
+        return (dispatcher == null) ? 0 : dispatcher.getCoalescedCount();
+    }
+
+    /**
+     * Indexes the keys of the cache, so that {@link #flushPattern(String)}
+     * only looks at the keys containing the pattern instead of testing every
+     * key of the cache. The index is kept up to date by the cache map as keys
+     * are added, removed or evicted, at the cost of some memory and of
+     * indexing every new key; see {@link #getKeyIndexMemory()}.
+     * <p>
+     * The index is built from the keys in the cache when it is enabled.
+     *
+     * @param enabled <code>true</code> to index the keys, <code>false</code>
+     * to drop the index.
+     */
+    public synchronized void setKeyIndex(boolean enabled) {
+        if (enabled == (keyIndex != null)) {
+            return;
+        }
+
+        if (enabled) {
+            // Listen first, so that no key added meanwhile is missed
+            KeyIndex index = new KeyIndex();
+            cacheMap.setKeyListener(index);
+            index.addAll(cacheMap.keySet());
+            keyIndex = index;
+        } else {
+            cacheMap.setKeyListener(null);
+            keyIndex = null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the keys of the cache are indexed for the
+     * pattern flushes.
+     */
+    public boolean isKeyIndexEnabled() {
+        return keyIndex != null;
+    }
+
+    /**
+     * @return the number of keys in the key index, or <code>0</code> if the
+     * keys are not indexed.
+     */
+    public int getKeyIndexSize() {
+        KeyIndex index = keyIndex;
+
+        return (index == null) ? 0 : index.size();
+    }
+
+    /**
+     * @return an estimate of the memory taken by the key index in bytes, not
+     * counting the keys themselves, or <code>0</code> if the keys are not
+     * indexed.
+     */
+    public long getKeyIndexMemory() {
+        KeyIndex index = keyIndex;
+
+        return (index == null) ? 0 : index.getMemoryUsage();
+    }
+
+    /**
+     * Flushes the groups by generation instead of entry by entry. Each group
+     * flush then takes the next generation of the cache and records it for
+     * the group, and the entries written under an earlier generation are found
+     * stale when they are next read, instead of being flushed one by one.
+     * A group flush thus takes the same time whatever the size of the group.
+     * <p>
+     * The members of a group flushed this way don't fire an
+     * <tt>ENTRY_FLUSHED</tt> event, only the group fires its
+     * <tt>GROUP_FLUSHED</tt> event. The group generations are only held in
+     * memory: the persisted entries of a group flushed this way are not
+     * marked as flushed, and are fresh again if the cache is restarted
+     * before they are rebuilt.
+     *
+     * @param enabled <code>true</code> to flush the groups by generation,
+     * <code>false</code> to flush their entries one by one.
+     */
+    public synchronized void setGroupGenerations(boolean enabled) {
+        if (enabled == (groupGenerations != null)) {
+            return;
+        }
+
+        if (enabled) {
+            // Keeps the generations of a restarted cache above the ones of
+            // the entries it persisted
+            generation = Math.max(generation, System.currentTimeMillis());
+            groupGenerations = new HashMap();
+        } else {
+            // The entries the generations made stale are flushed for good
+            Map generations = groupGenerations;
+            groupGenerations = null;
+
+            for (Iterator it = generations.keySet().iterator(); it.hasNext();) {
+                flushGroupEntries((String) it.next(), generations);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the groups are flushed by generation.
+     */
+    public boolean isGroupGenerationsEnabled() {
+        return groupGenerations != null;
+    }
+
+    /**
+     * Removes the entries left stale by the flushes of the whole cache in the
+     * background, instead of leaving them in the cache until they are read or
+     * evicted. Once the time of a flush has come, a low priority thread walks
+     * the cache and removes the entries written before the flush, at most at
+     * the supplied rate so that it doesn't compete with the threads using the
+     * cache. Entries being rebuilt are left to their rebuild.
+     * <p>
+     * The entries removed that way can no longer be served stale, for
+     * instance by the refresher or when a rebuild is cancelled.
+     *
+     * @param entriesPerSecond the number of entries the sweeper looks at per
+     * second, or <code>0</code> to leave the flushed entries in the cache.
+     */
+    public synchronized void setFlushSweeper(int entriesPerSecond) {
+        if (flushSweeper != null) {
+            flushSweeper.shutdown();
+            flushSweeper = null;
+        }
+
+        if (entriesPerSecond > 0) {
+            flushSweeper = new FlushSweeper(this, entriesPerSecond);
+        }
+    }
+
+    /**
+     * @return the number of entries the flush sweeper looks at per second, or
+     * <code>0</code> if the flushed entries are left in the cache.
+     */
+    public int getFlushSweepRate() {
+        FlushSweeper sweeper = flushSweeper;
+
+        return (sweeper == null) ? 0 : sweeper.getEntriesPerSecond();
+    }
+
+    /**
+     * @return the number of flushed entries removed by the flush sweeper since
+     * it was set up.
+     */
+    public long getNbReclaimedEntries() {
+        FlushSweeper sweeper = flushSweeper;
+
+        return (sweeper == null) ? 0 : sweeper.getRemovedCount();
+    }
+
+    /**
+     * @return <code>true</code> if the flush sweeper has a walk of the cache
+     * pending or in progress.
+     */
+    public boolean isSweepingFlushedEntries() {
+        FlushSweeper sweeper = flushSweeper;
+
+        return (sweeper != null) && sweeper.isSweeping();
+    }
+
+    /**
+     * Has the flush sweeper, if any, remove the entries written before a
+     * flush once its time has come. This is called by
+     * {@link #flushAll(Date, String)}, and by the administrators flushing the
+     * scope of a cache.
+     *
+     * @param date The time of the flush.
+     */
+    public void sweepFlushedEntries(Date date) {
+        FlushSweeper sweeper = flushSweeper;
 
-        if (cacheMap == null) {
-            // If we have a capacity, use LRU cache otherwise use unlimited Cache
-            if (capacity > 0) {
-                cacheMap = new LRUCache(capacity);
-            } else {
-                cacheMap = new UnlimitedCache();
-            }
+        if ((sweeper != null) && (date != null)) {
+            sweeper.sweep(date.getTime());
         }
+    }
 
-        cacheMap.setUnlimitedDiskCache(unlimitedDiskCache);
-        cacheMap.setOverflowPersistence(overflowPersistence);
-        cacheMap.setMemoryCaching(useMemoryCaching);
-
-        this.blocking = blocking;
+    /**
+     * Stops the background threads of the cache: the expiry wheel, the
+     * refresher, the event dispatcher, the flush sweeper and the background
+     * evictor. The events already queued are still delivered. The cache
+     * remains usable, as if none of them had been set up: expired entries
+     * are found when requested, stale entries are rebuilt by the callers and
+     * events are delivered synchronously.
+     * <p>
+     * The administrators call this when they discard a cache, so that its
+     * threads don't outlive it until it is garbage collected.
+     */
+    public synchronized void shutdown() {
+        setExpiryTick(0);
+        setRefresher(null, 0, 0);
+        setEventQueue(0, 0, EVENT_OVERFLOW_BLOCK);
+        setFlushSweeper(0);
+        cacheMap.setEvictionWatermarks(0, 0);
     }
-    
+
     /**
-     * @return the maximum number of items to cache can hold.
+     * Indicates whether an entry was made stale by a flush of the whole
+     * cache or of one of its groups, so that the flush sweeper may remove it.
+     *
+     * @param cacheEntry The cache entry to check.
+     * @return <code>true</code> if the entry may be removed.
      */
-    public int getCapacity() {
-        return cacheMap.getMaxEntries();
+    protected boolean isReclaimable(CacheEntry cacheEntry) {
+        return isFlushed(cacheEntry);
     }
 
     /**
-     * Allows the capacity of the cache to be altered dynamically. Note that
-     * some cache implementations may choose to ignore this setting (eg the
-     * {@link UnlimitedCache} ignores this call).
+     * Removes an entry found by the flush sweeper, unless it is no longer
+     * stale, is being rebuilt or has been replaced in the meantime.
      *
-     * @param capacity the maximum number of items to hold in the cache.
+     * @return <code>true</code> if the entry was removed.
      */
-    public void setCapacity(int capacity) {
-        cacheMap.setMaxEntries(capacity);
+    boolean reclaimEntry(String key, CacheEntry cacheEntry) {
+        if (!isReclaimable(cacheEntry)) {
+            return false;
+        }
+
+        Map states = getUpdateStates(key);
+
+        synchronized (states) {
+            if (states.containsKey(key)) {
+                // The rebuild replaces the entry
+                return false;
+            }
+        }
+
+        // An entry put since the sweeper found this one is kept
+        if (!cacheMap.remove(key, cacheEntry)) {
+            return false;
+        }
+
+        // The key is left in the key index and the expiry wheel, which may
+        // already hold it for a newer entry; both skip the missing entries
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, NESTED_EVENT);
+            dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_REMOVED, event);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns an iterator over the entries of the table, which neither
+     * counts as an access to the entries nor loads them from disk.
+     */
+    Iterator getEntryIterator() {
+        return cacheMap.entrySet().iterator();
     }
 
     /**
@@ -174,10 +921,28 @@ public class Cache implements Serializable {
             final long flushTime = flushDateTime.getTime();
 
             // CACHE-241: check flushDateTime with current time also
-            return (flushTime <= System.currentTimeMillis()) && (flushTime >= lastUpdate);
-        } else {
-            return false;
+            if ((flushTime <= System.currentTimeMillis()) && (flushTime >= lastUpdate)) {
+                return true;
+            }
+        }
+
+        Map generations = groupGenerations;
+
+        if ((generations != null) && !generations.isEmpty()) {
+            Set groups = cacheEntry.getGroups();
+
+            if (groups != null) {
+                for (Iterator it = groups.iterator(); it.hasNext();) {
+                    GroupGeneration groupGeneration = (GroupGeneration) generations.get(it.next());
+
+                    if ((groupGeneration != null) && (groupGeneration.value > cacheEntry.getGeneration())) {
+                        return true;
+                    }
+                }
+            }
         }
+
+        return false;
     }
 
     /**
@@ -243,17 +1008,211 @@ public class Cache implements Serializable {
      * {@link #cancelUpdate(String)}.
      */
     public Object getFromCache(String key, int refreshPeriod, String cronExpiry) throws NeedsRefreshException {
+        return getFromCache(key, refreshPeriod, cronExpiry, blockingTimeout);
+    }
+
+    /**
+     * Retrieve an object from the cache specifying its key, and how long to
+     * wait for another thread building the entry instead of the maximum wait
+     * set with {@link #setBlockingTimeout(long)}.
+     *
+     * @param key             Key of the object in the cache.
+     * @param refreshPeriod   How long before the object needs refresh. To
+     * allow the object to stay in the cache indefinitely, supply a value
+     * of {@link CacheEntry#INDEFINITE_EXPIRY}.
+     * @param cronExpiry      A cron expression that specifies fixed date(s)
+     *                        and/or time(s) that this cache entry should
+     *                        expire on.
+     * @param maxWait         How long to wait for another thread building
+     * the entry, in milliseconds, or <code>0</code> to wait until the entry
+     * is built.
+     *
+     * @return The object from cache, which is the stale content of the entry
+     * if the wait timed out.
+     *
+     * @throws NeedsRefreshException Thrown when the object either
+     * doesn't exist, or exists but is stale. When this exception occurs,
+     * the CacheEntry corresponding to the supplied key will be locked
+     * and other threads requesting this entry will potentially be blocked
+     * until the caller repopulates the cache. If the caller choses not
+     * to repopulate the cache, they <em>must</em> instead call
+     * {@link #cancelUpdate(String)}.
+     * @throws UpdateTimeoutException Thrown when the wait for another thread
+     * building an entry that has no stale content timed out.
+     */
+    public Object getFromCache(String key, int refreshPeriod, String cronExpiry, long maxWait) throws NeedsRefreshException {
+        Object content = lookup(key, refreshPeriod, cronExpiry, false, maxWait, null);
+
+        if (content instanceof UpdateNeeded) {
+            throw new NeedsRefreshException(((UpdateNeeded) content).staleContent);
+        }
+
+        if (content == UPDATE_TIMED_OUT) {
+            throw new UpdateTimeoutException(key, maxWait);
+        }
+
+        return content;
+    }
+
+    /**
+     * Retrieve an object from the cache specifying its key, loading it with
+     * the supplied loader if it doesn't exist or is stale. Concurrent callers
+     * requesting the same key share the update: only one of them runs the
+     * loader, the others are blocked or served the stale content as with
+     * {@link #getFromCache(String, int, String)}, until the loaded object
+     * is in the cache. If the loader fails the update is cancelled, and
+     * another caller may have a go.
+     *
+     * @param key             Key of the object in the cache.
+     * @param refreshPeriod   How long before the object needs refresh. To
+     * allow the object to stay in the cache indefinitely, supply a value
+     * of {@link CacheEntry#INDEFINITE_EXPIRY}.
+     * @param cronExpiry      A cron expression that specifies fixed date(s)
+     *                        and/or time(s) that this cache entry should
+     *                        expire on.
+     * @param loader          Loads the object when it needs refresh.
+     *
+     * @return The object from cache, or the object that has just been loaded.
+     *
+     * @throws CacheLoaderException Thrown when the loader failed with a checked
+     * exception. Runtime exceptions are thrown as they are.
+     * @throws UpdateTimeoutException Thrown when the wait for another caller
+     * loading an entry that has no stale content timed out, see
+     * {@link #setBlockingTimeout(long)}.
+     */
+    public Object get(String key, int refreshPeriod, String cronExpiry, CacheLoader loader) throws CacheLoaderException {
+        long maxWait = blockingTimeout;
+        Object content = lookup(key, refreshPeriod, cronExpiry, false, maxWait, null);
+
+        if (content == UPDATE_TIMED_OUT) {
+            throw new UpdateTimeoutException(key, maxWait);
+        }
+
+        if (!(content instanceof UpdateNeeded)) {
+            return content;
+        }
+
+        // This thread owns the update
+        boolean updated = false;
+
+        try {
+            content = loader.load(key);
+            putInCache(key, content);
+            updated = true;
+
+            return content;
+        } catch (CacheLoaderException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CacheLoaderException("Unable to load the cache entry for key [" + key + "]", e);
+        } finally {
+            if (!updated) {
+                cancelUpdate(key);
+            }
+        }
+    }
+
+    /**
+     * Retrieve a batch of objects from the cache. The entries that are fresh
+     * are served, and the caller gets the keys of the entries that are missing
+     * or stale to rebuild, as it would get a <code>NeedsRefreshException</code>
+     * for each of them from {@link #getFromCache(String, int)}. The keys are
+     * looked up in their natural order, so that concurrent bulk requests
+     * never wait for each other's updates in a circle.
+     * <p>
+     * The listeners implementing {@link CacheBulkEventListener} receive a
+     * single event for the whole batch instead of an access event per entry.
+     *
+     * @param keys            Keys of the objects in the cache.
+     * @param refreshPeriod   How long before the objects need refresh. To
+     * allow the objects to stay in the cache indefinitely, supply a value
+     * of {@link CacheEntry#INDEFINITE_EXPIRY}.
+     *
+     * @return The content of the entries served, the keys the caller must
+     * rebuild and put in the cache, or else cancel the update of with
+     * {@link #cancelUpdate(String)}, and the keys whose wait for another
+     * thread building them timed out.
+     */
+    public BulkGetResult getAll(String[] keys, int refreshPeriod) {
+        SortedSet sortedKeys = new TreeSet(Arrays.asList(keys));
+        Map hits = new HashMap();
+        List keysToRebuild = new ArrayList();
+        List timedOutKeys = new ArrayList();
+        Map staleContent = new HashMap();
+        List hitEntries = (listenerRegistry.getBulkListeners().length > 0) ? new ArrayList() : null;
+        CacheEntry[] found = (hitEntries != null) ? new CacheEntry[1] : null;
+        long maxWait = blockingTimeout;
+
+        for (Iterator it = sortedKeys.iterator(); it.hasNext();) {
+            String key = (String) it.next();
+            Object content = lookup(key, refreshPeriod, null, true, maxWait, found);
+
+            if (content instanceof UpdateNeeded) {
+                keysToRebuild.add(key);
+                staleContent.put(key, ((UpdateNeeded) content).staleContent);
+            } else if (content == UPDATE_TIMED_OUT) {
+                timedOutKeys.add(key);
+            } else {
+                hits.put(key, content);
+
+                if ((hitEntries != null) && (found[0] != null)) {
+                    // The entry the content was read from, without accessing the map again
+                    hitEntries.add(found[0]);
+                    found[0] = null;
+                }
+            }
+        }
+
+        if (hitEntries != null) {
+            dispatchCacheBulkEvent(BULK_ACCESSED, hitEntries, keysToRebuild, null);
+        }
+
+        return new BulkGetResult(hits, keysToRebuild, timedOutKeys, staleContent);
+    }
+
+    /**
+     * Looks up a key, waiting for another thread to update it if needed.
+     *
+     * @param bulk Whether the key is part of a bulk request, whose listeners
+     * implementing {@link CacheBulkEventListener} get a single event.
+     * @param maxWait How long to wait for another thread updating the entry,
+     * in milliseconds, or <code>0</code> to wait until it is updated.
+     * @param found If not <code>null</code>, receives in its first element
+     * the entry the content returned to the caller was read from.
+     *
+     * @return the content to return to the caller, an {@link UpdateNeeded}
+     * holding the stale content if the calling thread has taken over the
+     * update of the entry, or {@link #UPDATE_TIMED_OUT} if the wait for
+     * another thread updating an entry without content timed out.
+     */
+    private Object lookup(String key, int refreshPeriod, String cronExpiry, boolean bulk, long maxWait, CacheEntry[] found) {
         CacheEntry cacheEntry = this.getCacheEntry(key, null, null);
 
         Object content = cacheEntry.getContent();
         CacheMapAccessEventType accessEventType = CacheMapAccessEventType.HIT;
 
         boolean reload = false;
+        boolean timedOut = false;
+        RefreshExecutor executor = refreshExecutor;
 
         // Check if this entry has expired or has not yet been added to the cache. If
         // so, we need to decide whether to block, serve stale content or throw a
         // NeedsRefreshException
-        if (this.isStale(cacheEntry, refreshPeriod, cronExpiry)) {
+        boolean stale = this.isStale(cacheEntry, refreshPeriod, cronExpiry);
+
+        if (stale && (executor != null) && !cacheEntry.isNew()) {
+            // Serve the stale content while the refresher rebuilds the entry
+            executor.submit(cacheEntry);
+            dispatchCacheMapAccessEvent(CacheMapAccessEventType.STALE_HIT, cacheEntry, null, bulk);
+
+            if (found != null) {
+                found[0] = cacheEntry;
+            }
+
+            return content;
+        } else if (stale) {
 
             //Get access to the EntryUpdateState instance and increment the usage count during the potential sleep
             EntryUpdateState updateState = getUpdateState(key);
@@ -273,14 +1232,35 @@ public class Cache implements Serializable {
                         // is a new entry, or blocking mode is enabled. Either putInCache()
                         // or cancelUpdate() can cause this thread to resume.
                         if (cacheEntry.isNew() || blocking) {
+                            long deadline = (maxWait > 0) ? (System.currentTimeMillis() + maxWait) : 0;
+
                             do {
+                                long wait = 0;
+
+                                if (deadline > 0) {
+                                    wait = deadline - System.currentTimeMillis();
+
+                                    if (wait <= 0) {
+                                        timedOut = true;
+
+                                        break;
+                                    }
+                                }
+
                                 try {
-                                    updateState.wait();
+                                    updateState.wait(wait);
                                 } catch (InterruptedException e) {
                                 }
                             } while (updateState.isUpdating());
                             
-                            if (updateState.isCancelled()) {
+                            if (timedOut) {
+                                // Give up on the update, serving the stale content if any
+                                if (cacheEntry.isNew()) {
+                                    accessEventType = CacheMapAccessEventType.MISS;
+                                } else {
+                                    accessEventType = CacheMapAccessEventType.STALE_HIT;
+                                }
+                            } else if (updateState.isCancelled()) {
                                 // The updating thread canceled the update, let this one have a go. 
                                 // This increments the usage count for this EntryUpdateState instance
                                 updateState.startUpdate();
@@ -318,11 +1298,33 @@ public class Cache implements Serializable {
             }
         }
 
-        dispatchCacheMapAccessEvent(accessEventType, cacheEntry, null);
+        dispatchCacheMapAccessEvent(accessEventType, cacheEntry, null, bulk);
+
+        if ((accessEventType == CacheMapAccessEventType.HIT) && (cronExpiry != null) && (cronExpiry.length() > 0)) {
+            scheduleCronExpiry(cacheEntry, cronExpiry);
+        }
+
+        if ((accessEventType == CacheMapAccessEventType.HIT) && (executor != null) && (refreshAhead > 0) && isRefreshDue(cacheEntry, refreshPeriod)) {
+            executor.submit(cacheEntry);
+        }
+
+        if (timedOut) {
+            countTimedOutWait();
+
+            if (log.isWarnEnabled()) {
+                log.warn("Timed out after " + maxWait + "ms waiting for the cache entry [" + key + "] to be built");
+            }
+
+            if (cacheEntry.isNew()) {
+                return UPDATE_TIMED_OUT;
+            }
+        } else if (accessEventType != CacheMapAccessEventType.HIT) {
+            // If we didn't end up getting a hit then the caller must update the entry
+            return new UpdateNeeded(content);
+        }
 
-        // If we didn't end up getting a hit then we need to throw a NRE
-        if (accessEventType != CacheMapAccessEventType.HIT) {
-            throw new NeedsRefreshException(content);
+        if (found != null) {
+            found[0] = cacheEntry;
         }
 
         return content;
@@ -356,8 +1358,7 @@ public class Cache implements Serializable {
      * @since 2.4
      */
     public void addCacheEventListener(CacheEventListener listener) {
-        // listenerList.add(CacheEventListener.class, listener);
-        listenerList.add(listener.getClass(), listener);
+        listenerRegistry.add(listener);
     }
     
     /**
@@ -370,7 +1371,7 @@ public class Cache implements Serializable {
      */
     public void addCacheEventListener(CacheEventListener listener, Class clazz) {
         if (CacheEventListener.class.isAssignableFrom(clazz)) {
-            listenerList.add(clazz, listener);
+            listenerRegistry.add(listener);
         } else {
             log.error("The class '" + clazz.getName() + "' is not a CacheEventListener. Ignoring this listener.");
         }
@@ -378,10 +1379,31 @@ public class Cache implements Serializable {
     
     /**
      * Returns the list of all CacheEventListeners.
-     * @return the CacheEventListener's list of the Cache
+     * @return a copy of the CacheEventListener's list of the Cache, in which
+     * each listener is registered under its class
+     * @deprecated use {@link #getCacheEventListeners()}
      */
     public EventListenerList getCacheEventListenerList() {
-        return listenerList;
+        EventListenerList list = new EventListenerList();
+        CacheEventListener[] listeners = listenerRegistry.getListeners();
+
+        for (int i = 0; i < listeners.length; i++) {
+            list.add(listeners[i].getClass(), listeners[i]);
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns all the registered CacheEventListeners.
+     * @return the listeners, in the order they were registered
+     */
+    public CacheEventListener[] getCacheEventListeners() {
+        CacheEventListener[] listeners = listenerRegistry.getListeners();
+        CacheEventListener[] copy = new CacheEventListener[listeners.length];
+        System.arraycopy(listeners, 0, copy, 0, listeners.length);
+
+        return copy;
     }
 
     /**
@@ -402,15 +1424,17 @@ public class Cache implements Serializable {
         EntryUpdateState state;
 
         if (key != null) {
-            synchronized (updateStates) {
-                state = (EntryUpdateState) updateStates.get(key);
+            Map states = getUpdateStates(key);
+
+            synchronized (states) {
+                state = (EntryUpdateState) states.get(key);
 
                 if (state != null) {
                     synchronized (state) {
                         int usageCounter = state.cancelUpdate();
                         state.notify();
                         
-                        checkEntryStateUpdateUsage(key, state, usageCounter);
+                        checkEntryStateUpdateUsage(states, key, state, usageCounter);
                     }
                 } else {
                     if (log.isErrorEnabled()) {
@@ -424,13 +1448,13 @@ public class Cache implements Serializable {
     /**
      * Utility method to check if the specified usage count is zero, and if so remove the corresponding EntryUpdateState from the updateStates. This is designed to factor common code.
      * 
-     * Warning: This method should always be called while holding both the updateStates field and the state parameter
+     * Warning: This method should always be called while holding both the stripe of the updateStates the key belongs to and the state parameter
      * @throws Exception
      */
-    private void checkEntryStateUpdateUsage(String key, EntryUpdateState state, int usageCounter) {
+    private void checkEntryStateUpdateUsage(Map states, String key, EntryUpdateState state, int usageCounter) {
         //Clean up the updateStates map to avoid a memory leak once no thread is using this EntryUpdateState instance anymore.
         if (usageCounter == 0) {
-            EntryUpdateState removedState = (EntryUpdateState) updateStates.remove(key);
+            EntryUpdateState removedState = (EntryUpdateState) states.remove(key);
             if (state != removedState) {
                 if (log.isErrorEnabled()) {
                     try {
@@ -460,8 +1484,9 @@ public class Cache implements Serializable {
      */
     public void flushAll(Date date, String origin) {
         flushDateTime = date;
+        sweepFlushedEntries(date);
 
-        if (listenerList.getListenerCount() > 0) {
+        if (listenerRegistry.getEntryListeners().length > 0) {
             dispatchCachewideEvent(CachewideEventType.CACHE_FLUSHED, date, origin);
         }
     }
@@ -491,6 +1516,55 @@ public class Cache implements Serializable {
         flushEntry(getCacheEntry(key, null, origin), origin);
     }
 
+    /**
+     * Flush the cache entries (if any) that correspond to the cache keys
+     * supplied, as {@link #flushEntry(String)} does for each of them. The
+     * cache table is updated once for the whole batch.
+     *
+     * @param keys The keys of the entries to flush
+     */
+    public void flushEntries(String[] keys) {
+        flushEntries(keys, null);
+    }
+
+    /**
+     * Flush the cache entries (if any) that correspond to the cache keys
+     * supplied. A <tt>CacheEntryEventType.ENTRY_FLUSHED</tt> event is fired
+     * for each entry, except to the listeners implementing
+     * {@link CacheBulkEventListener} that receive a single event for the batch.
+     *
+     * @param keys The keys of the entries to flush
+     * @param origin The origin of this flush request (optional)
+     */
+    public void flushEntries(String[] keys, String origin) {
+        List flushed = new ArrayList(keys.length);
+        Map entries = new HashMap();
+
+        for (int i = 0; i < keys.length; i++) {
+            CacheEntry entry = getCacheEntry(keys[i], null, origin);
+            entry.flush();
+            flushed.add(entry);
+
+            if (!entry.isNew()) {
+                entries.put(entry.getKey(), entry);
+            }
+        }
+
+        // Update the entries' state in the map
+        if (!entries.isEmpty()) {
+            cacheMap.putAll(entries);
+        }
+
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            for (Iterator it = flushed.iterator(); it.hasNext();) {
+                CacheEntryEvent event = new CacheEntryEvent(this, (CacheEntry) it.next(), origin);
+                dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_FLUSHED, event, true);
+            }
+        }
+
+        dispatchCacheBulkEvent(BULK_FLUSHED, flushed, null, origin);
+    }
+
     /**
      * Flushes all objects that belong to the supplied group. On completion
      * this method fires a <tt>CacheEntryEventType.GROUP_FLUSHED</tt> event.
@@ -510,8 +1584,36 @@ public class Cache implements Serializable {
      * @param origin The origin of this flush event (optional)
      */
     public void flushGroup(String group, String origin) {
-        // Flush all objects in the group
+        Map generations = groupGenerations;
+
+        if (generations != null) {
+            // The members are found stale when they are next read
+            nextGroupGeneration(group);
+        } else {
+            flushGroupEntries(group, null);
+        }
+
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            dispatchCacheGroupEvent(CacheEntryEventType.GROUP_FLUSHED, group, origin);
+        }
+    }
+
+    /**
+     * Flushes the unexpired objects that belong to the supplied group one by
+     * one.
+     *
+     * @param group The group to flush
+     * @param generations The group generations that were dropped, to only
+     * flush the entries they made stale, or <code>null</code> to flush every
+     * entry of the group.
+     */
+    private void flushGroupEntries(String group, Map generations) {
         Set groupEntries = cacheMap.getGroup(group);
+        long groupGeneration = Long.MAX_VALUE;
+
+        if (generations != null) {
+            groupGeneration = ((GroupGeneration) generations.get(group)).value;
+        }
 
         if (groupEntries != null) {
             Iterator itr = groupEntries.iterator();
@@ -522,15 +1624,38 @@ public class Cache implements Serializable {
                 key = (String) itr.next();
                 entry = (CacheEntry) cacheMap.get(key);
 
-                if ((entry != null) && !entry.needsRefresh(CacheEntry.INDEFINITE_EXPIRY)) {
+                if ((entry != null) && (entry.getGeneration() < groupGeneration) && !entry.needsRefresh(CacheEntry.INDEFINITE_EXPIRY)) {
                     flushEntry(entry, NESTED_EVENT);
                 }
             }
         }
+    }
+
+    /**
+     * Gives the next generation of the cache to a group, making stale the
+     * entries of the group written under an earlier generation.
+     */
+    private synchronized void nextGroupGeneration(String group) {
+        Map generations = groupGenerations;
+
+        if (generations == null) {
+            // Disabled in the meantime
+            flushGroupEntries(group, null);
+
+            return;
+        }
 
-        if (listenerList.getListenerCount() > 0) {
-            dispatchCacheGroupEvent(CacheEntryEventType.GROUP_FLUSHED, group, origin);
+        GroupGeneration groupGeneration = (GroupGeneration) generations.get(group);
+
+        if (groupGeneration == null) {
+            // The map is copied when a group is first flushed only
+            generations = new HashMap(generations);
+            groupGeneration = new GroupGeneration();
+            generations.put(group, groupGeneration);
+            groupGenerations = generations;
         }
+
+        groupGeneration.value = ++generation;
     }
 
     /**
@@ -559,21 +1684,37 @@ public class Cache implements Serializable {
         if ((pattern != null) && (pattern.length() > 0)) {
             String key = null;
             CacheEntry entry = null;
-            Iterator itr = cacheMap.keySet().iterator();
+            KeyIndex index = keyIndex;
 
-            while (itr.hasNext()) {
-                key = (String) itr.next();
+            if (index != null) {
+                // Only the keys containing the pattern are looked at
+                Iterator itr = index.find(pattern).iterator();
 
-                if (key.indexOf(pattern) >= 0) {
+                while (itr.hasNext()) {
+                    key = (String) itr.next();
                     entry = (CacheEntry) cacheMap.get(key);
 
                     if (entry != null) {
                         flushEntry(entry, origin);
                     }
                 }
+            } else {
+                Iterator itr = cacheMap.keySet().iterator();
+
+                while (itr.hasNext()) {
+                    key = (String) itr.next();
+
+                    if (key.indexOf(pattern) >= 0) {
+                        entry = (CacheEntry) cacheMap.get(key);
+
+                        if (entry != null) {
+                            flushEntry(entry, origin);
+                        }
+                    }
+                }
             }
 
-            if (listenerList.getListenerCount() > 0) {
+            if (listenerRegistry.getEntryListeners().length > 0) {
                 dispatchCachePatternEvent(CacheEntryEventType.PATTERN_FLUSHED, pattern, origin);
             }
         } else {
@@ -634,21 +1775,103 @@ public class Cache implements Serializable {
 
         cacheEntry.setContent(content);
         cacheEntry.setGroups(groups);
+        cacheEntry.setGeneration(generation);
         cacheMap.put(key, cacheEntry);
+        scheduleExpiry(cacheEntry, policy);
 
         // Signal to any threads waiting on this update that it's now ready for them
         // in the cache!
         completeUpdate(key);
 
-        if (listenerList.getListenerCount() > 0) {
-            CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, origin);
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, origin);
+
+            if (isNewEntry) {
+                dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_ADDED, event);
+            } else {
+                dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_UPDATED, event);
+            }
+        }
+    }
+
+    /**
+     * Put a batch of objects in the cache, all with the same groups and
+     * refresh policy, as {@link #putInCache(String, Object, String[], EntryRefreshPolicy, String)}
+     * does for each of them. The cache table is updated once for the whole
+     * batch, so that the persistence listener and the cache algorithm see
+     * the batch together.
+     * <p>
+     * An <tt>ENTRY_ADDED</tt> or <tt>ENTRY_UPDATED</tt> event is fired for each
+     * entry, except to the listeners implementing {@link CacheBulkEventListener}
+     * that receive a single event for the batch.
+     *
+     * @param contents The objects to cache, by key.
+     * @param groups   The groups that the objects belong to.
+     * @param policy   The refresh policy to use.
+     */
+    public void putAll(Map contents, String[] groups, EntryRefreshPolicy policy) {
+        putAll(contents, groups, policy, null);
+    }
+
+    /**
+     * Put a batch of objects in the cache, all with the same groups and
+     * refresh policy.
+     *
+     * @param contents The objects to cache, by key.
+     * @param groups   The groups that the objects belong to.
+     * @param policy   The refresh policy to use.
+     * @param origin   The origin of this put request (optional).
+     */
+    public void putAll(Map contents, String[] groups, EntryRefreshPolicy policy, String origin) {
+        Map entries = new HashMap();
+        Set addedKeys = new HashSet();
+
+        for (Iterator it = contents.entrySet().iterator(); it.hasNext();) {
+            Map.Entry content = (Map.Entry) it.next();
+            String key = (String) content.getKey();
+            CacheEntry cacheEntry = this.getCacheEntry(key, policy, origin);
+
+            if (cacheEntry.isNew()) {
+                addedKeys.add(key);
+            } else {
+                // [CACHE-118] Create a new CacheEntry so we can still access the old one later
+                cacheEntry = new CacheEntry(key, policy);
+            }
+
+            cacheEntry.setContent(content.getValue());
+            cacheEntry.setGroups(groups);
+            cacheEntry.setGeneration(generation);
+            entries.put(key, cacheEntry);
+        }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        cacheMap.putAll(entries);
+
+        for (Iterator it = entries.values().iterator(); it.hasNext();) {
+            CacheEntry cacheEntry = (CacheEntry) it.next();
+            scheduleExpiry(cacheEntry, policy);
+
+            // Signal to any threads waiting on this update that it's now ready for them
+            completeUpdate(cacheEntry.getKey());
+        }
 
-            if (isNewEntry) {
-                dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_ADDED, event);
-            } else {
-                dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_UPDATED, event);
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            for (Iterator it = entries.values().iterator(); it.hasNext();) {
+                CacheEntry cacheEntry = (CacheEntry) it.next();
+                CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, origin);
+
+                if (addedKeys.contains(cacheEntry.getKey())) {
+                    dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_ADDED, event, true);
+                } else {
+                    dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_UPDATED, event, true);
+                }
             }
         }
+
+        dispatchCacheBulkEvent(BULK_PUT, new ArrayList(entries.values()), null, origin);
     }
 
     /**
@@ -659,7 +1882,7 @@ public class Cache implements Serializable {
      * @deprecated use instead {@link #removeCacheEventListener(CacheEventListener)}
      */
     public void removeCacheEventListener(CacheEventListener listener, Class clazz) {
-        listenerList.remove(clazz, listener);
+        listenerRegistry.remove(listener);
     }
 
     /**
@@ -669,8 +1892,7 @@ public class Cache implements Serializable {
      * @since 2.4
      */
     public void removeCacheEventListener(CacheEventListener listener) {
-        // listenerList.remove(CacheEventListener.class, listener);
-        listenerList.remove(listener.getClass(), listener);
+        listenerRegistry.remove(listener);
     }
 
     /**
@@ -715,20 +1937,113 @@ public class Cache implements Serializable {
      * @return <code>true</code> if the entry is stale, <code>false</code> otherwise.
      */
     protected boolean isStale(CacheEntry cacheEntry, int refreshPeriod, String cronExpiry) {
-        boolean result = cacheEntry.needsRefresh(refreshPeriod) || isFlushed(cacheEntry);
+        boolean result = cacheEntry.needsRefresh(refreshPeriod) || isFlushed(cacheEntry) || ((timeToLive >= 0) && cacheEntry.needsRefresh(timeToLive));
 
         if ((!result) && (cronExpiry != null) && (cronExpiry.length() > 0)) {
-            try {
-                FastCronParser parser = new FastCronParser(cronExpiry);
-                result = result || parser.hasMoreRecentMatch(cacheEntry.getLastUpdate());
-            } catch (ParseException e) {
-                log.warn(e);
+            CronSchedule schedule = getCronSchedule(cronExpiry);
+
+            if (schedule != null) {
+                result = schedule.hasFiredSince(cacheEntry.getLastUpdate());
             }
         }
 
         return result;
     }
 
+    /**
+     * Indicates whether a fresh entry has lived for the refresh-ahead fraction
+     * of its lifetime.
+     *
+     * @param cacheEntry     The cache entry to check.
+     * @param refreshPeriod  The refresh period it was requested with, in seconds.
+     *
+     * @return <code>true</code> if the entry should be refreshed ahead of its expiry.
+     */
+    private boolean isRefreshDue(CacheEntry cacheEntry, int refreshPeriod) {
+        long lifetime = Long.MAX_VALUE;
+
+        if (refreshPeriod > 0) {
+            lifetime = refreshPeriod * 1000L;
+        }
+
+        if (timeToLive > 0) {
+            lifetime = Math.min(lifetime, timeToLive * 1000L);
+        }
+
+        EntryRefreshPolicy policy = cacheEntry.getPolicy();
+
+        if (policy instanceof ExpiringRefreshPolicy) {
+            lifetime = Math.min(lifetime, ((ExpiringRefreshPolicy) policy).getExpiryTime(cacheEntry) - cacheEntry.getLastUpdate());
+        }
+
+        if (lifetime == Long.MAX_VALUE) {
+            return false;
+        }
+
+        return (System.currentTimeMillis() - cacheEntry.getLastUpdate()) >= (long) (lifetime * refreshAhead);
+    }
+
+    /**
+     * Rebuilds an entry with the refresher, unless another thread is already
+     * updating it or it has been updated since its refresh was requested.
+     * Called by the refresh threads.
+     *
+     * @param key The key of the entry to refresh.
+     * @param lastUpdate The time of the last update of the entry when its
+     * refresh was requested.
+     * @param flushed Whether the entry was flushed when its refresh was
+     * requested.
+     * @param refresher The loader rebuilding the entry.
+     */
+    void refreshEntry(String key, long lastUpdate, boolean flushed, CacheLoader refresher) {
+        EntryUpdateState updateState = getUpdateState(key);
+        boolean owner = false;
+
+        try {
+            synchronized (updateState) {
+                if (updateState.isAwaitingUpdate() || updateState.isCancelled()) {
+                    updateState.startUpdate();
+                    owner = true;
+                }
+            }
+        } finally {
+            releaseUpdateState(updateState, key);
+        }
+
+        if (!owner) {
+            return;
+        }
+
+        boolean updated = false;
+
+        try {
+            // Read without an access, so that the refresh doesn't count as a
+            // hit in the algorithm. Once the update is owned the entry can't
+            // be updated by a caller any more, only put directly
+            CacheEntry cacheEntry = (CacheEntry) cacheMap.peek(key);
+
+            if ((cacheEntry == null) || (cacheEntry.getLastUpdate() != lastUpdate) || (flushed && !cacheEntry.isFlushed())) {
+                // Removed, or refreshed while the key was waiting in the queue
+                return;
+            }
+
+            Object content = refresher.load(key);
+
+            // Keep the groups and the refresh policy of the stale version
+            Set groups = cacheEntry.getGroups();
+            String[] groupNames = (groups == null) ? null : (String[]) groups.toArray(new String[groups.size()]);
+            putInCache(key, content, groupNames, cacheEntry.getPolicy(), null);
+
+            updated = true;
+        } catch (Exception e) {
+            log.warn("Refresh of the cache entry for key [" + key + "] failed, the stale content is kept", e);
+        } finally {
+            if (!updated) {
+                cancelUpdate(key);
+            }
+        }
+    }
+
     /**
      * Get the updating cache entry from the update map. If one is not found,
      * create a new one (with state {@link EntryUpdateState#NOT_YET_UPDATING})
@@ -741,15 +2056,16 @@ public class Cache implements Serializable {
      */
     protected EntryUpdateState getUpdateState(String key) {
         EntryUpdateState updateState;
+        Map states = getUpdateStates(key);
 
-        synchronized (updateStates) {
+        synchronized (states) {
             // Try to find the matching state object in the updating entry map.
-            updateState = (EntryUpdateState) updateStates.get(key);
+            updateState = (EntryUpdateState) states.get(key);
 
             if (updateState == null) {
                 // It's not there so add it.
                 updateState = new EntryUpdateState();
-                updateStates.put(key, updateState);
+                states.put(key, updateState);
             } else {
                 //Otherwise indicate that we start using it to prevent its removal until all threads are done with it.
                 updateState.incrementUsageCounter();
@@ -765,17 +2081,46 @@ public class Cache implements Serializable {
      * @param key the associated key.
      */
     protected void releaseUpdateState(EntryUpdateState state, String key) {
-        synchronized (updateStates) {
+        Map states = getUpdateStates(key);
+
+        synchronized (states) {
             int usageCounter = state.decrementUsageCounter();
-            checkEntryStateUpdateUsage(key, state, usageCounter);
+            checkEntryStateUpdateUsage(states, key, state, usageCounter);
         }       
     }
+
+    /**
+     * Returns the stripe of the update state map that holds the state of the
+     * supplied key.
+     */
+    private Map getUpdateStates(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        return updateStates[hash & (UPDATE_STATE_STRIPES - 1)];
+    }
+
+    private static Map[] newUpdateStates() {
+        Map[] stripes = new Map[UPDATE_STATE_STRIPES];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new HashMap();
+        }
+
+        return stripes;
+    }
     
     /**
      * Completely clears the cache.
      */
     protected void clear() {
         cacheMap.clear();
+
+        ExpiryWheel wheel = expiryWheel;
+
+        if (wheel != null) {
+            wheel.clear();
+        }
     }
 
     /**
@@ -788,16 +2133,17 @@ public class Cache implements Serializable {
      */
     protected void completeUpdate(String key) {
         EntryUpdateState state;
+        Map states = getUpdateStates(key);
 
-        synchronized (updateStates) {
-            state = (EntryUpdateState) updateStates.get(key);
+        synchronized (states) {
+            state = (EntryUpdateState) states.get(key);
 
             if (state != null) {
                 synchronized (state) {
                     int usageCounter = state.completeUpdate();
                     state.notifyAll();
                     
-                    checkEntryStateUpdateUsage(key, state, usageCounter);
+                    checkEntryStateUpdateUsage(states, key, state, usageCounter);
 
                 }
             } else {
@@ -827,12 +2173,151 @@ public class Cache implements Serializable {
         CacheEntry cacheEntry = (CacheEntry) cacheMap.get(key);
         cacheMap.remove(key);
 
-        if (listenerList.getListenerCount() > 0) {
+        ExpiryWheel wheel = expiryWheel;
+
+        if (wheel != null) {
+            wheel.cancel(key);
+        }
+
+        if (listenerRegistry.getEntryListeners().length > 0) {
             CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, origin);
             dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_REMOVED, event);
         }
     }
 
+    /**
+     * Removes an entry whose scheduled expiry time has come, unless it has
+     * been updated since it was scheduled. Like the other removals, this
+     * fires a <tt>CacheEntryEventType.ENTRY_REMOVED</tt> event.
+     *
+     * @param key The key of the expired entry.
+     * @param lastUpdate The update time of the expired version of the entry.
+     */
+    void expireEntry(String key, long lastUpdate) {
+        CacheEntry cacheEntry = (CacheEntry) cacheMap.get(key);
+
+        // An entry put since it was read here is kept
+        if ((cacheEntry == null) || (cacheEntry.getLastUpdate() != lastUpdate) || !cacheMap.remove(key, cacheEntry)) {
+            return;
+        }
+
+        // As for the flush sweeper, the key is left in the key index, which
+        // may already hold it for a newer entry
+        if (listenerRegistry.getEntryListeners().length > 0) {
+            CacheEntryEvent event = new CacheEntryEvent(this, cacheEntry, null);
+            dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_REMOVED, event);
+        }
+    }
+
+    /**
+     * Schedules the expiry of an entry that has just been put in the cache,
+     * if it has a deadline.
+     *
+     * @param cacheEntry The entry that was put.
+     * @param policy The refresh policy of the entry, if any.
+     */
+    private void scheduleExpiry(CacheEntry cacheEntry, EntryRefreshPolicy policy) {
+        ExpiryWheel wheel = expiryWheel;
+
+        if (wheel == null) {
+            return;
+        }
+
+        long expiryTime = Long.MAX_VALUE;
+
+        if (timeToLive >= 0) {
+            expiryTime = cacheEntry.getLastUpdate() + (timeToLive * 1000L);
+        }
+
+        if (policy instanceof ExpiringRefreshPolicy) {
+            expiryTime = Math.min(expiryTime, ((ExpiringRefreshPolicy) policy).getExpiryTime(cacheEntry));
+        }
+
+        if (expiryTime != Long.MAX_VALUE) {
+            wheel.schedule(cacheEntry.getKey(), cacheEntry.getLastUpdate(), expiryTime);
+        } else {
+            // Forget the deadline of the previous version
+            wheel.cancel(cacheEntry.getKey());
+        }
+    }
+
+    /**
+     * Schedules the expiry of an entry at the next time matching the cron
+     * expression it was requested with, unless it expires earlier anyway.
+     *
+     * @param cacheEntry The entry that was requested.
+     * @param cronExpiry The cron expression it was requested with.
+     */
+    private void scheduleCronExpiry(CacheEntry cacheEntry, String cronExpiry) {
+        ExpiryWheel wheel = expiryWheel;
+
+        if (wheel == null) {
+            return;
+        }
+
+        CronSchedule schedule = getCronSchedule(cronExpiry);
+
+        if (schedule == null) {
+            return;
+        }
+
+        // The entry is fresh, so the expression hasn't fired since its update
+        long expiryTime = schedule.getNextFireTime(System.currentTimeMillis());
+
+        if (expiryTime != Long.MAX_VALUE) {
+            wheel.schedule(cacheEntry.getKey(), cacheEntry.getLastUpdate(), expiryTime);
+        }
+    }
+
+    /**
+     * Returns the compiled schedule of a cron expression, compiling it the
+     * first time the expression is used.
+     *
+     * @param cronExpiry The cron expression.
+     * @return the schedule, or <code>null</code> if the expression is not valid.
+     */
+    private CronSchedule getCronSchedule(String cronExpiry) {
+        Map schedules = cronSchedules;
+        Object schedule = (schedules == null) ? null : schedules.get(cronExpiry);
+
+        if (schedule == null) {
+            schedule = compileCronSchedule(cronExpiry);
+        }
+
+        return (schedule instanceof CronSchedule) ? (CronSchedule) schedule : null;
+    }
+
+    /**
+     * Compiles a cron expression and keeps its schedule, unless the maximum
+     * number of schedules has been reached. Invalid expressions are logged
+     * once, and remembered as such.
+     *
+     * @return the {@link CronSchedule} of the expression, or
+     * {@link #INVALID_CRON_EXPRESSION} if it is not valid.
+     */
+    private synchronized Object compileCronSchedule(String cronExpiry) {
+        Map schedules = (cronSchedules == null) ? new HashMap() : new HashMap(cronSchedules);
+        Object schedule = schedules.get(cronExpiry);
+
+        if (schedule != null) {
+            return schedule;
+        }
+
+        try {
+            schedule = new CronSchedule(cronExpiry);
+        } catch (ParseException e) {
+            log.warn(e);
+            schedule = INVALID_CRON_EXPRESSION;
+        }
+
+        if (schedules.size() < MAX_CRON_SCHEDULES) {
+            schedules.put(cronExpiry, schedule);
+            cronSchedules = schedules;
+        }
+
+        return schedule;
+    }
+
     /**
      * Dispatch a cache entry event to all registered listeners.
      *
@@ -840,23 +2325,99 @@ public class Cache implements Serializable {
      * @param event       The event that was fired
      */
     private void dispatchCacheEntryEvent(CacheEntryEventType eventType, CacheEntryEvent event) {
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
-
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof CacheEntryEventListener) {
-                CacheEntryEventListener listener = (CacheEntryEventListener) listeners[i+1];
-                if (eventType.equals(CacheEntryEventType.ENTRY_ADDED)) {
-                    listener.cacheEntryAdded(event);
-                } else if (eventType.equals(CacheEntryEventType.ENTRY_UPDATED)) {
-                    listener.cacheEntryUpdated(event);
-                } else if (eventType.equals(CacheEntryEventType.ENTRY_FLUSHED)) {
-                    listener.cacheEntryFlushed(event);
-                } else if (eventType.equals(CacheEntryEventType.ENTRY_REMOVED)) {
-                    listener.cacheEntryRemoved(event);
-                }
+        dispatchCacheEntryEvent(eventType, event, false);
+    }
+
+    /**
+     * Dispatch a cache entry event to the registered listeners.
+     *
+     * @param eventType   The type of event (used to branch on the proper method)
+     * @param event       The event that was fired
+     * @param bulk        Whether the event is part of a bulk operation, in
+     * which case the bulk listeners are skipped
+     */
+    private void dispatchCacheEntryEvent(CacheEntryEventType eventType, CacheEntryEvent event, boolean bulk) {
+        dispatchCacheEntryEvent(eventType, event, bulk, false);
+        publishEvent(EVENT_ENTRY, eventType, event, bulk);
+    }
+
+    /**
+     * Deliver a cache entry event to the listeners notified now, or to those
+     * notified by the event dispatcher.
+     *
+     * @param eventType   The type of event (used to branch on the proper method)
+     * @param event       The event that was fired
+     * @param bulk        Whether the event is part of a bulk operation, in
+     * which case the bulk listeners are skipped
+     * @param queued      Whether the event is delivered by the event dispatcher
+     */
+    private void dispatchCacheEntryEvent(CacheEntryEventType eventType, CacheEntryEvent event, boolean bulk, boolean queued) {
+        CacheEntryEventListener[] listeners = listenerRegistry.getEntryListeners();
+
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            CacheEntryEventListener listener = listeners[i];
+
+            if ((bulk && (listener instanceof CacheBulkEventListener)) || !isDeliveredBy(listener, queued)) {
+                continue;
+            }
+
+            if (eventType == CacheEntryEventType.ENTRY_ADDED) {
+                listener.cacheEntryAdded(event);
+            } else if (eventType == CacheEntryEventType.ENTRY_UPDATED) {
+                listener.cacheEntryUpdated(event);
+            } else if (eventType == CacheEntryEventType.ENTRY_FLUSHED) {
+                listener.cacheEntryFlushed(event);
+            } else if (eventType == CacheEntryEventType.ENTRY_REMOVED) {
+                listener.cacheEntryRemoved(event);
+            }
+        }
+    }
+
+    /**
+     * Dispatch the event of a bulk operation to the registered bulk listeners.
+     *
+     * @param eventType   The bulk operation, one of {@link #BULK_ACCESSED},
+     * {@link #BULK_PUT} or {@link #BULK_FLUSHED}
+     * @param entries     The entries the operation applies to
+     * @param rebuildKeys The keys to rebuild, for a bulk get
+     * @param origin      The origin of this event (optional)
+     */
+    private void dispatchCacheBulkEvent(int eventType, List entries, List rebuildKeys, String origin) {
+        if (listenerRegistry.getBulkListeners().length == 0) {
+            return;
+        }
+
+        CacheBulkEvent event = new CacheBulkEvent(this, entries, rebuildKeys, origin);
+        dispatchCacheBulkEvent(eventType, event, false);
+        publishEvent(EVENT_BULK, new Integer(eventType), event, false);
+    }
+
+    /**
+     * Deliver the event of a bulk operation to the bulk listeners notified
+     * now, or to those notified by the event dispatcher.
+     *
+     * @param eventType   The bulk operation
+     * @param event       The event that was fired
+     * @param queued      Whether the event is delivered by the event dispatcher
+     */
+    private void dispatchCacheBulkEvent(int eventType, CacheBulkEvent event, boolean queued) {
+        CacheBulkEventListener[] listeners = listenerRegistry.getBulkListeners();
+
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            CacheBulkEventListener listener = listeners[i];
+
+            if (!isDeliveredBy(listener, queued)) {
+                continue;
+            }
+
+            if (eventType == BULK_ACCESSED) {
+                listener.cacheEntriesAccessed(event);
+            } else if (eventType == BULK_PUT) {
+                listener.cacheEntriesPut(event);
+            } else if (eventType == BULK_FLUSHED) {
+                listener.cacheEntriesFlushed(event);
             }
         }
     }
@@ -870,41 +2431,136 @@ public class Cache implements Serializable {
      */
     private void dispatchCacheGroupEvent(CacheEntryEventType eventType, String group, String origin) {
         CacheGroupEvent event = new CacheGroupEvent(this, group, origin);
+        dispatchCacheGroupEvent(eventType, event, false);
+        publishEvent(EVENT_GROUP, eventType, event, false);
+    }
+
+    /**
+     * Deliver a cache group event to the listeners notified now, or to those
+     * notified by the event dispatcher.
+     *
+     * @param eventType The type of event (this is used to branch to the correct method handler)
+     * @param event     The event that was fired
+     * @param queued    Whether the event is delivered by the event dispatcher
+     */
+    private void dispatchCacheGroupEvent(CacheEntryEventType eventType, CacheGroupEvent event, boolean queued) {
+        if (eventType != CacheEntryEventType.GROUP_FLUSHED) {
+            return;
+        }
 
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
+        CacheEntryEventListener[] listeners = listenerRegistry.getEntryListeners();
 
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof CacheEntryEventListener) {
-                CacheEntryEventListener listener = (CacheEntryEventListener) listeners[i + 1];
-                if (eventType.equals(CacheEntryEventType.GROUP_FLUSHED)) {
-                    listener.cacheGroupFlushed(event);
-                }
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (isDeliveredBy(listeners[i], queued)) {
+                listeners[i].cacheGroupFlushed(event);
             }
         }
     }
 
+    /**
+     * Determines whether a listener is notified now or by the event dispatcher.
+     * Without event dispatcher, every listener is notified now.
+     *
+     * @param listener The listener to notify
+     * @param queued   Whether the event is delivered by the event dispatcher
+     */
+    private boolean isDeliveredBy(Object listener, boolean queued) {
+        if (!queued && (eventDispatcher == null)) {
+            return true;
+        }
+
+        return queued != (listener instanceof SynchronousEventListener);
+    }
+
+    /**
+     * Hands an event to the event dispatcher, if there is one and some
+     * listeners are notified by it.
+     *
+     * @param kind      The dispatch method of the event
+     * @param eventType The type of event
+     * @param event     The event that was fired
+     * @param bulk      Whether the event is part of a bulk operation
+     */
+    private void publishEvent(int kind, Object eventType, CacheEvent event, boolean bulk) {
+        EventDispatcher dispatcher = eventDispatcher;
+
+        if ((dispatcher == null) || !listenerRegistry.hasAsynchronousListeners()) {
+            return;
+        }
+
+        EventDispatcher.PendingEvent pending = new EventDispatcher.PendingEvent(kind, eventType, event, bulk);
+
+        if (dispatcher.isDispatcherThread()) {
+            // Fired by a listener: the dispatcher can't wait for itself
+            deliverEvent(pending);
+        } else {
+            dispatcher.publish(pending);
+        }
+    }
+
+    /**
+     * Delivers an event to the listeners notified by the event dispatcher.
+     *
+     * @param pending The event, as published by the cache
+     */
+    void deliverEvent(EventDispatcher.PendingEvent pending) {
+        switch (pending.kind) {
+            case EVENT_ENTRY:
+                dispatchCacheEntryEvent((CacheEntryEventType) pending.eventType, (CacheEntryEvent) pending.event, pending.bulk, true);
+
+                break;
+
+            case EVENT_GROUP:
+                dispatchCacheGroupEvent((CacheEntryEventType) pending.eventType, (CacheGroupEvent) pending.event, true);
+
+                break;
+
+            case EVENT_PATTERN:
+                dispatchCachePatternEvent((CacheEntryEventType) pending.eventType, (CachePatternEvent) pending.event, true);
+
+                break;
+
+            case EVENT_CACHEWIDE:
+                dispatchCachewideEvent((CachewideEventType) pending.eventType, (CachewideEvent) pending.event, true);
+
+                break;
+
+            case EVENT_BULK:
+                dispatchCacheBulkEvent(((Integer) pending.eventType).intValue(), (CacheBulkEvent) pending.event, true);
+
+                break;
+        }
+    }
+
     /**
      * Dispatch a cache map access event to all registered listeners.
      *
      * @param eventType     The type of event
      * @param entry         The entry that was affected.
      * @param origin        The origin of this event (optional)
+     * @param bulk          Whether the access is part of a bulk request, in
+     * which case the bulk listeners are skipped
      */
-    private void dispatchCacheMapAccessEvent(CacheMapAccessEventType eventType, CacheEntry entry, String origin) {
-        CacheMapAccessEvent event = new CacheMapAccessEvent(eventType, entry, origin);
+    private void dispatchCacheMapAccessEvent(CacheMapAccessEventType eventType, CacheEntry entry, String origin, boolean bulk) {
+        CacheMapAccessEventListener[] listeners = listenerRegistry.getAccessListeners();
 
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
+        if (listeners.length == 0) {
+            return;
+        }
+
+        // The event is only created once a listener wants it, so that the
+        // cache hits don't allocate anything when nobody is listening
+        CacheMapAccessEvent event = null;
+
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (!(bulk && (listeners[i] instanceof CacheBulkEventListener))) {
+                if (event == null) {
+                    event = new CacheMapAccessEvent(eventType, entry, origin);
+                }
 
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof CacheMapAccessEventListener) {
-                CacheMapAccessEventListener listener = (CacheMapAccessEventListener) listeners[i + 1];
-                listener.accessed(event);
+                listeners[i].accessed(event);
             }
         }
     }
@@ -918,18 +2574,29 @@ public class Cache implements Serializable {
      */
     private void dispatchCachePatternEvent(CacheEntryEventType eventType, String pattern, String origin) {
         CachePatternEvent event = new CachePatternEvent(this, pattern, origin);
+        dispatchCachePatternEvent(eventType, event, false);
+        publishEvent(EVENT_PATTERN, eventType, event, false);
+    }
+
+    /**
+     * Deliver a cache pattern event to the listeners notified now, or to
+     * those notified by the event dispatcher.
+     *
+     * @param eventType The type of event (this is used to branch to the correct method handler)
+     * @param event     The event that was fired
+     * @param queued    Whether the event is delivered by the event dispatcher
+     */
+    private void dispatchCachePatternEvent(CacheEntryEventType eventType, CachePatternEvent event, boolean queued) {
+        if (eventType != CacheEntryEventType.PATTERN_FLUSHED) {
+            return;
+        }
 
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
+        CacheEntryEventListener[] listeners = listenerRegistry.getEntryListeners();
 
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof CacheEntryEventListener) {
-                if (eventType.equals(CacheEntryEventType.PATTERN_FLUSHED)) {
-                    CacheEntryEventListener listener = (CacheEntryEventListener) listeners[i+1];
-                    listener.cachePatternFlushed(event);
-                }
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (isDeliveredBy(listeners[i], queued)) {
+                listeners[i].cachePatternFlushed(event);
             }
         }
     }
@@ -942,18 +2609,29 @@ public class Cache implements Serializable {
      */
     private void dispatchCachewideEvent(CachewideEventType eventType, Date date, String origin) {
         CachewideEvent event = new CachewideEvent(this, date, origin);
+        dispatchCachewideEvent(eventType, event, false);
+        publishEvent(EVENT_CACHEWIDE, eventType, event, false);
+    }
+
+    /**
+     * Deliver a cache-wide event to the listeners notified now, or to those
+     * notified by the event dispatcher.
+     *
+     * @param eventType The type of event (this is used to branch to the correct method handler)
+     * @param event     The event that was fired
+     * @param queued    Whether the event is delivered by the event dispatcher
+     */
+    private void dispatchCachewideEvent(CachewideEventType eventType, CachewideEvent event, boolean queued) {
+        if (eventType != CachewideEventType.CACHE_FLUSHED) {
+            return;
+        }
 
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
+        CacheEntryEventListener[] listeners = listenerRegistry.getEntryListeners();
 
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof CacheEntryEventListener) {
-                if (eventType.equals(CachewideEventType.CACHE_FLUSHED)) {
-                    CacheEntryEventListener listener = (CacheEntryEventListener) listeners[i+1];
-                    listener.cacheFlushed(event);
-                }
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (isDeliveredBy(listeners[i], queued)) {
+                listeners[i].cacheFlushed(event);
             }
         }
     }
@@ -977,28 +2655,62 @@ public class Cache implements Serializable {
         }
 
         // Trigger an ENTRY_FLUSHED event. [CACHE-107] Do this for all flushes.
-        if (listenerList.getListenerCount() > 0) {
+        if (listenerRegistry.getEntryListeners().length > 0) {
             CacheEntryEvent event = new CacheEntryEvent(this, entry, origin);
             dispatchCacheEntryEvent(CacheEntryEventType.ENTRY_FLUSHED, event);
         }
     }
     
     /**
-     * @return the total number of cache entries held in this cache. 
+     * @return the total number of cache entries held in this cache. This
+     * doesn't lock the cache, and may be slightly off while entries are
+     * being added or removed; see {@link #getExactSize()}.
      */
     public int getSize() {
-        synchronized(cacheMap) {
-            return cacheMap.size();
-        }
+        return cacheMap.size();
+    }
+
+    /**
+     * @return the number of cache entries held in this cache at a single
+     * point in time. This is more expensive than {@link #getSize()}, and is
+     * meant for the rare cases where the count must be consistent.
+     */
+    public int getExactSize() {
+        return cacheMap.exactSize();
+    }
+
+    /**
+     * @return the estimated number of bytes held by the cache entries, only
+     * tracked when a byte capacity is set (see {@link #setCapacityBytes(long)}).
+     */
+    public long getSizeInBytes() {
+        return cacheMap.weight();
+    }
+
+    /**
+     * Test support only: return the number of entries whose expiry is scheduled.
+     */
+    protected int getNbScheduledExpiries() {
+        ExpiryWheel wheel = expiryWheel;
+
+        return (wheel == null) ? 0 : wheel.size();
     }
 
     /**
      * Test support only: return the number of EntryUpdateState instances within the updateStates map. 
      */
     protected int getNbUpdateState() {
-        synchronized(updateStates) {
-            return updateStates.size();
+        int count = 0;
+
+        for (int i = 0; i < UPDATE_STATE_STRIPES; i++) {
+            Map states = updateStates[i];
+
+            synchronized (states) {
+                count += states.size();
+            }
         }
+
+        return count;
     }
     
     
@@ -1007,8 +2719,35 @@ public class Cache implements Serializable {
      * @deprecated use getSize() 
      */
     public int getNbEntries() {
-        synchronized(cacheMap) {
-            return cacheMap.size();
+        return cacheMap.size();
+    }
+
+    /**
+     * Counts a request that gave up waiting for another thread building the
+     * entry.
+     */
+    private void countTimedOutWait() {
+        synchronized (nbTimedOutWaits) {
+            nbTimedOutWaits[0]++;
+        }
+    }
+
+    /**
+     * Returned by {@link Cache#lookup(String, int, String, boolean, long, CacheEntry[])} to the thread that
+     * has taken over the update of an entry.
+     */
+    private static final class UpdateNeeded {
+        final Object staleContent;
+
+        UpdateNeeded(Object staleContent) {
+            this.staleContent = staleContent;
         }
     }
+
+    /**
+     * The generation a group was last flushed with.
+     */
+    private static final class GroupGeneration {
+        volatile long value;
+    }
 }
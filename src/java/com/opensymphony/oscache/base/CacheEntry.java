@@ -4,6 +4,7 @@
  */
 package com.opensymphony.oscache.base;
 
+import com.opensymphony.oscache.util.SizeEstimator;
 import com.opensymphony.oscache.web.filter.ResponseContent;
 
 import java.io.Serializable;
@@ -77,6 +78,12 @@ public class CacheEntry implements Serializable {
      */
     private long lastUpdate = NOT_YET;
 
+    /**
+     * The group generation of the cache when this entry was written. See
+     * {@link Cache#setGroupGenerations(boolean)}.
+     */
+    private long generation = 0;
+
     /**
      * Construct a new CacheEntry using the key provided.
      *
@@ -199,6 +206,35 @@ public class CacheEntry implements Serializable {
         return groups;
     }
 
+    /**
+     * Get the group generation of the cache when this entry was written.
+     *
+     * @return The generation, <code>0</code> if it was never set.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Set the group generation of the cache when this entry was written. The
+     * entry is stale once one of its groups is flushed with a later
+     * generation.
+     *
+     * @param generation The current generation of the cache
+     */
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Get the refresh policy of this CacheEntry
+     *
+     * @return The refresh policy, or <code>null</code> if there is none
+     */
+    public EntryRefreshPolicy getPolicy() {
+        return policy;
+    }
+
     /**
      * Get the key of this CacheEntry
      *
@@ -239,22 +275,24 @@ public class CacheEntry implements Serializable {
     /**
      * Get the size of the cache entry in bytes (roughly).<p>
      *
-     * Currently this method only handles <code>String<code>s and
-     * {@link ResponseContent} objects.
+     * <code>String<code>s and {@link ResponseContent} objects are sized
+     * directly, any other content is estimated by walking its fields
+     * (see {@link SizeEstimator}).
      *
-     * @return The approximate size of the entry in bytes, or -1 if the
-     * size could not be estimated.
+     * @return The approximate size of the entry in bytes.
      */
     public int getSize() {
         // a char is two bytes
         int size = (key.length() * 2) + 4;
 
-        if (content.getClass() == String.class) {
+        if (content == null) {
+            // nothing to add
+        } else if (content.getClass() == String.class) {
             size += ((content.toString().length() * 2) + 4);
         } else if (content instanceof ResponseContent) {
-            size += ((ResponseContent) content).getSize();
+            size += Math.max(0, ((ResponseContent) content).getSize());
         } else {
-            return -1;
+            size += SizeEstimator.estimate(content);
         }
 
         //add created, lastUpdate, and wasFlushed field sizes (1, 8, and 8)
@@ -271,6 +309,13 @@ public class CacheEntry implements Serializable {
         wasFlushed = true;
     }
 
+    /**
+     * Whether this entry was flushed since its content was last set.
+     */
+    boolean isFlushed() {
+        return wasFlushed;
+    }
+
     /**
      * Check if this CacheEntry needs to be refreshed.
      *
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+
+/**
+ * Loads the content of a cache entry that doesn't exist or is stale, for
+ * {@link Cache#get(String, int, String, CacheLoader)}. The cache makes sure
+ * that only one thread at a time loads a given key, and stores the loaded
+ * content itself.
+ *
+ * @version        $Revision$
+ */
+public interface CacheLoader {
+    /**
+     * Loads the content of a cache entry.
+     *
+     * @param key The key of the entry to load.
+     * @return the content to put in the cache and return to the caller.
+     * @throws Exception if the content can't be loaded. The update of the
+     * entry is then cancelled.
+     */
+    public Object load(String key) throws Exception;
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+
+/**
+ * Thrown by {@link Cache#get(String, int, String, CacheLoader)} when the
+ * {@link CacheLoader} failed to load the content of an entry. The update of
+ * the entry has been cancelled by then.
+ *
+ * @version        $Revision$
+ */
+public final class CacheLoaderException extends Exception {
+    /**
+     * Creates a CacheLoaderException with the specified detail message.
+     *
+     * @param message the detail message.
+     */
+    public CacheLoaderException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a CacheLoaderException with the specified detail message and cause.
+     *
+     * @param message the detail message.
+     * @param cause the exception thrown by the loader.
+     */
+    public CacheLoaderException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
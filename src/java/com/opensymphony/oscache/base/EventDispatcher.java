@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import com.opensymphony.oscache.base.events.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Delivers the events of a {@link Cache} to its listeners on a dispatcher
+ * thread, so that slow listeners such as the cluster broadcasters don't add
+ * to the time taken by the cache operations.
+ * <p>
+ * The cache publishes its events into a bounded ring buffer. A single daemon
+ * thread takes them in batches and delivers them in the order they were
+ * published, to the listeners that don't implement
+ * {@link SynchronousEventListener}. What happens when the buffer is full
+ * depends on the overflow policy:
+ * <ul>
+ * <li>{@link Cache#EVENT_OVERFLOW_BLOCK}: the publisher waits for room in the buffer.</li>
+ * <li>{@link Cache#EVENT_OVERFLOW_DROP}: the event is dropped and counted.</li>
+ * <li>{@link Cache#EVENT_OVERFLOW_COALESCE}: the event replaces the latest
+ * queued event for the same key, group or pattern, keeping its place in the
+ * buffer, if that event has the same type and origin and no event queued
+ * after it may concern the same entries. The listeners thus still see the
+ * events of each entry in order. Events that can't be coalesced wait for
+ * room.</li>
+ * </ul>
+ * Like the {@link RefreshExecutor} the thread only holds a weak reference to
+ * the cache, and ends once the cache has been garbage collected or the
+ * dispatcher has been shut down.
+ *
+ * @version        $Revision$
+ */
+final class EventDispatcher implements Runnable {
+    private static final Log log = LogFactory.getLog(EventDispatcher.class);
+
+    /**
+     * How often an idle dispatcher checks whether its cache is still alive.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final WeakReference cacheReference;
+    private final int overflowPolicy;
+    private final int batchSize;
+    private final Thread thread;
+
+    /**
+     * The ring buffer of the events waiting for the dispatcher.
+     */
+    private final PendingEvent[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private long droppedCount = 0;
+    private long coalescedCount = 0;
+    private boolean running = true;
+
+    EventDispatcher(Cache cache, int queueSize, int batchSize, int overflowPolicy) {
+        if ((queueSize <= 0) || (batchSize <= 0)) {
+            throw new IllegalArgumentException("Event queue and batch sizes must be positive");
+        }
+
+        if ((overflowPolicy != Cache.EVENT_OVERFLOW_BLOCK) && (overflowPolicy != Cache.EVENT_OVERFLOW_DROP) && (overflowPolicy != Cache.EVENT_OVERFLOW_COALESCE)) {
+            throw new IllegalArgumentException("Unknown event overflow policy " + overflowPolicy);
+        }
+
+        this.cacheReference = new WeakReference(cache);
+        this.buffer = new PendingEvent[queueSize];
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+
+        thread = new Thread(this, "OSCache event dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getQueueSize() {
+        return buffer.length;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns whether the current thread is the dispatcher thread, which must
+     * not wait for room in its own buffer: the events fired by the listeners
+     * it calls are delivered straight away.
+     */
+    boolean isDispatcherThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues an event for the dispatcher thread.
+     *
+     * @param event the event and how to deliver it.
+     * @return <code>false</code> if the event was dropped, because the buffer
+     * was full or the dispatcher has been shut down.
+     */
+    synchronized boolean publish(PendingEvent event) {
+        while (running && (count == buffer.length)) {
+            if (overflowPolicy == Cache.EVENT_OVERFLOW_DROP) {
+                droppedCount++;
+
+                return false;
+            }
+
+            if ((overflowPolicy == Cache.EVENT_OVERFLOW_COALESCE) && coalesce(event)) {
+                coalescedCount++;
+
+                return true;
+            }
+
+            try {
+                wait(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedCount++;
+
+                return false;
+            }
+        }
+
+        if (!running) {
+            return false;
+        }
+
+        buffer[(head + count) % buffer.length] = event;
+        count++;
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Replaces the queued event the supplied one can be merged with. Call
+     * only when holding the dispatcher monitor.
+     */
+    private boolean coalesce(PendingEvent event) {
+        if (event.subject == null) {
+            return false;
+        }
+
+        // Only the latest event for the subject can be replaced, and only if
+        // the events queued after it can't be delivered out of order with it
+        for (int i = count - 1; i >= 0; i--) {
+            int index = (head + i) % buffer.length;
+            PendingEvent queued = buffer[index];
+
+            if (queued.hasSubject(event)) {
+                if (!queued.canCoalesce(event)) {
+                    return false;
+                }
+
+                buffer[index] = event;
+
+                return true;
+            }
+
+            if (!queued.isIndependentOf(event)) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the number of events waiting for the dispatcher.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     */
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of events merged into a queued event because the
+     * buffer was full.
+     */
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Stops the dispatcher thread once the queued events have been delivered.
+     * Events published afterwards are dropped.
+     */
+    synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    public void run() {
+        PendingEvent[] batch = new PendingEvent[Math.min(batchSize, buffer.length)];
+
+        for (;;) {
+            int taken;
+
+            synchronized (this) {
+                while (running && (count == 0)) {
+                    try {
+                        wait(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (cacheReference.get() == null) {
+                        return;
+                    }
+                }
+
+                if (count == 0) {
+                    return;
+                }
+
+                taken = Math.min(count, batch.length);
+
+                for (int i = 0; i < taken; i++) {
+                    batch[i] = buffer[head];
+                    buffer[head] = null;
+                    head = (head + 1) % buffer.length;
+                }
+
+                count -= taken;
+
+                // Publishers may be waiting for room
+                notifyAll();
+            }
+
+            Cache cache = (Cache) cacheReference.get();
+
+            if (cache == null) {
+                return;
+            }
+
+            for (int i = 0; i < taken; i++) {
+                try {
+                    cache.deliverEvent(batch[i]);
+                } catch (RuntimeException e) {
+                    log.error("[oscache] A cache event listener failed to handle " + batch[i].event, e);
+                }
+
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * An event waiting for the dispatcher, with what the cache needs to
+     * deliver it.
+     */
+    static final class PendingEvent {
+        final int kind;
+        final Object eventType;
+        final CacheEvent event;
+        final boolean bulk;
+
+        /**
+         * What the event applies to, for coalescing: the key, group or
+         * pattern, or <code>null</code> if it can't be coalesced.
+         */
+        final Object subject;
+
+        PendingEvent(int kind, Object eventType, CacheEvent event, boolean bulk) {
+            this.kind = kind;
+            this.eventType = eventType;
+            this.event = event;
+            this.bulk = bulk;
+
+            if (event instanceof CacheEntryEvent) {
+                subject = ((CacheEntryEvent) event).getKey();
+            } else if (event instanceof CacheGroupEvent) {
+                subject = ((CacheGroupEvent) event).getGroup();
+            } else if (event instanceof CachePatternEvent) {
+                subject = ((CachePatternEvent) event).getPattern();
+            } else if (event instanceof CachewideEvent) {
+                subject = eventType;
+            } else {
+                subject = null;
+            }
+        }
+
+        /**
+         * Whether both events apply to the same key, group, pattern or cache.
+         */
+        boolean hasSubject(PendingEvent other) {
+            return (kind == other.kind) && (subject != null) && subject.equals(other.subject);
+        }
+
+        /**
+         * Whether the events can be delivered in any order: entry events for
+         * different keys, or group events for different groups. Any other
+         * event may concern the entries of the other one.
+         */
+        boolean isIndependentOf(PendingEvent other) {
+            if ((kind != other.kind) || (subject == null) || subject.equals(other.subject)) {
+                return false;
+            }
+
+            return (event instanceof CacheEntryEvent) || (event instanceof CacheGroupEvent);
+        }
+
+        boolean canCoalesce(PendingEvent other) {
+            if (!hasSubject(other) || (bulk != other.bulk) || !eventType.equals(other.eventType)) {
+                return false;
+            }
+
+            String origin = event.getOrigin();
+
+            return (origin == null) ? (other.event.getOrigin() == null) : origin.equals(other.event.getOrigin());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+
+/**
+ * A refresh policy that knows in advance when an entry will need refreshing.
+ * When the cache schedules the expiry of its entries (see
+ * {@link Cache#setExpiryTick(long)}), the entries put with such a policy are
+ * removed from the cache once that time has passed, instead of staying in
+ * memory until they are next requested.
+ *
+ * @version        $Revision$
+ */
+public interface ExpiringRefreshPolicy extends EntryRefreshPolicy {
+    /**
+     * Returns the time at which the supplied <code>CacheEntry</code> will need
+     * to be refreshed, unless it is updated before.
+     *
+     * @param entry The cache entry that is being scheduled.
+     * @return the time in milliseconds at which {@link #needsRefresh(CacheEntry)}
+     * will return <code>true</code>, or <code>Long.MAX_VALUE</code> if it is not known.
+     */
+    public long getExpiryTime(CacheEntry entry);
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel scheduling the expiry of the entries of a
+ * {@link Cache}, and the daemon thread that reclaims them.
+ * <p>
+ * Time is divided into ticks. Each level of the wheel has 64 slots, a slot of
+ * the first level covering one tick, a slot of the next level 64 ticks, and
+ * so on, so that four levels cover more than 16 million ticks. An entry is
+ * put in the slot of the lowest level that reaches its deadline. Whenever
+ * the first level has gone round, the entries of the next slot of the second
+ * level are spread over the first level, and likewise up the levels.
+ * Scheduling, cancelling and expiring an entry are therefore constant time
+ * operations, whatever the number of entries. Deadlines further away than
+ * the wheel reaches are parked in its last slot, and go round again.
+ * <p>
+ * The wheel only holds the keys of the entries, with the update time of the
+ * scheduled version. Like the {@link com.opensymphony.oscache.base.algorithm.BackgroundEvictor}
+ * the thread only holds a weak reference to the cache, and ends once the
+ * cache has been garbage collected or the wheel has been shut down.
+ *
+ * @version        $Revision$
+ */
+final class ExpiryWheel implements Runnable {
+    private static final Log log = LogFactory.getLog(ExpiryWheel.class);
+
+    /**
+     * Number of bits of the slot index of each level.
+     */
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * Number of ticks the wheel reaches.
+     */
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    /**
+     * How often an idle wheel checks whether its cache is still alive.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final WeakReference cacheReference;
+
+    /**
+     * The duration of a tick, in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * The time of tick <code>0</code>.
+     */
+    private final long origin;
+
+    /**
+     * Sentinels of the circular slot lists, indexed by level and slot.
+     */
+    private final Node[][] slots = new Node[LEVELS][SLOTS];
+
+    /**
+     * The scheduled nodes by key.
+     */
+    private final Map nodes = new HashMap();
+
+    /**
+     * The last tick whose entries have been expired.
+     */
+    private long currentTick = 0;
+    private boolean running = true;
+
+    ExpiryWheel(Cache cache, long tickMillis) {
+        this(cache, tickMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a wheel whose first tick starts at the supplied time, for the tests.
+     */
+    ExpiryWheel(Cache cache, long tickMillis, long origin) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Expiry tick must be positive");
+        }
+
+        this.cacheReference = new WeakReference(cache);
+        this.tickMillis = tickMillis;
+        this.origin = origin;
+
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots[level][slot] = new Node(null, 0, 0);
+            }
+        }
+
+        Thread thread = new Thread(this, "OSCache expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the duration of a tick, in milliseconds.
+     */
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules the expiry of a version of an entry. A previously scheduled
+     * version of the entry is forgotten, but the same version keeps its
+     * earliest deadline.
+     *
+     * @param key the key of the entry
+     * @param lastUpdate the update time of the version to expire
+     * @param expiryTime when the version expires, in milliseconds
+     */
+    synchronized void schedule(String key, long lastUpdate, long expiryTime) {
+        Node node = (Node) nodes.get(key);
+
+        if (node != null) {
+            if ((node.lastUpdate == lastUpdate) && (node.tick <= toTick(expiryTime))) {
+                return;
+            }
+
+            unlink(node);
+        }
+
+        node = new Node(key, lastUpdate, toTick(expiryTime));
+        nodes.put(key, node);
+        insert(node, currentTick + 1);
+
+        if (nodes.size() == 1) {
+            // The thread may be idle
+            notifyAll();
+        }
+    }
+
+    /**
+     * Forgets the scheduled expiry of an entry, if any.
+     */
+    synchronized void cancel(String key) {
+        Node node = (Node) nodes.remove(key);
+
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * Forgets all the scheduled expiries.
+     */
+    synchronized void clear() {
+        nodes.clear();
+
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Node head = slots[level][slot];
+                head.next = head;
+                head.prev = head;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of scheduled entries.
+     */
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Stops the expiry thread.
+     */
+    synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Moves the wheel forward to the supplied time.
+     *
+     * @return the nodes that have expired
+     */
+    synchronized List advance(long now) {
+        List expired = null;
+        long nowTick = (now - origin) / tickMillis;
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            // Spread the next slot of each level that has gone round
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+
+                Node head = slots[level][slotIndex(currentTick, level)];
+                Node node = head.next;
+                head.next = head;
+                head.prev = head;
+
+                while (node != head) {
+                    Node next = node.next;
+                    insert(node, currentTick);
+                    node = next;
+                }
+            }
+
+            Node head = slots[0][(int) (currentTick & SLOT_MASK)];
+
+            while (head.next != head) {
+                Node node = head.next;
+                unlink(node);
+                nodes.remove(node.key);
+
+                if (expired == null) {
+                    expired = new ArrayList();
+                }
+
+                expired.add(node);
+            }
+        }
+
+        return expired;
+    }
+
+    public void run() {
+        for (;;) {
+            List expired;
+
+            synchronized (this) {
+                do {
+                    try {
+                        wait(nodes.isEmpty() ? POLL_INTERVAL : tickMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (!running || (cacheReference.get() == null)) {
+                        return;
+                    }
+                } while (nodes.isEmpty());
+
+                expired = advance(System.currentTimeMillis());
+            }
+
+            if (expired != null) {
+                Cache cache = (Cache) cacheReference.get();
+
+                if (cache == null) {
+                    return;
+                }
+
+                try {
+                    for (int i = 0; i < expired.size(); i++) {
+                        Node node = (Node) expired.get(i);
+                        cache.expireEntry(node.key, node.lastUpdate);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("[oscache] Expiry of cache entries failed", e);
+                }
+
+                // Don't keep the cache alive while waiting
+                cache = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the tick at the end of which a time has passed.
+     */
+    private long toTick(long time) {
+        if (time <= origin) {
+            return 0;
+        }
+
+        long tick = ((time - origin) + tickMillis - 1) / tickMillis;
+
+        return (tick < 0) ? Long.MAX_VALUE : tick;
+    }
+
+    /**
+     * Puts a node in the slot of the lowest level reaching its tick.
+     *
+     * @param earliest the earliest tick the node can be expired at, for
+     * the nodes that are already due
+     */
+    private void insert(Node node, long earliest) {
+        long tick = Math.max(node.tick, earliest);
+
+        if ((tick - currentTick) >= SPAN) {
+            tick = (currentTick + SPAN) - 1;
+        }
+
+        long delta = tick - currentTick;
+        int level = 0;
+
+        while ((level < (LEVELS - 1)) && (delta >= (1L << (SLOT_BITS * (level + 1))))) {
+            level++;
+        }
+
+        Node head = slots[level][slotIndex(tick, level)];
+        node.next = head;
+        node.prev = head.prev;
+        node.prev.next = node;
+        head.prev = node;
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.next = node;
+        node.prev = node;
+    }
+
+    /**
+     * A scheduled entry, linked in its slot.
+     */
+    static final class Node {
+        final String key;
+        final long lastUpdate;
+        final long tick;
+        Node next = this;
+        Node prev = this;
+
+        Node(String key, long lastUpdate, long tick) {
+            this.key = key;
+            this.lastUpdate = lastUpdate;
+            this.tick = tick;
+        }
+    }
+}
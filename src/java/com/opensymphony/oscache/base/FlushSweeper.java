@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Removes from a {@link Cache} the entries left stale by a flush of the whole
+ * cache or of its scope, which would otherwise stay in memory and count
+ * against the capacity of the cache until read or evicted.
+ * <p>
+ * Once the time of a flush has come, a low priority daemon thread walks the
+ * table of the cache and removes the entries written before the flush. The
+ * walk is rate limited to a number of entries per second, so that it doesn't
+ * compete with the threads using the cache. A flush requested during a walk
+ * starts another walk once it completes. Like the {@link RefreshExecutor} the
+ * thread only holds a weak reference to the cache, and ends once the cache
+ * has been garbage collected or the sweeper has been shut down.
+ *
+ * @version        $Revision$
+ */
+final class FlushSweeper implements Runnable {
+    private static final Log log = LogFactory.getLog(FlushSweeper.class);
+
+    /**
+     * How often an idle thread checks whether its cache is still alive.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * The number of entries looked at between two checks of the rate.
+     */
+    private static final int BATCH_SIZE = 100;
+    private static final long NO_SWEEP = -1;
+    private final WeakReference cacheReference;
+    private final int entriesPerSecond;
+
+    /**
+     * The time the next walk may start, or {@link #NO_SWEEP} if none was
+     * requested.
+     */
+    private long sweepTime = NO_SWEEP;
+    private long removedCount = 0;
+    private boolean sweeping = false;
+    private boolean running = true;
+
+    FlushSweeper(Cache cache, int entriesPerSecond) {
+        if (entriesPerSecond <= 0) {
+            throw new IllegalArgumentException("The sweep rate must be positive");
+        }
+
+        this.cacheReference = new WeakReference(cache);
+        this.entriesPerSecond = entriesPerSecond;
+
+        Thread thread = new Thread(this, "OSCache flush sweeper");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    int getEntriesPerSecond() {
+        return entriesPerSecond;
+    }
+
+    /**
+     * Requests a walk of the table, to start once the flush has taken effect.
+     *
+     * @param flushTime the time of the flush.
+     */
+    synchronized void sweep(long flushTime) {
+        if ((sweepTime == NO_SWEEP) || (flushTime > sweepTime)) {
+            sweepTime = flushTime;
+            notify();
+        }
+    }
+
+    /**
+     * Returns the number of entries removed since the sweeper was started.
+     */
+    synchronized long getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Returns <code>true</code> if a walk is requested or in progress.
+     */
+    synchronized boolean isSweeping() {
+        return sweeping || (sweepTime != NO_SWEEP);
+    }
+
+    /**
+     * Stops the sweeper thread. The walk in progress, if any, is abandoned.
+     */
+    synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    public void run() {
+        for (;;) {
+            synchronized (this) {
+                for (;;) {
+                    if (!running || (cacheReference.get() == null)) {
+                        return;
+                    }
+
+                    long delay = (sweepTime == NO_SWEEP) ? POLL_INTERVAL : (sweepTime - System.currentTimeMillis());
+
+                    if ((sweepTime != NO_SWEEP) && (delay < 0)) {
+                        break;
+                    }
+
+                    try {
+                        wait(Math.max(1, Math.min(delay, POLL_INTERVAL)));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                sweepTime = NO_SWEEP;
+                sweeping = true;
+            }
+
+            try {
+                walk();
+            } catch (RuntimeException e) {
+                log.error("[oscache] Sweep of the flushed cache entries failed", e);
+            } finally {
+                synchronized (this) {
+                    sweeping = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the table once, removing the flushed entries at the set rate.
+     */
+    private void walk() {
+        Cache cache = (Cache) cacheReference.get();
+
+        if (cache == null) {
+            return;
+        }
+
+        Iterator entries = cache.getEntryIterator();
+        cache = null;
+
+        long start = System.currentTimeMillis();
+        long visited = 0;
+
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            Object value = entry.getValue();
+            visited++;
+
+            if (value instanceof CacheEntry) {
+                if (cache == null) {
+                    cache = (Cache) cacheReference.get();
+
+                    if (cache == null) {
+                        return;
+                    }
+                }
+
+                if (cache.reclaimEntry((String) entry.getKey(), (CacheEntry) value)) {
+                    synchronized (this) {
+                        removedCount++;
+                    }
+                }
+            }
+
+            if ((visited % BATCH_SIZE) == 0) {
+                // Don't hold the cache while pausing
+                cache = null;
+
+                synchronized (this) {
+                    if (!running) {
+                        return;
+                    }
+                }
+
+                long ahead = ((visited * 1000) / entriesPerSecond) - (System.currentTimeMillis() - start);
+
+                if (ahead > 0) {
+                    try {
+                        Thread.sleep(ahead);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.opensymphony.oscache.base.algorithm.KeyListener;
+
+/**
+ * An n-gram inverted index of the keys of a {@link Cache}, so that
+ * {@link Cache#flushPattern(String)} finds the keys containing a pattern
+ * without testing every key of the cache.
+ * <p>
+ * Each key gets a number, and every sequence of {@link #GRAM_LENGTH}
+ * characters of the key lists that number. A pattern at least as long as a
+ * gram can only be contained in the keys listed by each of its grams, so the
+ * keys listed by its rarest gram are the only ones tested. Shorter patterns
+ * fall back to testing every indexed key.
+ * <p>
+ * The lists are only ever appended to: removing a key frees its number, and
+ * the entries left behind are skipped, or tested and rejected if the number
+ * has been given to another key. The lists are rebuilt once the stale entries
+ * outnumber the live ones.
+ * <p>
+ * The index listens to the memory table of the cache, so it holds exactly the
+ * keys in the table, including the ones the algorithm evicts or reloads. The
+ * keys are spread over {@link #STRIPES} independently locked parts by their
+ * hash, so that adding and removing keys doesn't serialize the writers to the
+ * cache.
+ *
+ * @version        $Revision$
+ */
+final class KeyIndex implements KeyListener {
+    /**
+     * The length of the character sequences indexed.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * The number of independently locked parts of the index. Must be a power
+     * of two.
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * Approximate size of a gram in the gram map: the map entry, the boxed
+     * gram and the list object.
+     */
+    private static final int GRAM_OVERHEAD = 80;
+
+    /**
+     * Approximate size of an indexed key: its map entry, boxed number and
+     * slot in the key table.
+     */
+    private static final int KEY_OVERHEAD = 56;
+
+    /**
+     * How many stale entries a part tolerates before it may be rebuilt.
+     */
+    private static final int MIN_STALE_POSTINGS = 256;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    KeyIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void keyAdded(Object key) {
+        add((String) key);
+    }
+
+    public void keyRemoved(Object key) {
+        remove((String) key);
+    }
+
+    /**
+     * Indexes a key, unless it is already indexed.
+     */
+    void add(String key) {
+        stripeFor(key).add(key);
+    }
+
+    /**
+     * Removes a key from the index.
+     */
+    void remove(String key) {
+        stripeFor(key).remove(key);
+    }
+
+    /**
+     * Removes every key from the index.
+     */
+    void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i].clear();
+        }
+    }
+
+    /**
+     * Finds the indexed keys containing a pattern.
+     *
+     * @param pattern the pattern the keys must contain.
+     * @return the keys, each listed once.
+     */
+    List find(String pattern) {
+        List found = new ArrayList();
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i].find(pattern, found);
+        }
+
+        return found;
+    }
+
+    /**
+     * Adds the supplied keys to the index.
+     */
+    void addAll(Collection keys) {
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            add((String) it.next());
+        }
+    }
+
+    /**
+     * Returns the number of indexed keys.
+     */
+    int size() {
+        int size = 0;
+
+        for (int i = 0; i < STRIPES; i++) {
+            size += stripes[i].size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the memory taken by the index, in bytes, not
+     * counting the keys themselves.
+     */
+    long getMemoryUsage() {
+        long bytes = 0;
+
+        for (int i = 0; i < STRIPES; i++) {
+            bytes += stripes[i].getMemoryUsage();
+        }
+
+        return bytes;
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+
+        // Spread the high bits, which tell apart keys differing by a suffix
+        h ^= (h >>> 16);
+
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /**
+     * One independently locked part of the index.
+     */
+    private static final class Stripe {
+        /**
+         * The number of each indexed key.
+         */
+        private final Map numbers = new HashMap();
+
+        /**
+         * The keys, by number. Free numbers hold <code>null</code>.
+         */
+        private String[] keys = new String[16];
+
+        /**
+         * The numbers freed by removed keys, to be given to new keys.
+         */
+        private int[] freeNumbers = new int[16];
+        private int freeCount = 0;
+        private int nextNumber = 0;
+
+        /**
+         * The numbers of the keys containing each gram, by gram.
+         */
+        private final Map grams = new HashMap();
+
+        /**
+         * Total number of entries in the gram lists, and how many of them
+         * belong to removed keys.
+         */
+        private long postings = 0;
+        private long stalePostings = 0;
+
+        synchronized void add(String key) {
+            if (numbers.containsKey(key)) {
+                return;
+            }
+
+            int number = (freeCount > 0) ? freeNumbers[--freeCount] : nextNumber++;
+
+            if (number >= keys.length) {
+                String[] newKeys = new String[keys.length * 2];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                keys = newKeys;
+            }
+
+            keys[number] = key;
+            numbers.put(key, new Integer(number));
+
+            for (int i = 0; i <= (key.length() - GRAM_LENGTH); i++) {
+                Long gram = gram(key, i);
+                NumberList list = (NumberList) grams.get(gram);
+
+                if (list == null) {
+                    list = new NumberList();
+                    grams.put(gram, list);
+                }
+
+                // A gram appearing twice in the key is listed twice
+                list.add(number);
+                postings++;
+            }
+        }
+
+        synchronized void remove(String key) {
+            Integer number = (Integer) numbers.remove(key);
+
+            if (number == null) {
+                return;
+            }
+
+            keys[number.intValue()] = null;
+
+            if (freeCount == freeNumbers.length) {
+                int[] newFree = new int[freeNumbers.length * 2];
+                System.arraycopy(freeNumbers, 0, newFree, 0, freeCount);
+                freeNumbers = newFree;
+            }
+
+            freeNumbers[freeCount++] = number.intValue();
+            stalePostings += Math.max(0, key.length() - GRAM_LENGTH + 1);
+
+            if ((stalePostings > postings / 2) && (stalePostings > MIN_STALE_POSTINGS)) {
+                rebuild();
+            }
+        }
+
+        synchronized void clear() {
+            numbers.clear();
+            grams.clear();
+            keys = new String[16];
+            freeNumbers = new int[16];
+            freeCount = 0;
+            nextNumber = 0;
+            postings = 0;
+            stalePostings = 0;
+        }
+
+        /**
+         * Adds the keys of this part containing the pattern to the list.
+         */
+        synchronized void find(String pattern, List found) {
+            if (pattern.length() < GRAM_LENGTH) {
+                for (Iterator it = numbers.keySet().iterator(); it.hasNext();) {
+                    String key = (String) it.next();
+
+                    if (key.indexOf(pattern) >= 0) {
+                        found.add(key);
+                    }
+                }
+
+                return;
+            }
+
+            // The keys containing the pattern all contain its rarest gram
+            NumberList rarest = null;
+
+            for (int i = 0; i <= (pattern.length() - GRAM_LENGTH); i++) {
+                NumberList list = (NumberList) grams.get(gram(pattern, i));
+
+                if (list == null) {
+                    return;
+                }
+
+                if ((rarest == null) || (list.size < rarest.size)) {
+                    rarest = list;
+                }
+            }
+
+            Set seen = new HashSet();
+
+            for (int i = 0; i < rarest.size; i++) {
+                String key = keys[rarest.numbers[i]];
+
+                if ((key != null) && (key.indexOf(pattern) >= 0) && seen.add(key)) {
+                    found.add(key);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return numbers.size();
+        }
+
+        synchronized long getMemoryUsage() {
+            long bytes = (keys.length * 4L) + (freeNumbers.length * 4L);
+            bytes += (long) numbers.size() * KEY_OVERHEAD;
+
+            for (Iterator it = grams.values().iterator(); it.hasNext();) {
+                NumberList list = (NumberList) it.next();
+                bytes += GRAM_OVERHEAD + (list.numbers.length * 4L);
+            }
+
+            return bytes;
+        }
+
+        /**
+         * Drops the stale entries of the gram lists. Call only when holding
+         * the monitor of the part.
+         */
+        private void rebuild() {
+            List live = new ArrayList(numbers.keySet());
+            clear();
+
+            for (Iterator it = live.iterator(); it.hasNext();) {
+                add((String) it.next());
+            }
+        }
+    }
+
+    /**
+     * Packs the characters of a gram into a single number.
+     */
+    private static Long gram(String s, int start) {
+        long gram = 0;
+
+        for (int i = start; i < (start + GRAM_LENGTH); i++) {
+            gram = (gram << 16) | s.charAt(i);
+        }
+
+        return new Long(gram);
+    }
+
+    /**
+     * A growable list of key numbers.
+     */
+    private static final class NumberList {
+        int[] numbers = new int[4];
+        int size = 0;
+
+        void add(int number) {
+            if (size == numbers.length) {
+                int[] newNumbers = new int[numbers.length * 2];
+                System.arraycopy(numbers, 0, newNumbers, 0, size);
+                numbers = newNumbers;
+            }
+
+            numbers[size++] = number;
+        }
+    }
+}
@@ -15,6 +15,10 @@ package com.opensymphony.oscache.base;
  * be removed in the near future, and other means of refreshing the cache will be
  * provided.</p>
  *
+ * <p>Since the exception only signals that the content needs refreshing, it
+ * doesn't capture the stack trace of the thread, which is by far the most
+ * expensive part of creating it.</p>
+ *
  * @author        <a href="mailto:fbeauregard@pyxis-tech.com">Francois Beauregard</a>
  * @version        $Revision$
  */
@@ -48,4 +52,14 @@ public final class NeedsRefreshException extends Exception {
         return cacheContent;
     }
 
+    /**
+     * Doesn't fill in the stack trace, which says nothing more than that
+     * the entry was requested from the cache.
+     *
+     * @return this exception
+     */
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+
 }
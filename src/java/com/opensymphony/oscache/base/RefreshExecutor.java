@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Rebuilds the stale entries of a {@link Cache} in the background, with the
+ * {@link CacheLoader} registered as the refresher of the cache.
+ * <p>
+ * The keys to refresh are queued and taken by a fixed number of daemon
+ * threads. The queue is bounded: a key submitted while the queue is full is
+ * dropped, and will be submitted again the next time its entry is found
+ * stale. A key that is already queued or being refreshed is not queued
+ * twice. The entry is only rebuilt if it hasn't been updated since its key
+ * was submitted, nor put again after having been flushed. Like the {@link ExpiryWheel} the threads only hold a weak reference
+ * to the cache, and end once the cache has been garbage collected or the
+ * executor has been shut down.
+ *
+ * @version        $Revision$
+ */
+final class RefreshExecutor implements Runnable {
+    private static final Log log = LogFactory.getLog(RefreshExecutor.class);
+
+    /**
+     * How often an idle thread checks whether its cache is still alive.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final WeakReference cacheReference;
+    private final CacheLoader loader;
+    private final int threads;
+    private final int queueSize;
+
+    /**
+     * The keys waiting for a thread.
+     */
+    private final LinkedList queue = new LinkedList();
+
+    /**
+     * The entries whose keys are queued or being refreshed, as seen when
+     * they were submitted, by key.
+     */
+    private final Map pending = new HashMap();
+    private boolean running = true;
+
+    RefreshExecutor(Cache cache, CacheLoader loader, int threads, int queueSize) {
+        if (loader == null) {
+            throw new IllegalArgumentException("Refresher must not be null");
+        }
+
+        if ((threads <= 0) || (queueSize <= 0)) {
+            throw new IllegalArgumentException("Refresh threads and queue size must be positive");
+        }
+
+        this.cacheReference = new WeakReference(cache);
+        this.loader = loader;
+        this.threads = threads;
+        this.queueSize = queueSize;
+
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this, "OSCache refresh " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    CacheLoader getLoader() {
+        return loader;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Queues the refresh of an entry.
+     *
+     * @param entry the entry to refresh
+     * @return <code>false</code> if the key was already queued or being
+     * refreshed, if the queue is full or if the executor has been shut down.
+     */
+    synchronized boolean submit(CacheEntry entry) {
+        String key = entry.getKey();
+
+        if (!running || (queue.size() >= queueSize) || pending.containsKey(key)) {
+            return false;
+        }
+
+        pending.put(key, new Submission(entry));
+        queue.addLast(key);
+        notify();
+
+        return true;
+    }
+
+    /**
+     * Returns the number of keys queued or being refreshed.
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the refresh threads. The queued keys are dropped, the refreshes
+     * in progress complete.
+     */
+    synchronized void shutdown() {
+        running = false;
+        queue.clear();
+        notifyAll();
+    }
+
+    public void run() {
+        for (;;) {
+            String key;
+            Submission submission;
+
+            synchronized (this) {
+                while (running && queue.isEmpty()) {
+                    try {
+                        wait(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (cacheReference.get() == null) {
+                        return;
+                    }
+                }
+
+                if (!running) {
+                    return;
+                }
+
+                key = (String) queue.removeFirst();
+                submission = (Submission) pending.get(key);
+            }
+
+            try {
+                Cache cache = (Cache) cacheReference.get();
+
+                if (cache == null) {
+                    return;
+                }
+
+                cache.refreshEntry(key, submission.lastUpdate, submission.flushed, loader);
+            } catch (RuntimeException e) {
+                log.error("[oscache] Refresh of the cache entry for key [" + key + "] failed", e);
+            } finally {
+                synchronized (this) {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of an entry when its key was submitted.
+     */
+    private static final class Submission {
+        final long lastUpdate;
+        final boolean flushed;
+
+        Submission(CacheEntry entry) {
+            lastUpdate = entry.getLastUpdate();
+            flushed = entry.isFlushed();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+
+/**
+ * Thrown when retrieving an entry that doesn't exist yet and that another
+ * thread is building, once the caller has waited for the maximum wait set
+ * with {@link Cache#setBlockingTimeout(long)} or passed to
+ * {@link Cache#getFromCache(String, int, String, long)}.
+ * <p>
+ * Unlike a {@link NeedsRefreshException}, the caller does not own the update
+ * of the entry: it must neither put the entry in the cache nor cancel its
+ * update. It may build the content for itself without caching it, or fail
+ * the request. A caller waiting for an entry that has stale content is
+ * served the stale content instead.
+ * <p>
+ * Like a <code>NeedsRefreshException</code>, this exception doesn't capture
+ * the stack trace of the thread.
+ *
+ * @version        $Revision$
+ */
+public final class UpdateTimeoutException extends RuntimeException {
+    /**
+     * The key of the entry
+     */
+    private final String key;
+
+    /**
+     * How long the caller waited, in milliseconds
+     */
+    private final long waited;
+
+    /**
+     * Create an UpdateTimeoutException
+     *
+     * @param key The key of the entry that was being built
+     * @param waited How long the caller waited, in milliseconds
+     */
+    public UpdateTimeoutException(String key, long waited) {
+        super("Timed out after " + waited + "ms waiting for the cache entry [" + key + "] to be built");
+        this.key = key;
+        this.waited = waited;
+    }
+
+    /**
+     * Retrieve the key of the entry that was being built
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Retrieve how long the caller waited, in milliseconds
+     */
+    public long getWaited() {
+        return waited;
+    }
+
+    /**
+     * Doesn't fill in the stack trace, which says nothing more than that
+     * the entry was requested from the cache.
+     *
+     * @return this exception
+     */
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>ARC (Adaptive Replacement Cache) algorithm for the cache, after Megiddo
+ * and Modha.</p>
+ *
+ * <p>Resident keys are kept in two LRU lists: T1 holds the keys seen once
+ * recently, T2 the keys seen at least twice. Each has a ghost list, B1 and
+ * B2, remembering the keys recently evicted from it. A ghost only keeps the
+ * key, never the cached value. A miss on a B1 ghost shows that T1 was too
+ * small, and grows the target size of T1; a miss on a B2 ghost shrinks it.
+ * Victims are taken from T1 while it is above its target, from T2 otherwise,
+ * so the cache keeps adapting between recency and frequency as the workload
+ * changes.</p>
+ *
+ * <p>The cache evicts before it inserts, without telling the algorithm
+ * which key is coming in, so the tie on the target size that the original
+ * algorithm breaks with that key is broken in favour of T2.</p>
+ *
+ * <p>Like the {@link TinyLFUCache}, cache hits are only recorded in a
+ * striped {@link ReadBuffer} and are applied to the lists in batches.</p>
+ *
+ * @version        $Revision$
+ */
+public class ARCCache extends AbstractConcurrentReadCache {
+    private static final long serialVersionUID = 5237714682380478201L;
+
+    private static final int T1 = 0;
+    private static final int T2 = 1;
+    private static final int B1 = 2;
+    private static final int B2 = 3;
+
+    /**
+     * List nodes by key, for the resident and the ghost keys.
+     */
+    private final Map nodes = new HashMap();
+
+    /**
+     * Sentinels of the four circular LRU lists, indexed by list. The
+     * successor of a sentinel is the least recently used key of the list.
+     */
+    private final Node[] heads = {new Node(null), new Node(null), new Node(null), new Node(null)};
+
+    /**
+     * Number of keys held in each list.
+     */
+    private final int[] sizes = new int[4];
+
+    /**
+     * The adaptive target size of T1.
+     */
+    private int target = 0;
+
+    /**
+     * Reads that have not been applied yet.
+     */
+    private final ReadBuffer readBuffer = new ReadBuffer();
+
+    /**
+     * Guards all of the above except the read buffer.
+     */
+    private final EvictionLock evictionLock = new EvictionLock();
+
+    /**
+     * Applies buffered reads.
+     */
+    private final ReadBuffer.Consumer readApplier = new ReadApplier();
+
+    /**
+     * Constructs an ARC Cache.
+     */
+    public ARCCache() {
+        super();
+    }
+
+    /**
+     * Constructs an ARC Cache of the specified capacity.
+     *
+     * @param capacity The maximum cache capacity.
+     */
+    public ARCCache(int capacity) {
+        this();
+        maxEntries = capacity;
+    }
+
+    /**
+     * An item was retrieved from the cache. The access is buffered and
+     * only applied later.
+     *
+     * @param key The cache key of the item that was retrieved.
+     */
+    protected void itemRetrieved(Object key) {
+        if (readBuffer.record(key) && evictionLock.tryLock()) {
+            try {
+                readBuffer.drain(readApplier);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * An object was put in the cache. A resident key counts as an access. A
+     * ghost key adapts the target size of T1 and comes back into T2, and an
+     * unknown key enters T1, after the ghost lists have been trimmed.
+     *
+     * @param key The cache key of the item that was put.
+     */
+    protected void itemPut(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.get(key);
+
+            if (node == null) {
+                trimGhosts();
+                node = new Node(key);
+                nodes.put(key, node);
+                append(node, T1);
+            } else if (node.list == B1) {
+                target = Math.min(directorySize(), target + Math.max(1, sizes[B2] / sizes[B1]));
+                unlink(node);
+                append(node, T2);
+            } else if (node.list == B2) {
+                target = Math.max(0, target - Math.max(1, sizes[B1] / sizes[B2]));
+                unlink(node);
+                append(node, T2);
+            } else {
+                unlink(node);
+                append(node, T2);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * An item needs to be removed from the cache. The least recently used
+     * key of T1 is evicted while T1 is above its target size, the one of T2
+     * otherwise, and the evicted key becomes a ghost.
+     *
+     * @return The key of whichever item was removed, or <code>null</code>
+     * if no key is known.
+     */
+    protected Object removeItem() {
+        evictionLock.lock();
+
+        try {
+            readBuffer.drain(readApplier);
+
+            Node victim;
+
+            if ((sizes[T1] > 0) && ((sizes[T1] > target) || (sizes[T2] == 0))) {
+                victim = heads[T1].next;
+                unlink(victim);
+                append(victim, B1);
+            } else if (sizes[T2] > 0) {
+                victim = heads[T2].next;
+                unlink(victim);
+                append(victim, B2);
+            } else {
+                return null;
+            }
+
+            return victim.key;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove specified key since that object has been removed from the cache.
+     * It was not evicted, so it is forgotten rather than kept as a ghost.
+     *
+     * @param key The cache key of the item that was removed.
+     */
+    protected void itemRemoved(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.remove(key);
+
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the target size of T1, for the tests.
+     */
+    int getTarget() {
+        evictionLock.lock();
+
+        try {
+            return target;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the key is remembered as a ghost, for the tests.
+     */
+    boolean isGhost(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.get(key);
+
+            return (node != null) && ((node.list == B1) || (node.list == B2));
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Makes room for a new key in the directory: T1 and B1 together hold
+     * at most c keys, and all four lists at most 2c, c being the capacity.
+     */
+    private void trimGhosts() {
+        int capacity = directorySize();
+
+        while ((sizes[B1] > 0) && ((sizes[T1] + sizes[B1]) >= capacity)) {
+            forget(heads[B1].next);
+        }
+
+        while ((sizes[B2] > 0) && ((sizes[T1] + sizes[T2] + sizes[B1] + sizes[B2]) >= (2L * capacity))) {
+            forget(heads[B2].next);
+        }
+    }
+
+    /**
+     * Returns the number of entries the lists are sized for.
+     */
+    private int directorySize() {
+        return Math.max(1, maxEntries);
+    }
+
+    private void forget(Node node) {
+        unlink(node);
+        nodes.remove(node.key);
+    }
+
+    private void append(Node node, int list) {
+        Node head = heads[list];
+        node.list = list;
+        node.next = head;
+        node.prev = head.prev;
+        node.prev.next = node;
+        head.prev = node;
+        sizes[list]++;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.next = node;
+        node.prev = node;
+        sizes[node.list]--;
+    }
+
+    /**
+     * Moves a key read while resident to the most recently used end of T2,
+     * unless it has been removed or evicted in the meantime.
+     * Call only when holding the eviction lock.
+     */
+    private final class ReadApplier implements ReadBuffer.Consumer, Serializable {
+        private static final long serialVersionUID = -6150826349025364925L;
+
+        public void keyRead(Object key) {
+            Node node = (Node) nodes.get(key);
+
+            if ((node != null) && ((node.list == T1) || (node.list == T2))) {
+                unlink(node);
+                append(node, T2);
+            }
+        }
+    }
+
+    /**
+     * A node of one of the lists. Ghost nodes only reference the key.
+     */
+    private static final class Node implements Serializable {
+        private static final long serialVersionUID = 3896218817250963447L;
+        final Object key;
+        int list;
+        Node next = this;
+        Node prev = this;
+
+        Node(Object key) {
+            this.key = key;
+        }
+    }
+}
@@ -46,6 +46,11 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 import java.io.Serializable;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
 import java.util.*;
 
 /**
@@ -62,8 +67,8 @@ import java.util.*;
  *
  * Successful retrievals using get(key) and containsKey(key) usually
  * run without locking. Unsuccessful ones (i.e., when the key is not
- * present) do involve brief synchronization (locking).  Also, the
- * size and isEmpty methods are always synchronized.
+ * present) do involve brief synchronization (locking). The size and
+ * isEmpty methods don't lock either; exactSize does.
  *
  * <p> Because retrieval operations can ordinarily overlap with
  * writing operations (i.e., put, remove, and their derivatives),
@@ -173,12 +178,76 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      */
     private static final int MAXIMUM_CAPACITY = 1 << 30;
 
+    /**
+     * The number of bins from which a segment is resized incrementally
+     * rather than at once. MUST be a power of two.
+     */
+    static final int INCREMENTAL_RESIZE_CAPACITY = 1 << 13;
+
+    /**
+     * The number of bins each write moves to the next table while a
+     * segment is being resized incrementally.
+     */
+    static final int RESIZE_STRIDE = 16;
+
+    /**
+     * The key of the forwarding entries, which never equals a real key.
+     */
+    private static final Object FORWARDED = new Object();
+
     /**
      * The default load factor for this table.
      * Used when not otherwise specified in constructor, the default is 0.75f.
      **/
     public static final float DEFAULT_LOAD_FACTOR = 0.75f;
 
+    /**
+     * The default number of table segments (1), ie a single table guarded
+     * by the cache monitor.
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 1;
+
+    /**
+     * The values are held by plain references, and stay in memory until they
+     * are removed or evicted. This is the default.
+     */
+    public static final int STRONG_REFERENCES = 0;
+
+    /**
+     * The values are held by soft references, that the garbage collector
+     * clears when the heap runs low.
+     */
+    public static final int SOFT_REFERENCES = 1;
+
+    /**
+     * The values are held by weak references, that the garbage collector
+     * clears as soon as the values are not used outside of the cache.
+     */
+    public static final int WEAK_REFERENCES = 2;
+
+    /**
+     * The weigher used when none has been set.
+     */
+    private static final EntryWeigher DEFAULT_WEIGHER = new SizeEntryWeigher();
+
+    /**
+     * The number of entries the background evictor removes between two
+     * drains of the persistence queue.
+     */
+    private static final int EVICTION_BATCH_SIZE = 64;
+
+    /**
+     * The number of times {@link #exactSize()} sums the segment counts
+     * without locking before it locks the segments.
+     */
+    private static final int EXACT_SIZE_RETRIES = 2;
+
+    /**
+     * The maximum number of table segments.
+     * MUST be a power of two <= 1<<16.
+     */
+    private static final int MAXIMUM_CONCURRENCY_LEVEL = 1 << 16;
+
     //OpenSymphony BEGIN (pretty long!)
     protected static final String NULL = "_nul!~";
     
@@ -199,13 +268,31 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
          the update, and then re-traverse.
 
       * All list additions are at the front of each bin, making it easy
-         to check changes, and also fast to traverse.  Entry next
-         pointers are never assigned. Remove() builds new nodes when
-         necessary to preserve this.
+         to check changes, and also fast to traverse.  By default Entry
+         next pointers are never assigned, and remove() builds new nodes
+         when necessary to preserve this. With unlinking storage (see
+         setUnlinkingStorage) the next pointers are volatile and remove()
+         unlinks the node in place instead, which relies on the Java 5
+         memory model for the visibility of the new link.
 
       * Remove() (also clear()) invalidates removed nodes to alert read
          operations that they must wait out the full modifications.
 
+      * The table may be split into several independent segments
+         (see setConcurrencyLevel), each with its own bins, count,
+         threshold, lock and barrier. The high bits of the hash select
+         the segment, the low bits the bin within it. All of the above
+         applies per segment. With a single segment its lock is the
+         cache itself, exactly as in the original ConcurrentReaderHashMap.
+
+      * Small tables are resized at once by rehash(). Tables of at least
+         INCREMENTAL_RESIZE_CAPACITY bins are resized incrementally: the
+         next table is allocated, and the writes that follow each move
+         a few bins to it, replacing every moved bin of the old table
+         with a ForwardingEntry. Reads that land on a forwarding entry
+         carry on in the next table, so no write has to copy the whole
+         table while holding the segment lock.
+
     */
 
     /**
@@ -216,19 +303,29 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     protected final Boolean barrierLock = new Boolean(true);
 
     /**
-     * field written to only to guarantee lock ordering.
+     * Lock guarding the group mappings (both in memory and persisted), which
+     * are shared by all segments. It is always acquired after the segment
+     * lock, never before.
      **/
-    protected transient Object lastWrite;
+    protected final Boolean groupLock = new Boolean(true);
+
+    /**
+     * The hash table segments. There is always at least one.
+     */
+    protected transient Segment[] segments;
 
     /**
-     * The hash table data.
+     * Shift and mask values used to select a segment from a hash code.
      */
-    protected transient Entry[] table;
+    private transient int segmentShift;
+    private transient int segmentMask;
 
     /**
-     * The total number of mappings in the hash table.
+     * The number of segments the table is split into.
+     *
+     * @serial
      */
-    protected transient int count;
+    protected int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
 
     /**
      * Persistence listener.
@@ -281,12 +378,22 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     protected int maxEntries = DEFAULT_MAX_ENTRIES;
 
     /**
-     * The table is rehashed when its size exceeds this threshold.
-     * (The value of this field is always (int)(capacity * loadFactor).)
-     *
-     * @serial
+     * Cache capacity in bytes, as estimated by the entry weigher.
+     * <code>0</code> disables the byte budget, which is the default.
+     */
+    protected long maxBytes = 0;
+
+    /**
+     * Weighs the entries when there is a byte budget. Not serialized, a
+     * deserialized cache uses the {@link SizeEntryWeigher}.
+     */
+    private transient EntryWeigher weigher = null;
+
+    /**
+     * Told about the keys added to and removed from the table, or
+     * <code>null</code>.
      */
-    protected int threshold;
+    private transient volatile KeyListener keyListener = null;
 
     /**
      * Use overflow persistence caching.
@@ -294,25 +401,94 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     private boolean overflowPersistence = false;
 
     /**
-     * Constructs a new, empty map with the specified initial capacity and the specified load factor.
+     * Persistence writes, queued under the segment locks and performed
+     * once they have been released.
+     */
+    private transient PersistenceQueue persistQueue = new PersistenceQueue(this);
+
+    /**
+     * Whether removed entries are unlinked in place rather than by copying
+     * the entries ahead of them in their bin.
+     */
+    protected boolean unlinkingStorage = false;
+
+    /**
+     * Fraction of the capacity above which the background evictor is woken
+     * up. <code>0</code> when entries are only evicted by the writers.
+     */
+    protected float highWatermark = 0;
+
+    /**
+     * Fraction of the capacity the background evictor brings the cache back to.
+     */
+    protected float lowWatermark = 0;
+
+    /**
+     * The background evictor, while there are watermarks.
+     */
+    private transient volatile BackgroundEvictor evictor = null;
+
+    /**
+     * How the values are referenced, one of {@link #STRONG_REFERENCES},
+     * {@link #SOFT_REFERENCES} or {@link #WEAK_REFERENCES}.
+     */
+    protected int valueReferences = STRONG_REFERENCES;
+
+    /**
+     * The references to the values that the garbage collector has cleared,
+     * and whose entries are still to be removed.
+     */
+    private transient ReferenceQueue collectedValues = new ReferenceQueue();
+
+    /**
+     * The capacity of the off-heap tier in bytes, <code>0</code> if there is none.
+     */
+    protected long offHeapBytes = 0;
+
+    /**
+     * The off-heap tier receiving the evicted values, while there is one.
+     */
+    private transient volatile OffHeapStore offHeap = null;
+
+    /**
+     * Constructs a new, empty map with the specified initial capacity, load factor
+     * and number of segments.
      *
      * @param initialCapacity the initial capacity
      *  The actual initial capacity is rounded to the nearest power of two.
      * @param loadFactor  the load factor of the AbstractConcurrentReadCache
+     * @param concurrencyLevel the number of independently locked table segments.
+     *  The actual number is rounded to the nearest power of two.
      * @throws IllegalArgumentException  if the initial maximum number
      *               of elements is less
-     *               than zero, or if the load factor is nonpositive.
+     *               than zero, if the load factor is nonpositive or if the
+     *               concurrency level is less than one.
      */
-    public AbstractConcurrentReadCache(int initialCapacity, float loadFactor) {
+    public AbstractConcurrentReadCache(int initialCapacity, float loadFactor, int concurrencyLevel) {
         if (loadFactor <= 0) {
             throw new IllegalArgumentException("Illegal Load factor: " + loadFactor);
         }
 
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+        }
+
         this.loadFactor = loadFactor;
+        initSegments(concurrencyLevel, initialCapacity);
+    }
 
-        int cap = p2capacity(initialCapacity);
-        table = new Entry[cap];
-        threshold = (int) (cap * loadFactor);
+    /**
+     * Constructs a new, empty map with the specified initial capacity and the specified load factor.
+     *
+     * @param initialCapacity the initial capacity
+     *  The actual initial capacity is rounded to the nearest power of two.
+     * @param loadFactor  the load factor of the AbstractConcurrentReadCache
+     * @throws IllegalArgumentException  if the initial maximum number
+     *               of elements is less
+     *               than zero, or if the load factor is nonpositive.
+     */
+    public AbstractConcurrentReadCache(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, DEFAULT_CONCURRENCY_LEVEL);
     }
 
     /**
@@ -350,8 +526,16 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      *
      * @return <tt>true</tt> if this map contains no key-value mappings.
      */
-    public synchronized boolean isEmpty() {
-        return count == 0;
+    public boolean isEmpty() {
+        Segment[] segs = segments;
+
+        for (int i = 0; i < segs.length; i++) {
+            if (segs[i].count != 0) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -373,6 +557,8 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         }
 
         // CACHE-309
+        persistQueue.await();
+
         Set persistGroupEntries = persistRetrieveGroup(groupName);
         
         if (memoryGroupEntries != null) {
@@ -395,9 +581,17 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             synchronized (this) { // because remove() isn't synchronized
 
                 while (size() > maxEntries) {
-                    remove(removeItem(), false, false);
+                    Object victim = removeItem();
+
+                    if (victim == null) {
+                        break;
+                    }
+
+                    remove(victim, false, false);
                 }
             }
+
+            persistQueue.drain();
         } else {
             // Capacity must be at least 1
             throw new IllegalArgumentException("Cache maximum number of entries must be at least 1");
@@ -411,6 +605,212 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         return maxEntries;
     }
 
+    /**
+     * Sets the capacity of the cache in bytes. Once the total weight of the
+     * entries (see {@link #weight()}) exceeds it, entries are evicted through
+     * the algorithm until the cache fits again. This applies in addition to
+     * the limit on the number of entries.
+     *
+     * @param newLimit the byte budget, or <code>0</code> to disable it
+     */
+    public void setMaxBytes(long newLimit) {
+        if (newLimit < 0) {
+            throw new IllegalArgumentException("Cache maximum number of bytes can't be negative");
+        }
+
+        synchronized (this) {
+            boolean wasWeighing = maxBytes > 0;
+            maxBytes = newLimit;
+
+            // The entries were not weighed while there was no byte budget
+            if (!wasWeighing && (maxBytes > 0)) {
+                reweighAll();
+            }
+
+            while ((maxBytes > 0) && (weight() > maxBytes)) {
+                Object victim = removeItem();
+
+                if (victim == null) {
+                    break;
+                }
+
+                remove(victim, false, false);
+            }
+        }
+
+        persistQueue.drain();
+    }
+
+    /**
+     * Retrieve the cache capacity in bytes, <code>0</code> if there is none.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Enables batch eviction in the background. Once the number of entries,
+     * or their weight if there is a byte budget, crosses the high watermark,
+     * an evictor thread removes entries through the algorithm until the
+     * cache is back to the low watermark. Writers then only evict entries
+     * themselves when the cache is completely full, which the capacity
+     * remains a hard ceiling for.
+     *
+     * @param high the fraction of the capacity waking up the evictor, in ]0, 1]
+     * @param low the fraction of the capacity the evictor brings the cache
+     * back to, in ]0, high[
+     * @throws IllegalArgumentException if the watermarks are out of range.
+     * Setting both to <code>0</code> disables the background eviction.
+     */
+    public synchronized void setEvictionWatermarks(float high, float low) {
+        if ((high == 0) && (low == 0)) {
+            highWatermark = 0;
+            lowWatermark = 0;
+
+            if (evictor != null) {
+                evictor.shutdown();
+                evictor = null;
+            }
+
+            return;
+        }
+
+        if ((high <= 0) || (high > 1) || (low <= 0) || (low >= high)) {
+            throw new IllegalArgumentException("Cache eviction watermarks must verify 0 < low < high <= 1");
+        }
+
+        highWatermark = high;
+        lowWatermark = low;
+
+        if (evictor == null) {
+            evictor = new BackgroundEvictor(this);
+        }
+
+        if (isAbove(highWatermark)) {
+            evictor.wakeUp();
+        }
+    }
+
+    /**
+     * Retrieve the high eviction watermark, <code>0</code> if there is none.
+     */
+    public float getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Retrieve the low eviction watermark, <code>0</code> if there is none.
+     */
+    public float getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Returns how far the background evictor is behind: the number of
+     * milliseconds since the cache crossed its high watermark without having
+     * been brought back to its low watermark yet, <code>0</code> if the
+     * evictor has caught up or there are no watermarks.
+     */
+    public long getEvictionLag() {
+        BackgroundEvictor current = evictor;
+
+        return (current == null) ? 0 : current.getLag();
+    }
+
+    /**
+     * Sets how the entries are weighed for the byte budget. All entries
+     * are weighed again with the new weigher.
+     *
+     * @param newWeigher the weigher to use, or <code>null</code> for the
+     * default {@link SizeEntryWeigher}
+     */
+    public synchronized void setEntryWeigher(EntryWeigher newWeigher) {
+        weigher = newWeigher;
+
+        if (maxBytes > 0) {
+            reweighAll();
+        }
+    }
+
+    /**
+     * Retrieve the weigher of the entries.
+     */
+    public EntryWeigher getEntryWeigher() {
+        EntryWeigher current = weigher;
+
+        return (current != null) ? current : DEFAULT_WEIGHER;
+    }
+
+    /**
+     * Sets the listener told about every key added to or removed from the
+     * table. The keys already in the table are not reported.
+     *
+     * @param listener the listener, or <code>null</code> for none
+     */
+    public void setKeyListener(KeyListener listener) {
+        keyListener = listener;
+    }
+
+    /**
+     * Retrieve the listener told about the keys added to and removed from
+     * the table, or <code>null</code> if there is none.
+     */
+    public KeyListener getKeyListener() {
+        return keyListener;
+    }
+
+    /**
+     * Sets the number of independently locked segments the table is split into.
+     * Writes to keys that fall into different segments do not contend with
+     * each other. The value is rounded up to the nearest power of two. This can
+     * only be changed while the cache is empty.
+     *
+     * @param level the number of segments, at least 1
+     * @throws IllegalArgumentException if the level is less than one
+     * @throws IllegalStateException if the cache already holds entries
+     */
+    public synchronized void setConcurrencyLevel(int level) {
+        if (level < 1) {
+            throw new IllegalArgumentException("Cache concurrency level must be at least 1");
+        }
+
+        if (size() != 0) {
+            throw new IllegalStateException("Cache concurrency level can't be changed once entries have been added");
+        }
+
+        initSegments(level, capacity());
+    }
+
+    /**
+     * Retrieve the number of table segments.
+     */
+    public int getConcurrencyLevel() {
+        return segments.length;
+    }
+
+    /**
+     * Sizes the table for the number of entries it is expected to hold, so
+     * that it doesn't need to be resized while it is being filled. This can
+     * only be done while the cache is empty.
+     *
+     * @param expectedSize the number of entries the cache is expected to hold
+     * @throws IllegalArgumentException if the size is negative
+     * @throws IllegalStateException if the cache already holds entries
+     */
+    public synchronized void setExpectedSize(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Cache expected size can't be negative");
+        }
+
+        if (size() != 0) {
+            throw new IllegalStateException("Cache expected size can't be changed once entries have been added");
+        }
+
+        // Leave room for the entries not to reach the resize threshold
+        long capacity = (long) (expectedSize / loadFactor) + 1;
+        initSegments(segments.length, (int) Math.min(capacity, MAXIMUM_CAPACITY));
+    }
+
     /**
      * Sets the memory caching flag.
      */
@@ -425,6 +825,104 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         return memoryCaching;
     }
 
+    /**
+     * Chooses how entries are removed from their bin. By default the entries
+     * ahead of the removed one are copied, so that the links of the table are
+     * never modified, as in the original ConcurrentReaderHashMap. With
+     * unlinking storage the removed entry is unlinked in place, which spares
+     * the copies, and the garbage, on caches with a high turnover. The links
+     * are then only safely published to the readers by a Java 5 or later
+     * virtual machine.
+     *
+     * @param unlinkingStorage <code>true</code> to unlink removed entries in place
+     */
+    public void setUnlinkingStorage(boolean unlinkingStorage) {
+        this.unlinkingStorage = unlinkingStorage;
+    }
+
+    /**
+     * Check if removed entries are unlinked in place.
+     */
+    public boolean isUnlinkingStorage() {
+        return unlinkingStorage;
+    }
+
+    /**
+     * Chooses how the values are held in memory. With soft or weak references
+     * the garbage collector may reclaim the values, rather than running out of
+     * memory. The entries whose value has been collected are then removed from
+     * the table, the algorithm and the memory groups, but not from the disk
+     * cache: a value that has been persisted is read back from the disk when
+     * it is requested again. With overflow persistence, values are only
+     * persisted when they are evicted, so collected values are lost. This can
+     * only be changed while the cache is empty.
+     *
+     * @param references {@link #STRONG_REFERENCES}, {@link #SOFT_REFERENCES}
+     * or {@link #WEAK_REFERENCES}
+     * @throws IllegalArgumentException if the reference type is unknown
+     * @throws IllegalStateException if the cache already holds entries
+     */
+    public synchronized void setValueReferences(int references) {
+        if ((references != STRONG_REFERENCES) && (references != SOFT_REFERENCES) && (references != WEAK_REFERENCES)) {
+            throw new IllegalArgumentException("Unknown value reference type: " + references);
+        }
+
+        if (size() != 0) {
+            throw new IllegalStateException("Cache value references can't be changed once entries have been added");
+        }
+
+        this.valueReferences = references;
+    }
+
+    /**
+     * Retrieve how the values are held in memory.
+     */
+    public int getValueReferences() {
+        return valueReferences;
+    }
+
+    /**
+     * Sets the capacity of the off-heap tier. The values evicted by the
+     * algorithm are then serialized into direct buffers, outside of the Java
+     * heap, instead of being dropped or written to the overflow persistent
+     * cache. A value requested again is read back, deserialized and put in
+     * memory again. Once the tier is full, its eldest values are dropped, or
+     * written to the persistent cache with overflow persistence. Values that
+     * can't be serialized are evicted as before. This can only be changed
+     * while the cache is empty.
+     *
+     * @param bytes the capacity of the tier, or <code>0</code> for no tier
+     * @throws IllegalStateException if the cache already holds entries
+     */
+    public synchronized void setOffHeapBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Off-heap capacity can't be negative");
+        }
+
+        if ((size() != 0) || ((offHeap != null) && (offHeap.size() != 0))) {
+            throw new IllegalStateException("Off-heap capacity can't be changed once entries have been added");
+        }
+
+        offHeap = (bytes > 0) ? new OffHeapStore(bytes) : null;
+        offHeapBytes = bytes;
+    }
+
+    /**
+     * Retrieve the capacity of the off-heap tier, <code>0</code> if there is none.
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * Retrieve the number of values held by the off-heap tier.
+     */
+    public int getOffHeapSize() {
+        OffHeapStore store = offHeap;
+
+        return (store == null) ? 0 : store.size();
+    }
+
     /**
      * Set the persistence listener to use.
      */
@@ -475,34 +973,71 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      * Return the number of slots in this table.
      **/
     public synchronized int capacity() {
-        return table.length;
+        int capacity = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+            capacity += segments[i].getTableForReading().length;
+        }
+
+        return capacity;
     }
 
     /**
      * Removes all mappings from this map.
      */
-    public synchronized void clear() {
-        Entry[] tab = table;
+    public void clear() {
+        synchronized (this) {
+            clearSegments();
+        }
 
-        for (int i = 0; i < tab.length; ++i) {
-            // must invalidate all to force concurrent get's to wait and then retry
-            for (Entry e = tab[i]; e != null; e = e.next) {
-                e.value = null;
+        persistQueue.drain();
+    }
 
-                /** OpenSymphony BEGIN */
-                itemRemoved(e.key);
+    /**
+     * Empties every segment and queues the clearing of the disk cache.
+     * Call only when holding the cache monitor.
+     */
+    private void clearSegments() {
+        KeyListener listener = keyListener;
 
-                /** OpenSymphony END */
+        for (int s = 0; s < segments.length; s++) {
+            Segment seg = segments[s];
+
+            synchronized (seg.lock) {
+                seg.finishResize();
+
+                Entry[] tab = seg.table;
+
+                for (int i = 0; i < tab.length; ++i) {
+                    // must invalidate all to force concurrent get's to wait and then retry
+                    for (Entry e = tab[i]; e != null; e = e.next) {
+                        e.value = null;
+
+                        /** OpenSymphony BEGIN */
+                        itemRemoved(e.key);
+
+                        if (listener != null) {
+                            listener.keyRemoved(e.key);
+                        }
+
+                        /** OpenSymphony END */
+                    }
+
+                    tab[i] = null;
+                }
+
+                seg.count = 0;
+                seg.weight = 0;
+                seg.recordModification(tab);
             }
+        }
 
-            tab[i] = null;
+        if (offHeap != null) {
+            offHeap.clear();
         }
 
         // Clean out the entire disk cache
-        persistClear();
-
-        count = 0;
-        recordModification(tab);
+        persistQueue.clear();
     }
 
     /**
@@ -518,17 +1053,34 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             t.keySet = null;
             t.entrySet = null;
             t.values = null;
+            t.persistQueue = new PersistenceQueue(t);
+            t.collectedValues = new ReferenceQueue();
+            t.offHeap = (offHeapBytes > 0) ? new OffHeapStore(offHeapBytes) : null;
+            t.evictor = (highWatermark > 0) ? new BackgroundEvictor(t) : null;
+            t.initSegments(segments.length, 0);
+
+            for (int s = 0; s < segments.length; s++) {
+                Segment seg = segments[s];
+                Segment tseg = t.segments[s];
 
-            Entry[] tab = table;
-            t.table = new Entry[tab.length];
+                synchronized (seg.lock) {
+                    seg.finishResize();
 
-            Entry[] ttab = t.table;
+                    Entry[] tab = seg.table;
+                    Entry[] ttab = new Entry[tab.length];
 
-            for (int i = 0; i < tab.length; ++i) {
-                Entry first = tab[i];
+                    for (int i = 0; i < tab.length; ++i) {
+                        Entry first = tab[i];
 
-                if (first != null) {
-                    ttab[i] = (Entry) (first.clone());
+                        if (first != null) {
+                            ttab[i] = (Entry) (first.clone());
+                        }
+                    }
+
+                    tseg.table = ttab;
+                    tseg.count = seg.count;
+                    tseg.weight = seg.weight;
+                    tseg.threshold = seg.threshold;
                 }
             }
 
@@ -598,15 +1150,10 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             throw new NullPointerException();
         }
 
-        Entry[] tab = getTableForReading();
-
-        for (int i = 0; i < tab.length; ++i) {
-            for (Entry e = tab[i]; e != null; e = e.next) {
-                Object v = e.value;
-
-                if ((v != null) && value.equals(v)) {
-                    return true;
-                }
+        // The iterator follows the bins moved by an incremental resize
+        for (Iterator it = new ValueIterator(); it.hasNext();) {
+            if (value.equals(it.next())) {
+                return true;
             }
         }
 
@@ -709,7 +1256,8 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
            And we only need to fully synchronize if there have been
            concurrent modifications.
         */
-        Entry[] tab = table;
+        Segment seg = segmentFor(hash);
+        Entry[] tab = resolve(seg.table, hash);
         int index = hash & (tab.length - 1);
         Entry first = tab[index];
         Entry e = first;
@@ -718,16 +1266,16 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             if (e == null) {
                 // If key apparently not there, check to
                 // make sure this was a valid read
-                tab = getTableForReading();
+                Entry[] current = resolve(seg.getTableForReading(), hash);
 
-                if (first == tab[index]) {
+                if ((tab == current) && (first == tab[index])) {
                     /** OpenSymphony BEGIN */
 
                     /* Previous code
                     return null;*/
 
-                    // Not in the table, try persistence
-                    Object value = persistRetrieve(key);
+                    // Not in the table, try the off-heap tier and persistence
+                    Object value = retrieveEvicted(key);
 
                     if (value != null) {
                         // Update the map, but don't persist the data
@@ -739,6 +1287,7 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                     /** OpenSymphony END */
                 } else {
                     // Wrong list -- must restart traversal at new first
+                    tab = current;
                     e = first = tab[index = hash & (tab.length - 1)];
                 }
             }
@@ -751,6 +1300,24 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
 
                     /* Previous code
                     return value;*/
+                    if (value instanceof ValueReference) {
+                        ValueReference reference = (ValueReference) value;
+                        value = reference.get();
+
+                        if (value == null) {
+                            // Collected, the value may still be on disk
+                            removeCollected(reference);
+                            expungeCollected();
+                            value = persistRetrieve(key);
+
+                            if (value != null) {
+                                put(key, value, false);
+                            }
+
+                            return value;
+                        }
+                    }
+
                     if (NULL.equals(value)) {
                         // Memory cache disable, use disk
                         value = persistRetrieve(e.key);
@@ -773,10 +1340,11 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                 // have been re-inserted, so we must retraverse.
                 // To avoid useless contention, get lock to wait out modifications
                 // before retraversing.
-                synchronized (this) {
-                    tab = table;
+                synchronized (seg.lock) {
+                    tab = seg.table;
                 }
 
+                tab = resolve(tab, hash);
                 e = first = tab[index = hash & (tab.length - 1)];
             } else {
                 e = e.next;
@@ -862,162 +1430,674 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      * @see     Object#equals(Object)
      * @see     #get(Object)
      */
-    /** OpenSymphony BEGIN */
-    public Object put(Object key, Object value) {
-        // Call the internal put using persistance
-        return put(key, value, true);
+    /** OpenSymphony BEGIN */
+    public Object put(Object key, Object value) {
+        // Call the internal put using persistance
+        return put(key, value, true);
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this one.
+     *
+     * These mappings replace any mappings that this map had for any of the
+     * keys currently in the specified Map.
+     *
+     * @param t Mappings to be stored in this map.
+     */
+    public void putAll(Map t) {
+        synchronized (this) {
+            for (Iterator it = t.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Object key = entry.getKey();
+                Object value = entry.getValue();
+                put(key, value);
+            }
+        }
+
+        persistQueue.drain();
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this table.
+     * This method does nothing if the key is not in the table.
+     *
+     * @param   key   the key that needs to be removed.
+     * @return  the value to which the key had been mapped in this table,
+     *          or <code>null</code> if the key did not have a mapping.
+     */
+    /** OpenSymphony BEGIN */
+    public Object remove(Object key) {
+        expungeCollected();
+
+        Object oldValue = remove(key, true, false);
+        removeOffHeap(key, false);
+        persistQueue.drain();
+
+        return oldValue;
+    }
+
+    /**
+     * Like <code>remove(Object)</code>, but ensures that the entry will be removed from the persistent store, too,
+     * even if overflowPersistence or unlimitedDiskcache are true.
+     *
+     * @param   key   the key that needs to be removed.
+     * @return  the value to which the key had been mapped in this table,
+     *          or <code>null</code> if the key did not have a mapping.
+     */
+    public Object removeForce(Object key) {
+        Object oldValue = remove(key, true, true);
+        removeOffHeap(key, true);
+        persistQueue.drain();
+
+        return oldValue;
+    }
+
+    /**
+     * Removes the key only if it is still mapped to the supplied value, as
+     * compared by identity, so that a value put meanwhile by another thread
+     * is kept. The value is looked up in memory only: this does nothing for
+     * a value held by the persistent store or the off-heap tier alone.
+     *
+     * @param   key   the key that needs to be removed.
+     * @param   value the value the key must be mapped to.
+     * @return  <code>true</code> if the key was removed.
+     */
+    public boolean remove(Object key, Object value) {
+        if ((key == null) || (value == null)) {
+            return false;
+        }
+
+        expungeCollected();
+
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+
+        synchronized (seg.lock) {
+            Entry[] tab = resolve(seg.table, hash);
+            Entry e = tab[hash & (tab.length - 1)];
+
+            while ((e != null) && (e.key != key) && ((e.hash != hash) || !key.equals(e.key))) {
+                e = e.next;
+            }
+
+            if ((e == null) || (referent(e.value) != value)) {
+                return false;
+            }
+
+            // The segment lock is reentrant, the mapping can't change in between.
+            // A key held in memory has no off-heap copy to remove.
+            remove(key, true, false);
+        }
+
+        persistQueue.drain();
+
+        return true;
+    }
+
+    /**
+     * Returns the value of a key held in the table, without counting it as
+     * an access in the algorithm and without reloading an evicted value from
+     * the off-heap tier or from disk. When memory caching is disabled the
+     * value is read from disk, still without an access.
+     *
+     * @param key the key of the mapping
+     * @return the value, or <code>null</code> if the key isn't in the table
+     */
+    public Object peek(Object key) {
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        Object value;
+
+        synchronized (seg.lock) {
+            Entry[] tab = resolve(seg.table, hash);
+            Entry e = tab[hash & (tab.length - 1)];
+
+            while ((e != null) && (e.key != key) && ((e.hash != hash) || !key.equals(e.key))) {
+                e = e.next;
+            }
+
+            value = (e == null) ? null : referent(e.value);
+        }
+
+        // The disk is only read once the segment lock has been released
+        return NULL.equals(value) ? persistRetrieve(key) : value;
+    }
+
+    /**
+     * Returns the total number of cache entries held in this map.
+     * This is not synchronized: the segment counts are volatile and
+     * <code>size()</code> is called with a segment lock held, so locking
+     * the other segments here could deadlock. Each segment counts its own
+     * entries, so writers never contend on a shared counter, but while
+     * other segments are being written to the sum may be slightly off.
+     * It is what the capacity checks of the writers use; see
+     * {@link #exactSize()} for a consistent count.
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    public int size() {
+        Segment[] segs = segments;
+        int size = 0;
+
+        for (int i = 0; i < segs.length; i++) {
+            size += segs[i].count;
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the number of cache entries held in this map at a single
+     * point in time. The segment counts are summed again until two sums
+     * see no modification in between, and as a last resort while holding
+     * every segment lock, so this is more expensive than {@link #size()}.
+     * Must not be called while holding a segment lock.
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    public int exactSize() {
+        Segment[] segs = segments;
+
+        for (int attempt = 0; attempt < EXACT_SIZE_RETRIES; attempt++) {
+            long mods = 0;
+            int size = 0;
+
+            for (int i = 0; i < segs.length; i++) {
+                mods += segs[i].modCount;
+                size += segs[i].count;
+            }
+
+            long check = 0;
+
+            for (int i = 0; i < segs.length; i++) {
+                check += segs[i].modCount;
+            }
+
+            if (check == mods) {
+                return size;
+            }
+        }
+
+        synchronized (this) {
+            return lockedSize(segments, 0);
+        }
+    }
+
+    /**
+     * Sums the segment counts while holding the locks of the segments from
+     * the supplied index onwards, taken in order.
+     */
+    private static int lockedSize(Segment[] segs, int from) {
+        if (from == segs.length) {
+            int size = 0;
+
+            for (int i = 0; i < segs.length; i++) {
+                size += segs[i].count;
+            }
+
+            return size;
+        }
+
+        synchronized (segs[from].lock) {
+            return lockedSize(segs, from + 1);
+        }
+    }
+
+    /**
+     * Returns the total weight of the cache entries held in this map, ie.
+     * their estimated size in bytes. The weight is only tracked while the
+     * cache has a byte capacity (see {@link #setMaxBytes(long)}); it is
+     * <code>0</code> otherwise. Like {@link #size()} this is not synchronized.
+     *
+     * @return the estimated number of bytes of the cached values.
+     */
+    public long weight() {
+        Segment[] segs = segments;
+        long weight = 0;
+
+        for (int i = 0; i < segs.length; i++) {
+            weight += segs[i].weight;
+        }
+
+        return weight;
+    }
+
+    /**
+     * Returns a collection view of the values contained in this map.
+     * The collection is backed by the map, so changes to the map are reflected in
+     * the collection, and vice-versa.  The collection supports element
+     * removal, which removes the corresponding mapping from this map, via the
+     * <tt>Iterator.remove</tt>, <tt>Collection.remove</tt>,
+     * <tt>removeAll</tt>, <tt>retainAll</tt>, and <tt>clear</tt> operations.
+     * It does not support the <tt>add</tt> or <tt>addAll</tt> operations.
+     *
+     * @return a collection view of the values contained in this map.
+     */
+    public Collection values() {
+        Collection vs = values;
+
+        if (vs != null) {
+            return vs;
+        } else {
+            return values = new AbstractCollection() {
+                        public Iterator iterator() {
+                            return new ValueIterator();
+                        }
+
+                        public int size() {
+                            return AbstractConcurrentReadCache.this.size();
+                        }
+
+                        public boolean contains(Object o) {
+                            return AbstractConcurrentReadCache.this.containsValue(o);
+                        }
+
+                        public void clear() {
+                            AbstractConcurrentReadCache.this.clear();
+                        }
+                    };
+        }
+    }
+
+    /**
+     * Get ref to group.
+     * CACHE-127 Synchronized copying of the group entry set since
+     * the new HashSet(Collection c) constructor uses the iterator.
+     * This may slow things down but it is better than a
+     * ConcurrentModificationException.  We might have to revisit the
+     * code if performance is too adversely impacted.
+     **/
+    protected final Set getGroupForReading(String groupName) {
+        synchronized (groupLock) {
+            Set group = (Set) getGroupsForReading().get(groupName);
+            if (group == null) return null;
+            return new HashSet(group);
+        }
+    }
+
+    /**
+     * Get ref to groups.
+     * The reference and the cells it
+     * accesses will be at least as fresh as from last
+     * use of barrierLock
+     **/
+    protected final Map getGroupsForReading() {
+        synchronized (barrierLock) {
+            return groups;
+        }
+    }
+
+    /**
+     * Returns the weight of a mapping, or <code>0</code> when there is no
+     * byte budget to enforce.
+     */
+    protected int weigh(Object key, Object value) {
+        if ((maxBytes <= 0) || (value == NULL)) {
+            return 0;
+        }
+
+        return Math.max(0, getEntryWeigher().weigh(key, value));
+    }
+
+    /**
+     * Weighs an entry again after its value changed. Call only when holding
+     * the segment lock.
+     */
+    private void reweigh(Segment seg, Entry e) {
+        Object value = referent(e.value);
+        reweigh(seg, e, (value == null) ? 0 : weigh(e.key, value));
+    }
+
+    /**
+     * Sets the weight of an entry, weighed before its value was replaced so
+     * that a failing weigher leaves the entry unchanged. Call only when
+     * holding the segment lock.
+     */
+    private void reweigh(Segment seg, Entry e, int weight) {
+        seg.weight += (weight - e.weight);
+        e.weight = weight;
+    }
+
+    /**
+     * Tells the key listener, if any, about a key added to the table. Call
+     * only when holding the segment lock.
+     */
+    private void keyAdded(Object key) {
+        KeyListener listener = keyListener;
+
+        if (listener != null) {
+            listener.keyAdded(key);
+        }
+    }
+
+    /**
+     * Tells the key listener, if any, about a key removed from the table.
+     * Call only when holding the segment lock.
+     */
+    private void keyRemoved(Object key) {
+        KeyListener listener = keyListener;
+
+        if (listener != null) {
+            listener.keyRemoved(key);
+        }
+    }
+
+    /**
+     * Weighs all entries again, one segment at a time.
+     */
+    private void reweighAll() {
+        for (int s = 0; s < segments.length; s++) {
+            Segment seg = segments[s];
+
+            synchronized (seg.lock) {
+                seg.finishResize();
+
+                Entry[] tab = seg.table;
+
+                for (int i = 0; i < tab.length; ++i) {
+                    for (Entry e = tab[i]; e != null; e = e.next) {
+                        if (e.value != null) {
+                            reweigh(seg, e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a value about to be stored in an entry into a reference of the
+     * configured type, unless values are strongly referenced.
+     */
+    private Object reference(Object key, int hash, Object value) {
+        if ((valueReferences == STRONG_REFERENCES) || (value == NULL)) {
+            return value;
+        }
+
+        Set groups = (value instanceof CacheEntry) ? ((CacheEntry) value).getGroups() : null;
+
+        if (valueReferences == SOFT_REFERENCES) {
+            return new SoftValue(key, hash, groups, value, collectedValues);
+        } else {
+            return new WeakValue(key, hash, groups, value, collectedValues);
+        }
+    }
+
+    /**
+     * Returns the value stored in an entry, following its reference if there
+     * is one.
+     *
+     * @return the value, or <code>null</code> if the entry has been removed
+     * or its value has been collected
+     */
+    protected static final Object referent(Object value) {
+        return (value instanceof ValueReference) ? ((ValueReference) value).get() : value;
+    }
+
+    /**
+     * Removes the entries whose value the garbage collector has reclaimed
+     * since the last call. Call only when holding no segment lock.
+     */
+    private void expungeCollected() {
+        Reference reference;
+
+        while ((reference = collectedValues.poll()) != null) {
+            removeCollected((ValueReference) reference);
+        }
     }
 
     /**
-     * Copies all of the mappings from the specified map to this one.
-     *
-     * These mappings replace any mappings that this map had for any of the
-     * keys currently in the specified Map.
-     *
-     * @param t Mappings to be stored in this map.
+     * Removes the entry holding a reference whose value has been collected,
+     * if it is still in the table, from the table, the algorithm and the
+     * memory groups. Its copy on disk, if any, is kept. Call only when
+     * holding no segment lock.
      */
-    public synchronized void putAll(Map t) {
-        for (Iterator it = t.entrySet().iterator(); it.hasNext();) {
-            Map.Entry entry = (Map.Entry) it.next();
-            Object key = entry.getKey();
-            Object value = entry.getValue();
-            put(key, value);
+    private void removeCollected(ValueReference reference) {
+        int hash = reference.getHash();
+        Segment seg = segmentFor(hash);
+
+        synchronized (seg.lock) {
+            Entry[] tab = seg.tableForWriting(hash);
+            int index = hash & (tab.length - 1);
+            Entry first = tab[index];
+
+            for (Entry e = first; e != null; e = e.next) {
+                if (e.value == reference) {
+                    e.value = null;
+                    seg.count--;
+                    seg.weight -= e.weight;
+                    removeCollectedGroups(reference, false);
+                    itemRemoved(e.key);
+                    keyRemoved(e.key);
+                    removeFromBin(seg, tab, index, first, e);
+
+                    return;
+                }
+            }
         }
     }
 
     /**
-     * Removes the key (and its corresponding value) from this table.
-     * This method does nothing if the key is not in the table.
-     *
-     * @param   key   the key that needs to be removed.
-     * @return  the value to which the key had been mapped in this table,
-     *          or <code>null</code> if the key did not have a mapping.
+     * Removes the key of a collected value from the groups the value belonged to.
      */
-    /** OpenSymphony BEGIN */
-    public Object remove(Object key) {
-        return remove(key, true, false);
+    private void removeCollectedGroups(ValueReference reference, boolean persist) {
+        if (reference.getGroups() != null) {
+            removeGroupMappings((String) reference.getKey(), reference.getGroups(), persist);
+        }
     }
 
     /**
-     * Like <code>remove(Object)</code>, but ensures that the entry will be removed from the persistent store, too,
-     * even if overflowPersistence or unlimitedDiskcache are true.
-     *
-     * @param   key   the key that needs to be removed.
-     * @return  the value to which the key had been mapped in this table,
-     *          or <code>null</code> if the key did not have a mapping.
+     * Reads a key missing from the table from the off-heap tier, taking it
+     * out of the tier, or else from the persistent cache.
      */
-    public Object removeForce(Object key) {
-      return remove(key, true, true);
+    private Object retrieveEvicted(Object key) {
+        OffHeapStore store = offHeap;
+
+        if (store != null) {
+            byte[] data = store.take(key);
+
+            if (data != null) {
+                Object value = OffHeapStore.deserialize(data);
+
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+
+        return persistRetrieve(key);
     }
 
     /**
-     * Returns the total number of cache entries held in this map.
+     * Moves an evicted value down to the off-heap tier, and handles the
+     * values the tier evicts in turn. Call only when holding the segment lock.
      *
-     * @return the number of key-value mappings in this map.
+     * @return whether the tier has taken the value
      */
-    public synchronized int size() {
-        return count;
+    private boolean storeOffHeap(Object key, Object value) {
+        OffHeapStore store = offHeap;
+
+        if ((store == null) || (value == null) || (value == NULL)) {
+            return false;
+        }
+
+        byte[] data = OffHeapStore.serialize(value);
+
+        if (data == null) {
+            return false;
+        }
+
+        Set groups = (value instanceof CacheEntry) ? ((CacheEntry) value).getGroups() : null;
+        List evicted = new ArrayList(0);
+        boolean stored = store.store(key, data, groups, evicted);
+
+        for (int i = 0; i < evicted.size(); i++) {
+            OffHeapStore.Record record = (OffHeapStore.Record) evicted.get(i);
+
+            // The value leaves the cache, as it would have left the memory cache
+            if (!unlimitedDiskCache && !overflowPersistence) {
+                persistQueue.remove(record.key);
+                removeOffHeapGroups(record, true);
+            } else {
+                removeOffHeapGroups(record, false);
+            }
+
+            if (overflowPersistence) {
+                Object evictedValue = OffHeapStore.deserialize(record.data);
+
+                if (evictedValue != null) {
+                    persistQueue.store(record.key, evictedValue);
+
+                    if ((record.groups != null) && (record.key instanceof String)) {
+                        addGroupMappings((String) record.key, record.groups, true, false);
+                    }
+                }
+            }
+        }
+
+        return stored;
     }
 
     /**
-     * Returns a collection view of the values contained in this map.
-     * The collection is backed by the map, so changes to the map are reflected in
-     * the collection, and vice-versa.  The collection supports element
-     * removal, which removes the corresponding mapping from this map, via the
-     * <tt>Iterator.remove</tt>, <tt>Collection.remove</tt>,
-     * <tt>removeAll</tt>, <tt>retainAll</tt>, and <tt>clear</tt> operations.
-     * It does not support the <tt>add</tt> or <tt>addAll</tt> operations.
-     *
-     * @return a collection view of the values contained in this map.
+     * Removes a key from the off-heap tier, along with its memory groups and,
+     * as for a key removed from the table, its persistent copy.
      */
-    public Collection values() {
-        Collection vs = values;
+    private void removeOffHeap(Object key, boolean forcePersist) {
+        OffHeapStore store = offHeap;
 
-        if (vs != null) {
-            return vs;
-        } else {
-            return values = new AbstractCollection() {
-                        public Iterator iterator() {
-                            return new ValueIterator();
-                        }
+        if ((store == null) || (key == null)) {
+            return;
+        }
 
-                        public int size() {
-                            return AbstractConcurrentReadCache.this.size();
-                        }
+        OffHeapStore.Record record = store.remove(key);
 
-                        public boolean contains(Object o) {
-                            return AbstractConcurrentReadCache.this.containsValue(o);
-                        }
+        if (record != null) {
+            boolean persist = forcePersist || (!unlimitedDiskCache && !overflowPersistence);
 
-                        public void clear() {
-                            AbstractConcurrentReadCache.this.clear();
-                        }
-                    };
+            if (persist) {
+                persistQueue.remove(key);
+            }
+
+            removeOffHeapGroups(record, persist);
         }
     }
 
     /**
-     * Get ref to group.
-     * CACHE-127 Synchronized copying of the group entry set since
-     * the new HashSet(Collection c) constructor uses the iterator.
-     * This may slow things down but it is better than a
-     * ConcurrentModificationException.  We might have to revisit the
-     * code if performance is too adversely impacted.
-     **/
-    protected synchronized final Set getGroupForReading(String groupName) {
-        Set group = (Set) getGroupsForReading().get(groupName);
-        if (group == null) return null;
-        return new HashSet(group);
+     * Discards the off-heap copy of a key about to be put in the table. It
+     * leaves the groups the new value doesn't belong to.
+     */
+    private void removeOffHeap(Object key, Object value, boolean persist) {
+        OffHeapStore store = offHeap;
+
+        if (store == null) {
+            return;
+        }
+
+        OffHeapStore.Record record = store.remove(key);
+
+        if ((record != null) && (record.groups != null) && (record.key instanceof String)) {
+            Set oldGroups = new HashSet(record.groups);
+
+            if ((value instanceof CacheEntry) && (((CacheEntry) value).getGroups() != null)) {
+                oldGroups.removeAll(((CacheEntry) value).getGroups());
+            }
+
+            removeGroupMappings((String) record.key, oldGroups, persist);
+        }
+    }
+
+    private void removeOffHeapGroups(OffHeapStore.Record record, boolean persist) {
+        if ((record.groups != null) && (record.key instanceof String)) {
+            removeGroupMappings((String) record.key, record.groups, persist);
+        }
     }
 
     /**
-     * Get ref to groups.
-     * The reference and the cells it
-     * accesses will be at least as fresh as from last
-     * use of barrierLock
+     * Returns the segment that the supplied hash code belongs to.
      **/
-    protected final Map getGroupsForReading() {
-        synchronized (barrierLock) {
-            return groups;
-        }
+    protected final Segment segmentFor(int hash) {
+        // The high bits of hash() hardly vary among keys that only differ in
+        // their last characters, so they are mixed again to spread the keys
+        // evenly over the segments
+        int h = hash;
+        h += ((h << 15) ^ 0xffffcd7d);
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += ((h << 2) + (h << 14));
+        h ^= (h >>> 16);
+
+        return segments[(h >>> segmentShift) & segmentMask];
     }
 
     /**
-     * Get ref to table; the reference and the cells it
-     * accesses will be at least as fresh as from last
-     * use of barrierLock
+     * Returns the table holding the bin of the supplied hash code, following
+     * the forwarding entries left by incremental resizes.
      **/
-    protected final Entry[] getTableForReading() {
-        synchronized (barrierLock) {
-            return table;
+    protected static final Entry[] resolve(Entry[] tab, int hash) {
+        Entry first = tab[hash & (tab.length - 1)];
+
+        while (first instanceof ForwardingEntry) {
+            tab = ((ForwardingEntry) first).table;
+            first = tab[hash & (tab.length - 1)];
         }
+
+        return tab;
     }
 
     /**
-     * Force a memory synchronization that will cause
-     * all readers to see table. Call only when already
-     * holding main synch lock.
+     * Allocates a fresh set of empty segments. With a single segment its
+     * lock and barrier are the cache itself and {@link #barrierLock}, so the
+     * behaviour is that of an unsegmented table.
+     *
+     * @param level the requested number of segments, rounded up to a power of two
+     * @param initialCapacity the initial capacity of the whole table
      **/
-    protected final void recordModification(Object x) {
-        synchronized (barrierLock) {
-            lastWrite = x;
+    private void initSegments(int level, int initialCapacity) {
+        int ssize = 1;
+        int sshift = 0;
+
+        while ((ssize < level) && (ssize < MAXIMUM_CONCURRENCY_LEVEL)) {
+            ssize <<= 1;
+            ++sshift;
         }
+
+        int cap = p2capacity(initialCapacity / ssize);
+        Segment[] segs = new Segment[ssize];
+
+        if (ssize == 1) {
+            segs[0] = new Segment(this, barrierLock, cap, loadFactor);
+        } else {
+            for (int i = 0; i < ssize; i++) {
+                segs[i] = new Segment(new Object(), new Object(), cap, loadFactor);
+            }
+        }
+
+        segmentShift = 32 - sshift;
+        segmentMask = ssize - 1;
+        concurrencyLevel = ssize;
+        segments = segs;
     }
 
     /**
      * Helper method for entrySet remove.
      **/
-    protected synchronized boolean findAndRemoveEntry(Map.Entry entry) {
-        Object key = entry.getKey();
-        Object v = get(key);
+    protected boolean findAndRemoveEntry(Map.Entry entry) {
+        boolean removed = false;
 
-        if ((v != null) && v.equals(entry.getValue())) {
-            remove(key);
+        synchronized (this) {
+            Object key = entry.getKey();
+            Object v = get(key);
 
-            return true;
-        } else {
-            return false;
+            if ((v != null) && v.equals(entry.getValue())) {
+                remove(key);
+                removed = true;
+            }
         }
+
+        persistQueue.drain();
+
+        return removed;
     }
 
     /**
@@ -1065,7 +2145,14 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             log.debug("persistRetrieve called (key=" + key + ")");
         }
 
-        Object entry = null;
+        // A queued write is more recent than what the listener holds
+        Object entry = persistQueue.pendingValue(key);
+
+        if (entry != PersistenceQueue.NOT_PENDING) {
+            return entry;
+        }
+
+        entry = null;
 
         if (persistenceListener != null) {
             try {
@@ -1102,6 +2189,71 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         return null;
     }
 
+    /**
+     * Adds a key to a persistent group, creating the group if needed.
+     * @param groupName The name of the group to update
+     * @param key The key to add
+     */
+    protected void persistAddToGroup(String groupName, String key) {
+        Set persistentGroup = persistRetrieveGroup(groupName);
+
+        if (persistentGroup == null) {
+            persistentGroup = new HashSet();
+        }
+
+        persistentGroup.add(key);
+        persistStoreGroup(groupName, persistentGroup);
+    }
+
+    /**
+     * Removes a key from a persistent group, removing the group once empty.
+     * @param groupName The name of the group to update
+     * @param key The key to remove
+     */
+    protected void persistRemoveFromGroup(String groupName, String key) {
+        Set persistentGroup = persistRetrieveGroup(groupName);
+
+        if (persistentGroup != null) {
+            persistentGroup.remove(key);
+
+            if (persistentGroup.isEmpty()) {
+                persistRemoveGroup(groupName);
+            } else {
+                persistStoreGroup(groupName, persistentGroup);
+            }
+        }
+    }
+
+    /**
+     * Adds and removes a batch of keys to and from a persistent group, reading
+     * and storing the group once. The group is removed once empty.
+     * @param groupName The name of the group to update
+     * @param keys The keys to add or remove, in order
+     * @param added For each key, whether it is added rather than removed
+     */
+    protected void persistUpdateGroup(String groupName, String[] keys, boolean[] added) {
+        Set persistentGroup = persistRetrieveGroup(groupName);
+        boolean existed = (persistentGroup != null);
+
+        if (persistentGroup == null) {
+            persistentGroup = new HashSet();
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (added[i]) {
+                persistentGroup.add(keys[i]);
+            } else {
+                persistentGroup.remove(keys[i]);
+            }
+        }
+
+        if (!persistentGroup.isEmpty()) {
+            persistStoreGroup(groupName, persistentGroup);
+        } else if (existed) {
+            persistRemoveGroup(groupName);
+        }
+    }
+
     /**
      * Store an object in the cache using the persistence listener.
      * @param key The object key
@@ -1187,7 +2339,8 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      * The cache has reached its cacpacity and an item needs to be removed.
      * (typically according to an algorithm such as LRU or FIFO).
      *
-     * @return The key of whichever item was removed.
+     * @return The key of whichever item was removed, or <code>null</code> if
+     * the algorithm has no key to offer (eg. a concurrent eviction got it first).
      */
     protected abstract Object removeItem();
 
@@ -1197,12 +2350,18 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      * deserialize it).
      */
     private synchronized void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
-        // Read in the threshold, loadfactor, and any hidden stuff
+        // Read in the loadfactor, concurrency level, and any hidden stuff
         s.defaultReadObject();
+        persistQueue = new PersistenceQueue(this);
+        collectedValues = new ReferenceQueue();
+
+        if (offHeapBytes > 0) {
+            offHeap = new OffHeapStore(offHeapBytes);
+        }
 
-        // Read in number of buckets and allocate the bucket array;
+        // Read in number of buckets and allocate the segments
         int numBuckets = s.readInt();
-        table = new Entry[numBuckets];
+        initSegments(Math.max(concurrencyLevel, DEFAULT_CONCURRENCY_LEVEL), numBuckets);
 
         // Read in size (number of Mappings)
         int size = s.readInt();
@@ -1213,15 +2372,27 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             Object value = s.readObject();
             put(key, value);
         }
+
+        if (highWatermark > 0) {
+            evictor = new BackgroundEvictor(this);
+        }
     }
 
     /**
-     * Rehashes the contents of this map into a new table with a larger capacity.
+     * Rehashes the contents of a segment into a new table with a larger capacity.
      * This method is called automatically when the
-     * number of keys in this map exceeds its capacity and load factor.
+     * number of keys in the segment exceeds its capacity and load factor.
+     * Large segments are only given their new table here, their bins are
+     * moved by the writes that follow, see {@link Segment#tableForWriting(int)}.
+     * Call only when holding the segment lock.
+     *
+     * @param seg The segment to rehash
      */
-    protected void rehash() {
-        Entry[] oldMap = table;
+    protected void rehash(Segment seg) {
+        // The next table may fill up before the current one is emptied
+        seg.finishResize();
+
+        Entry[] oldMap = seg.table;
         int oldCapacity = oldMap.length;
 
         if (oldCapacity >= MAXIMUM_CAPACITY) {
@@ -1230,12 +2401,40 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
 
         int newCapacity = oldCapacity << 1;
         Entry[] newMap = new Entry[newCapacity];
-        threshold = (int) (newCapacity * loadFactor);
+        seg.threshold = (int) (newCapacity * loadFactor);
+
+        if (oldCapacity >= INCREMENTAL_RESIZE_CAPACITY) {
+            seg.nextTable = newMap;
+            seg.forwarding = new ForwardingEntry(newMap);
+            seg.resizeIndex = 0;
+            seg.recordModification(newMap);
+
+            return;
+        }
 
         /*
           We need to guarantee that any existing reads of oldMap can
           proceed. So we cannot yet null out each oldMap bin.
+        */
+        for (int i = 0; i < oldCapacity; ++i) {
+            splitBin(oldMap[i], newMap, i, oldCapacity);
+        }
+
+        seg.table = newMap;
+        seg.recordModification(newMap);
+    }
 
+    /**
+     * Copies the entries of a bin into the two bins of the table of twice
+     * the size they hash to.
+     *
+     * @param e the first entry of the bin
+     * @param newMap the larger table
+     * @param i the index of the bin
+     * @param oldCapacity the size of the table the bin belongs to
+     */
+    private static void splitBin(Entry e, Entry[] newMap, int i, int oldCapacity) {
+        /*
           Because we are using power-of-two expansion, the elements
           from each bin must either stay at same index, or move
           to oldCapacity+index. We also minimize new node creation by
@@ -1243,49 +2442,43 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
           .next fields won't change. (This is checked only for sequences
           of one and two. It is not worth checking longer ones.)
         */
-        for (int i = 0; i < oldCapacity; ++i) {
-            Entry l = null;
-            Entry h = null;
-            Entry e = oldMap[i];
-
-            while (e != null) {
-                int hash = e.hash;
-                Entry next = e.next;
-
-                if ((hash & oldCapacity) == 0) {
-                    // stays at newMap[i]
-                    if (l == null) {
-                        // try to reuse node
-                        if ((next == null) || ((next.next == null) && ((next.hash & oldCapacity) == 0))) {
-                            l = e;
-
-                            break;
-                        }
-                    }
+        Entry l = null;
+        Entry h = null;
 
-                    l = new Entry(hash, e.key, e.value, l);
-                } else {
-                    // moves to newMap[oldCapacity+i]
-                    if (h == null) {
-                        if ((next == null) || ((next.next == null) && ((next.hash & oldCapacity) != 0))) {
-                            h = e;
+        while (e != null) {
+            int hash = e.hash;
+            Entry next = e.next;
 
-                            break;
-                        }
+            if ((hash & oldCapacity) == 0) {
+                // stays at newMap[i]
+                if (l == null) {
+                    // try to reuse node
+                    if ((next == null) || ((next.next == null) && ((next.hash & oldCapacity) == 0))) {
+                        l = e;
+
+                        break;
                     }
+                }
+
+                l = new Entry(hash, e.key, e.value, l, e.weight);
+            } else {
+                // moves to newMap[oldCapacity+i]
+                if (h == null) {
+                    if ((next == null) || ((next.next == null) && ((next.hash & oldCapacity) != 0))) {
+                        h = e;
 
-                    h = new Entry(hash, e.key, e.value, h);
+                        break;
+                    }
                 }
 
-                e = next;
+                h = new Entry(hash, e.key, e.value, h, e.weight);
             }
 
-            newMap[i] = l;
-            newMap[oldCapacity + i] = h;
+            e = next;
         }
 
-        table = newMap;
-        recordModification(newMap);
+        newMap[i] = l;
+        newMap[oldCapacity + i] = h;
     }
 
     /**
@@ -1298,7 +2491,8 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     protected Object sput(Object key, Object value, int hash) {*/
     protected Object sput(Object key, Object value, int hash, boolean persist) {
         /** OpenSymphony END */
-        Entry[] tab = table;
+        Segment seg = segmentFor(hash);
+        Entry[] tab = seg.tableForWriting(hash);
         int index = hash & (tab.length - 1);
         Entry first = tab[index];
         Entry e = first;
@@ -1312,7 +2506,10 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                 Entry newEntry;
 
                 if (memoryCaching) {
-                    newEntry = new Entry(hash, key, value, first);
+                    int weight = weigh(key, value);
+                    newEntry = new Entry(hash, key, reference(key, hash, value), first);
+                    newEntry.weight = weight;
+                    seg.weight += weight;
                 } else {
                     newEntry = new Entry(hash, key, NULL, first);
                 }
@@ -1321,7 +2518,7 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
 
                 // Persist if required
                 if (persist && !overflowPersistence) {
-                    persistStore(key, value);
+                    persistQueue.store(key, value);
                 }
 
                 // If we have a CacheEntry, update the group lookups
@@ -1331,30 +2528,38 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
 
                 /**        OpenSymphony END */
                 tab[index] = newEntry;
+                keyAdded(key);
 
-                if (++count >= threshold) {
-                    rehash();
+                if (++seg.count >= seg.threshold) {
+                    rehash(seg);
                 } else {
-                    recordModification(newEntry);
+                    seg.recordModification(newEntry);
                 }
 
                 return null;
             } else if ((key == e.key) || ((e.hash == hash) && key.equals(e.key))) {
-                Object oldValue = e.value;
+                Object oldValue = referent(e.value);
+
+                if ((oldValue == null) && (e.value instanceof ValueReference)) {
+                    // The value was collected, it leaves its memory groups
+                    removeCollectedGroups((ValueReference) e.value, false);
+                }
 
                 /** OpenSymphony BEGIN */
 
                 /* Previous code
                 e.value = value; */
                 if (memoryCaching) {
-                    e.value = value;
+                    int weight = weigh(key, value);
+                    e.value = reference(key, hash, value);
+                    reweigh(seg, e, weight);
                 }
 
                 // Persist if required
                 if (persist && overflowPersistence) {
-                    persistRemove(key);
+                    persistQueue.remove(key);
                 } else if (persist) {
-                    persistStore(key, value);
+                    persistQueue.store(key, value);
                 }
 
                 updateGroups(oldValue, value, persist);
@@ -1379,7 +2584,8 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     protected Object sremove(Object key, int hash) { */
     protected Object sremove(Object key, int hash, boolean invokeAlgorithm) {
         /** OpenSymphony END */
-        Entry[] tab = table;
+        Segment seg = segmentFor(hash);
+        Entry[] tab = seg.tableForWriting(hash);
         int index = hash & (tab.length - 1);
         Entry first = tab[index];
         Entry e = first;
@@ -1388,22 +2594,31 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             if (e == null) {
                 return null;
             } else if ((key == e.key) || ((e.hash == hash) && key.equals(e.key))) {
-                Object oldValue = e.value;
+                Object oldValue = referent(e.value);
+                ValueReference collected = (oldValue == null) ? (ValueReference) e.value : null;
+
                 if (persistenceListener != null && (oldValue == NULL)) {
                   oldValue = persistRetrieve(key);
                 }
 
                 e.value = null;
-                count--;
+                seg.count--;
+                seg.weight -= e.weight;
+
+                boolean keptOffHeap = !invokeAlgorithm && storeOffHeap(key, oldValue);
 
                 /** OpenSymphony BEGIN */
-                if (!unlimitedDiskCache && !overflowPersistence) {
-                    persistRemove(e.key);
+                if (keptOffHeap) {
+                    // Its groups and persistent copy stay
+                } else if (!unlimitedDiskCache && !overflowPersistence) {
+                    persistQueue.remove(e.key);
                     // If we have a CacheEntry, update the groups
                     if (oldValue instanceof CacheEntry) {
                       CacheEntry oldEntry = (CacheEntry)oldValue;
                       removeGroupMappings(oldEntry.getKey(),
                           oldEntry.getGroups(), true);
+                } else if (collected != null) {
+                    removeCollectedGroups(collected, true);
                 }
                 } else {
                   // only remove from memory groups
@@ -1411,11 +2626,13 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                     CacheEntry oldEntry = (CacheEntry)oldValue;
                     removeGroupMappings(oldEntry.getKey(),
                         oldEntry.getGroups(), false);
+                  } else if (collected != null) {
+                    removeCollectedGroups(collected, false);
                   }
                 }
 
-                if (overflowPersistence && ((size() + 1) >= maxEntries)) {
-                    persistStore(key, oldValue);
+                if (!keptOffHeap && overflowPersistence && (oldValue != null) && ((size() + 1) >= maxEntries)) {
+                    persistQueue.store(key, oldValue);
                     // add key to persistent groups but NOT to the memory groups
                     if (oldValue instanceof CacheEntry) {
                       CacheEntry oldEntry = (CacheEntry)oldValue;
@@ -1427,15 +2644,10 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                     itemRemoved(key);
                 }
 
-                /** OpenSymphony END */
-                Entry head = e.next;
-
-                for (Entry p = first; p != e; p = p.next) {
-                    head = new Entry(p.hash, p.key, p.value, head);
-                }
+                keyRemoved(e.key);
 
-                tab[index] = head;
-                recordModification(head);
+                /** OpenSymphony END */
+                removeFromBin(seg, tab, index, first, e);
 
                 return oldValue;
             } else {
@@ -1444,6 +2656,42 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         }
     }
 
+    /**
+     * Takes a removed entry out of its bin, either by copying the entries
+     * ahead of it, or by unlinking it in place with unlinking storage.
+     * Call only when holding the segment lock.
+     *
+     * @param first the current first entry of the bin
+     */
+    private void removeFromBin(Segment seg, Entry[] tab, int index, Entry first, Entry e) {
+        Entry head;
+
+        if (!unlinkingStorage) {
+            head = e.next;
+
+            for (Entry p = first; p != e; p = p.next) {
+                head = new Entry(p.hash, p.key, p.value, head, p.weight);
+            }
+
+            tab[index] = head;
+        } else if (e == first) {
+            head = e.next;
+            tab[index] = head;
+        } else {
+            Entry p = first;
+
+            while (p.next != e) {
+                p = p.next;
+            }
+
+            // Readers still on the removed entry carry on from its successor
+            p.next = e.next;
+            head = first;
+        }
+
+        seg.recordModification(head);
+    }
+
     /**
      * Save the state of the <tt>AbstractConcurrentReadCache</tt> instance to a stream.
      * (i.e., serialize it).
@@ -1461,21 +2709,40 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         s.defaultWriteObject();
 
         // Write out number of buckets
-        s.writeInt(table.length);
+        s.writeInt(capacity());
 
-        // Write out size (number of Mappings)
-        s.writeInt(count);
+        // Take a snapshot of the keys and values (alternating) one segment
+        // at a time, so the size written out matches the mappings that follow
+        List mappings = new ArrayList();
 
-        // Write out keys and values (alternating)
-        for (int index = table.length - 1; index >= 0; index--) {
-            Entry entry = table[index];
+        for (int i = segments.length - 1; i >= 0; i--) {
+            Segment seg = segments[i];
+
+            synchronized (seg.lock) {
+                seg.finishResize();
 
-            while (entry != null) {
-                s.writeObject(entry.key);
-                s.writeObject(entry.value);
-                entry = entry.next;
+                Entry[] tab = seg.table;
+
+                for (int index = tab.length - 1; index >= 0; index--) {
+                    for (Entry entry = tab[index]; entry != null; entry = entry.next) {
+                        Object value = entry.getValue();
+
+                        if (value != null) {
+                            mappings.add(entry.key);
+                            mappings.add(value);
+                        }
+                    }
+                }
             }
         }
+
+        // Write out size (number of Mappings)
+        s.writeInt(mappings.size() / 2);
+
+        // Write out keys and values (alternating)
+        for (Iterator it = mappings.iterator(); it.hasNext();) {
+            s.writeObject(it.next());
+        }
     }
 
     /**
@@ -1512,36 +2779,32 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             return;
         }
         
-        // Add this CacheEntry to the groups that it is now a member of
-        for (Iterator it = newGroups.iterator(); it.hasNext();) {
-            String groupName = (String) it.next();
-
-            // Update the in-memory groups
-            if (memoryCaching && memory) {
-                if (groups == null) {
-                    groups = new HashMap();
-                }
-
-                Set memoryGroup = (Set) groups.get(groupName);
+        // Several segments may update the same group concurrently
+        synchronized (groupLock) {
+            // Add this CacheEntry to the groups that it is now a member of
+            for (Iterator it = newGroups.iterator(); it.hasNext();) {
+                String groupName = (String) it.next();
 
-                if (memoryGroup == null) {
-                    memoryGroup = new HashSet();
-                    groups.put(groupName, memoryGroup);
-                }
+                // Update the in-memory groups
+                if (memoryCaching && memory) {
+                    if (groups == null) {
+                        groups = new HashMap();
+                    }
 
-                memoryGroup.add(key);
-            }
+                    Set memoryGroup = (Set) groups.get(groupName);
 
-            // Update the persistent group maps
-            if (persist) {
-                Set persistentGroup = persistRetrieveGroup(groupName);
+                    if (memoryGroup == null) {
+                        memoryGroup = new HashSet();
+                        groups.put(groupName, memoryGroup);
+                    }
 
-                if (persistentGroup == null) {
-                    persistentGroup = new HashSet();
+                    memoryGroup.add(key);
                 }
 
-                persistentGroup.add(key);
-                persistStoreGroup(groupName, persistentGroup);
+                // Update the persistent group maps
+                if (persist) {
+                    persistQueue.addToGroup(groupName, key);
+                }
             }
         }
     }
@@ -1574,21 +2837,125 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
     public Object put(Object key, Object value)*/
     private Object put(Object key, Object value, boolean persist) {
         /** OpenSymphony END */
+        expungeCollected();
+        removeOffHeap(key, value, persist);
+
+        Object oldValue = putInSegment(key, value, persist);
+
+        // Writers to different segments may have raced past the capacity check,
+        // and a byte budget can be exceeded by a single large entry
+        if ((segments.length > 1) || (maxBytes > 0)) {
+            while ((size() > maxEntries) || ((maxBytes > 0) && (weight() > maxBytes))) {
+                Object victim = removeItem();
+
+                if (victim == null) {
+                    break;
+                }
+
+                remove(victim, false, false);
+            }
+        }
+
+        // The segment locks have been released, perform the persistence writes
+        persistQueue.drain();
+
+        BackgroundEvictor current = evictor;
+
+        if ((current != null) && isAbove(highWatermark)) {
+            current.wakeUp();
+        }
+
+        return oldValue;
+    }
+
+    /**
+     * Removes entries through the algorithm, in batches, until the cache is
+     * back to its low watermark. Called by the background evictor.
+     */
+    void evictToLowWatermark() {
+        while (isAbove(lowWatermark)) {
+            for (int i = 0; (i < EVICTION_BATCH_SIZE) && isAbove(lowWatermark); i++) {
+                Object victim = removeItem();
+
+                if (victim == null) {
+                    persistQueue.drain();
+
+                    return;
+                }
+
+                remove(victim, false, false);
+            }
+
+            // Overflow writes are performed once per batch
+            persistQueue.drain();
+        }
+    }
+
+    /**
+     * Whether the current thread holds the cache monitor or the lock of one
+     * of its segments, under which the persistence writes must not be
+     * performed.
+     */
+    boolean holdsLock() {
+        if (Thread.holdsLock(this)) {
+            return true;
+        }
+
+        Segment[] segs = segments;
+
+        for (int i = 0; i < segs.length; i++) {
+            if (Thread.holdsLock(segs[i].lock)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the number of entries, or their weight if there is a byte
+     * budget, is over the supplied fraction of the capacity.
+     */
+    private boolean isAbove(float watermark) {
+        if (watermark <= 0) {
+            return false;
+        }
+
+        return (size() > (watermark * maxEntries)) || ((maxBytes > 0) && (weight() > (watermark * maxBytes)));
+    }
+
+    /**
+     * Stores the mapping in the segment the key hashes to. With several
+     * segments the capacity is only checked before the segment is locked,
+     * so {@link #put(Object, Object, boolean)} trims the cache afterwards.
+     */
+    private Object putInSegment(Object key, Object value, boolean persist) {
         if (value == null) {
             throw new NullPointerException();
         }
 
         int hash = hash(key);
-        Entry[] tab = table;
+        Segment seg = segmentFor(hash);
+        Entry[] tab = seg.table;
         int index = hash & (tab.length - 1);
         Entry first = tab[index];
         Entry e = first;
 
         for (;;) {
             if (e == null) {
-                synchronized (this) {
-                    tab = table;
+                Object evictedValue = null;
+
+                // With several segments the victim may live in another segment,
+                // whose lock must not be taken while this one is held
+                if ((segments.length > 1) && (size() >= maxEntries)) {
+                    Object victim = removeItem();
+
+                    if (victim != null) {
+                        evictedValue = remove(victim, false, false);
+                    }
+                }
 
+                synchronized (seg.lock) {
                     /** OpenSymphony BEGIN */
 
                     // Previous code
@@ -1601,30 +2968,37 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                                                                     else recordModification(newEntry);
                                                                     return null; */
 
-                    Object oldValue = null;
+                    Object oldValue = evictedValue;
 
                     // Remove an item if the cache is full
-                    if (size() >= maxEntries) {
+                    if ((segments.length == 1) && (size() >= maxEntries)) {
                         // part of fix CACHE-255: method should return old value
                         oldValue = remove(removeItem(), false, false);
                     }
 
-                    if (first == tab[index]) {
+                    // The index was computed against the table read before locking,
+                    // so a rehash in between must send us down the slow path too,
+                    // as must a resize in progress, which the slow path helps along
+                    if ((tab == seg.table) && (first == tab[index]) && (seg.nextTable == null)) {
                         //  Add to front of list
                         Entry newEntry = null;
 
                         if (memoryCaching) {
-                            newEntry = new Entry(hash, key, value, first);
+                            int weight = weigh(key, value);
+                            newEntry = new Entry(hash, key, reference(key, hash, value), first);
+                            newEntry.weight = weight;
+                            seg.weight += weight;
                         } else {
                             newEntry = new Entry(hash, key, NULL, first);
                         }
 
                         tab[index] = newEntry;
                         itemPut(key);
+                        keyAdded(key);
 
                         // Persist if required
                         if (persist && !overflowPersistence) {
-                            persistStore(key, value);
+                            persistQueue.store(key, value);
                         }
 
                         // If we have a CacheEntry, update the group lookups
@@ -1632,10 +3006,10 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                             updateGroups(null, (CacheEntry) value, persist);
                         }
 
-                        if (++count >= threshold) {
-                            rehash();
+                        if (++seg.count >= seg.threshold) {
+                            rehash(seg);
                         } else {
-                            recordModification(newEntry);
+                            seg.recordModification(newEntry);
                         }
                         
                         return oldValue;
@@ -1654,16 +3028,27 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                     }
                 }
             } else if ((key == e.key) || ((e.hash == hash) && key.equals(e.key))) {
+                // [CACHE-118] - get the old cache entry even if there's no memory cache.
+                // The disk is read before locking, and read again under the lock only
+                // if a write has been queued in between
+                long writeCount = -1;
+                Object persistedValue = null;
+
+                if (persist && (e.value == NULL)) {
+                    writeCount = persistQueue.writeCount();
+                    persistedValue = persistRetrieve(key);
+                }
+
                 // synch to avoid race with remove and to
                 // ensure proper serialization of multiple replaces
-                synchronized (this) {
-                    tab = table;
+                synchronized (seg.lock) {
+                    tab = seg.table;
 
-                    Object oldValue = e.value;
+                    // A collected value is handled by the slow path
+                    Object oldValue = referent(e.value);
 
-                    // [CACHE-118] - get the old cache entry even if there's no memory cache
                     if (persist && (oldValue == NULL)) {
-                        oldValue = persistRetrieve(key);
+                        oldValue = (writeCount == persistQueue.writeCount()) ? persistedValue : persistRetrieve(key);
                     }
 
                     if ((first == tab[index]) && (oldValue != null)) {
@@ -1673,18 +3058,21 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                         e.value = value;
                         return oldValue; */
                         if (memoryCaching) {
-                            e.value = value;
+                            int weight = weigh(key, value);
+                            e.value = reference(key, hash, value);
+                            reweigh(seg, e, weight);
                         }
 
                         // Persist if required
                         if (persist && overflowPersistence) {
-                            persistRemove(key);
+                            persistQueue.remove(key);
                         } else if (persist) {
-                            persistStore(key, value);
+                            persistQueue.store(key, value);
                         }
 
                         updateGroups(oldValue, value, persist);
                         itemPut(key);
+                        seg.helpResize();
 
                         return oldValue;
 
@@ -1707,7 +3095,7 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         }
     }
 
-    private synchronized Object remove(Object key, boolean invokeAlgorithm, boolean forcePersist)
+    private Object remove(Object key, boolean invokeAlgorithm, boolean forcePersist)
     /* Previous code
     public Object remove(Object key) */
 
@@ -1731,101 +3119,122 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
 
         /** OpenSymphony END */
         int hash = hash(key);
-        Entry[] tab = table;
-        int index = hash & (tab.length - 1);
-        Entry first = tab[index];
-        Entry e = first;
-
-        for (;;) {
-            if (e == null) {
-                tab = getTableForReading();
+        Segment seg = segmentFor(hash);
 
-                if (first == tab[index]) {
-                    return null;
-                } else {
-                    // Wrong list -- must restart traversal at new first
+        // Without memory cache the removed entry has to be read from disk, which
+        // is done before locking, as in put()
+        long writeCount = -1;
+        Object persistedValue = null;
 
-                    /** OpenSymphony BEGIN */
+        if ((persistenceListener != null) && !memoryCaching) {
+            writeCount = persistQueue.writeCount();
+            persistedValue = persistRetrieve(key);
+        }
 
-                    /* Previous Code
-                    return sremove(key, hash); */
-                    return sremove(key, hash, invokeAlgorithm);
+        synchronized (seg.lock) {
+            Entry[] tab = seg.tableForWriting(hash);
+            int index = hash & (tab.length - 1);
+            Entry first = tab[index];
+            Entry e = first;
 
-                    /** OpenSymphony END */
-                }
-            } else if ((key == e.key) || ((e.hash == hash) && key.equals(e.key))) {
-                synchronized (this) {
-                    tab = table;
+            for (;;) {
+                if (e == null) {
+                    tab = resolve(seg.getTableForReading(), hash);
 
-                    Object oldValue = e.value;
-                    if (persistenceListener != null && (oldValue == NULL)) {
-                      oldValue = persistRetrieve(key);
-                    }
+                    if (first == tab[index]) {
+                        return null;
+                    } else {
+                        // Wrong list -- must restart traversal at new first
 
-                    // re-find under synch if wrong list
-                    if ((first != tab[index]) || (oldValue == null)) {
                         /** OpenSymphony BEGIN */
 
                         /* Previous Code
                         return sremove(key, hash); */
                         return sremove(key, hash, invokeAlgorithm);
+
+                        /** OpenSymphony END */
                     }
+                } else if ((key == e.key) || ((e.hash == hash) && key.equals(e.key))) {
+                    synchronized (seg.lock) {
+                        tab = resolve(seg.table, hash);
 
-                    /** OpenSymphony END */
-                    e.value = null;
-                    count--;
+                        Object oldValue = referent(e.value);
+                        ValueReference collected = (oldValue == null) ? (ValueReference) e.value : null;
 
-                    /** OpenSymphony BEGIN */
-                    if (forcePersist || (!unlimitedDiskCache && !overflowPersistence)) {
-                        persistRemove(e.key);
-                        // If we have a CacheEntry, update the group lookups
-                        if (oldValue instanceof CacheEntry) {
-                          CacheEntry oldEntry = (CacheEntry) oldValue;
-                            removeGroupMappings(oldEntry.getKey(),
-                                oldEntry.getGroups(), true);
+                        if (persistenceListener != null && (oldValue == NULL)) {
+                          oldValue = (writeCount == persistQueue.writeCount()) ? persistedValue : persistRetrieve(key);
                         }
-                    } else {
-						// only remove from memory groups
-						if (oldValue instanceof CacheEntry) {
-							CacheEntry oldEntry = (CacheEntry) oldValue;
-							removeGroupMappings(oldEntry.getKey(), oldEntry
-									.getGroups(), false);
-						}
-                    }
 
-                    if (!forcePersist && overflowPersistence && ((size() + 1) >= maxEntries)) {
-                        persistStore(key, oldValue);
-                        // add key to persistent groups but NOT to the memory groups
-                        if (oldValue instanceof CacheEntry) {
-                        	CacheEntry oldEntry = (CacheEntry) oldValue;
-                        	addGroupMappings(oldEntry.getKey(), oldEntry.getGroups(), true, false);
+                        // re-find under synch if wrong list
+                        if ((first != tab[index]) || ((oldValue == null) && (collected == null))) {
+                            /** OpenSymphony BEGIN */
+
+                            /* Previous Code
+                            return sremove(key, hash); */
+                            return sremove(key, hash, invokeAlgorithm);
                         }
-                    }
 
-                    if (invokeAlgorithm) {
-                        itemRemoved(key);
-                    }
+                        /** OpenSymphony END */
+                        e.value = null;
+                        seg.count--;
+                        seg.weight -= e.weight;
 
-                    // introduced to fix bug CACHE-255 
-                    if (oldValue instanceof CacheEntry) {
-                    	CacheEntry oldEntry = (CacheEntry) oldValue;
-                    	oldValue = oldEntry.getContent();
-                    }
+                        // An evicted value moved off-heap is still cached
+                        boolean keptOffHeap = !invokeAlgorithm && !forcePersist && storeOffHeap(key, oldValue);
 
-                    /** OpenSymphony END */
-                    Entry head = e.next;
+                        /** OpenSymphony BEGIN */
+                        if (keptOffHeap) {
+                            // Its groups and persistent copy stay
+                        } else if (forcePersist || (!unlimitedDiskCache && !overflowPersistence)) {
+                            persistQueue.remove(e.key);
+                            // If we have a CacheEntry, update the group lookups
+                            if (oldValue instanceof CacheEntry) {
+                              CacheEntry oldEntry = (CacheEntry) oldValue;
+                                removeGroupMappings(oldEntry.getKey(),
+                                    oldEntry.getGroups(), true);
+                            } else if (collected != null) {
+                                removeCollectedGroups(collected, true);
+                            }
+                        } else {
+    						// only remove from memory groups
+    						if (oldValue instanceof CacheEntry) {
+    							CacheEntry oldEntry = (CacheEntry) oldValue;
+    							removeGroupMappings(oldEntry.getKey(), oldEntry
+    									.getGroups(), false);
+    						} else if (collected != null) {
+    							removeCollectedGroups(collected, false);
+    						}
+                        }
 
-                    for (Entry p = first; p != e; p = p.next) {
-                        head = new Entry(p.hash, p.key, p.value, head);
-                    }
+                        if (!keptOffHeap && !forcePersist && overflowPersistence && (oldValue != null) && ((size() + 1) >= maxEntries)) {
+                            persistQueue.store(key, oldValue);
+                            // add key to persistent groups but NOT to the memory groups
+                            if (oldValue instanceof CacheEntry) {
+                            	CacheEntry oldEntry = (CacheEntry) oldValue;
+                            	addGroupMappings(oldEntry.getKey(), oldEntry.getGroups(), true, false);
+                            }
+                        }
+
+                        if (invokeAlgorithm) {
+                            itemRemoved(key);
+                        }
+
+                        keyRemoved(e.key);
 
-                    tab[index] = head;
-                    recordModification(head);
+                        // introduced to fix bug CACHE-255 
+                        if (oldValue instanceof CacheEntry) {
+                        	CacheEntry oldEntry = (CacheEntry) oldValue;
+                        	oldValue = oldEntry.getContent();
+                        }
+
+                        /** OpenSymphony END */
+                        removeFromBin(seg, tab, index, first, e);
 
-                    return oldValue;
+                        return oldValue;
+                    }
+                } else {
+                    e = e.next;
                 }
-            } else {
-                e = e.next;
             }
         }
     }
@@ -1848,34 +3257,27 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
           return;
         }
 
-        for (Iterator it = oldGroups.iterator(); it.hasNext();) {
-            String groupName = (String) it.next();
+        // Several segments may update the same group concurrently
+        synchronized (groupLock) {
+            for (Iterator it = oldGroups.iterator(); it.hasNext();) {
+                String groupName = (String) it.next();
 
-            // Update the in-memory groups
-            if (memoryCaching && (this.groups != null)) {
-                Set memoryGroup = (Set) groups.get(groupName);
+                // Update the in-memory groups
+                if (memoryCaching && (this.groups != null)) {
+                    Set memoryGroup = (Set) groups.get(groupName);
 
-                if (memoryGroup != null) {
-                    memoryGroup.remove(key);
+                    if (memoryGroup != null) {
+                        memoryGroup.remove(key);
 
-                    if (memoryGroup.isEmpty()) {
-                        groups.remove(groupName);
+                        if (memoryGroup.isEmpty()) {
+                            groups.remove(groupName);
+                        }
                     }
                 }
-            }
-
-            // Update the persistent group maps
-            if (persist) {
-                Set persistentGroup = persistRetrieveGroup(groupName);
 
-                if (persistentGroup != null) {
-                    persistentGroup.remove(key);
-
-                    if (persistentGroup.isEmpty()) {
-                        persistRemoveGroup(groupName);
-                    } else {
-                        persistStoreGroup(groupName, persistentGroup);
-                    }
+                // Update the persistent group maps
+                if (persist) {
+                    persistQueue.removeFromGroup(groupName, key);
                 }
             }
         }
@@ -1962,7 +3364,12 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
      * AbstractConcurrentReadCache collision list entry.
      */
     protected static class Entry implements Map.Entry {
-        protected final Entry next;
+        /*
+           The next pointer is only assigned by removals with unlinking
+           storage, under the segment lock. It is volatile so that readers
+           traversing the bin without locking see the new link.
+        */
+        protected volatile Entry next;
         protected final Object key;
 
         /*
@@ -1974,6 +3381,12 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
         protected final int hash;
         protected volatile Object value;
 
+        /**
+         * The weight of the mapping, only tracked when the cache has a
+         * byte capacity. Guarded by the segment lock.
+         */
+        protected int weight;
+
         Entry(int hash, Object key, Object value, Entry next) {
             this.hash = hash;
             this.key = key;
@@ -1981,6 +3394,11 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             this.value = value;
         }
 
+        Entry(int hash, Object key, Object value, Entry next, int weight) {
+            this(hash, key, value, next);
+            this.weight = weight;
+        }
+
         // Map.Entry Ops
         public Object getKey() {
             return key;
@@ -2013,6 +3431,13 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             }
 
             Object oldValue = this.value;
+
+            if (oldValue instanceof ValueReference) {
+                this.value = ((ValueReference) oldValue).renew(value);
+
+                return ((ValueReference) oldValue).get();
+            }
+
             this.value = value;
 
             return oldValue;
@@ -2032,7 +3457,7 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
          * detectably removed.
          **/
         public Object getValue() {
-            return value;
+            return referent(value);
         }
 
         public boolean equals(Object o) {
@@ -2046,36 +3471,307 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                 return false;
             }
 
-            Object v = value;
+            Object v = getValue();
 
             return (v == null) ? (e.getValue() == null) : v.equals(e.getValue());
         }
 
         public int hashCode() {
-            Object v = value;
+            Object v = getValue();
 
             return hash ^ ((v == null) ? 0 : v.hashCode());
         }
 
         public String toString() {
-            return key + "=" + value;
+            return key + "=" + getValue();
         }
 
         protected Object clone() {
-            return new Entry(hash, key, value, ((next == null) ? null : (Entry) next.clone()));
+            return new Entry(hash, key, value, ((next == null) ? null : (Entry) next.clone()), weight);
+        }
+    }
+
+    /**
+     * Takes the place of a bin of a table being resized incrementally once
+     * its entries have been moved to the next table. It has no value, so a
+     * stale read of it is never mistaken for a mapping.
+     */
+    protected static final class ForwardingEntry extends Entry {
+        /**
+         * The table the entries have been moved to.
+         */
+        protected final Entry[] table;
+
+        ForwardingEntry(Entry[] table) {
+            super(0, FORWARDED, null, null);
+            this.table = table;
+        }
+    }
+
+    /**
+     * A reference to the value of an entry, that the garbage collector may
+     * clear. It remembers the key and the groups of the value, so that its
+     * entry can be removed once the value is gone.
+     */
+    protected interface ValueReference {
+        /**
+         * Returns the value, or <code>null</code> if it has been collected.
+         */
+        Object get();
+
+        Object getKey();
+
+        int getHash();
+
+        Set getGroups();
+
+        /**
+         * Returns a reference of the same type to a new value of the entry.
+         */
+        ValueReference renew(Object value);
+    }
+
+    private static final class SoftValue extends SoftReference implements ValueReference {
+        private final Object key;
+        private final int hash;
+        private final Set groups;
+        private final ReferenceQueue queue;
+
+        SoftValue(Object key, int hash, Set groups, Object value, ReferenceQueue queue) {
+            super(value, queue);
+            this.key = key;
+            this.hash = hash;
+            this.groups = groups;
+            this.queue = queue;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public int getHash() {
+            return hash;
+        }
+
+        public Set getGroups() {
+            return groups;
+        }
+
+        public ValueReference renew(Object value) {
+            return new SoftValue(key, hash, (value instanceof CacheEntry) ? ((CacheEntry) value).getGroups() : null, value, queue);
+        }
+    }
+
+    private static final class WeakValue extends WeakReference implements ValueReference {
+        private final Object key;
+        private final int hash;
+        private final Set groups;
+        private final ReferenceQueue queue;
+
+        WeakValue(Object key, int hash, Set groups, Object value, ReferenceQueue queue) {
+            super(value, queue);
+            this.key = key;
+            this.hash = hash;
+            this.groups = groups;
+            this.queue = queue;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public int getHash() {
+            return hash;
+        }
+
+        public Set getGroups() {
+            return groups;
+        }
+
+        public ValueReference renew(Object value) {
+            return new WeakValue(key, hash, (value instanceof CacheEntry) ? ((CacheEntry) value).getGroups() : null, value, queue);
+        }
+    }
+
+    /**
+     * A segment of the hash table: a set of bins with its own entry count,
+     * resize threshold, lock and barrier. Writes only lock the segment the key
+     * belongs to.
+     */
+    protected static final class Segment {
+        /**
+         * Lock guarding all modifications of this segment.
+         */
+        protected final Object lock;
+
+        /**
+         * Lock used only for its memory effects.
+         */
+        protected final Object barrier;
+
+        /**
+         * The hash table data of this segment.
+         */
+        protected Entry[] table;
+
+        /**
+         * The number of mappings in this segment. Volatile so that
+         * the cache size can be computed without locking.
+         */
+        protected volatile int count;
+
+        /**
+         * The total weight of the mappings in this segment, see
+         * {@link AbstractConcurrentReadCache#weight()}.
+         */
+        protected volatile long weight;
+
+        /**
+         * The segment is rehashed when its size exceeds this threshold.
+         * (The value of this field is always (int)(capacity * loadFactor).)
+         */
+        protected int threshold;
+
+        /**
+         * Field written to only to guarantee lock ordering.
+         */
+        protected Object lastWrite;
+
+        /**
+         * The number of modifications recorded, which tells
+         * {@link AbstractConcurrentReadCache#exactSize()} whether the
+         * segment changed while it was summing the counts.
+         */
+        protected volatile int modCount;
+
+        /**
+         * The table the bins are being moved to by an incremental resize,
+         * <code>null</code> when the segment is not being resized.
+         */
+        protected Entry[] nextTable;
+
+        /**
+         * The entry left in the moved bins of the current table.
+         */
+        protected ForwardingEntry forwarding;
+
+        /**
+         * The index of the next bin to move.
+         */
+        protected int resizeIndex;
+
+        Segment(Object lock, Object barrier, int capacity, float loadFactor) {
+            this.lock = lock;
+            this.barrier = barrier;
+            this.table = new Entry[capacity];
+            this.threshold = (int) (capacity * loadFactor);
+        }
+
+        /**
+         * Get ref to table; the reference and the cells it
+         * accesses will be at least as fresh as from last
+         * use of the barrier.
+         */
+        protected final Entry[] getTableForReading() {
+            synchronized (barrier) {
+                return table;
+            }
+        }
+
+        /**
+         * Force a memory synchronization that will cause
+         * all readers to see table. Call only when already
+         * holding the segment lock.
+         */
+        protected final void recordModification(Object x) {
+            synchronized (barrier) {
+                lastWrite = x;
+                modCount++;
+            }
+        }
+
+        /**
+         * Returns the table holding the bin of the supplied hash code, after
+         * moving that bin and a few others if the segment is being resized.
+         * Call only when holding the segment lock.
+         */
+        protected final Entry[] tableForWriting(int hash) {
+            if (nextTable != null) {
+                moveBin(hash & (table.length - 1));
+                advanceResize(RESIZE_STRIDE);
+            }
+
+            return resolve(table, hash);
+        }
+
+        /**
+         * Moves a few bins if the segment is being resized. Call only when
+         * holding the segment lock.
+         */
+        protected final void helpResize() {
+            if (nextTable != null) {
+                advanceResize(RESIZE_STRIDE);
+            }
+        }
+
+        /**
+         * Completes the resize in progress, if any. Call only when holding
+         * the segment lock.
+         */
+        protected final void finishResize() {
+            if (nextTable != null) {
+                advanceResize(table.length);
+            }
+        }
+
+        /**
+         * Moves the next bins to the next table, and makes it the current
+         * one once they have all been moved.
+         */
+        private void advanceResize(int bins) {
+            int end = Math.min(resizeIndex + bins, table.length);
+
+            while (resizeIndex < end) {
+                moveBin(resizeIndex++);
+            }
+
+            if (resizeIndex == table.length) {
+                table = nextTable;
+                nextTable = null;
+                forwarding = null;
+            }
+
+            recordModification(table);
+        }
+
+        /**
+         * Copies a bin to the next table, then forwards the readers there.
+         */
+        private void moveBin(int i) {
+            Entry first = table[i];
+
+            if (first != forwarding) {
+                splitBin(first, nextTable, i, table.length);
+                table[i] = forwarding;
+            }
         }
     }
 
     protected class HashIterator implements Iterator, Enumeration {
-        protected final Entry[] tab; // snapshot of table
+        protected final Segment[] segs; // snapshot of segments
+        protected Entry[] tab; // snapshot of table of current segment
         protected Entry entry = null; // current node of slot
         protected Entry lastReturned = null; // last node returned by next
         protected Object currentKey; // key for current node
         protected Object currentValue; // value for current node
         protected int index; // current slot
+        protected int segIndex; // current segment
+        protected ArrayList forwarded; // bins moved by an incremental resize, still to be visited
 
         protected HashIterator() {
-            tab = AbstractConcurrentReadCache.this.getTableForReading();
+            segs = AbstractConcurrentReadCache.this.segments;
+            segIndex = segs.length - 1;
+            tab = segs[segIndex].getTableForReading();
             index = tab.length - 1;
         }
 
@@ -2093,7 +3789,7 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             */
             for (;;) {
                 if (entry != null) {
-                    Object v = entry.value;
+                    Object v = entry.getValue();
 
                     if (v != null) {
                         currentKey = entry.key;
@@ -2105,8 +3801,23 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
                     }
                 }
 
-                while ((entry == null) && (index >= 0)) {
-                    entry = tab[index--];
+                while (entry == null) {
+                    if ((forwarded != null) && !forwarded.isEmpty()) {
+                        entry = (Entry) forwarded.remove(forwarded.size() - 1);
+                    } else if (index >= 0) {
+                        entry = tab[index--];
+
+                        if (entry instanceof ForwardingEntry) {
+                            forward((ForwardingEntry) entry, index + 1, tab.length);
+                            entry = null;
+                        }
+                    } else if (segIndex > 0) {
+                        // Move on to the next segment
+                        tab = segs[--segIndex].getTableForReading();
+                        index = tab.length - 1;
+                    } else {
+                        break;
+                    }
                 }
 
                 if (entry == null) {
@@ -2117,6 +3828,28 @@ public abstract class AbstractConcurrentReadCache extends AbstractMap implements
             }
         }
 
+        /**
+         * Queues the bins a bin of a table of the supplied length was moved
+         * to, following the bins that have been moved again since.
+         */
+        private void forward(ForwardingEntry f, int bin, int length) {
+            Entry[] next = f.table;
+
+            if (forwarded == null) {
+                forwarded = new ArrayList();
+            }
+
+            for (int i = bin; i < next.length; i += length) {
+                Entry head = next[i];
+
+                if (head instanceof ForwardingEntry) {
+                    forward((ForwardingEntry) head, i, next.length);
+                } else if (head != null) {
+                    forwarded.add(head);
+                }
+            }
+        }
+
         public Object next() {
             if ((currentKey == null) && !hasNext()) {
                 throw new NoSuchElementException();
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Daemon thread evicting entries from an {@link AbstractConcurrentReadCache}
+ * once it has crossed its high watermark, until it is back to its low
+ * watermark. See {@link AbstractConcurrentReadCache#setEvictionWatermarks(float, float)}.
+ * <p>
+ * The thread only holds a weak reference to the cache while it is idle, and
+ * ends once the cache has been garbage collected or the watermarks have been
+ * disabled.
+ *
+ * @version        $Revision$
+ */
+final class BackgroundEvictor implements Runnable {
+    private static final Log log = LogFactory.getLog(BackgroundEvictor.class);
+
+    /**
+     * How often an idle evictor checks whether its cache is still alive.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final WeakReference cacheReference;
+
+    private boolean running = true;
+    private boolean signaled = false;
+
+    /**
+     * When the evictor was woken up without having caught up since, or
+     * <code>0</code> while it is idle.
+     */
+    private long behindSince = 0;
+
+    BackgroundEvictor(AbstractConcurrentReadCache cache) {
+        cacheReference = new WeakReference(cache);
+
+        Thread thread = new Thread(this, "OSCache evictor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks the evictor to bring the cache back to its low watermark.
+     */
+    synchronized void wakeUp() {
+        if (!signaled) {
+            signaled = true;
+
+            if (behindSince == 0) {
+                behindSince = System.currentTimeMillis();
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops the evictor thread.
+     */
+    synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns for how many milliseconds the cache has been over its high
+     * watermark without the evictor catching up, <code>0</code> if it is
+     * not behind.
+     */
+    synchronized long getLag() {
+        return (behindSince == 0) ? 0 : Math.max(1, System.currentTimeMillis() - behindSince);
+    }
+
+    public void run() {
+        for (;;) {
+            synchronized (this) {
+                while (running && !signaled) {
+                    try {
+                        wait(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (cacheReference.get() == null) {
+                        return;
+                    }
+                }
+
+                if (!running) {
+                    return;
+                }
+
+                signaled = false;
+            }
+
+            AbstractConcurrentReadCache cache = (AbstractConcurrentReadCache) cacheReference.get();
+
+            if (cache == null) {
+                return;
+            }
+
+            try {
+                cache.evictToLowWatermark();
+            } catch (RuntimeException e) {
+                log.error("[oscache] Background eviction failed", e);
+            }
+
+            // Don't keep the cache alive while waiting
+            cache = null;
+
+            synchronized (this) {
+                if (!signaled) {
+                    behindSince = 0;
+                }
+            }
+        }
+    }
+}
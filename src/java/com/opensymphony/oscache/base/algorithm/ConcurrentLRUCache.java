@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>LRU (Least Recently Used) algorithm for the cache whose hit path
+ * takes no lock and never sleeps.</p>
+ *
+ * <p>Cache hits only record the key in a striped {@link ReadBuffer}. The
+ * recency order itself is a doubly linked list indexed by a hash map,
+ * so every reordering is O(1); it is updated directly by puts and
+ * removals, and the buffered reads are replayed in batches, either by
+ * the reader whose buffer stripe filled up if the list is not busy, or
+ * by the next eviction at the latest. The victim is therefore the least
+ * recently used entry up to the reads still sitting in the buffers or
+ * lost by them.</p>
+ *
+ * <p>This is a drop-in replacement for {@link LRUCache} that scales
+ * better when many threads hit the cache at the same time.</p>
+ *
+ * @version        $Revision$
+ */
+public class ConcurrentLRUCache extends AbstractConcurrentReadCache {
+    private static final long serialVersionUID = 5263591286457262516L;
+
+    /**
+     * Recency list nodes by key.
+     */
+    private final Map nodes = new HashMap();
+
+    /**
+     * Sentinel of the circular recency list. Its successor is the least
+     * recently used key, its predecessor the most recently used one.
+     */
+    private final Node head = new Node(null);
+
+    /**
+     * Reads that have not been applied to the recency list yet.
+     */
+    private final ReadBuffer readBuffer = new ReadBuffer();
+
+    /**
+     * Guards <code>nodes</code> and the recency list. Package visible so
+     * that the tests can simulate a long running eviction.
+     */
+    final EvictionLock evictionLock = new EvictionLock();
+
+    /**
+     * Applies buffered reads to the recency list.
+     */
+    private final ReadBuffer.Consumer readApplier = new ReadApplier();
+
+    /**
+     * Constructs a concurrent LRU Cache.
+     */
+    public ConcurrentLRUCache() {
+        super();
+    }
+
+    /**
+     * Constructs a concurrent LRU Cache of the specified capacity.
+     *
+     * @param capacity The maximum cache capacity.
+     */
+    public ConcurrentLRUCache(int capacity) {
+        this();
+        maxEntries = capacity;
+    }
+
+    /**
+     * An item was retrieved from the cache. The read is buffered and only
+     * applied to the recency list later.
+     *
+     * @param key The cache key of the item that was retrieved.
+     */
+    protected void itemRetrieved(Object key) {
+        if (readBuffer.record(key) && evictionLock.tryLock()) {
+            try {
+                readBuffer.drain(readApplier);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * An object was put in the cache. This implementation adds/moves the
+     * key to the most recently used end of the list.
+     *
+     * @param key The cache key of the item that was put.
+     */
+    protected void itemPut(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.get(key);
+
+            if (node == null) {
+                node = new Node(key);
+                nodes.put(key, node);
+            } else {
+                node.unlink();
+            }
+
+            node.linkBefore(head);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * An item needs to be removed from the cache. The pending reads are
+     * applied first, then the least recently used key is removed from the
+     * list.
+     *
+     * @return The key of whichever item was removed, or <code>null</code>
+     * if the list is empty.
+     */
+    protected Object removeItem() {
+        evictionLock.lock();
+
+        try {
+            readBuffer.drain(readApplier);
+
+            Node eldest = head.next;
+
+            if (eldest == head) {
+                return null;
+            }
+
+            eldest.unlink();
+            nodes.remove(eldest.key);
+
+            return eldest.key;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove specified key since that object has been removed from the cache.
+     *
+     * @param key The cache key of the item that was removed.
+     */
+    protected void itemRemoved(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.remove(key);
+
+            if (node != null) {
+                node.unlink();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Moves a buffered read to the most recently used end of the list,
+     * unless the key has been removed in the meantime.
+     * Call only when holding the eviction lock.
+     */
+    private final class ReadApplier implements ReadBuffer.Consumer, Serializable {
+        private static final long serialVersionUID = -4195722393937924331L;
+
+        public void keyRead(Object key) {
+            Node node = (Node) nodes.get(key);
+
+            if (node != null) {
+                node.unlink();
+                node.linkBefore(head);
+            }
+        }
+    }
+
+    /**
+     * A node of the circular recency list.
+     */
+    private static final class Node implements Serializable {
+        private static final long serialVersionUID = 8346417405640395870L;
+        final Object key;
+        Node next = this;
+        Node prev = this;
+
+        Node(Object key) {
+            this.key = key;
+        }
+
+        void linkBefore(Node successor) {
+            next = successor;
+            prev = successor.prev;
+            prev.next = this;
+            successor.prev = this;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            next = this;
+            prev = this;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+/**
+ * Computes the weight of a cache entry, ie. roughly how many bytes of heap
+ * it occupies, for caches whose capacity is a byte budget (see
+ * {@link AbstractConcurrentReadCache#setMaxBytes(long)}).
+ * <p>
+ * Implementations must be thread safe and should be cheap, since an entry
+ * is weighed every time it is put in the cache. They need a public no-arg
+ * constructor to be configured through the <code>cache.capacity.weigher</code>
+ * property.
+ *
+ * @version        $Revision$
+ */
+public interface EntryWeigher {
+    /**
+     * Returns the weight of a mapping.
+     *
+     * @param key The key of the mapping
+     * @param value The value of the mapping, usually a
+     * {@link com.opensymphony.oscache.base.CacheEntry}
+     * @return The approximate size in bytes. Negative values count as zero.
+     */
+    int weigh(Object key, Object value);
+}
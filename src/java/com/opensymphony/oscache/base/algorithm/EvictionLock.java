@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+/**
+ * A small non-reentrant lock guarding the bookkeeping structures of an
+ * eviction algorithm. Unlike a monitor it can be tried without blocking,
+ * which lets cache hits skip maintenance work that another thread is
+ * already doing instead of queueing up behind it.
+ *
+ * @version        $Revision$
+ */
+final class EvictionLock implements Serializable {
+    private static final long serialVersionUID = 2402431389251316407L;
+
+    /**
+     * Whether some thread currently holds the lock.
+     */
+    private boolean locked = false;
+
+    /**
+     * Acquires the lock, waiting for the current holder to release it.
+     */
+    synchronized void lock() {
+        boolean interrupted = false;
+
+        while (locked) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        locked = true;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Acquires the lock only if it is free.
+     *
+     * @return <code>true</code> if the lock was acquired
+     */
+    synchronized boolean tryLock() {
+        if (locked) {
+            return false;
+        }
+
+        locked = true;
+
+        return true;
+    }
+
+    /**
+     * Releases the lock and wakes up one waiting thread, if any.
+     */
+    synchronized void unlock() {
+        locked = false;
+        notify();
+    }
+}
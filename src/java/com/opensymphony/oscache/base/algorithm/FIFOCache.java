@@ -9,9 +9,9 @@ import java.util.*;
 /**
  * FIFO (First In First Out) based queue algorithm for the cache.
  *
- * No synchronization is required in this class since the
- * <code>AbstractConcurrentReadCache</code> already takes care of any
- * synchronization requirements.
+ * The key queue is synchronized on since the hooks of a segmented
+ * <code>AbstractConcurrentReadCache</code> can be invoked concurrently
+ * by writers of different segments.
  *
  * @version        $Revision$
  * @author        <a href="mailto:mike@atlassian.com">Mike Cannon-Brookes</a>
@@ -61,8 +61,10 @@ public class FIFOCache extends AbstractConcurrentReadCache {
      * @param key The cache key of the item that was put.
      */
     protected void itemPut(Object key) {
-        if (!list.contains(key)) {
-            list.add(key);
+        synchronized (list) {
+            if (!list.contains(key)) {
+                list.add(key);
+            }
         }
     }
 
@@ -71,14 +73,22 @@ public class FIFOCache extends AbstractConcurrentReadCache {
      * removes the first element in the list (ie, the item that has been in
      * the cache for the longest time).
      *
-     * @return The key of whichever item was removed.
+     * @return The key of whichever item was removed, or <code>null</code> if
+     * a concurrent eviction already emptied the queue.
      */
     protected Object removeItem() {
-        Iterator it = list.iterator();
-        Object toRemove = it.next();
-        it.remove();
+        synchronized (list) {
+            Iterator it = list.iterator();
 
-        return toRemove;
+            if (!it.hasNext()) {
+                return null;
+            }
+
+            Object toRemove = it.next();
+            it.remove();
+
+            return toRemove;
+        }
     }
 
     /**
@@ -87,6 +97,8 @@ public class FIFOCache extends AbstractConcurrentReadCache {
      * @param key The cache key of the item that was removed.
      */
     protected void itemRemoved(Object key) {
-        list.remove(key);
+        synchronized (list) {
+            list.remove(key);
+        }
     }
 }
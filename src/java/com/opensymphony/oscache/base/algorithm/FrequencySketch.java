@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+/**
+ * A count-min sketch estimating how often keys have been accessed, used
+ * as the frequency filter of the {@link TinyLFUCache}.
+ * <p>
+ * Each key maps to four 4-bit counters, one per hash function, all held
+ * in the same 64-bit word of the table. The estimate is the smallest of the
+ * four, so it can only overestimate. Counters saturate at 15. Once the
+ * number of increments reaches ten times the table size, all counters are
+ * halved, so that keys which used to be popular fade out over time.
+ * <p>
+ * This class is not thread safe. Call only when holding the lock of the
+ * eviction algorithm.
+ *
+ * @version        $Revision$
+ */
+final class FrequencySketch implements Serializable {
+    private static final long serialVersionUID = 6251839263823734981L;
+
+    /**
+     * Seeds of the four hash functions.
+     */
+    private static final long[] SEED = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L
+    };
+
+    /**
+     * Clears the high bit of every counter after a shift.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The low bit of every counter.
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The largest number of keys the table is sized for.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+    private long[] table = new long[1];
+    private int tableMask = 0;
+    private int sampleSize = 10;
+    private int size = 0;
+
+    /**
+     * Sizes the sketch for the supplied number of keys. A sketch that is
+     * already large enough is left alone; a larger one starts over empty.
+     *
+     * @param maximumSize The number of keys the cache can hold
+     */
+    void ensureCapacity(int maximumSize) {
+        int maximum = Math.min(Math.max(maximumSize, 1), MAXIMUM_CAPACITY);
+
+        if (table.length >= maximum) {
+            return;
+        }
+
+        int capacity = 1;
+
+        while (capacity < maximum) {
+            capacity <<= 1;
+        }
+
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of accesses of the key, up to 15.
+     *
+     * @param key The key to look up
+     * @return The estimated frequency
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Records one access of the key, aging the whole sketch when the
+     * sample period is over.
+     *
+     * @param key The key that was accessed
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the counter <code>j</code> (0-15) of word <code>i</code>
+     * unless it is saturated.
+     */
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Halves every counter. The odd counters lose their low bit, which is
+     * accounted for in the new size.
+     */
+    private void reset() {
+        int odd = 0;
+
+        for (int i = 0; i < table.length; i++) {
+            odd += bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    /**
+     * Returns the table word of the <code>i</code>th hash function.
+     */
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+
+        return ((int) hash) & tableMask;
+    }
+
+    /**
+     * Applies a supplemental hash function to defend against poor
+     * <code>hashCode()</code> implementations.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+        return (x >>> 16) ^ x;
+    }
+
+    /**
+     * Counts the bits set in the supplied word.
+     */
+    private static int bitCount(long x) {
+        x = x - ((x >>> 1) & 0x5555555555555555L);
+        x = (x & 0x3333333333333333L) + ((x >>> 2) & 0x3333333333333333L);
+        x = (x + (x >>> 4)) & 0x0f0f0f0f0f0f0f0fL;
+
+        return (int) ((x * 0x0101010101010101L) >>> 56);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+/**
+ * Told about every key added to or removed from the memory table of an
+ * {@link AbstractConcurrentReadCache}, whatever the reason: puts, removals,
+ * evictions by the algorithm, collected values and clears (see
+ * {@link AbstractConcurrentReadCache#setKeyListener(KeyListener)}).
+ * <p>
+ * The calls are made while holding the lock of the segment of the key, so
+ * the calls for a given key come in the order the key was added and removed.
+ * Implementations must therefore be thread safe and quick, and must not call
+ * back into the cache.
+ *
+ * @version        $Revision$
+ */
+public interface KeyListener {
+    /**
+     * A key was added to the table.
+     *
+     * @param key The key of the new mapping
+     */
+    void keyAdded(Object key);
+
+    /**
+     * A key was removed from the table. Its value may still be kept
+     * off-heap or on disk.
+     *
+     * @param key The key of the removed mapping
+     */
+    void keyRemoved(Object key);
+}
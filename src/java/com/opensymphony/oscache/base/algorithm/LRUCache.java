@@ -9,15 +9,17 @@ import java.util.*;
 /**
  * <p>LRU (Least Recently Used) algorithm for the cache.</p>
  *
- * <p>Since release 2.3 this class requires Java 1.4 
- * to use the <code>LinkedHashSet</code>. Use prior OSCache release which
- * require the Jakarta commons-collections <code>SequencedHashMap</code>
- * class or the <code>LinkedList</code> class if neither of the above
- * classes are available.</p>
+ * <p>Since release 2.3 this class requires Java 1.4 to use the
+ * <code>LinkedHashMap</code>. The keys are held by it in access order, so
+ * that a hit moves its key to the end of the list in place rather than
+ * removing it and adding a new link, and doesn't allocate. Use prior OSCache
+ * releases, which require the Jakarta commons-collections
+ * <code>SequencedHashMap</code> class or the <code>LinkedList</code> class,
+ * on older VMs.</p>
  *
- * <p>No synchronization is required in this class since the
- * <code>AbstractConcurrentReadCache</code> already takes care of any
- * synchronization requirements.</p>
+ * <p>All list operations synchronize on the list since hits are not
+ * serialized by the <code>AbstractConcurrentReadCache</code>, and neither
+ * are writes to different segments of a segmented cache.</p>
  *
  * @version        $Revision$
  * @author <a href="mailto:salaman@teknos.com">Victor Salaman</a>
@@ -32,7 +34,7 @@ public class LRUCache extends AbstractConcurrentReadCache {
     /**
      * Cache queue containing all cache keys.
      */
-    private Collection list = new LinkedHashSet();
+    private Map list = new LinkedHashMap(16, 0.75f, true);
 
     /**
      * A flag indicating whether there is a removal operation in progress.
@@ -74,8 +76,7 @@ public class LRUCache extends AbstractConcurrentReadCache {
         // We need to synchronize here because AbstractConcurrentReadCache
         // doesn't prevent multiple threads from calling this method simultaneously.
         synchronized (list) {
-            list.remove(key);
-            list.add(key);
+            list.get(key);
         }
     }
 
@@ -88,8 +89,7 @@ public class LRUCache extends AbstractConcurrentReadCache {
     protected void itemPut(Object key) {
         // Since this entry was just accessed, move it to the back of the list.
     	synchronized (list) { // A further fix for CACHE-44
-    		list.remove(key);
-            list.add(key);
+            list.put(key, key);
         }
     }
 
@@ -134,7 +134,9 @@ public class LRUCache extends AbstractConcurrentReadCache {
      * @param key The cache key of the item that was removed.
      */
     protected void itemRemoved(Object key) {
-        list.remove(key);
+        synchronized (list) {
+            list.remove(key);
+        }
     }
 
     /**
@@ -146,7 +148,7 @@ public class LRUCache extends AbstractConcurrentReadCache {
     	Object toRemove = null;
     	
     	synchronized (list) { // A further fix for CACHE-44 and CACHE-246
-        	Iterator it = list.iterator();
+        	Iterator it = list.keySet().iterator();
         	toRemove = it.next();
         	it.remove();
     	}
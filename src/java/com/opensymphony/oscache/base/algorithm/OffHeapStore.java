@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage tier keeping the serialized values evicted from an
+ * {@link AbstractConcurrentReadCache} outside of the Java heap, in direct
+ * byte buffers. See {@link AbstractConcurrentReadCache#setOffHeapBytes(long)}.
+ * <p>
+ * The buffers are pages of {@link #PAGE_SIZE} bytes, or of a sixteenth of
+ * the capacity for smaller stores, allocated as they are needed until the
+ * capacity is reached. Each page is cut into slots of a single size class,
+ * the size classes being powers of two from {@link #MIN_SLOT_SIZE} bytes up
+ * to the page size, and a value goes in a slot of the smallest class it
+ * fits in. A page whose slots have all been
+ * freed goes back to the pool of free pages, so that the pages follow the
+ * sizes of the values over time. Values larger than a page are not kept.
+ * <p>
+ * Once the capacity is reached, the eldest values of the size class being
+ * stored are evicted to make room. When the class has no page at all, the
+ * eldest values of the class holding the most pages are evicted until one
+ * of its pages is free.
+ * <p>
+ * Only the index of the values stays on the heap: the key, the slot and the
+ * groups of each value. All the methods synchronize on the store.
+ *
+ * @version        $Revision$
+ */
+final class OffHeapStore {
+    private static final Log log = LogFactory.getLog(OffHeapStore.class);
+
+    /**
+     * Size of the pages, in bytes.
+     */
+    static final int PAGE_SIZE = 1 << 20;
+
+    /**
+     * Size of the slots of the smallest size class, in bytes.
+     */
+    static final int MIN_SLOT_SIZE = 64;
+
+    /**
+     * Number of pages the capacity is at least divided into, when it allows,
+     * so that several size classes can share the store.
+     */
+    private static final int MIN_PAGES = 16;
+
+    private final long capacity;
+    private final int pageSize;
+    private final int maxPages;
+
+    /**
+     * The slot size of each size class.
+     */
+    private final int[] slotSizes;
+
+    /**
+     * The pages that have been allocated.
+     */
+    private final List pages = new ArrayList();
+
+    /**
+     * The allocated pages without a size class.
+     */
+    private final List freePages = new ArrayList();
+
+    /**
+     * The pages of each size class with a free slot.
+     */
+    private final List[] availablePages;
+
+    /**
+     * Number of pages of each size class.
+     */
+    private final int[] classPages;
+
+    /**
+     * The slots of each size class by key, eldest first.
+     */
+    private final LinkedHashMap[] classSlots;
+
+    /**
+     * The slots by key.
+     */
+    private final Map index = new HashMap();
+
+    /**
+     * Bytes taken by the slots in use.
+     */
+    private long usedBytes = 0;
+
+    OffHeapStore(long capacity) {
+        if (capacity < MIN_SLOT_SIZE) {
+            throw new IllegalArgumentException("Off-heap capacity must be at least " + MIN_SLOT_SIZE + " bytes");
+        }
+
+        this.capacity = capacity;
+
+        int size = MIN_SLOT_SIZE;
+
+        while ((size < PAGE_SIZE) && ((size * 2L * MIN_PAGES) <= capacity)) {
+            size *= 2;
+        }
+
+        this.pageSize = size;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, capacity / pageSize);
+
+        int classes = 1;
+
+        for (int s = MIN_SLOT_SIZE; s < pageSize; s *= 2) {
+            classes++;
+        }
+
+        slotSizes = new int[classes];
+        availablePages = new List[classes];
+        classPages = new int[classes];
+        classSlots = new LinkedHashMap[classes];
+
+        for (int c = 0; c < classes; c++) {
+            slotSizes[c] = MIN_SLOT_SIZE << c;
+            availablePages[c] = new ArrayList();
+            classSlots[c] = new LinkedHashMap();
+        }
+    }
+
+    /**
+     * Returns the capacity of the store, in bytes.
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of values in the store.
+     */
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of bytes taken by the slots in use.
+     */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Whether the store holds a value for the key.
+     */
+    synchronized boolean contains(Object key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Stores a serialized value, replacing the previous value of the key.
+     *
+     * @param key the key of the value
+     * @param data the serialized value
+     * @param groups the groups of the value, or <code>null</code>
+     * @param evicted receives a {@link Record} for each value evicted to make room
+     * @return whether the value has been stored, <code>false</code> if it is
+     * larger than a page
+     */
+    synchronized boolean store(Object key, byte[] data, Set groups, List evicted) {
+        Slot previous = (Slot) index.remove(key);
+
+        if (previous != null) {
+            free(previous);
+        }
+
+        int sizeClass = sizeClass(data.length);
+
+        if (sizeClass < 0) {
+            return false;
+        }
+
+        Slot slot = allocate(sizeClass, evicted);
+        slot.length = data.length;
+        slot.groups = groups;
+
+        ByteBuffer buffer = slot.page.buffer;
+        buffer.clear();
+        buffer.position(slot.index * slot.page.slotSize);
+        buffer.put(data);
+
+        slot.page.keys[slot.index] = key;
+        index.put(key, slot);
+        classSlots[sizeClass].put(key, slot);
+
+        return true;
+    }
+
+    /**
+     * Removes the value of a key from the store and returns it.
+     *
+     * @return the serialized value, or <code>null</code> if there is none
+     */
+    synchronized byte[] take(Object key) {
+        Slot slot = (Slot) index.remove(key);
+
+        if (slot == null) {
+            return null;
+        }
+
+        byte[] data = read(slot);
+        free(slot);
+
+        return data;
+    }
+
+    /**
+     * Removes the value of a key from the store, without reading it.
+     *
+     * @return the removed value, without its data, or <code>null</code> if there is none
+     */
+    synchronized Record remove(Object key) {
+        Slot slot = (Slot) index.remove(key);
+
+        if (slot == null) {
+            return null;
+        }
+
+        free(slot);
+
+        return new Record(key, slot.groups, null);
+    }
+
+    /**
+     * Removes all the values. The pages are kept for the values to come.
+     */
+    synchronized void clear() {
+        index.clear();
+        freePages.clear();
+
+        for (int c = 0; c < slotSizes.length; c++) {
+            availablePages[c].clear();
+            classPages[c] = 0;
+            classSlots[c].clear();
+        }
+
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = (Page) pages.get(i);
+            page.reset(-1, 0);
+            freePages.add(page);
+        }
+
+        usedBytes = 0;
+    }
+
+    /**
+     * Serializes a value for the store.
+     *
+     * @return the serialized value, or <code>null</code> if it can't be serialized
+     */
+    static byte[] serialize(Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Value can't be kept off-heap: " + e);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Deserializes a value read from the store.
+     *
+     * @return the value, or <code>null</code> if it can't be deserialized
+     */
+    static Object deserialize(byte[] data) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.warn("Unable to read back an off-heap cache value", e);
+
+            return null;
+        }
+    }
+
+    /**
+     * Returns the smallest size class the supplied number of bytes fits in,
+     * or <code>-1</code> if they don't fit in a page.
+     */
+    private int sizeClass(int length) {
+        for (int c = 0; c < slotSizes.length; c++) {
+            if (length <= slotSizes[c]) {
+                return c;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds a free slot of a size class, evicting values if needed.
+     */
+    private Slot allocate(int sizeClass, List evicted) {
+        for (;;) {
+            List available = availablePages[sizeClass];
+
+            if (!available.isEmpty()) {
+                Page page = (Page) available.get(available.size() - 1);
+                int slotIndex = page.allocate();
+
+                if (page.isFull()) {
+                    available.remove(available.size() - 1);
+                }
+
+                usedBytes += page.slotSize;
+
+                return new Slot(page, slotIndex, sizeClass);
+            }
+
+            Page page = null;
+
+            if (!freePages.isEmpty()) {
+                page = (Page) freePages.remove(freePages.size() - 1);
+            } else if (pages.size() < maxPages) {
+                page = new Page(ByteBuffer.allocateDirect(pageSize));
+                pages.add(page);
+            }
+
+            if (page != null) {
+                page.reset(sizeClass, slotSizes[sizeClass]);
+                classPages[sizeClass]++;
+                available.add(page);
+                continue;
+            }
+
+            // Full: make room in the class, or free a page of the largest class
+            int victimClass = sizeClass;
+
+            if (classSlots[sizeClass].isEmpty()) {
+                for (int c = 0; c < slotSizes.length; c++) {
+                    if (classPages[c] > classPages[victimClass]) {
+                        victimClass = c;
+                    }
+                }
+            }
+
+            evictEldest(victimClass, evicted);
+        }
+    }
+
+    private void evictEldest(int sizeClass, List evicted) {
+        Iterator it = classSlots[sizeClass].values().iterator();
+        Slot slot = (Slot) it.next();
+        Object key = slot.page.keys[slot.index];
+
+        index.remove(key);
+        evicted.add(new Record(key, slot.groups, read(slot)));
+        free(slot);
+    }
+
+    private byte[] read(Slot slot) {
+        byte[] data = new byte[slot.length];
+        ByteBuffer buffer = slot.page.buffer;
+        buffer.clear();
+        buffer.position(slot.index * slot.page.slotSize);
+        buffer.get(data);
+
+        return data;
+    }
+
+    /**
+     * Releases a slot that has already been taken out of the index.
+     */
+    private void free(Slot slot) {
+        Page page = slot.page;
+        int sizeClass = slot.sizeClass;
+
+        classSlots[sizeClass].remove(page.keys[slot.index]);
+        usedBytes -= page.slotSize;
+
+        boolean wasFull = page.isFull();
+        page.free(slot.index);
+
+        if (page.isEmpty()) {
+            // Give the page back, for any size class
+            if (!wasFull) {
+                availablePages[sizeClass].remove(page);
+            }
+
+            classPages[sizeClass]--;
+            page.reset(-1, 0);
+            freePages.add(page);
+        } else if (wasFull) {
+            availablePages[sizeClass].add(page);
+        }
+    }
+
+    /**
+     * A stored value, as returned by {@link OffHeapStore#remove(Object)} or
+     * evicted by {@link OffHeapStore#store(Object, byte[], Set, List)}.
+     */
+    static final class Record {
+        final Object key;
+        final Set groups;
+
+        /**
+         * The serialized value, only read for the evicted values.
+         */
+        final byte[] data;
+
+        Record(Object key, Set groups, byte[] data) {
+            this.key = key;
+            this.groups = groups;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The place of a value in the pages.
+     */
+    private static final class Slot {
+        final Page page;
+        final int index;
+        final int sizeClass;
+        int length;
+        Set groups;
+
+        Slot(Page page, int index, int sizeClass) {
+            this.page = page;
+            this.index = index;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    /**
+     * A direct buffer cut into slots of the same size.
+     */
+    private static final class Page {
+        final ByteBuffer buffer;
+        int slotSize;
+
+        /**
+         * The key held by each slot, <code>null</code> for the free slots.
+         */
+        Object[] keys;
+
+        /**
+         * The slots that have been freed.
+         */
+        int[] freed;
+        int freedCount;
+
+        /**
+         * The number of slots that have never been used since the page was
+         * given its size class.
+         */
+        int unused;
+        int used;
+
+        Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void reset(int sizeClass, int slotSize) {
+            this.slotSize = slotSize;
+
+            int slots = (sizeClass < 0) ? 0 : (buffer.capacity() / slotSize);
+            keys = new Object[slots];
+            freed = new int[slots];
+            freedCount = 0;
+            unused = slots;
+            used = 0;
+        }
+
+        int allocate() {
+            used++;
+
+            if (freedCount > 0) {
+                return freed[--freedCount];
+            }
+
+            return keys.length - unused--;
+        }
+
+        void free(int slotIndex) {
+            keys[slotIndex] = null;
+            freed[freedCount++] = slotIndex;
+            used--;
+        }
+
+        boolean isFull() {
+            return used == keys.length;
+        }
+
+        boolean isEmpty() {
+            return used == 0;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of the persistence writes of an {@link AbstractConcurrentReadCache}.
+ * <p>
+ * Writes are queued while the cache holds a segment lock, in the order the
+ * table was modified, and performed later by {@link #drain()} once the lock
+ * has been released. Only one thread drains at a time and it performs the
+ * writes in queue order, so a store can never overtake a later remove of the
+ * same key. A thread finding another one draining simply returns, leaving
+ * its writes to it: a slow persistence listener thus delays one writer, not
+ * all of them.
+ * <p>
+ * The drainer performs its own writes and those queued before, but not the
+ * writes of everyone else for as long as they arrive: once it has performed
+ * {@link #DRAIN_QUOTA} writes, the next writer calling {@link #drain()} waits
+ * for the write in progress and takes over. If no writer comes, the drainer
+ * finishes the queue itself, so that no write is left behind. The queue is
+ * bounded as well: while more than {@link #MAX_PENDING} writes are queued,
+ * the writers calling {@link #drain()} wait for the drainer to catch up, so
+ * that a slow persistence listener slows the writers down rather than
+ * filling the heap.
+ * <p>
+ * Until it has been written, the latest queued value of a key is returned by
+ * {@link #pendingValue(Object)}, so that reads never see the persistent store
+ * lagging behind the cache.
+ * <p>
+ * The group writes queued behind one another, as when a batch of entries is
+ * put in the same groups, are merged: the drainer takes the queued additions
+ * to and removals from a group along with the first one, up to the next
+ * clear, and reads and stores the group once for all of them.
+ *
+ * @version        $Revision$
+ */
+final class PersistenceQueue {
+    /**
+     * Returned by {@link #pendingValue(Object)} for keys without a queued write.
+     */
+    static final Object NOT_PENDING = new Object();
+
+    private static final int STORE = 0;
+    private static final int REMOVE = 1;
+    private static final int ADD_TO_GROUP = 2;
+    private static final int REMOVE_FROM_GROUP = 3;
+    private static final int CLEAR = 4;
+
+    /**
+     * Number of queued writes above which the writers wait for the drainer.
+     */
+    static final int MAX_PENDING = 10000;
+
+    /**
+     * Number of writes a drainer performs before handing over to the next
+     * writer.
+     */
+    static final int DRAIN_QUOTA = 256;
+
+    /**
+     * The cache whose persist methods perform the writes.
+     */
+    private final AbstractConcurrentReadCache cache;
+
+    /**
+     * The writes still to be performed, in order.
+     */
+    private final LinkedList operations = new LinkedList();
+
+    /**
+     * The latest queued or running store or remove of each key.
+     */
+    private final Map pendingKeys = new HashMap();
+
+    /**
+     * Number of queued or running clears. While there is one, keys without
+     * a later write are known to be gone.
+     */
+    private int pendingClears = 0;
+
+    /**
+     * Number of writes ever queued.
+     */
+    private long writeCount = 0;
+
+    /**
+     * Whether a thread is performing the writes.
+     */
+    private boolean draining = false;
+
+    /**
+     * Whether the drainer has performed its quota, so that the next writer
+     * takes over.
+     */
+    private boolean handOff = false;
+
+    /**
+     * Number of threads waiting in {@link #drain()}, to take over from the
+     * drainer or for the queue to shrink.
+     */
+    private int waiting = 0;
+
+    private final int maxPending;
+    private final int drainQuota;
+
+    /**
+     * Number of queued writes, read without locking to make draining an
+     * empty queue cheap.
+     */
+    private volatile int size = 0;
+
+    PersistenceQueue(AbstractConcurrentReadCache cache) {
+        this(cache, MAX_PENDING, DRAIN_QUOTA);
+    }
+
+    /**
+     * Creates a queue with the supplied limits, for the tests.
+     */
+    PersistenceQueue(AbstractConcurrentReadCache cache, int maxPending, int drainQuota) {
+        this.cache = cache;
+        this.maxPending = maxPending;
+        this.drainQuota = drainQuota;
+    }
+
+    /**
+     * Queues the storage of an entry.
+     */
+    void store(Object key, Object value) {
+        enqueue(new Operation(STORE, key, value));
+    }
+
+    /**
+     * Queues the removal of an entry.
+     */
+    void remove(Object key) {
+        enqueue(new Operation(REMOVE, key, null));
+    }
+
+    /**
+     * Queues the addition of a key to a persistent group.
+     */
+    void addToGroup(String groupName, String key) {
+        enqueue(new Operation(ADD_TO_GROUP, key, groupName));
+    }
+
+    /**
+     * Queues the removal of a key from a persistent group.
+     */
+    void removeFromGroup(String groupName, String key) {
+        enqueue(new Operation(REMOVE_FROM_GROUP, key, groupName));
+    }
+
+    /**
+     * Queues the removal of every persisted entry. The writes queued before
+     * are dropped, except the one being performed.
+     */
+    synchronized void clear() {
+        if (cache.persistenceListener == null) {
+            return;
+        }
+
+        operations.clear();
+        pendingKeys.clear();
+        pendingClears++;
+        writeCount++;
+        operations.addLast(new Operation(CLEAR, null, null));
+        size = operations.size();
+    }
+
+    /**
+     * Returns the value the persistent store will hold for the key once the
+     * queued writes are performed: the queued value, <code>null</code> if the
+     * entry is being removed, or {@link #NOT_PENDING} if the store is up to
+     * date for that key.
+     */
+    synchronized Object pendingValue(Object key) {
+        Operation operation = (Operation) pendingKeys.get(key);
+
+        if (operation != null) {
+            return (operation.type == STORE) ? operation.value : null;
+        }
+
+        return (pendingClears > 0) ? null : NOT_PENDING;
+    }
+
+    /**
+     * Returns the number of writes queued so far. As writes of a key are
+     * queued under its segment lock, an unchanged count shows that a value
+     * read before taking the lock is still current.
+     */
+    synchronized long writeCount() {
+        return writeCount;
+    }
+
+    /**
+     * Performs the queued writes, unless another thread is doing so. Returns
+     * without writing anything when called while holding the cache monitor
+     * or a segment lock, as the persistence listener must never be called
+     * under them; the writes are then left to the next call.
+     * <p>
+     * A thread finding another one draining returns straight away, unless
+     * the drainer has performed its quota, in which case it takes over, or
+     * too many writes are queued, in which case it waits for the queue to
+     * shrink.
+     */
+    void drain() {
+        if ((size == 0) || cache.holdsLock()) {
+            return;
+        }
+
+        Operation operation;
+
+        synchronized (this) {
+            for (;;) {
+                if (operations.isEmpty()) {
+                    return;
+                }
+
+                if (!draining) {
+                    break;
+                }
+
+                if (!handOff && (operations.size() <= maxPending)) {
+                    return;
+                }
+
+                waiting++;
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    return;
+                } finally {
+                    waiting--;
+                }
+            }
+
+            draining = true;
+            handOff = false;
+            operation = (Operation) operations.removeFirst();
+            size = operations.size();
+        }
+
+        int performed = 0;
+        boolean completed = false;
+
+        try {
+            while (operation != null) {
+                List batch = null;
+
+                if ((operation.type == ADD_TO_GROUP) || (operation.type == REMOVE_FROM_GROUP)) {
+                    synchronized (this) {
+                        batch = takeGroupOperations((String) operation.value);
+                    }
+                }
+
+                if (batch == null) {
+                    perform(operation);
+                } else {
+                    performGroup(operation, batch);
+                }
+
+                performed++;
+
+                synchronized (this) {
+                    done(operation);
+
+                    if (performed >= drainQuota) {
+                        handOff = true;
+                    }
+
+                    if (operations.isEmpty() || (handOff && (waiting > 0))) {
+                        // Done, or a writer is waiting to take over
+                        operation = null;
+                        draining = false;
+                        handOff = false;
+                        notifyAll();
+                    } else {
+                        operation = (Operation) operations.removeFirst();
+                        size = operations.size();
+
+                        if (waiting > 0) {
+                            // The queue has shrunk
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+
+            completed = true;
+        } finally {
+            if (!completed) {
+                // The listener threw: leave the remaining writes to the next caller
+                synchronized (this) {
+                    done(operation);
+                    draining = false;
+                    handOff = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the writes queued so far have been performed. Returns
+     * immediately when called while holding the cache monitor or a segment
+     * lock.
+     */
+    void await() {
+        while (!cache.holdsLock()) {
+            drain();
+
+            synchronized (this) {
+                if (!draining) {
+                    if (operations.isEmpty()) {
+                        return;
+                    }
+
+                    continue;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        if (cache.persistenceListener == null) {
+            return;
+        }
+
+        if ((operation.type == STORE) || (operation.type == REMOVE)) {
+            pendingKeys.put(operation.key, operation);
+        }
+
+        writeCount++;
+        operations.addLast(operation);
+        size = operations.size();
+    }
+
+    /**
+     * Forgets a performed write. Call only when holding the queue monitor.
+     */
+    private void done(Operation operation) {
+        if (operation.type == CLEAR) {
+            pendingClears--;
+        } else if (pendingKeys.get(operation.key) == operation) {
+            pendingKeys.remove(operation.key);
+        }
+    }
+
+    /**
+     * Takes the queued writes to a group, up to the next clear. Call only
+     * when holding the queue monitor.
+     *
+     * @return the writes taken, or <code>null</code> if there were none.
+     */
+    private List takeGroupOperations(String groupName) {
+        List batch = null;
+
+        for (Iterator it = operations.iterator(); it.hasNext();) {
+            Operation queued = (Operation) it.next();
+
+            if (queued.type == CLEAR) {
+                break;
+            }
+
+            if (((queued.type == ADD_TO_GROUP) || (queued.type == REMOVE_FROM_GROUP)) && groupName.equals(queued.value)) {
+                if (batch == null) {
+                    batch = new ArrayList();
+                }
+
+                batch.add(queued);
+                it.remove();
+            }
+        }
+
+        if (batch != null) {
+            size = operations.size();
+        }
+
+        return batch;
+    }
+
+    /**
+     * Performs a group write along with the later writes to the same group.
+     */
+    private void performGroup(Operation first, List batch) {
+        String[] keys = new String[batch.size() + 1];
+        boolean[] added = new boolean[keys.length];
+        keys[0] = (String) first.key;
+        added[0] = (first.type == ADD_TO_GROUP);
+
+        for (int i = 1; i < keys.length; i++) {
+            Operation operation = (Operation) batch.get(i - 1);
+            keys[i] = (String) operation.key;
+            added[i] = (operation.type == ADD_TO_GROUP);
+        }
+
+        cache.persistUpdateGroup((String) first.value, keys, added);
+    }
+
+    private void perform(Operation operation) {
+        switch (operation.type) {
+            case STORE:
+                cache.persistStore(operation.key, operation.value);
+
+                break;
+
+            case REMOVE:
+                cache.persistRemove(operation.key);
+
+                break;
+
+            case ADD_TO_GROUP:
+                cache.persistAddToGroup((String) operation.value, (String) operation.key);
+
+                break;
+
+            case REMOVE_FROM_GROUP:
+                cache.persistRemoveFromGroup((String) operation.value, (String) operation.key);
+
+                break;
+
+            case CLEAR:
+                cache.persistClear();
+
+                break;
+        }
+    }
+
+    /**
+     * A queued write. For group operations the value is the group name.
+     */
+    private static final class Operation {
+        final int type;
+        final Object key;
+        final Object value;
+
+        Operation(int type, Object key, Object value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
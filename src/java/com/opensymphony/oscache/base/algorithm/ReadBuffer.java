@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+/**
+ * Striped, lossy buffers recording which keys have been read. Cache hits
+ * append to the stripe selected by the calling thread without taking any
+ * lock; the eviction algorithm replays the recorded keys in batches while
+ * it holds its own lock.
+ * <p>
+ * Writers to the same stripe may overwrite each other's slots, and a
+ * stripe only remembers its last {@link #STRIPE_SIZE} reads. Both losses
+ * are acceptable since the buffer only feeds an approximation of recency
+ * or frequency.
+ *
+ * @version        $Revision$
+ */
+final class ReadBuffer implements Serializable {
+    private static final long serialVersionUID = -1887265372133342215L;
+
+    /**
+     * The number of slots of a stripe. MUST be a power of two.
+     */
+    static final int STRIPE_SIZE = 32;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    /**
+     * The maximum number of stripes. MUST be a power of two.
+     */
+    private static final int MAXIMUM_STRIPES = 64;
+
+    /**
+     * Receives the keys replayed by {@link ReadBuffer#drain}.
+     */
+    interface Consumer {
+        /**
+         * Called for each recorded read, oldest first within a stripe.
+         *
+         * @param key The key that was read
+         */
+        void keyRead(Object key);
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * Creates a buffer with one stripe per available processor, rounded
+     * up to a power of two.
+     */
+    ReadBuffer() {
+        int count = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        while ((count < cpus) && (count < MAXIMUM_STRIPES)) {
+            count <<= 1;
+        }
+
+        stripes = new Stripe[count];
+
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        mask = count - 1;
+    }
+
+    /**
+     * Records a read of the supplied key. This never blocks.
+     *
+     * @param key The key that was read
+     * @return <code>true</code> if the stripe just filled up and should be drained
+     */
+    boolean record(Object key) {
+        int h = Thread.currentThread().hashCode();
+        Stripe stripe = stripes[(h ^ (h >>> 16)) & mask];
+
+        int n = stripe.recorded;
+        stripe.keys[n & STRIPE_MASK] = key;
+
+        // The volatile write publishes the slot to the draining thread
+        stripe.recorded = n + 1;
+
+        return (n & STRIPE_MASK) == STRIPE_MASK;
+    }
+
+    /**
+     * Replays all reads recorded since the last drain. Call only when
+     * holding the lock of the eviction algorithm.
+     *
+     * @param consumer Receives the recorded keys
+     */
+    void drain(Consumer consumer) {
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            int end = stripe.recorded;
+            int start = stripe.drained;
+            int pending = end - start;
+
+            // Reads that were overwritten, or a racing writer that moved the
+            // counter backwards: only the last lap is still in the slots
+            if ((pending < 0) || (pending > STRIPE_SIZE)) {
+                start = end - STRIPE_SIZE;
+            }
+
+            for (int i = start; i != end; i++) {
+                Object key = stripe.keys[i & STRIPE_MASK];
+
+                if (key != null) {
+                    consumer.keyRead(key);
+                }
+            }
+
+            stripe.drained = end;
+        }
+    }
+
+    /**
+     * One stripe of the buffer.
+     */
+    private static final class Stripe implements Serializable {
+        private static final long serialVersionUID = 4979223812497209434L;
+
+        final Object[] keys = new Object[STRIPE_SIZE];
+
+        /**
+         * Number of reads recorded so far. Written by the reading threads.
+         */
+        volatile int recorded;
+
+        /**
+         * Value of <code>recorded</code> at the last drain. Only accessed by
+         * the draining thread.
+         */
+        int drained;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+import com.opensymphony.oscache.util.SizeEstimator;
+
+/**
+ * The default {@link EntryWeigher}. {@link CacheEntry} values weigh what
+ * {@link CacheEntry#getSize()} reports, any other mapping is estimated by
+ * the {@link SizeEstimator}.
+ *
+ * @version        $Revision$
+ */
+public class SizeEntryWeigher implements EntryWeigher {
+    public int weigh(Object key, Object value) {
+        if (value instanceof CacheEntry) {
+            return ((CacheEntry) value).getSize();
+        }
+
+        return SizeEstimator.estimate(key) + SizeEstimator.estimate(value);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import java.io.Serializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>W-TinyLFU algorithm for the cache: a small LRU admission window in
+ * front of a segmented LRU main region, guarded by a frequency filter.</p>
+ *
+ * <p>New keys enter the window, which holds about 1% of the capacity.
+ * A key pushed out of the window has to compete with the least recently
+ * used key of the main region's probation segment, and only replaces it
+ * if it has been accessed more often according to a {@link FrequencySketch}
+ * that is periodically aged. Keys hit while on probation are promoted to
+ * the protected segment (80% of the main region). One-off keys, such as
+ * those requested by crawlers or scans, therefore go through the window
+ * without evicting the frequently used entries.</p>
+ *
+ * <p>Like the {@link ConcurrentLRUCache}, cache hits are only recorded in a
+ * striped {@link ReadBuffer} and are applied to the regions and to the
+ * sketch in batches.</p>
+ *
+ * @version        $Revision$
+ */
+public class TinyLFUCache extends AbstractConcurrentReadCache {
+    private static final long serialVersionUID = -3117416271416375302L;
+
+    /**
+     * Percentage of the capacity given to the admission window.
+     */
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    /**
+     * Percentage of the main region given to the protected segment.
+     */
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * Region nodes by key.
+     */
+    private final Map nodes = new HashMap();
+
+    /**
+     * Sentinels of the three circular LRU lists, indexed by region. The
+     * successor of a sentinel is the least recently used key of the region.
+     */
+    private final Node[] heads = {new Node(null), new Node(null), new Node(null)};
+
+    /**
+     * Number of keys held in each region.
+     */
+    private final int[] sizes = new int[3];
+
+    /**
+     * Access frequency estimates.
+     */
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    /**
+     * Reads that have not been applied yet.
+     */
+    private final ReadBuffer readBuffer = new ReadBuffer();
+
+    /**
+     * Guards all of the above except the read buffer.
+     */
+    private final EvictionLock evictionLock = new EvictionLock();
+
+    /**
+     * Applies buffered reads.
+     */
+    private final ReadBuffer.Consumer readApplier = new ReadApplier();
+
+    /**
+     * Constructs a TinyLFU Cache.
+     */
+    public TinyLFUCache() {
+        super();
+    }
+
+    /**
+     * Constructs a TinyLFU Cache of the specified capacity.
+     *
+     * @param capacity The maximum cache capacity.
+     */
+    public TinyLFUCache(int capacity) {
+        this();
+        maxEntries = capacity;
+    }
+
+    /**
+     * An item was retrieved from the cache. The access is buffered and
+     * only applied later.
+     *
+     * @param key The cache key of the item that was retrieved.
+     */
+    protected void itemRetrieved(Object key) {
+        if (readBuffer.record(key) && evictionLock.tryLock()) {
+            try {
+                readBuffer.drain(readApplier);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * An object was put in the cache. A new key enters the admission window,
+     * and the window's overflow moves to probation. Replacing an existing
+     * entry counts as an access.
+     *
+     * @param key The cache key of the item that was put.
+     */
+    protected void itemPut(Object key) {
+        evictionLock.lock();
+
+        try {
+            sketch.ensureCapacity(maxEntries);
+            sketch.increment(key);
+
+            Node node = (Node) nodes.get(key);
+
+            if (node != null) {
+                onAccess(node);
+
+                return;
+            }
+
+            node = new Node(key);
+            nodes.put(key, node);
+            append(node, WINDOW);
+
+            // While the cache fills up nothing is evicted, the window
+            // simply spills into the main region
+            int windowMaximum = windowMaximum();
+
+            while (sizes[WINDOW] > windowMaximum) {
+                Node eldest = heads[WINDOW].next;
+                unlink(eldest);
+                append(eldest, PROBATION);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * An item needs to be removed from the cache. If the admission window
+     * is full, its eldest key is about to move to the main region and has
+     * to beat the main region's victim on frequency; whichever loses is
+     * evicted. Otherwise the main region's victim is evicted.
+     *
+     * @return The key of whichever item was removed, or <code>null</code>
+     * if no key is known.
+     */
+    protected Object removeItem() {
+        evictionLock.lock();
+
+        try {
+            readBuffer.drain(readApplier);
+
+            Node victim = mainVictim();
+            Node evicted;
+
+            if ((sizes[WINDOW] > 0) && (sizes[WINDOW] >= windowMaximum())) {
+                Node candidate = heads[WINDOW].next;
+
+                if ((victim != null) && (sketch.frequency(candidate.key) > sketch.frequency(victim.key))) {
+                    unlink(candidate);
+                    append(candidate, PROBATION);
+                    evicted = victim;
+                } else {
+                    evicted = candidate;
+                }
+            } else if (victim != null) {
+                evicted = victim;
+            } else if (sizes[WINDOW] > 0) {
+                evicted = heads[WINDOW].next;
+            } else {
+                return null;
+            }
+
+            unlink(evicted);
+            nodes.remove(evicted.key);
+
+            return evicted.key;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove specified key since that object has been removed from the cache.
+     *
+     * @param key The cache key of the item that was removed.
+     */
+    protected void itemRemoved(Object key) {
+        evictionLock.lock();
+
+        try {
+            Node node = (Node) nodes.remove(key);
+
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the least recently used key of the main region, taken from
+     * probation first.
+     */
+    private Node mainVictim() {
+        if (sizes[PROBATION] > 0) {
+            return heads[PROBATION].next;
+        }
+
+        if (sizes[PROTECTED] > 0) {
+            return heads[PROTECTED].next;
+        }
+
+        return null;
+    }
+
+    /**
+     * Moves an accessed key to the most recently used end of its region,
+     * promoting it to the protected segment if it was on probation.
+     */
+    private void onAccess(Node node) {
+        int region = node.region;
+        unlink(node);
+
+        if (region == PROBATION) {
+            append(node, PROTECTED);
+
+            int protectedMaximum = protectedMaximum();
+
+            while (sizes[PROTECTED] > protectedMaximum) {
+                Node demoted = heads[PROTECTED].next;
+                unlink(demoted);
+                append(demoted, PROBATION);
+            }
+        } else {
+            append(node, region);
+        }
+    }
+
+    private int windowMaximum() {
+        return Math.max(1, (int) (((long) maxEntries * WINDOW_PERCENTAGE) / 100));
+    }
+
+    private int protectedMaximum() {
+        long main = Math.max(0, maxEntries - windowMaximum());
+
+        return (int) ((main * PROTECTED_PERCENTAGE) / 100);
+    }
+
+    private void append(Node node, int region) {
+        Node head = heads[region];
+        node.region = region;
+        node.next = head;
+        node.prev = head.prev;
+        node.prev.next = node;
+        head.prev = node;
+        sizes[region]++;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.next = node;
+        node.prev = node;
+        sizes[node.region]--;
+    }
+
+    /**
+     * Counts a buffered read and moves the key within the regions, unless
+     * it has been removed in the meantime.
+     * Call only when holding the eviction lock.
+     */
+    private final class ReadApplier implements ReadBuffer.Consumer, Serializable {
+        private static final long serialVersionUID = 2736281934561893640L;
+
+        public void keyRead(Object key) {
+            Node node = (Node) nodes.get(key);
+
+            if (node != null) {
+                sketch.increment(key);
+                onAccess(node);
+            }
+        }
+    }
+
+    /**
+     * A node of one of the region lists.
+     */
+    private static final class Node implements Serializable {
+        private static final long serialVersionUID = -1432176419523018766L;
+        final Object key;
+        int region;
+        Node next = this;
+        Node prev = this;
+
+        Node(Object key) {
+            this.key = key;
+        }
+    }
+}
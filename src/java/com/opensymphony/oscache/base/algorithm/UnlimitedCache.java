@@ -40,6 +40,18 @@ public final class UnlimitedCache extends AbstractConcurrentReadCache {
     	log.warn("Cache max entries can't be set in " + this.getClass().getName() + ", ignoring value " + maxEntries + ".");
     }
 
+    /**
+     * Rejects any byte budget: an <code>UnlimitedCache</code> never evicts,
+     * so it couldn't enforce one.
+     *
+     * @throws IllegalArgumentException if <code>maxBytes</code> is not <code>0</code>.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes != 0) {
+            throw new IllegalArgumentException("A byte budget can't be enforced by " + this.getClass().getName() + ", which never evicts entries");
+        }
+    }
+
     /**
      * Implements <code>itemRetrieved</code> with an empty implementation.
      * The unlimited cache doesn't care that an item was retrieved.
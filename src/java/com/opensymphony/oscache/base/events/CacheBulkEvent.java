@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+import com.opensymphony.oscache.base.Cache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CacheBulkEvent is the object created when a bulk operation is performed on
+ * a batch of cache entries (get, put, flush). It contains the entries and
+ * their map.
+ *
+ * @version        $Revision$
+ */
+public final class CacheBulkEvent extends CacheEvent {
+    /**
+     * The cache where the entries reside.
+     */
+    private Cache map = null;
+
+    /**
+     * The entries that the event applies to.
+     */
+    private List entries = null;
+
+    /**
+     * The keys the caller has to rebuild, for access events.
+     */
+    private List rebuildKeys = null;
+
+    /**
+     * Constructs a cache bulk event object
+     *
+     * @param map     The cache map of the cache entries
+     * @param entries The cache entries that the event applies to
+     * @param rebuildKeys The keys of the requested entries that are missing
+     * or stale, for access events (optional)
+     * @param origin  An optional tag that can be attached to the event to
+     * specify the event's origin. This is useful to prevent events from being
+     * fired recursively in some situations, such as when an event handler
+     * causes another event to be fired.
+     */
+    public CacheBulkEvent(Cache map, List entries, List rebuildKeys, String origin) {
+        super(origin);
+        this.map = map;
+        this.entries = Collections.unmodifiableList(entries);
+        this.rebuildKeys = (rebuildKeys == null) ? Collections.EMPTY_LIST : Collections.unmodifiableList(rebuildKeys);
+    }
+
+    /**
+     * Retrieve the cache entries that the event applies to: the entries that
+     * were put or flushed, or those that were returned by a bulk get.
+     *
+     * @return a list of {@link com.opensymphony.oscache.base.CacheEntry}
+     */
+    public List getEntries() {
+        return entries;
+    }
+
+    /**
+     * Retrieve the keys of the requested entries that were missing or stale,
+     * and that the caller has to rebuild. Empty for put and flush events.
+     */
+    public List getRebuildKeys() {
+        return rebuildKeys;
+    }
+
+    /**
+     * Retrieve the cache map where the entries reside.
+     */
+    public Cache getMap() {
+        return map;
+    }
+
+    public String toString() {
+        return "entries=" + entries.size() + ", rebuildKeys=" + rebuildKeys;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+
+/**
+ * This is the interface to listen to the bulk operations of the cache:
+ * {@link com.opensymphony.oscache.base.Cache#getAll(String[], int)},
+ * {@link com.opensymphony.oscache.base.Cache#putAll(java.util.Map, String[], com.opensymphony.oscache.base.EntryRefreshPolicy)}
+ * and {@link com.opensymphony.oscache.base.Cache#flushEntries(String[])}.
+ * A listener implementing this interface receives a single event for each
+ * bulk operation, instead of the access or entry events of every entry of
+ * the batch. The entry events of the other operations are dispatched to it
+ * as before.
+ *
+ * @version        $Revision$
+ */
+public interface CacheBulkEventListener extends CacheEventListener {
+    /**
+     * Event fired when a batch of entries is requested from the cache.
+     */
+    void cacheEntriesAccessed(CacheBulkEvent event);
+
+    /**
+     * Event fired when a batch of entries is added to or updated in the cache.
+     */
+    void cacheEntriesPut(CacheBulkEvent event);
+
+    /**
+     * Event fired when a batch of entries is flushed from the cache.
+     */
+    void cacheEntriesFlushed(CacheBulkEvent event);
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the listeners registered with a cache or a cache administrator,
+ * already split by listener interface.
+ * <p>
+ * The listeners are kept in arrays that are copied whenever a listener is
+ * added or removed, and never modified once published. Dispatching an event
+ * thus takes the array of the listeners interested in it without locking or
+ * copying anything, and the common case of no listener of a kind is a check
+ * of the array length. Listeners implementing several interfaces appear in
+ * each of their arrays.
+ * <p>
+ * Like <code>javax.swing.event.EventListenerList</code> that it replaces, the
+ * registry only serializes the listeners that are serializable.
+ *
+ * @version        $Revision$
+ */
+public final class ListenerRegistry implements Serializable {
+    private static final CacheEventListener[] NO_LISTENERS = new CacheEventListener[0];
+    private static final CacheEntryEventListener[] NO_ENTRY_LISTENERS = new CacheEntryEventListener[0];
+    private static final CacheMapAccessEventListener[] NO_ACCESS_LISTENERS = new CacheMapAccessEventListener[0];
+    private static final CacheBulkEventListener[] NO_BULK_LISTENERS = new CacheBulkEventListener[0];
+    private static final ScopeEventListener[] NO_SCOPE_LISTENERS = new ScopeEventListener[0];
+
+    /**
+     * All the listeners, in the order they were registered.
+     */
+    private transient volatile CacheEventListener[] listeners = NO_LISTENERS;
+    private transient volatile CacheEntryEventListener[] entryListeners = NO_ENTRY_LISTENERS;
+    private transient volatile CacheMapAccessEventListener[] accessListeners = NO_ACCESS_LISTENERS;
+    private transient volatile CacheBulkEventListener[] bulkListeners = NO_BULK_LISTENERS;
+    private transient volatile ScopeEventListener[] scopeListeners = NO_SCOPE_LISTENERS;
+
+    /**
+     * Whether some entry or bulk listeners don't implement {@link SynchronousEventListener}.
+     */
+    private transient volatile boolean asynchronousListeners = false;
+
+    /**
+     * Registers a listener. A listener registered twice is notified twice.
+     *
+     * @param listener the listener to register
+     */
+    public synchronized void add(CacheEventListener listener) {
+        if (listener == null) {
+            return;
+        }
+
+        CacheEventListener[] newListeners = new CacheEventListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        publish(newListeners);
+    }
+
+    /**
+     * Unregisters the listener registered last, if it was registered several
+     * times.
+     *
+     * @param listener the listener to unregister
+     * @return <code>true</code> if the listener was registered.
+     */
+    public synchronized boolean remove(CacheEventListener listener) {
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            if (listeners[i] == listener) {
+                CacheEventListener[] newListeners = new CacheEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                publish(newListeners);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return all the listeners, in the order they were registered. The array
+     * must not be modified.
+     */
+    public CacheEventListener[] getListeners() {
+        return listeners;
+    }
+
+    /**
+     * @return the {@link CacheEntryEventListener}s, in the order they were
+     * registered. The array must not be modified.
+     */
+    public CacheEntryEventListener[] getEntryListeners() {
+        return entryListeners;
+    }
+
+    /**
+     * @return the {@link CacheMapAccessEventListener}s, in the order they
+     * were registered. The array must not be modified.
+     */
+    public CacheMapAccessEventListener[] getAccessListeners() {
+        return accessListeners;
+    }
+
+    /**
+     * @return the {@link CacheBulkEventListener}s, in the order they were
+     * registered. The array must not be modified.
+     */
+    public CacheBulkEventListener[] getBulkListeners() {
+        return bulkListeners;
+    }
+
+    /**
+     * @return the {@link ScopeEventListener}s, in the order they were
+     * registered. The array must not be modified.
+     */
+    public ScopeEventListener[] getScopeListeners() {
+        return scopeListeners;
+    }
+
+    /**
+     * @return <code>true</code> if some entry or bulk listeners don't
+     * implement {@link SynchronousEventListener}, and may thus be notified
+     * by an event dispatcher.
+     */
+    public boolean hasAsynchronousListeners() {
+        return asynchronousListeners;
+    }
+
+    /**
+     * @return the number of registered listeners.
+     */
+    public int size() {
+        return listeners.length;
+    }
+
+    /**
+     * Splits the listeners by interface and publishes the new arrays. Call
+     * only when holding the registry monitor.
+     */
+    private void publish(CacheEventListener[] newListeners) {
+        List entry = new ArrayList();
+        List access = new ArrayList();
+        List bulk = new ArrayList();
+        List scope = new ArrayList();
+        boolean asynchronous = false;
+
+        for (int i = 0; i < newListeners.length; i++) {
+            CacheEventListener listener = newListeners[i];
+
+            if (listener instanceof CacheEntryEventListener) {
+                entry.add(listener);
+            }
+
+            if (listener instanceof CacheMapAccessEventListener) {
+                access.add(listener);
+            }
+
+            if (listener instanceof CacheBulkEventListener) {
+                bulk.add(listener);
+            }
+
+            if (listener instanceof ScopeEventListener) {
+                scope.add(listener);
+            }
+
+            if (((listener instanceof CacheEntryEventListener) || (listener instanceof CacheBulkEventListener)) && !(listener instanceof SynchronousEventListener)) {
+                asynchronous = true;
+            }
+        }
+
+        entryListeners = (CacheEntryEventListener[]) entry.toArray(NO_ENTRY_LISTENERS);
+        accessListeners = (CacheMapAccessEventListener[]) access.toArray(NO_ACCESS_LISTENERS);
+        bulkListeners = (CacheBulkEventListener[]) bulk.toArray(NO_BULK_LISTENERS);
+        scopeListeners = (ScopeEventListener[]) scope.toArray(NO_SCOPE_LISTENERS);
+        asynchronousListeners = asynchronous;
+        listeners = newListeners;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        CacheEventListener[] current = listeners;
+
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] instanceof Serializable) {
+                out.writeObject(current[i]);
+            }
+        }
+
+        out.writeObject(null);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        List read = new ArrayList();
+        Object listener;
+
+        while ((listener = in.readObject()) != null) {
+            read.add(listener);
+        }
+
+        synchronized (this) {
+            publish((CacheEventListener[]) read.toArray(NO_LISTENERS));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+
+/**
+ * Marks the cache listeners that need their events delivered on the thread
+ * performing the cache operation, before the operation returns. When the
+ * cache dispatches its events asynchronously (see
+ * {@link com.opensymphony.oscache.base.Cache#setEventQueue(int, int, int)}),
+ * the events of the other listeners are delivered later by a dispatcher thread.
+ *
+ * @version        $Revision$
+ */
+public interface SynchronousEventListener extends CacheEventListener {
+}
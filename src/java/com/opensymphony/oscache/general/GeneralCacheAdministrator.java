@@ -10,6 +10,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -67,6 +68,21 @@ import java.util.Properties;
  *         }
  *     }
  * }
+ *
+ *
+ *
+ * // ---------------------------------------------------------------
+ * // Typical use with a loader
+ * // ---------------------------------------------------------------
+ * String myKey = "myKey";
+ * int myRefreshPeriod = 1000;
+ * String myValue = (String) admin.get(myKey, myRefreshPeriod, null, new CacheLoader() {
+ *     public Object load(String key) throws Exception {
+ *         // Get the value (probably by calling an EJB). If this fails
+ *         // the update is cancelled automatically
+ *         return "This is the content retrieved.";
+ *     }
+ * });
  * // ---------------------------------------------------------------
  * // ---------------------------------------------------------------
  * </code></pre>
@@ -173,6 +189,61 @@ public class GeneralCacheAdministrator extends AbstractCacheAdministrator {
         return getCache().getFromCache(key, refreshPeriod, cronExpression);
     }
 
+    /**
+     * Get an object from the cache, waiting at most the supplied time for an
+     * entry being built by another thread instead of the time set with the
+     * <code>cache.blocking.timeout</code> property.
+     *
+     * @param key             The key entered by the user.
+     * @param refreshPeriod   How long the object can stay in cache in seconds. To
+     * allow the entry to stay in the cache indefinitely, supply a value of
+     * {@link CacheEntry#INDEFINITE_EXPIRY}
+     * @param cronExpression  A cron expression that the age of the cache entry
+     * will be compared to, or <code>null</code>.
+     * @param maxWait         How long to wait for an entry being built, in
+     * milliseconds, or <code>0</code> to wait until it is built.
+     * @return   The object from cache, or its stale content if the wait timed out
+     * @throws NeedsRefreshException when no cache entry could be found with the
+     * supplied key, or when an entry was found but is considered out of date.
+     * @throws UpdateTimeoutException when the wait for an entry without stale
+     * content timed out, see {@link Cache#getFromCache(String, int, String, long)}.
+     */
+    public Object getFromCache(String key, int refreshPeriod, String cronExpression, long maxWait) throws NeedsRefreshException {
+        return getCache().getFromCache(key, refreshPeriod, cronExpression, maxWait);
+    }
+
+    /**
+     * Get an object from the cache, loading it if needed. Only one of the
+     * threads requesting a missing or stale entry at the same time runs the
+     * loader, see {@link Cache#get(String, int, String, CacheLoader)}.
+     *
+     * @param key             The key entered by the user.
+     * @param refreshPeriod   How long the object can stay in cache in seconds. To
+     * allow the entry to stay in the cache indefinitely, supply a value of
+     * {@link CacheEntry#INDEFINITE_EXPIRY}
+     * @param cronExpression  A cron expression that the age of the cache entry
+     * will be compared to, or <code>null</code>.
+     * @param loader          Loads the object when the entry needs refresh.
+     * @return   The object from cache, or the object just loaded
+     * @throws CacheLoaderException when the loader failed. The update of the
+     * entry has then been cancelled.
+     */
+    public Object get(String key, int refreshPeriod, String cronExpression, CacheLoader loader) throws CacheLoaderException {
+        return getCache().get(key, refreshPeriod, cronExpression, loader);
+    }
+
+    /**
+     * Get a batch of objects from the cache. The caller must rebuild the keys
+     * of the result that need refresh, or cancel their update.
+     *
+     * @param keys            The keys entered by the user.
+     * @param refreshPeriod   How long the objects can stay in cache in seconds.
+     * @return   The objects served, and the keys to rebuild
+     */
+    public BulkGetResult getAll(String[] keys, int refreshPeriod) {
+        return getCache().getAll(keys, refreshPeriod);
+    }
+
     /**
      * Cancels a pending cache update. This should only be called by a thread
      * that received a {@link NeedsRefreshException} and was unable to generate
@@ -185,9 +256,14 @@ public class GeneralCacheAdministrator extends AbstractCacheAdministrator {
     }
 
     /**
-     * Shuts down the cache administrator.
+     * Shuts down the cache administrator, stopping the background threads of
+     * the cache and finalizing its listeners.
      */
     public void destroy() {
+        if (applicationCache != null) {
+            applicationCache.shutdown();
+        }
+
         finalizeListeners(applicationCache);
     }
 
@@ -216,6 +292,15 @@ public class GeneralCacheAdministrator extends AbstractCacheAdministrator {
         getCache().flushEntry(key);
     }
 
+    /**
+     * Flushes a batch of cache entries.
+     *
+     * @param keys The keys of the entries to flush
+     */
+    public void flushEntries(String[] keys) {
+        getCache().flushEntries(keys);
+    }
+
     /**
      * Flushes all items that belong to the specified group.
      *
@@ -282,6 +367,17 @@ public class GeneralCacheAdministrator extends AbstractCacheAdministrator {
         getCache().putInCache(key, content, groups, policy, null);
     }
 
+    /**
+     * Puts a batch of objects in a cache
+     *
+     * @param contents The objects to store, by key
+     * @param groups   The groups that these objects belong to
+     * @param policy   The refresh policy to use
+     */
+    public void putAll(Map contents, String[] groups, EntryRefreshPolicy policy) {
+        getCache().putAll(contents, groups, policy);
+    }
+
     /**
      * Sets the cache capacity (number of items). If the cache contains
      * more than <code>capacity</code> items then items will be removed
@@ -302,6 +398,7 @@ public class GeneralCacheAdministrator extends AbstractCacheAdministrator {
 
         applicationCache = new Cache(isMemoryCaching(), isUnlimitedDiskCache(), isOverflowPersistence(), isBlocking(), algorithmClass, cacheCapacity);
 
+        configureCacheSettings(applicationCache);
         configureStandardListeners(applicationCache);
     }
 }
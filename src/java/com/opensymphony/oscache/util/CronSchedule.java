@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.util;
+
+import java.text.ParseException;
+
+/**
+ * A cron expression compiled once, that remembers when it last fired.
+ * <p>
+ * {@link FastCronParser#hasMoreRecentMatch(long)} works out the most recent
+ * match of the expression with a <code>Calendar</code> every time it is called.
+ * The most recent match only changes when the clock reaches the next match
+ * though, so the schedule keeps both and only works them out again once the
+ * clock has gone past the next match. In between, checking whether an entry
+ * was updated before the expression last fired is a comparison of two longs.
+ * <p>
+ * Schedules are safe for use by several threads: the two matches are
+ * published together, and threads that find them outdated at the same time
+ * simply work them out again each.
+ *
+ * @version        $Revision$
+ */
+public final class CronSchedule {
+    private final FastCronParser parser;
+
+    /**
+     * The matches around the last time they were worked out at.
+     */
+    private volatile Window window;
+
+    /**
+     * Compiles a cron expression.
+     *
+     * @param cronExpression the expression, in the format of {@link FastCronParser}.
+     * @throws ParseException if the expression is not valid.
+     */
+    public CronSchedule(String cronExpression) throws ParseException {
+        this.parser = new FastCronParser(cronExpression);
+        this.window = new Window(Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return the cron expression of this schedule.
+     */
+    public String getCronExpression() {
+        return parser.getCronExpression();
+    }
+
+    /**
+     * Finds the most recent time the expression fired at.
+     *
+     * @param now the current time, in milliseconds.
+     * @return the most recent time that matches the expression, no later than
+     * <code>now</code>.
+     */
+    public long getPreviousFireTime(long now) {
+        return windowAt(now).previous;
+    }
+
+    /**
+     * Finds the next time the expression fires at.
+     *
+     * @param now the current time, in milliseconds.
+     * @return the next time that matches the expression, after <code>now</code>,
+     * or <code>Long.MAX_VALUE</code> if it never fires again.
+     */
+    public long getNextFireTime(long now) {
+        return windowAt(now).next;
+    }
+
+    /**
+     * Determines whether the expression has fired since the supplied time.
+     *
+     * @param time the time to compare the most recent match against, usually
+     * the last update of a cache entry.
+     * @return <code>true</code> if the expression matches a time after
+     * <code>time</code> and no later than now.
+     */
+    public boolean hasFiredSince(long time) {
+        return time < getPreviousFireTime(System.currentTimeMillis());
+    }
+
+    private Window windowAt(long now) {
+        Window current = window;
+
+        if ((now < current.from) || (now >= current.next)) {
+            // The clock went past the next match, or back
+            current = new Window(now, parser.getTimeBefore(now), parser.getTimeAfter(now));
+            window = current;
+        }
+
+        return current;
+    }
+
+    /**
+     * The most recent and the next match of the expression, valid from the
+     * time they were worked out at until the next match.
+     */
+    private static final class Window {
+        final long from;
+        final long previous;
+        final long next;
+
+        Window(long from, long previous, long next) {
+            this.from = from;
+            this.previous = previous;
+            this.next = next;
+        }
+    }
+}
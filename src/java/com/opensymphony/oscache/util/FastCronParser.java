@@ -38,6 +38,11 @@ public class FastCronParser {
         31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31
     };
 
+    /**
+     * How many days {@link #getTimeAfter(long)} looks ahead for a match.
+     */
+    private static final int MAX_DAYS_AHEAD = 8 * 366;
+
     /**
      * Holds the raw cron expression that this parser is handling.
      */
@@ -361,6 +366,65 @@ public class FastCronParser {
         return cal.getTime().getTime();
     }
 
+    /**
+    * Find the next time that matches this cron expression. This time will always
+    * be in the future, ie a higher value than the supplied time.
+    *
+    * @param time The time (in milliseconds) that we're using as our lower bound.
+    *
+    * @return The time (in milliseconds) when this cron event will next occur, or
+    * <code>Long.MAX_VALUE</code> if it never occurs again.
+    */
+    public long getTimeAfter(long time) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTimeInMillis(time);
+
+        // Start at the first whole minute after the supplied time
+        int minute = cal.get(Calendar.MINUTE) + 1;
+        int hour = cal.get(Calendar.HOUR_OF_DAY);
+        int dayOfMonth = cal.get(Calendar.DAY_OF_MONTH);
+        int month = cal.get(Calendar.MONTH) + 1; // Calendar is 0-based for this field, and we are 1-based
+        int year = cal.get(Calendar.YEAR);
+
+        // Walk forward one day at a time. The 29th of February is the rarest
+        // match, and it can take up to 8 years to come round again.
+        for (int days = 0; days < MAX_DAYS_AHEAD; days++) {
+            if ((((1L << (month - 1)) & lookup[MONTH]) != 0) && (((1L << (dayOfMonth - 1)) & lookup[DAY_OF_MONTH]) != 0) && (((1L << dayOfWeek(dayOfMonth, month, year)) & lookup[DAY_OF_WEEK]) != 0)) {
+                for (; hour <= MAX_VALUE[HOUR]; hour++, minute = 0) {
+                    if (((1L << hour) & lookup[HOUR]) != 0) {
+                        for (; minute <= MAX_VALUE[MINUTE]; minute++) {
+                            if (((1L << minute) & lookup[MINUTE]) != 0) {
+                                cal.set(Calendar.YEAR, year);
+                                cal.set(Calendar.MONTH, month - 1);
+                                cal.set(Calendar.DAY_OF_MONTH, dayOfMonth);
+                                cal.set(Calendar.HOUR_OF_DAY, hour);
+                                cal.set(Calendar.MINUTE, minute);
+                                cal.set(Calendar.SECOND, 0);
+                                cal.set(Calendar.MILLISECOND, 0);
+
+                                return cal.getTime().getTime();
+                            }
+                        }
+                    }
+                }
+            }
+
+            hour = 0;
+            minute = 0;
+
+            if (++dayOfMonth > numberOfDaysInMonth(month, year)) {
+                dayOfMonth = 1;
+
+                if (++month > 12) {
+                    month = 1;
+                    year++;
+                }
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
     /**
     * Takes a cron expression as an input parameter, and extracts from it the
     * relevant minutes/hours/days/months that the expression matches.
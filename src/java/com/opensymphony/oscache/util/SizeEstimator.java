@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.util;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Roughly estimates the number of bytes of heap used by an object graph.
+ * <p>
+ * Strings and primitive arrays are sized directly. Any other object is
+ * walked through its instance fields by reflection, counting every reachable
+ * object once. The walk stops after {@link #MAXIMUM_OBJECTS} objects and does
+ * not enter classes, class loaders or threads, so the estimate of a content
+ * that references shared infrastructure stays bounded. Sizes assume 8 byte
+ * object headers, 4 byte references and 8 byte alignment.
+ * <p>
+ * The fields the virtual machine doesn't let reflection read, such as those
+ * of the JDK classes on recent virtual machines, only count as references.
+ * The elements of the collections and maps whose fields can't be read are
+ * reached through their public methods instead.
+ *
+ * @version        $Revision$
+ */
+public final class SizeEstimator {
+    /**
+     * The largest number of objects visited by one estimate.
+     */
+    public static final int MAXIMUM_OBJECTS = 10000;
+
+    private static final int OBJECT_HEADER = 8;
+    private static final int ARRAY_HEADER = 12;
+    private static final int REFERENCE = 4;
+
+    /**
+     * The {@link Layout} of each class, shared by all estimates. The classes
+     * are held weakly and their layouts softly, so that the cache doesn't
+     * keep the class loader of an undeployed web application.
+     */
+    private static final Map layoutCache = new WeakHashMap();
+
+    private SizeEstimator() {
+    }
+
+    /**
+     * Estimates the heap used by the supplied object and everything it
+     * references.
+     *
+     * @param object The object to size, may be <code>null</code>
+     * @return The approximate size in bytes, <code>0</code> for <code>null</code>
+     */
+    public static int estimate(Object object) {
+        if (object == null) {
+            return 0;
+        }
+
+        // Fast path for the usual cache contents
+        if (object.getClass() == String.class) {
+            return (((String) object).length() * 2) + 4;
+        }
+
+        if (object instanceof byte[]) {
+            return ((byte[]) object).length;
+        }
+
+        Map visited = new IdentityHashMap();
+        List pending = new ArrayList();
+        pending.add(object);
+
+        long size = 0;
+
+        while (!pending.isEmpty() && (visited.size() < MAXIMUM_OBJECTS)) {
+            Object current = pending.remove(pending.size() - 1);
+
+            if ((current == null) || visited.containsKey(current) || isOpaque(current)) {
+                continue;
+            }
+
+            visited.put(current, current);
+            size += sizeOf(current, pending);
+        }
+
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the shallow size of an object and queues the objects it
+     * references.
+     */
+    private static long sizeOf(Object object, List pending) {
+        Class clazz = object.getClass();
+
+        if (clazz.isArray()) {
+            Class component = clazz.getComponentType();
+            int length = Array.getLength(object);
+
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + ((long) length * primitiveSize(component)));
+            }
+
+            Object[] array = (Object[]) object;
+
+            for (int i = 0; i < length; i++) {
+                if (array[i] != null) {
+                    pending.add(array[i]);
+                }
+            }
+
+            return align(ARRAY_HEADER + ((long) length * REFERENCE));
+        }
+
+        if (clazz == String.class) {
+            return (((String) object).length() * 2) + 4;
+        }
+
+        Layout layout = getLayout(clazz);
+        Field[] references = layout.references;
+
+        for (int i = 0; i < references.length; i++) {
+            try {
+                Object value = references[i].get(object);
+
+                if (value != null) {
+                    pending.add(value);
+                }
+            } catch (IllegalAccessException e) {
+                // Count the reference only
+            }
+        }
+
+        if (layout.hidesReferences) {
+            try {
+                if (object instanceof Collection) {
+                    addAll(pending, ((Collection) object).toArray());
+                } else if (object instanceof Map) {
+                    addAll(pending, ((Map) object).keySet().toArray());
+                    addAll(pending, ((Map) object).values().toArray());
+                }
+            } catch (RuntimeException e) {
+                // Modified concurrently, its elements are left out
+            }
+        }
+
+        return layout.size;
+    }
+
+    private static void addAll(List pending, Object[] objects) {
+        for (int i = 0; i < objects.length; i++) {
+            if (objects[i] != null) {
+                pending.add(objects[i]);
+            }
+        }
+    }
+
+    /**
+     * Objects that are shared infrastructure rather than part of a content.
+     */
+    private static boolean isOpaque(Object object) {
+        return (object instanceof Class) || (object instanceof ClassLoader) || (object instanceof Thread);
+    }
+
+    /**
+     * Returns the layout of a class, computed on first use.
+     */
+    private static Layout getLayout(Class clazz) {
+        synchronized (layoutCache) {
+            SoftReference reference = (SoftReference) layoutCache.get(clazz);
+            Layout layout = (reference == null) ? null : (Layout) reference.get();
+
+            if (layout == null) {
+                layout = new Layout(clazz);
+                layoutCache.put(clazz, new SoftReference(layout));
+            }
+
+            return layout;
+        }
+    }
+
+    private static int primitiveSize(Class type) {
+        if ((type == long.class) || (type == double.class)) {
+            return 8;
+        } else if ((type == int.class) || (type == float.class)) {
+            return 4;
+        } else if ((type == char.class) || (type == short.class)) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * The shallow size of the instances of a class, and the non-static
+     * reference fields of the class and its superclasses that reflection
+     * can read.
+     */
+    private static final class Layout {
+        final long size;
+        final Field[] references;
+
+        /**
+         * Whether some reference fields can't be read.
+         */
+        final boolean hidesReferences;
+
+        Layout(Class clazz) {
+            long shallowSize = OBJECT_HEADER;
+            boolean hidden = false;
+            List list = new ArrayList();
+
+            for (Class c = clazz; c != null; c = c.getSuperclass()) {
+                Field[] declared = c.getDeclaredFields();
+
+                for (int i = 0; i < declared.length; i++) {
+                    if (Modifier.isStatic(declared[i].getModifiers())) {
+                        continue;
+                    }
+
+                    Class type = declared[i].getType();
+
+                    if (type.isPrimitive()) {
+                        shallowSize += primitiveSize(type);
+                        continue;
+                    }
+
+                    shallowSize += REFERENCE;
+
+                    try {
+                        declared[i].setAccessible(true);
+                        list.add(declared[i]);
+                    } catch (RuntimeException e) {
+                        // A security manager or a module that isn't open to
+                        // us, only the reference is counted
+                        hidden = true;
+                    }
+                }
+            }
+
+            size = align(shallowSize);
+            references = (Field[]) list.toArray(new Field[list.size()]);
+            hidesReferences = hidden;
+        }
+    }
+}
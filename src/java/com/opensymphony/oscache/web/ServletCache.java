@@ -85,8 +85,9 @@ public final class ServletCache extends Cache implements HttpSessionBindingListe
     }
 
     /**
-     * When the users's session ends, all listeners are finalized and the
-     * session cache directory is deleted from disk.
+     * When the users's session ends, the background threads of the cache are
+     * stopped, all listeners are finalized and the session cache directory is
+     * deleted from disk.
      *
      * @param event The event that triggered this unbinding.
      */
@@ -96,6 +97,7 @@ public final class ServletCache extends Cache implements HttpSessionBindingListe
             log.info("[Cache] Unbound from session " + event.getSession() + " using name " + event.getName());
         }
 
+        shutdown();
         admin.finalizeListeners(this);
         clear();
     }
@@ -115,4 +117,16 @@ public final class ServletCache extends Cache implements HttpSessionBindingListe
     protected boolean isStale(CacheEntry cacheEntry, int refreshPeriod, String cronExpiry) {
         return super.isStale(cacheEntry, refreshPeriod, cronExpiry) || admin.isScopeFlushed(cacheEntry, scope);
     }
+
+    /**
+     * Indicates whether an entry may be removed by the flush sweeper. This
+     * overrides the {@link Cache#isReclaimable(CacheEntry)} method to also
+     * remove the entries left stale by a flush of the scope of this cache.
+     *
+     * @param cacheEntry The cache entry to check.
+     * @return <code>true</code> if the entry may be removed.
+     */
+    protected boolean isReclaimable(CacheEntry cacheEntry) {
+        return super.isReclaimable(cacheEntry) || admin.isScopeFlushed(cacheEntry, scope);
+    }
 }
@@ -241,6 +241,7 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
                     // Finalize the application scope cache
                     Cache cache = (Cache) context.getAttribute(admin.getCacheKey());
                     if (cache != null) {
+                        cache.shutdown();
                     	admin.finalizeListeners(cache);
                         context.removeAttribute(admin.getCacheKey());
                         context.removeAttribute(adminKey);
@@ -366,6 +367,16 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
                 throw new IllegalArgumentException("setFlushTime called with a null date.");
             }
         }
+
+        // The session caches are dropped with their sessions, only the
+        // application cache is swept
+        if ((scope == PageContext.APPLICATION_SCOPE) && (context != null)) {
+            Object cache = context.getAttribute(getCacheKey());
+
+            if (cache instanceof Cache) {
+                ((Cache) cache).sweepFlushedEntries(date);
+            }
+        }
     }
 
     /**
@@ -432,7 +443,7 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
     * @param listener  The object that listens to events.
     */
     public void addScopeEventListener(ScopeEventListener listener) {
-        listenerList.add(ScopeEventListener.class, listener);
+        listenerRegistry.add(listener);
     }
 
     /**
@@ -700,7 +711,7 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
     * @param listener  The object that currently listens to events.
     */
     public void removeScopeEventListener(ScopeEventListener listener) {
-        listenerList.remove(ScopeEventListener.class, listener);
+        listenerRegistry.remove(listener);
     }
 
     /**
@@ -753,6 +764,7 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
         config.set(HASH_KEY_SCOPE, "" + scope);
         config.set(HASH_KEY_SESSION_ID, sessionId);
 
+        newCache = (ServletCache) configureCacheSettings(newCache);
         newCache = (ServletCache) configureStandardListeners(newCache);
 
         return newCache;
@@ -770,15 +782,11 @@ public class ServletCacheAdministrator extends AbstractCacheAdministrator implem
         // Create the event
         ScopeEvent event = new ScopeEvent(eventType, scope, date, origin);
 
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
+        ScopeEventListener[] listeners = listenerRegistry.getScopeListeners();
 
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i+1] instanceof ScopeEventListener) {
-                ((ScopeEventListener) listeners[i + 1]).scopeFlushed(event);
-            }
+        // Process the listeners last to first
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            listeners[i].scopeFlushed(event);
         }
     }
 
@@ -8,6 +8,7 @@ import com.opensymphony.oscache.base.Cache;
 import com.opensymphony.oscache.base.Config;
 import com.opensymphony.oscache.base.EntryRefreshPolicy;
 import com.opensymphony.oscache.base.NeedsRefreshException;
+import com.opensymphony.oscache.base.UpdateTimeoutException;
 import com.opensymphony.oscache.util.ClassLoaderUtil;
 import com.opensymphony.oscache.util.StringUtil;
 import com.opensymphony.oscache.web.ServletCacheAdministrator;
@@ -199,6 +200,13 @@ public class CacheFilter implements Filter, ICacheKeyProvider, ICacheGroupsProvi
                     cache.cancelUpdate(key);
                 }
             }
+        } catch (UpdateTimeoutException ute) {
+            // Another thread owns the update, serve the response without caching it
+            if (log.isInfoEnabled()) {
+                log.info("OSCache: Timed out waiting for the cache entry " + key + ", serving it uncached");
+            }
+
+            chain.doFilter(request, response);
         }
     }
 
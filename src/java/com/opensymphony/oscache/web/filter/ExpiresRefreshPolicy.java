@@ -5,7 +5,7 @@
 package com.opensymphony.oscache.web.filter;
 
 import com.opensymphony.oscache.base.CacheEntry;
-import com.opensymphony.oscache.base.EntryRefreshPolicy;
+import com.opensymphony.oscache.base.ExpiringRefreshPolicy;
 import com.opensymphony.oscache.base.NeedsRefreshException;
 
 /**
@@ -15,7 +15,7 @@ import com.opensymphony.oscache.base.NeedsRefreshException;
  * @version $Revision$
  * @author <a href="mailto:ltorunski [ AT ] t-online.de">Lars Torunski</a>
  */
-public class ExpiresRefreshPolicy implements EntryRefreshPolicy {
+public class ExpiresRefreshPolicy implements ExpiringRefreshPolicy {
     
     /** the refresh period (in milliseconds) of a certain cache filter*/
     private long refreshPeriod;
@@ -56,6 +56,29 @@ public class ExpiresRefreshPolicy implements EntryRefreshPolicy {
         
     }
 
+    /**
+     * Returns the time at which the supplied <code>CacheEntry</code> will need
+     * to be refreshed: the end of the refresh period, or the expires time of
+     * the response content if it comes first.
+     *
+     * @param entry The cache entry that is being scheduled.
+     * @return the expiry time in milliseconds, or <code>Long.MAX_VALUE</code>
+     * if the entry never expires.
+     */
+    public long getExpiryTime(CacheEntry entry) {
+        long expiryTime = Long.MAX_VALUE;
+
+        if (refreshPeriod >= 0) {
+            expiryTime = entry.getLastUpdate() + refreshPeriod;
+        }
+
+        if (entry.getContent() instanceof ResponseContent) {
+            expiryTime = Math.min(expiryTime, ((ResponseContent) entry.getContent()).getExpires());
+        }
+
+        return expiryTime;
+    }
+
     /**
      * @return the refreshPeriod in seconds
      * @since 2.4
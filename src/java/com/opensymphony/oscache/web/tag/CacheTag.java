@@ -6,6 +6,7 @@ package com.opensymphony.oscache.web.tag;
 
 import com.opensymphony.oscache.base.Cache;
 import com.opensymphony.oscache.base.NeedsRefreshException;
+import com.opensymphony.oscache.base.UpdateTimeoutException;
 import com.opensymphony.oscache.util.StringUtil;
 import com.opensymphony.oscache.web.ServletCacheAdministrator;
 import com.opensymphony.oscache.web.WebEntryRefreshPolicy;
@@ -81,6 +82,12 @@ public class CacheTag extends BodyTagSupport implements TryCatchFinally {
     * the update needs to be cancelled
     */
     boolean cancelUpdateRequired = false;
+
+    /**
+    * A flag to indicate whether the wait for another thread building the
+    * entry timed out, in which case the body is not cached
+    */
+    boolean updateTimedOut = false;
     private Cache cache = null;
 
     /**
@@ -351,7 +358,7 @@ public class CacheTag extends BodyTagSupport implements TryCatchFinally {
         try {
             // if we have a body, and we have not been told to use the cached version
             if ((bodyContent != null) && (useBody || (time == 0)) && ((body = bodyContent.getString()) != null)) {
-                if ((time != 0) || (refreshPolicyClass != null)) {
+                if (((time != 0) || (refreshPolicyClass != null)) && !updateTimedOut) {
                     // Instantiate custom refresh policy if needed
                     WebEntryRefreshPolicy policy = null;
 
@@ -458,6 +465,7 @@ public class CacheTag extends BodyTagSupport implements TryCatchFinally {
     */
     public int doStartTag() throws JspTagException {
         cancelUpdateRequired = false;
+        updateTimedOut = false;
         useBody = true;
         content = null;
 
@@ -533,6 +541,9 @@ public class CacheTag extends BodyTagSupport implements TryCatchFinally {
         } catch (NeedsRefreshException nre) {
             cancelUpdateRequired = true;
             content = (String) nre.getCacheContent();
+        } catch (UpdateTimeoutException ute) {
+            // Another thread owns the update, the body is evaluated but not cached
+            updateTimedOut = true;
         }
 
         if (returnCode == EVAL_BODY_BUFFERED) {
@@ -4,8 +4,18 @@
  */
 package com.opensymphony.oscache.base;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import com.opensymphony.oscache.base.algorithm.AbstractConcurrentReadCache;
+import com.opensymphony.oscache.base.algorithm.LRUCache;
+import com.opensymphony.oscache.base.events.CacheBulkEvent;
+import com.opensymphony.oscache.base.events.CacheBulkEventListener;
+import com.opensymphony.oscache.extra.CacheEntryEventListenerImpl;
 import com.opensymphony.oscache.general.GeneralCacheAdministrator;
 
 import junit.framework.Assert;
@@ -13,6 +23,8 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.apache.commons.logging.LogFactory;
+
 /**
  * Test the public methods of the Cache class
  *
@@ -26,6 +38,8 @@ public class TestCache extends TestCase {
     private final String CONTENT = "Content for the cache test";
 
     // Constants needed thru all the tests
+    private static final int HITS_PER_ROUND = 100000;
+    private static final double MAX_BYTES_PER_HIT = 1;
     private final String ENTRY_KEY = "Test cache key";
     private final int NO_REFRESH_NEEDED = CacheEntry.INDEFINITE_EXPIRY;
     private final int REFRESH_NEEDED = 0;
@@ -200,6 +214,546 @@ public class TestCache extends TestCase {
 		Assert.assertTrue("expected cache accesses to not leak past cache capacity. Nb states is:" + cache.getNbUpdateState() + " expected max="+ cacheCapacity, cache.getNbUpdateState() < cacheCapacity);
     }
     
+    /**
+     * Tests that threads updating distinct keys, spread over the stripes of the
+     * update states, as well as a shared key, all complete and leave no state behind
+     * @throws Exception
+     */
+    public void testConcurrentUpdateStates() throws Exception {
+        final Cache cache = new Cache(true, false, false);
+        final int keysPerThread = 500;
+        Thread[] threads = new Thread[8];
+        final List failures = Collections.synchronizedList(new ArrayList());
+
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "updateStates" + t + "_";
+
+            threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < keysPerThread; i++) {
+                            String key = ((i % 10) == 0) ? "updateStatesShared" : (prefix + i);
+
+                            try {
+                                cache.getFromCache(key, 0);
+                            } catch (NeedsRefreshException e) {
+                                if ((i % 3) == 0) {
+                                    cache.cancelUpdate(key);
+                                } else {
+                                    cache.putInCache(key, CONTENT);
+                                }
+                            } catch (RuntimeException e) {
+                                failures.add(e);
+                            }
+                        }
+                    }
+                };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(0, cache.getNbUpdateState());
+    }
+
+    /**
+     * Concurrent callers of the loader API share a single load of a missing key,
+     * and hits don't load anything
+     * @throws Exception
+     */
+    public void testLoaderSingleFlight() throws Exception {
+        final Cache cache = new Cache(true, false, false);
+        final int[] loads = new int[1];
+        final CacheLoader loader = new CacheLoader() {
+                public Object load(String key) throws Exception {
+                    synchronized (loads) {
+                        loads[0]++;
+                    }
+
+                    Thread.sleep(200);
+
+                    return CONTENT;
+                }
+            };
+
+        Thread[] threads = new Thread[10];
+        final List results = Collections.synchronizedList(new ArrayList());
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            results.add(cache.get(ENTRY_KEY + "loader", CacheEntry.INDEFINITE_EXPIRY, null, loader));
+                        } catch (CacheLoaderException e) {
+                            results.add(e);
+                        }
+                    }
+                };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        assertEquals(1, loads[0]);
+        assertEquals(threads.length, results.size());
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(CONTENT, results.get(i));
+        }
+
+        assertEquals(CONTENT, cache.get(ENTRY_KEY + "loader", CacheEntry.INDEFINITE_EXPIRY, null, loader));
+        assertEquals(1, loads[0]);
+        assertEquals(0, cache.getNbUpdateState());
+    }
+
+    /**
+     * A failing loader cancels the update, so that the next caller loads the key
+     * @throws Exception
+     */
+    public void testLoaderFailure() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        final Exception failure = new Exception("Loader failure");
+
+        try {
+            cache.get(ENTRY_KEY + "failure", CacheEntry.INDEFINITE_EXPIRY, null, new CacheLoader() {
+                    public Object load(String key) throws Exception {
+                        throw failure;
+                    }
+                });
+            fail("The loader failure should have been thrown");
+        } catch (CacheLoaderException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        try {
+            cache.get(ENTRY_KEY + "failure", CacheEntry.INDEFINITE_EXPIRY, null, new CacheLoader() {
+                    public Object load(String key) {
+                        throw new IllegalStateException("Loader failure");
+                    }
+                });
+            fail("The loader failure should have been thrown");
+        } catch (IllegalStateException e) {
+            // This is what we expected
+        }
+
+        assertEquals(0, cache.getNbUpdateState());
+        assertEquals(CONTENT, cache.get(ENTRY_KEY + "failure", CacheEntry.INDEFINITE_EXPIRY, null, new CacheLoader() {
+                public Object load(String key) {
+                    return CONTENT;
+                }
+            }));
+        assertEquals(CONTENT, cache.getFromCache(ENTRY_KEY + "failure"));
+    }
+
+    /**
+     * Verify that cache hits don't allocate when no access listener is
+     * registered, whether the cache is unlimited or LRU, and whether the hits
+     * are requested with a cron expression or not, and that the
+     * NeedsRefreshException doesn't capture a stack trace. The allocation
+     * part is skipped when debug logging is enabled, since the debug messages
+     * are built on every hit, and on virtual machines that can't measure the
+     * memory allocated by a thread.
+     * @throws Exception
+     */
+    public void testHitAllocation() throws Exception {
+        Cache cache = new Cache(true, false, false);
+
+        try {
+            cache.getFromCache(ENTRY_KEY);
+            fail("NeedsRefreshException should have been thrown");
+        } catch (NeedsRefreshException e) {
+            assertEquals(0, e.getStackTrace().length);
+            cache.cancelUpdate(ENTRY_KEY);
+        }
+
+        if (LogFactory.getLog(Cache.class).isDebugEnabled() || LogFactory.getLog(AbstractConcurrentReadCache.class).isDebugEnabled()) {
+            return;
+        }
+
+        Cache lru = new Cache(true, false, false, false, null, 10);
+
+        String[] keys = new String[5];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ENTRY_KEY + i;
+            cache.putInCache(keys[i], CONTENT);
+            lru.putInCache(keys[i], CONTENT);
+        }
+
+        if (bytesPerHit(cache, keys, null) < 0) {
+            return;
+        }
+
+        // Hits allocating even the smallest object would exceed the bound,
+        // while the few allocations the virtual machine may make on the
+        // thread during a round stay well within it
+        assertTrue("Unlimited cache hits allocate", bytesPerHit(cache, keys, null) < MAX_BYTES_PER_HIT);
+        assertTrue("LRU cache hits allocate", bytesPerHit(lru, keys, null) < MAX_BYTES_PER_HIT);
+        assertTrue("Cron expiry hits allocate", bytesPerHit(cache, keys, "0 0 1 1 *") < MAX_BYTES_PER_HIT);
+    }
+
+    /**
+     * Returns the fewest bytes allocated by the current thread per hit over
+     * a number of rounds, once the hit path is warmed up, or <code>-1</code>
+     * if they can't be measured
+     */
+    private double bytesPerHit(Cache cache, String[] keys, String cronExpiry) throws Exception {
+        Object threadBean;
+        java.lang.reflect.Method allocatedBytes;
+        Object[] threadId;
+
+        try {
+            threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean", null).invoke(null, null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+            threadId = new Object[] {Thread.class.getMethod("getId", null).invoke(Thread.currentThread(), null)};
+        } catch (Exception e) {
+            return -1;
+        }
+
+        // Warm up, so that the hit path is compiled and its classes loaded
+        for (int i = 0; i < HITS_PER_ROUND; i++) {
+            cache.getFromCache(keys[i % keys.length], NO_REFRESH_NEEDED, cronExpiry);
+        }
+
+        long fewest = Long.MAX_VALUE;
+
+        for (int round = 0; round < 5; round++) {
+            long before = ((Long) allocatedBytes.invoke(threadBean, threadId)).longValue();
+            long base = ((Long) allocatedBytes.invoke(threadBean, threadId)).longValue() - before;
+
+            before = ((Long) allocatedBytes.invoke(threadBean, threadId)).longValue();
+
+            for (int i = 0; i < HITS_PER_ROUND; i++) {
+                cache.getFromCache(keys[i % keys.length], NO_REFRESH_NEEDED, cronExpiry);
+            }
+
+            fewest = Math.min(fewest, ((Long) allocatedBytes.invoke(threadBean, threadId)).longValue() - before - base);
+        }
+
+        return (double) fewest / HITS_PER_ROUND;
+    }
+
+    /**
+     * Verify that an entry requested with a cron expression is stale once the
+     * expression has fired since its last update, and that invalid expressions
+     * are ignored
+     * @throws Exception
+     */
+    public void testCronExpiry() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        cache.putInCache(ENTRY_KEY, CONTENT);
+        assertEquals(CONTENT, cache.getFromCache(ENTRY_KEY, NO_REFRESH_NEEDED, "* * * * *"));
+
+        CacheEntry entry = cache.getCacheEntry(ENTRY_KEY, null, null);
+        entry.setLastUpdate(System.currentTimeMillis() - (2 * 60 * 1000L));
+        assertEquals(CONTENT, cache.getFromCache(ENTRY_KEY, NO_REFRESH_NEEDED, "0 0 1 1 *"));
+        assertEquals(CONTENT, cache.getFromCache(ENTRY_KEY, NO_REFRESH_NEEDED, "not a cron expression"));
+
+        try {
+            cache.getFromCache(ENTRY_KEY, NO_REFRESH_NEEDED, "* * * * *");
+            fail("The entry should be stale once the cron expression has fired");
+        } catch (NeedsRefreshException e) {
+            cache.cancelUpdate(ENTRY_KEY);
+        }
+    }
+
+    /**
+     * Verify that a bulk get serves the fresh entries and hands over the
+     * missing and stale ones, in key order
+     * @throws Exception
+     */
+    public void testGetAll() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        cache.putInCache("a", "content a");
+        cache.putInCache("c", "content c");
+        cache.flushEntry("c");
+
+        BulkGetResult result = cache.getAll(new String[] {"c", "b", "a", "a"}, NO_REFRESH_NEEDED);
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getHits().size());
+        assertEquals("content a", result.getHits().get("a"));
+        assertEquals(2, result.getKeysToRebuild().size());
+        assertEquals("b", result.getKeysToRebuild().get(0));
+        assertEquals("c", result.getKeysToRebuild().get(1));
+        assertNull(result.getStaleContent("b"));
+        assertEquals("content c", result.getStaleContent("c"));
+        assertEquals(2, cache.getNbUpdateState());
+
+        Map contents = new HashMap();
+        contents.put("b", "content b");
+        contents.put("c", "new content c");
+        cache.putAll(contents, null, null);
+        assertEquals(0, cache.getNbUpdateState());
+
+        result = cache.getAll(new String[] {"a", "b", "c"}, NO_REFRESH_NEEDED);
+        assertTrue(result.isComplete());
+        assertEquals("new content c", result.getHits().get("c"));
+    }
+
+    /**
+     * Verify that the bulk listeners receive a single event per bulk
+     * operation, while the other listeners still receive an event per entry
+     */
+    public void testBulkEvents() {
+        Cache cache = new Cache(true, false, false, false, RetrievalCountingCache.class.getName(), 100);
+        CacheEntryEventListenerImpl entryListener = new CacheEntryEventListenerImpl();
+        BulkListener bulkListener = new BulkListener();
+        cache.addCacheEventListener(entryListener);
+        cache.addCacheEventListener(bulkListener);
+
+        cache.putInCache("a", "content a");
+        assertEquals(1, entryListener.getEntryAddedCount());
+        assertEquals(1, bulkListener.getEntryAddedCount());
+
+        Map contents = new HashMap();
+        contents.put("a", "new content a");
+        contents.put("b", "content b");
+        contents.put("c", "content c");
+
+        String[] groups = {"bulk"};
+        cache.putAll(contents, groups, null);
+        assertEquals(3, entryListener.getEntryAddedCount());
+        assertEquals(1, entryListener.getEntryUpdatedCount());
+        assertEquals(1, bulkListener.getEntryAddedCount());
+        assertEquals(0, bulkListener.getEntryUpdatedCount());
+        assertEquals(1, bulkListener.puts);
+        assertEquals(3, bulkListener.last.getEntries().size());
+
+        RetrievalCountingCache.retrievals = 0;
+
+        BulkGetResult result = cache.getAll(new String[] {"a", "b", "d"}, NO_REFRESH_NEEDED);
+        cache.cancelUpdate("d");
+        assertEquals(1, bulkListener.accesses);
+        assertEquals(2, bulkListener.last.getEntries().size());
+        assertSame(result.getHits().get("a"), ((CacheEntry) bulkListener.last.getEntries().get(0)).getContent());
+
+        // The event is built from the entries the lookups found, without reading them again
+        assertEquals(2, RetrievalCountingCache.retrievals);
+        assertEquals(result.getKeysToRebuild(), bulkListener.last.getRebuildKeys());
+
+        cache.flushEntries(new String[] {"a", "c"});
+        assertEquals(2, entryListener.getEntryFlushedCount());
+        assertEquals(0, bulkListener.getEntryFlushedCount());
+        assertEquals(1, bulkListener.flushes);
+        assertEquals(2, bulkListener.last.getEntries().size());
+
+        result = cache.getAll(new String[] {"a", "b", "c"}, NO_REFRESH_NEEDED);
+        assertEquals(1, result.getHits().size());
+        assertEquals(2, result.getKeysToRebuild().size());
+        cache.cancelUpdate("a");
+        cache.cancelUpdate("c");
+
+        // The entries put in bulk are in their group
+        cache.flushGroup("bulk");
+
+        try {
+            cache.getFromCache("b");
+            fail("The entries put in bulk should belong to their groups");
+        } catch (NeedsRefreshException e) {
+            cache.cancelUpdate("b");
+        }
+    }
+
+    /**
+     * Verify that the groups flushed by generation make their entries stale
+     * without flushing them one by one, and that the entries written after the
+     * flush are fresh
+     * @throws Exception
+     */
+    public void testGroupGenerations() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        CacheEntryEventListenerImpl listener = new CacheEntryEventListenerImpl();
+        cache.addCacheEventListener(listener);
+        cache.setGroupGenerations(true);
+        assertTrue(cache.isGroupGenerationsEnabled());
+
+        cache.putInCache("a", "content a", new String[] {"group1"});
+        cache.putInCache("b", "content b", new String[] {"group1", "group2"});
+        cache.putInCache("c", "content c", new String[] {"group2"});
+
+        cache.flushGroup("group1");
+        assertEquals(0, listener.getEntryFlushedCount());
+        assertEquals(1, listener.getGroupFlushedCount());
+        assertFalse(cache.getCacheEntry("a", null, null).needsRefresh(CacheEntry.INDEFINITE_EXPIRY));
+        assertGroupFlushed(cache, "a", true);
+        assertGroupFlushed(cache, "b", true);
+        assertGroupFlushed(cache, "c", false);
+
+        cache.putInCache("a", "new content a", new String[] {"group1"});
+        assertEquals("new content a", cache.getFromCache("a"));
+
+        // Back to flushing entry by entry, the stale entries are flushed for good
+        cache.flushGroup("group2");
+        cache.setGroupGenerations(false);
+        assertTrue(cache.getCacheEntry("b", null, null).needsRefresh(CacheEntry.INDEFINITE_EXPIRY));
+        assertTrue(cache.getCacheEntry("c", null, null).needsRefresh(CacheEntry.INDEFINITE_EXPIRY));
+        assertFalse(cache.getCacheEntry("a", null, null).needsRefresh(CacheEntry.INDEFINITE_EXPIRY));
+        assertEquals(2, listener.getEntryFlushedCount());
+        assertGroupFlushed(cache, "a", false);
+    }
+
+    /**
+     * Verify that the requests waiting for an entry being built give up once
+     * the blocking timeout has passed, with the stale content if there is any
+     * @throws Exception
+     */
+    public void testBlockingTimeout() throws Exception {
+        Cache cache = new Cache(true, false, false, true, null, 0);
+        cache.setBlockingTimeout(100);
+        assertEquals(100, cache.getBlockingTimeout());
+
+        // The update of the new entry is owned by the first request
+        try {
+            cache.getFromCache("new");
+            fail("The entry should not exist");
+        } catch (NeedsRefreshException e) {
+            // Keep the update pending
+        }
+
+        long start = System.currentTimeMillis();
+
+        try {
+            cache.getFromCache("new");
+            fail("The wait for the new entry should have timed out");
+        } catch (UpdateTimeoutException e) {
+            assertEquals("new", e.getKey());
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+
+        assertEquals(1, cache.getNbTimedOutWaits());
+
+        BulkGetResult result = cache.getAll(new String[] {"new"}, NO_REFRESH_NEEDED);
+        assertFalse(result.isComplete());
+        assertEquals(0, result.getKeysToRebuild().size());
+        assertEquals(1, result.getTimedOutKeys().size());
+        assertEquals(2, cache.getNbTimedOutWaits());
+
+        // The stale content is served when the wait for a rebuild times out
+        cache.putInCache("new", CONTENT);
+        assertEquals(CONTENT, cache.getFromCache("new"));
+
+        try {
+            cache.getFromCache("new", REFRESH_NEEDED);
+            fail("The entry should be stale");
+        } catch (NeedsRefreshException e) {
+            // Keep the update pending
+        }
+
+        start = System.currentTimeMillis();
+        assertEquals(CONTENT, cache.getFromCache("new", REFRESH_NEEDED, null, 20));
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(3, cache.getNbTimedOutWaits());
+        cache.cancelUpdate("new");
+
+        // Counting the timed out waits doesn't need the cache monitor
+        final Cache blocked = cache;
+        final long[] count = new long[1];
+        Thread waiter = new Thread() {
+                public void run() {
+                    try {
+                        blocked.getFromCache("other");
+                    } catch (NeedsRefreshException e) {
+                        // Keep the update pending
+                    }
+
+                    try {
+                        blocked.getFromCache("other");
+                    } catch (UpdateTimeoutException e) {
+                        count[0] = blocked.getNbTimedOutWaits();
+                    } catch (NeedsRefreshException e) {
+                        // Not expected, the count stays at 0
+                    }
+                }
+            };
+
+        synchronized (cache) {
+            waiter.start();
+            waiter.join(5000);
+            assertFalse("Counting a timed out wait took the cache monitor", waiter.isAlive());
+        }
+
+        assertEquals(4, count[0]);
+        cache.cancelUpdate("other");
+    }
+
+    /**
+     * Verify that destroying the administrator stops the background threads
+     * of its cache, which stays usable without them
+     * @throws Exception
+     */
+    public void testShutdown() throws Exception {
+        Properties p = new Properties();
+        p.setProperty(AbstractCacheAdministrator.CACHE_CAPACITY_KEY, "100");
+        p.setProperty(AbstractCacheAdministrator.CACHE_EVICTION_HIGH_WATERMARK_KEY, "0.9");
+        p.setProperty(AbstractCacheAdministrator.CACHE_EVICTION_LOW_WATERMARK_KEY, "0.5");
+        p.setProperty(AbstractCacheAdministrator.CACHE_EXPIRY_TICK_KEY, "100");
+        p.setProperty(AbstractCacheAdministrator.CACHE_EVENT_QUEUE_KEY, "100");
+        p.setProperty(AbstractCacheAdministrator.CACHE_FLUSH_SWEEP_RATE_KEY, "1000");
+
+        GeneralCacheAdministrator admin = new GeneralCacheAdministrator(p);
+        Cache cache = admin.getCache();
+        cache.setRefresher(new CacheLoader() {
+                public Object load(String key) {
+                    return CONTENT;
+                }
+            }, 2, 10);
+
+        // The evictor, the expiry wheel, the dispatcher, the sweeper and two
+        // refresh threads must be gone, whatever the other caches' threads do
+        int stopped = countCacheThreads() - 6;
+
+        admin.destroy();
+        assertEquals(0, cache.getExpiryTick());
+        assertNull(cache.getRefresher());
+        assertEquals(0, cache.getEventQueueSize());
+        assertEquals(0, cache.getFlushSweepRate());
+
+        long start = System.currentTimeMillis();
+
+        while ((countCacheThreads() > stopped) && ((System.currentTimeMillis() - start) < 5000)) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("The background threads were not stopped", countCacheThreads() <= stopped);
+
+        cache.putInCache(ENTRY_KEY, CONTENT);
+        assertEquals(CONTENT, cache.getFromCache(ENTRY_KEY));
+    }
+
+    private int countCacheThreads() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+
+        Thread[] threads = new Thread[group.activeCount() * 2 + 10];
+        int count = group.enumerate(threads);
+        int cacheThreads = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith("OSCache ")) {
+                cacheThreads++;
+            }
+        }
+
+        return cacheThreads;
+    }
+
+    private void assertGroupFlushed(Cache cache, String key, boolean flushed) throws Exception {
+        try {
+            cache.getFromCache(key);
+            assertFalse(key + " should have been flushed with its group", flushed);
+        } catch (NeedsRefreshException e) {
+            assertTrue(key + " should not have been flushed", flushed);
+            cache.cancelUpdate(key);
+        }
+    }
+
     /**
      * Verify that we can put item in the cache and that they are correctly retrieved
      */
@@ -272,4 +826,41 @@ public class TestCache extends TestCase {
             }
         }
     }
+
+    /**
+     * Counts the entries retrieved from the cache map
+     */
+    public static final class RetrievalCountingCache extends LRUCache {
+        static int retrievals = 0;
+
+        protected void itemRetrieved(Object key) {
+            retrievals++;
+            super.itemRetrieved(key);
+        }
+    }
+
+    /**
+     * Counts the bulk events, and the entry events it still receives
+     */
+    private static final class BulkListener extends CacheEntryEventListenerImpl implements CacheBulkEventListener {
+        int accesses = 0;
+        int puts = 0;
+        int flushes = 0;
+        CacheBulkEvent last = null;
+
+        public void cacheEntriesAccessed(CacheBulkEvent event) {
+            accesses++;
+            last = event;
+        }
+
+        public void cacheEntriesPut(CacheBulkEvent event) {
+            puts++;
+            last = event;
+        }
+
+        public void cacheEntriesFlushed(CacheBulkEvent event) {
+            flushes++;
+            last = event;
+        }
+    }
 }
@@ -125,6 +125,39 @@ public class TestCacheEntry extends TestCase {
         assertNull(entry.getContent());
     }
 
+    /**
+     * Verify the size estimates of strings and of arbitrary contents
+     */
+    public void testGetSize() {
+        CacheEntry sized = new CacheEntry(ENTRY_KEY);
+
+        // Key only
+        int keySize = (ENTRY_KEY.length() * 2) + 4 + 17;
+        assertEquals(keySize, sized.getSize());
+
+        sized.setContent(CONTENT);
+        assertEquals(keySize + (CONTENT.length() * 2) + 4, sized.getSize());
+
+        // Any other content is estimated instead of reported as unknown
+        sized.setContent(new byte[10000]);
+        assertTrue(sized.getSize() >= (keySize + 10000));
+
+        java.util.List list = new java.util.ArrayList();
+
+        for (int i = 0; i < 100; i++) {
+            list.add(CONTENT + i);
+        }
+
+        sized.setContent(list);
+        assertTrue(sized.getSize() > (keySize + (100 * CONTENT.length() * 2)));
+
+        // Cycles are only counted once
+        java.util.List cycle = new java.util.ArrayList();
+        cycle.add(cycle);
+        sized.setContent(cycle);
+        assertTrue(sized.getSize() > keySize);
+    }
+
     /**
      * Ensure that a value is between two others. Since the execution may be
      * very fast, equals values are also considered to be between
@@ -6,6 +6,7 @@ package com.opensymphony.oscache.base;
 
 import com.opensymphony.oscache.base.algorithm.TestCompleteAlgorithm;
 import com.opensymphony.oscache.base.events.TestCompleteEvents;
+import com.opensymphony.oscache.util.TestCronSchedule;
 import com.opensymphony.oscache.util.TestFastCronParser;
 
 import junit.framework.Test;
@@ -51,8 +52,13 @@ public final class TestCompleteBase extends TestCase {
         // Add all the tests suite of all the project classes
         TestSuite suite = new TestSuite("Test all base cache modules");
         suite.addTest(TestFastCronParser.suite());
+        suite.addTest(TestCronSchedule.suite());
         suite.addTest(TestCacheEntry.suite());
         suite.addTest(TestCache.suite());
+        suite.addTest(TestExpiryWheel.suite());
+        suite.addTest(TestKeyIndex.suite());
+        suite.addTest(TestFlushSweeper.suite());
+        suite.addTest(TestRefreshAhead.suite());
         suite.addTest(TestConcurrency.suite());
         suite.addTest(TestConcurrency2.suite());
         suite.addTest(TestCompleteAlgorithm.suite());
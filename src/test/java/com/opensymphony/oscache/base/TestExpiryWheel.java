@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test class for the timing wheel scheduling the expiry of the cache
+ * entries, and for the removal of the expired entries from the cache.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestExpiryWheel extends TestCase {
+    /**
+     * Tick of the wheels driven by the tests, long enough for their thread
+     * never to reach the scheduled deadlines
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * Number of ticks reached by the wheel
+     */
+    private static final long SPAN = 1L << 24;
+
+    /**
+     * Tick of the caches removing their expired entries
+     */
+    private static final long CACHE_TICK = 10;
+
+    /**
+     * How long the cache tests wait for an entry to be removed
+     */
+    private static final long MAX_WAIT = 5000;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Expiry Wheel key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Expiry Wheel content";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestExpiryWheel(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestExpiryWheel.class);
+    }
+
+    /**
+     * Every entry expires in the very tick its deadline is reached, whichever
+     * level of the wheel it was put in
+     */
+    public void testExpiryTicks() {
+        long origin = System.currentTimeMillis();
+        ExpiryWheel wheel = new ExpiryWheel(new Cache(true, false, false), TICK, origin);
+        Map ticks = new HashMap();
+        Random random = new Random(1);
+
+        long[] fixed = {1, 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145};
+
+        for (int i = 0; i < fixed.length; i++) {
+            ticks.put(KEY + "fixed" + i, new Long(fixed[i]));
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            ticks.put(KEY + i, new Long(1 + random.nextInt(300000)));
+        }
+
+        for (java.util.Iterator it = ticks.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long tick = ((Long) entry.getValue()).longValue();
+
+            // Any time within the tick expires at its end
+            wheel.schedule((String) entry.getKey(), 0, (origin + (tick * TICK)) - random.nextInt((int) TICK));
+        }
+
+        assertEquals(ticks.size(), wheel.size());
+
+        for (long tick = 1; tick <= 300000; tick++) {
+            List expired = wheel.advance(origin + (tick * TICK));
+
+            if (expired != null) {
+                for (int i = 0; i < expired.size(); i++) {
+                    ExpiryWheel.Node node = (ExpiryWheel.Node) expired.get(i);
+                    assertEquals(node.key, ticks.remove(node.key), new Long(tick));
+                }
+            }
+        }
+
+        assertTrue(ticks.isEmpty());
+        assertEquals(0, wheel.size());
+        wheel.shutdown();
+    }
+
+    /**
+     * Deadlines beyond the reach of the wheel go round until they are due
+     */
+    public void testFarDeadline() {
+        long origin = System.currentTimeMillis();
+        ExpiryWheel wheel = new ExpiryWheel(new Cache(true, false, false), TICK, origin);
+        long far = (SPAN * 2) + 100;
+
+        wheel.schedule(KEY, 0, origin + (far * TICK));
+        assertNull(wheel.advance(origin + ((far - 1) * TICK)));
+
+        List expired = wheel.advance(origin + (far * TICK));
+        assertNotNull(expired);
+        assertEquals(KEY, ((ExpiryWheel.Node) expired.get(0)).key);
+        wheel.shutdown();
+    }
+
+    /**
+     * A version keeps its earliest deadline, a new version replaces it, and
+     * cancelled or cleared entries don't expire
+     */
+    public void testReschedule() {
+        long origin = System.currentTimeMillis();
+        ExpiryWheel wheel = new ExpiryWheel(new Cache(true, false, false), TICK, origin);
+
+        wheel.schedule(KEY, 1, origin + (10 * TICK));
+        wheel.schedule(KEY, 1, origin + (20 * TICK));
+        assertEquals(1, wheel.size());
+        assertNotNull(wheel.advance(origin + (10 * TICK)));
+
+        wheel.schedule(KEY, 1, origin + (20 * TICK));
+        wheel.schedule(KEY, 2, origin + (30 * TICK));
+        assertNull(wheel.advance(origin + (29 * TICK)));
+        assertEquals(2, ((ExpiryWheel.Node) wheel.advance(origin + (30 * TICK)).get(0)).lastUpdate);
+
+        wheel.schedule(KEY, 3, origin + (40 * TICK));
+        wheel.cancel(KEY);
+        wheel.schedule(KEY + 1, 3, origin + (40 * TICK));
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertNull(wheel.advance(origin + (50 * TICK)));
+        wheel.shutdown();
+    }
+
+    /**
+     * The cache removes the entries whose refresh policy or time to live has
+     * expired, and only those
+     */
+    public void testCacheExpiry() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        cache.setExpiryTick(CACHE_TICK);
+        assertEquals(CACHE_TICK, cache.getExpiryTick());
+
+        cache.putInCache(KEY, CONTENT, new ExpiringPolicy(100));
+        cache.putInCache(KEY + 1, CONTENT);
+        assertEquals(1, cache.getNbScheduledExpiries());
+
+        waitForSize(cache, 1);
+        assertEquals(CONTENT, cache.getFromCache(KEY + 1));
+
+        // A new version of the entry is not removed with the old one
+        cache.putInCache(KEY, CONTENT, new ExpiringPolicy(100));
+        cache.putInCache(KEY, CONTENT);
+        assertEquals(0, cache.getNbScheduledExpiries());
+        Thread.sleep(300);
+        assertEquals(2, cache.getSize());
+
+        // The time to live applies to every entry
+        cache.setTimeToLive(1);
+        cache.putInCache(KEY + 2, CONTENT);
+        assertEquals(1, cache.getNbScheduledExpiries());
+        waitForSize(cache, 2);
+
+        try {
+            cache.getFromCache(KEY);
+            fail("The entry older than its time to live should be stale");
+        } catch (NeedsRefreshException e) {
+            cache.cancelUpdate(KEY);
+        }
+
+        cache.setExpiryTick(0);
+        assertEquals(0, cache.getExpiryTick());
+    }
+
+    /**
+     * A cache hit requested with a cron expression is scheduled at the next
+     * time matching the expression
+     */
+    public void testCronExpiry() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        cache.setExpiryTick(CACHE_TICK);
+        cache.putInCache(KEY, CONTENT);
+        assertEquals(0, cache.getNbScheduledExpiries());
+
+        assertEquals(CONTENT, cache.getFromCache(KEY, CacheEntry.INDEFINITE_EXPIRY, "* * * * *"));
+        assertEquals(1, cache.getNbScheduledExpiries());
+
+        cache.removeEntry(KEY);
+        assertEquals(0, cache.getNbScheduledExpiries());
+        cache.setExpiryTick(0);
+    }
+
+    private void waitForSize(Cache cache, int size) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        while ((cache.getSize() > size) && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(CACHE_TICK);
+        }
+
+        assertEquals(size, cache.getSize());
+    }
+
+    /**
+     * A refresh policy expiring the entries a fixed time after their update
+     */
+    private static final class ExpiringPolicy implements ExpiringRefreshPolicy {
+        private final long lifetime;
+
+        ExpiringPolicy(long lifetime) {
+            this.lifetime = lifetime;
+        }
+
+        public boolean needsRefresh(CacheEntry entry) {
+            return System.currentTimeMillis() >= getExpiryTime(entry);
+        }
+
+        public long getExpiryTime(CacheEntry entry) {
+            return entry.getLastUpdate() + lifetime;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Test class for the removal of the flushed entries in the background.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestFlushSweeper extends TestCase {
+    /**
+     * How long the tests wait for the sweeper
+     */
+    private static final long MAX_WAIT = 5000;
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Flush Sweeper content";
+    private Cache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestFlushSweeper(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestFlushSweeper.class);
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        cache = new Cache(true, false, false);
+    }
+
+    /**
+     * Stops the sweeper
+     */
+    public void tearDown() {
+        cache.setFlushSweeper(0);
+    }
+
+    /**
+     * The entries written before a cache-wide flush are removed, the ones
+     * written after it and the ones being rebuilt are kept
+     */
+    public void testSweep() throws Exception {
+        cache.setFlushSweeper(100000);
+        assertEquals(100000, cache.getFlushSweepRate());
+
+        for (int i = 0; i < 500; i++) {
+            cache.putInCache("key" + i, CONTENT);
+        }
+
+        // Being rebuilt
+        try {
+            cache.getFromCache("key0", 0);
+            fail("The entry should need a refresh");
+        } catch (NeedsRefreshException e) {
+            // Keep the update pending
+        }
+
+        cache.flushAll(new Date());
+        Thread.sleep(20);
+        cache.putInCache("fresh", CONTENT);
+        waitForSweep();
+
+        assertEquals(499, cache.getNbReclaimedEntries());
+        assertEquals(2, cache.getSize());
+        assertEquals(CONTENT, cache.getFromCache("fresh"));
+
+        cache.putInCache("key0", CONTENT);
+        assertEquals(CONTENT, cache.getFromCache("key0"));
+    }
+
+    /**
+     * The walk starts once the time of the flush has come, and looks at the
+     * entries no faster than the set rate
+     */
+    public void testRate() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            cache.putInCache("key" + i, CONTENT);
+        }
+
+        cache.setFlushSweeper(1000);
+
+        long start = System.currentTimeMillis();
+        cache.flushAll(new Date(start + 200));
+        assertTrue(cache.isSweepingFlushedEntries());
+        Thread.sleep(100);
+        assertEquals(300, cache.getSize());
+
+        waitForSweep();
+
+        // 200ms until the flush, then 300 entries at 1000 per second
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        assertEquals(0, cache.getSize());
+        assertEquals(300, cache.getNbReclaimedEntries());
+    }
+
+    /**
+     * An entry put between the moment the sweeper finds the flushed entry
+     * and the moment it removes it is kept
+     */
+    public void testPutDuringSweep() throws Exception {
+        cache.putInCache("key", CONTENT);
+        cache.flushAll(new Date());
+        Thread.sleep(20);
+
+        Map.Entry found = (Map.Entry) cache.getEntryIterator().next();
+        CacheEntry flushed = (CacheEntry) found.getValue();
+
+        cache.putInCache("key", CONTENT + "fresh");
+        assertFalse(cache.reclaimEntry("key", flushed));
+        assertEquals(CONTENT + "fresh", cache.getFromCache("key"));
+
+        // Writers racing with the sweeper never lose the entries they put
+        cache.setFlushSweeper(1000000);
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 200; i++) {
+                cache.putInCache("key" + i, CONTENT);
+            }
+
+            cache.flushAll(new Date());
+
+            // Entries put within the millisecond of the flush are flushed too
+            Thread.sleep(2);
+
+            for (int i = 0; i < 200; i++) {
+                cache.putInCache("key" + i, CONTENT + round);
+            }
+
+            waitForSweep();
+
+            for (int i = 0; i < 200; i++) {
+                assertEquals(CONTENT + round, cache.getFromCache("key" + i));
+            }
+        }
+    }
+
+    /**
+     * Without a sweeper the flushed entries stay in the cache
+     */
+    public void testNoSweeper() throws Exception {
+        cache.putInCache("key", CONTENT);
+        cache.flushAll(new Date());
+        assertFalse(cache.isSweepingFlushedEntries());
+        assertEquals(1, cache.getSize());
+        assertEquals(0, cache.getNbReclaimedEntries());
+    }
+
+    private void waitForSweep() throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        while (cache.isSweepingFlushedEntries() && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(10);
+        }
+
+        assertFalse("The sweep did not complete", cache.isSweepingFlushedEntries());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import com.opensymphony.oscache.base.algorithm.LRUCache;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test class for the index of the cache keys used by the pattern flushes.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestKeyIndex extends TestCase {
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Key Index content";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestKeyIndex(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestKeyIndex.class);
+    }
+
+    /**
+     * The index finds the keys containing a pattern, whatever its length,
+     * and forgets the removed keys even when their numbers are reused
+     */
+    public void testFind() {
+        KeyIndex index = new KeyIndex();
+        index.add("/shop/cart.jsp");
+        index.add("/shop/list.jsp?page=2");
+        index.add("/news/list.jsp");
+        index.add("/news/list.jsp");
+        index.add("aaaa");
+        assertEquals(4, index.size());
+
+        assertFound(index.find("/shop/"), new String[] {"/shop/cart.jsp", "/shop/list.jsp?page=2"});
+        assertFound(index.find("list.jsp"), new String[] {"/shop/list.jsp?page=2", "/news/list.jsp"});
+        assertFound(index.find("s/"), new String[] {"/news/list.jsp"});
+        assertFound(index.find("aaa"), new String[] {"aaaa"});
+        assertFound(index.find("/shop/basket"), new String[0]);
+        assertFound(index.find("ews/list.jsp?"), new String[0]);
+
+        index.remove("/shop/cart.jsp");
+        index.add("/blog/entry.jsp");
+        assertEquals(4, index.size());
+        assertFound(index.find("/shop/"), new String[] {"/shop/list.jsp?page=2"});
+        assertFound(index.find(".jsp"), new String[] {"/shop/list.jsp?page=2", "/news/list.jsp", "/blog/entry.jsp"});
+        assertTrue(index.getMemoryUsage() > 0);
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertFound(index.find(".jsp"), new String[0]);
+    }
+
+    /**
+     * The stale entries left by the removed keys are dropped once they
+     * outnumber the live ones
+     */
+    public void testCompaction() {
+        KeyIndex index = new KeyIndex();
+
+        for (int i = 0; i < 10000; i++) {
+            index.add("/page/" + i + ".jsp");
+        }
+
+        long full = index.getMemoryUsage();
+
+        for (int i = 0; i < 9990; i++) {
+            index.remove("/page/" + i + ".jsp");
+        }
+
+        assertEquals(10, index.size());
+        assertTrue(index.getMemoryUsage() < (full / 10));
+        assertEquals(10, index.find("/page/").size());
+    }
+
+    /**
+     * The pattern flushes of a cache with a key index flush the same entries
+     * as without the index, including the entries added before the index
+     */
+    public void testFlushPattern() {
+        Cache cache = new Cache(true, false, false);
+        cache.putInCache("/shop/cart.jsp", CONTENT);
+        cache.setKeyIndex(true);
+        assertTrue(cache.isKeyIndexEnabled());
+        cache.putInCache("/shop/list.jsp", CONTENT);
+        cache.putInCache("/news/list.jsp", CONTENT);
+        assertEquals(3, cache.getKeyIndexSize());
+        assertTrue(cache.getKeyIndexMemory() > 0);
+
+        cache.flushPattern("/shop/");
+        assertFlushed(cache, "/shop/cart.jsp", true);
+        assertFlushed(cache, "/shop/list.jsp", true);
+        assertFlushed(cache, "/news/list.jsp", false);
+
+        cache.removeEntry("/news/list.jsp");
+        assertEquals(2, cache.getKeyIndexSize());
+
+        cache.setKeyIndex(false);
+        assertEquals(0, cache.getKeyIndexSize());
+        assertEquals(0, cache.getKeyIndexMemory());
+    }
+
+    /**
+     * The keys evicted by the cache leave the index straight away, so that
+     * it holds the keys of the cache only
+     */
+    public void testEvictedKeys() throws Exception {
+        Cache cache = new Cache(true, false, false, false, LRUCache.class.getName(), 10);
+        cache.setKeyIndex(true);
+
+        for (int i = 0; i < 20; i++) {
+            cache.putInCache("/page/" + i, CONTENT);
+        }
+
+        assertEquals(10, cache.getKeyIndexSize());
+
+        for (int i = 0; i < 5000; i++) {
+            cache.putInCache("/item/" + i, CONTENT);
+        }
+
+        assertEquals(10, cache.getKeyIndexSize());
+
+        cache.flushPattern("/item/");
+
+        for (int i = 4990; i < 5000; i++) {
+            assertFlushed(cache, "/item/" + i, true);
+        }
+
+        cache.clear();
+        assertEquals(0, cache.getKeyIndexSize());
+    }
+
+    /**
+     * Writers adding, removing and evicting keys concurrently leave the
+     * index with the keys of the cache
+     */
+    public void testConcurrentWriters() throws Exception {
+        final Cache cache = new Cache(true, false, false, false, LRUCache.class.getName(), 500);
+        cache.setKeyIndex(true);
+
+        Thread[] writers = new Thread[4];
+
+        for (int t = 0; t < writers.length; t++) {
+            final int writer = t;
+
+            writers[t] = new Thread() {
+                        public void run() {
+                            for (int i = 0; i < 5000; i++) {
+                                String key = "/page/" + ((i * 7 + writer) % 1000);
+
+                                if ((i % 5) == 0) {
+                                    cache.removeEntry(key);
+                                } else {
+                                    cache.putInCache(key, CONTENT);
+                                }
+                            }
+                        }
+                    };
+            writers[t].start();
+        }
+
+        for (int t = 0; t < writers.length; t++) {
+            writers[t].join();
+        }
+
+        Set cached = new HashSet();
+
+        for (Iterator it = cache.getEntryIterator(); it.hasNext();) {
+            cached.add(((Map.Entry) it.next()).getKey());
+        }
+
+        assertEquals(cached.size(), cache.getKeyIndexSize());
+
+        // Every key of the cache is found through the index
+        cache.flushPattern("/page/");
+
+        for (Iterator it = cached.iterator(); it.hasNext();) {
+            assertFlushed(cache, (String) it.next(), true);
+        }
+    }
+
+    private void assertFlushed(Cache cache, String key, boolean flushed) {
+        try {
+            cache.getFromCache(key);
+            assertFalse(key, flushed);
+        } catch (NeedsRefreshException e) {
+            assertTrue(key, flushed);
+            cache.cancelUpdate(key);
+        }
+    }
+
+    private void assertFound(List found, String[] expected) {
+        assertEquals(expected.length, found.size());
+        assertEquals(new HashSet(Arrays.asList(expected)), new HashSet(found));
+    }
+}
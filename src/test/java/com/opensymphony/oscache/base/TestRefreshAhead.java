@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test class for the stale entries rebuilt in the background by the
+ * refresher of the cache, and for the entries refreshed ahead of their expiry.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestRefreshAhead extends TestCase {
+    /**
+     * How long the tests wait for a background refresh
+     */
+    private static final long MAX_WAIT = 5000;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Refresh Ahead key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Refresh Ahead content";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestRefreshAhead(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestRefreshAhead.class);
+    }
+
+    /**
+     * Every caller gets the stale content while a single refresh rebuilds
+     * the entry, and missing entries are still built by the callers
+     */
+    public void testStaleServedAndRefreshed() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        CountingLoader loader = new CountingLoader();
+        loader.hold();
+        cache.setRefresher(loader, 1, 10);
+        assertSame(loader, cache.getRefresher());
+
+        String[] groups = {"group"};
+        cache.putInCache(KEY, CONTENT, groups);
+        cache.flushEntry(KEY);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(CONTENT, cache.getFromCache(KEY));
+        }
+
+        assertEquals(1, cache.getNbPendingRefreshes());
+        loader.release();
+        waitForContent(cache, CONTENT + 1);
+        assertEquals(1, loader.getLoads());
+        assertEquals(0, cache.getNbUpdateState());
+
+        // The refreshed entry stays in its groups
+        cache.flushGroup("group");
+        assertEquals(CONTENT + 1, cache.getFromCache(KEY));
+        waitForContent(cache, CONTENT + 2);
+
+        try {
+            cache.getFromCache(KEY + "missing");
+            fail("A missing entry should be built by the caller");
+        } catch (NeedsRefreshException e) {
+            cache.cancelUpdate(KEY + "missing");
+        }
+
+        cache.setRefresher(null, 1, 10);
+        assertNull(cache.getRefresher());
+        cache.flushEntry(KEY);
+
+        try {
+            cache.getFromCache(KEY);
+            fail("Without refresher the stale entry should be rebuilt by the caller");
+        } catch (NeedsRefreshException e) {
+            cache.cancelUpdate(KEY);
+        }
+    }
+
+    /**
+     * A failed refresh keeps the stale content, and is tried again the next
+     * time the entry is found stale
+     */
+    public void testFailedRefresh() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        CountingLoader loader = new CountingLoader();
+        loader.fail = true;
+        cache.setRefresher(loader, 1, 10);
+
+        cache.putInCache(KEY, CONTENT);
+        cache.flushEntry(KEY);
+        assertEquals(CONTENT, cache.getFromCache(KEY));
+        waitForLoads(loader, 1);
+        waitForPending(cache);
+        assertEquals(0, cache.getNbUpdateState());
+
+        loader.fail = false;
+        assertEquals(CONTENT, cache.getFromCache(KEY));
+        waitForContent(cache, CONTENT + 2);
+        cache.setRefresher(null, 1, 1);
+    }
+
+    /**
+     * Entries past the refresh-ahead fraction of their lifetime are refreshed
+     * before anyone finds them stale
+     */
+    public void testRefreshAhead() throws Exception {
+        Cache cache = new Cache(true, false, false);
+        CountingLoader loader = new CountingLoader();
+        cache.setRefresher(loader, 2, 10);
+        cache.setRefreshAhead(0.5f);
+        assertEquals(0.5f, cache.getRefreshAhead(), 0);
+
+        cache.putInCache(KEY, CONTENT);
+        assertEquals(CONTENT, cache.getFromCache(KEY, 2));
+        assertEquals(0, cache.getNbPendingRefreshes());
+        assertEquals(0, loader.getLoads());
+
+        // Without a lifetime there is nothing to refresh ahead of
+        Thread.sleep(1100);
+        assertEquals(CONTENT, cache.getFromCache(KEY));
+        assertEquals(0, loader.getLoads());
+
+        // Past half of its two seconds, the entry is still fresh but refreshed
+        assertEquals(CONTENT, cache.getFromCache(KEY, 2));
+        waitForLoads(loader, 1);
+        waitForPending(cache);
+        assertEquals(CONTENT + 1, cache.getFromCache(KEY, 2));
+        cache.setRefresher(null, 1, 1);
+    }
+
+    /**
+     * An entry updated while its key waits for a refresh thread isn't
+     * loaded again, and a refresh doesn't count as an access to the entry
+     */
+    public void testUpdatedWhileQueued() throws Exception {
+        Cache cache = new Cache(true, false, false, false, TestCache.RetrievalCountingCache.class.getName(), 100);
+        CountingLoader loader = new CountingLoader();
+        loader.hold();
+        cache.setRefresher(loader, 1, 10);
+
+        cache.putInCache(KEY, CONTENT);
+        cache.putInCache(KEY + "other", CONTENT);
+
+        // The accesses made by a put of an existing entry
+        TestCache.RetrievalCountingCache.retrievals = 0;
+        cache.putInCache(KEY + "other", CONTENT);
+
+        int putRetrievals = TestCache.RetrievalCountingCache.retrievals;
+
+        // The single refresh thread is held on the first key, the other one waits
+        cache.flushEntry(KEY);
+        cache.flushEntry(KEY + "other");
+        assertEquals(CONTENT, cache.getFromCache(KEY));
+        assertEquals(CONTENT, cache.getFromCache(KEY + "other"));
+        assertEquals(2, cache.getNbPendingRefreshes());
+
+        cache.putInCache(KEY + "other", CONTENT + "put");
+
+        TestCache.RetrievalCountingCache.retrievals = 0;
+        loader.release();
+        waitForPending(cache);
+
+        assertEquals(1, loader.getLoads());
+        assertEquals(putRetrievals, TestCache.RetrievalCountingCache.retrievals);
+        assertEquals(CONTENT + 1, cache.getFromCache(KEY));
+        assertEquals(CONTENT + "put", cache.getFromCache(KEY + "other"));
+        assertEquals(0, cache.getNbUpdateState());
+        cache.setRefresher(null, 1, 1);
+    }
+
+    /**
+     * The refresher settings are validated
+     */
+    public void testSettings() {
+        Cache cache = new Cache(true, false, false);
+
+        try {
+            cache.setRefresher(new CountingLoader(), 0, 10);
+            fail("A refresher without threads should be rejected");
+        } catch (IllegalArgumentException e) {
+            // This is what we expected
+        }
+
+        try {
+            cache.setRefreshAhead(1);
+            fail("A refresh-ahead fraction of 1 should be rejected");
+        } catch (IllegalArgumentException e) {
+            // This is what we expected
+        }
+
+        assertNull(cache.getRefresher());
+        assertEquals(0, cache.getNbPendingRefreshes());
+    }
+
+    private void waitForContent(Cache cache, String content) throws Exception {
+        long start = System.currentTimeMillis();
+
+        while (!content.equals(cache.getFromCache(KEY)) && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(content, cache.getFromCache(KEY));
+    }
+
+    private void waitForLoads(CountingLoader loader, int loads) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        while ((loader.getLoads() < loads) && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(loads, loader.getLoads());
+    }
+
+    private void waitForPending(Cache cache) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        while ((cache.getNbPendingRefreshes() > 0) && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, cache.getNbPendingRefreshes());
+    }
+
+    /**
+     * A loader numbering the contents it loads, which can be held until the
+     * test releases it, or fail
+     */
+    private static final class CountingLoader implements CacheLoader {
+        volatile boolean fail = false;
+        private boolean held = false;
+        private int loads = 0;
+
+        public synchronized Object load(String key) throws Exception {
+            long start = System.currentTimeMillis();
+
+            while (held && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+                wait(MAX_WAIT);
+            }
+
+            loads++;
+
+            if (fail) {
+                throw new Exception("Refresh failure");
+            }
+
+            return CONTENT + loads;
+        }
+
+        synchronized void hold() {
+            held = true;
+        }
+
+        synchronized void release() {
+            held = false;
+            notifyAll();
+        }
+
+        synchronized int getLoads() {
+            return loads;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Test class for the ARCCache class. Besides the shared queue cache tests,
+ * it checks how the ghost lists adapt the target size of T1, and compares
+ * the hit rate of the ARCCache with the LRUCache on a trace mixing bursts
+ * of fresh keys with long-lived popular keys.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestARCCache extends TestQueueCache {
+    /**
+     * Capacity of the caches compared by the hit rate test
+     */
+    private static final int TRACE_CAPACITY = 500;
+
+    /**
+     * Number of accesses of the trace
+     */
+    private static final int TRACE_LENGTH = 200000;
+
+    /**
+     * ARC Cache object
+     */
+    private static ARCCache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestARCCache(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestARCCache.class);
+    }
+
+    /**
+     * Abstract method used by the TestAbstractCache class
+     * <p>
+     * @return  A cache instance
+     */
+    public AbstractConcurrentReadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        // Create a cache instance on first invocation
+        if (cache == null) {
+            cache = new ARCCache(MAX_ENTRIES);
+            assertNotNull(cache);
+        }
+    }
+
+    /**
+     * Test the cache algorithm: keys seen once are evicted before keys seen
+     * twice, and the ghost hits move the target size of T1
+     */
+    public void testRemoveItem() {
+        ARCCache arc = new ARCCache(MAX_ENTRIES);
+
+        arc.itemPut(KEY);
+        arc.itemPut(KEY + 1);
+        arc.itemPut(KEY + 2);
+
+        // The key read again moves to T2, the eldest key of T1 goes
+        arc.itemRetrieved(KEY);
+        assertEquals(KEY + 1, arc.removeItem());
+        assertTrue(arc.isGhost(KEY + 1));
+        assertEquals(0, arc.getTarget());
+
+        // A hit on a B1 ghost grows T1
+        arc.itemPut(KEY + 1);
+        assertTrue(!arc.isGhost(KEY + 1));
+        assertEquals(1, arc.getTarget());
+
+        // T1 is at its target, so the victim comes from T2
+        assertEquals(KEY, arc.removeItem());
+        assertTrue(arc.isGhost(KEY));
+
+        // A hit on a B2 ghost shrinks T1 again
+        arc.itemPut(KEY);
+        assertEquals(0, arc.getTarget());
+
+        // A removed key is forgotten, not kept as a ghost
+        arc.itemRemoved(KEY + 2);
+        assertTrue(!arc.isGhost(KEY + 2));
+
+        // Drain the remaining keys
+        assertEquals(KEY + 1, arc.removeItem());
+        assertEquals(KEY, arc.removeItem());
+        assertNull(arc.removeItem());
+    }
+
+    /**
+     * The ghost lists never hold more keys than the capacity
+     */
+    public void testGhostsBounded() {
+        ARCCache arc = new ARCCache(10);
+
+        for (int i = 0; i < 1000; i++) {
+            arc.put(KEY + i, CONTENT);
+        }
+
+        int ghosts = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            if (arc.isGhost(KEY + i)) {
+                ghosts++;
+            }
+        }
+
+        assertEquals(10, arc.size());
+        assertTrue(ghosts <= 10);
+    }
+
+    /**
+     * ARC must keep its popular entries through bursts of fresh keys,
+     * whereas LRU gets flushed by every burst
+     */
+    public void testMixedHitRate() {
+        Random random = new Random(3);
+        String[] trace = new String[TRACE_LENGTH];
+        int fresh = 0;
+
+        for (int i = 0; i < TRACE_LENGTH;) {
+            // Long-lived fragments requested all the time
+            for (int n = 0; (n < 2000) && (i < TRACE_LENGTH); n++) {
+                trace[i++] = KEY + random.nextInt(TRACE_CAPACITY / 2);
+            }
+
+            // A burst of fresh pages, most of them never requested again
+            for (int n = 0; (n < 1000) && (i < TRACE_LENGTH); n++) {
+                trace[i++] = KEY + "fresh" + ((random.nextInt(10) == 0) ? (fresh - 1) : fresh++);
+            }
+        }
+
+        double lru = hitRate(new LRUCache(TRACE_CAPACITY), trace);
+        double arc = hitRate(new ARCCache(TRACE_CAPACITY), trace);
+        System.out.println("Mixed trace hit rate: LRUCache " + lru + ", ARCCache " + arc);
+
+        assertTrue("ARC hit rate " + arc + " should beat LRU " + lru, arc > lru);
+    }
+
+    /**
+     * Replays a trace against a cache, putting each missed key.
+     *
+     * @return the ratio of hits
+     */
+    private double hitRate(AbstractConcurrentReadCache target, String[] trace) {
+        int hits = 0;
+
+        for (int i = 0; i < trace.length; i++) {
+            if (target.get(trace[i]) != null) {
+                hits++;
+            } else {
+                target.put(trace[i], CONTENT);
+            }
+        }
+
+        return hits / (double) trace.length;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test class for the eviction by a background thread between a high and a
+ * low watermark.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestBackgroundEvictor extends TestCase {
+    /**
+     * Capacity of the tested cache
+     */
+    private static final int MAX_ENTRIES = 100;
+
+    /**
+     * How long the tests wait for the evictor
+     */
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Background Evictor key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Background Evictor content";
+
+    private LRUCache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestBackgroundEvictor(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestBackgroundEvictor.class);
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        cache = new LRUCache(MAX_ENTRIES);
+        cache.setEvictionWatermarks(0.8f, 0.5f);
+    }
+
+    /**
+     * Stops the evictor thread
+     */
+    public void tearDown() {
+        cache.setEvictionWatermarks(0, 0);
+    }
+
+    /**
+     * Crossing the high watermark brings the cache back to the low one,
+     * evicting the least recently used entries
+     */
+    public void testEviction() throws InterruptedException {
+        for (int i = 0; i < 80; i++) {
+            cache.put(KEY + i, CONTENT + i);
+        }
+
+        // Nothing happens up to the high watermark
+        Thread.sleep(100);
+        assertEquals(80, cache.size());
+        assertEquals(0, cache.getEvictionLag());
+
+        cache.put(KEY + 80, CONTENT);
+        awaitSize(50);
+
+        assertEquals(50, cache.size());
+        assertTrue(!cache.containsKey(KEY + 0));
+        assertTrue(cache.containsKey(KEY + 80));
+        awaitLag();
+    }
+
+    /**
+     * The capacity remains a hard ceiling for the writers
+     */
+    public void testHardCeiling() throws InterruptedException {
+        for (int i = 0; i < (MAX_ENTRIES * 10); i++) {
+            cache.put(KEY + i, CONTENT + i);
+            assertTrue(cache.size() <= MAX_ENTRIES);
+        }
+
+        // The writers may have refilled the cache after the last batch
+        awaitLag();
+        assertTrue(cache.size() <= 80);
+        assertTrue(cache.containsKey(KEY + ((MAX_ENTRIES * 10) - 1)));
+    }
+
+    /**
+     * The watermarks also apply to a byte budget
+     */
+    public void testByteWatermarks() throws InterruptedException {
+        cache.setEntryWeigher(new EntryWeigher() {
+                public int weigh(Object key, Object value) {
+                    return 10;
+                }
+            });
+        cache.setMaxBytes(200);
+
+        // 17 entries weigh 170 bytes, over 80% of the budget
+        for (int i = 0; i < 17; i++) {
+            cache.put(KEY + i, CONTENT + i);
+        }
+
+        awaitSize(10);
+        assertEquals(100, cache.weight());
+    }
+
+    /**
+     * Invalid watermarks are refused, and they can be disabled
+     */
+    public void testSetEvictionWatermarks() throws InterruptedException {
+        assertEquals(0.8f, cache.getHighWatermark(), 0);
+        assertEquals(0.5f, cache.getLowWatermark(), 0);
+
+        float[][] invalid = {
+            {0.5f, 0.8f},
+            {0.8f, 0.8f},
+            {1.5f, 0.5f},
+            {0.8f, 0},
+            {-0.1f, -0.2f}
+        };
+
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                cache.setEvictionWatermarks(invalid[i][0], invalid[i][1]);
+                fail("Eviction watermarks set with invalid arguments");
+            } catch (IllegalArgumentException e) {
+                // This is what we expect
+            }
+        }
+
+        cache.setEvictionWatermarks(0, 0);
+        assertEquals(0, cache.getHighWatermark(), 0);
+
+        for (int i = 0; i < 90; i++) {
+            cache.put(KEY + i, CONTENT + i);
+        }
+
+        Thread.sleep(100);
+        assertEquals(90, cache.size());
+
+        // Enabling the watermarks on a filled cache evicts at once
+        cache.setEvictionWatermarks(0.8f, 0.5f);
+        awaitSize(50);
+    }
+
+    private void awaitSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while ((cache.size() > size) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("The evictor did not reach the low watermark", size, cache.size());
+    }
+
+    private void awaitLag() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while ((cache.getEvictionLag() > 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, cache.getEvictionLag());
+    }
+}
@@ -49,7 +49,18 @@ public final class TestCompleteAlgorithm extends TestCase {
         TestSuite suite = new TestSuite("Test all base algorithm cache modules");
         suite.addTest(TestFIFOCache.suite());
         suite.addTest(TestLRUCache.suite());
+        suite.addTest(TestConcurrentLRUCache.suite());
+        suite.addTest(TestSegmentedLRUCache.suite());
+        suite.addTest(TestTinyLFUCache.suite());
+        suite.addTest(TestARCCache.suite());
         suite.addTest(TestUnlimitedCache.suite());
+        suite.addTest(TestWeightedCache.suite());
+        suite.addTest(TestPersistenceQueue.suite());
+        suite.addTest(TestBackgroundEvictor.suite());
+        suite.addTest(TestUnlinkingStorage.suite());
+        suite.addTest(TestIncrementalResize.suite());
+        suite.addTest(TestValueReferences.suite());
+        suite.addTest(TestOffHeapStore.suite());
 
         return suite;
     }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Test class for the ConcurrentLRUCache class. It runs the shared queue
+ * cache tests, checks the LRU order, and verifies that cache hits neither
+ * block on a running eviction nor lose entries when several threads hit
+ * the cache at once.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestConcurrentLRUCache extends TestQueueCache {
+    /**
+     * Number of distinct keys read by the contention test
+     */
+    private static final int HOT_KEYS = 1000;
+
+    /**
+     * Number of hits made by each thread of the contention test
+     */
+    private static final int HITS_PER_THREAD = 200000;
+
+    /**
+     * Concurrent LRU Cache object
+     */
+    private static ConcurrentLRUCache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestConcurrentLRUCache(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestConcurrentLRUCache.class);
+    }
+
+    /**
+     * Abstract method used by the TestAbstractCache class
+     * <p>
+     * @return  A cache instance
+     */
+    public AbstractConcurrentReadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        // Create a cache instance on first invocation
+        if (cache == null) {
+            cache = new ConcurrentLRUCache();
+            assertNotNull(cache);
+        }
+    }
+
+    /**
+     * Test the cache algorithm
+     */
+    public void testRemoveItem() {
+        // Add 3 elements
+        cache.itemPut(KEY);
+        cache.itemPut(KEY + 1);
+        cache.itemPut(KEY + 2);
+
+        // Get the last element
+        cache.itemRetrieved(KEY);
+
+        // The least recently used item is key + 1, the buffered read of
+        // key is applied before the victim is chosen
+        assertEquals(KEY + 1, cache.removeItem());
+        assertEquals(KEY + 2, cache.removeItem());
+        assertEquals(KEY, cache.removeItem());
+
+        // Nothing left to evict
+        assertNull(cache.removeItem());
+    }
+
+    /**
+     * Hits that fill up a buffer stripe must not wait for an eviction
+     */
+    public void testHitsDoNotBlockOnEviction() throws Exception {
+        final ConcurrentLRUCache lru = new ConcurrentLRUCache(HOT_KEYS);
+
+        for (int i = 0; i < HOT_KEYS; i++) {
+            lru.put(KEY + i, CONTENT);
+        }
+
+        // Simulate an eviction that takes forever
+        lru.evictionLock.lock();
+
+        try {
+            Thread reader = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < (ReadBuffer.STRIPE_SIZE * 100); i++) {
+                            lru.get(KEY + (i % HOT_KEYS));
+                        }
+                    }
+                };
+
+            reader.start();
+            reader.join(5000);
+            assertTrue("A cache hit blocked on the eviction lock", !reader.isAlive());
+        } finally {
+            lru.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Every entry left in the cache after concurrent hits, puts and
+     * evictions must still be known to the algorithm
+     */
+    public void testConcurrentBookkeeping() throws Exception {
+        final ConcurrentLRUCache lru = new ConcurrentLRUCache(MAX_ENTRIES * 10);
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+
+            threads[t] = new Thread() {
+                        public void run() {
+                            for (int i = 0; i < 2000; i++) {
+                                lru.put(KEY + thread + "_" + (i % 50), CONTENT);
+                                lru.get(KEY + thread + "_" + ((i * 7) % 50));
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        int size = lru.size();
+        assertTrue(size <= (MAX_ENTRIES * 10));
+
+        int evicted = 0;
+
+        while (lru.removeItem() != null) {
+            evicted++;
+        }
+
+        assertEquals(size, evicted);
+    }
+
+    /**
+     * Lets one thread per processor (at least two) hit the LRUCache and the
+     * ConcurrentLRUCache at once. The readers must not fail, and the caches
+     * must neither grow past their capacity nor lose any of the keys being
+     * read.
+     */
+    public void testConcurrentHits() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        checkHits(new LRUCache(HOT_KEYS), threads);
+        checkHits(new ConcurrentLRUCache(HOT_KEYS), threads);
+    }
+
+    /**
+     * Fills the supplied cache and lets the given number of threads read
+     * every key a number of times, then checks that no reader failed and that
+     * every key read is still in the cache.
+     */
+    private void checkHits(final AbstractConcurrentReadCache target, int threadCount) throws Exception {
+        final String[] keys = new String[HOT_KEYS];
+
+        for (int i = 0; i < HOT_KEYS; i++) {
+            keys[i] = KEY + i;
+            target.put(keys[i], CONTENT);
+        }
+
+        final Throwable[] failures = new Throwable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+
+            threads[t] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int i = thread * 31; i < (HITS_PER_THREAD + (thread * 31)); i++) {
+                                    String key = keys[i % HOT_KEYS];
+
+                                    if (target.get(key) == null) {
+                                        throw new IllegalStateException("Key " + key + " was lost");
+                                    }
+                                }
+                            } catch (Throwable e) {
+                                failures[thread] = e;
+                            }
+                        }
+                    };
+        }
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+        }
+
+        for (int t = 0; t < threadCount; t++) {
+            if (failures[t] != null) {
+                fail("Reader " + t + " failed: " + failures[t]);
+            }
+        }
+
+        assertTrue("The cache grew to " + target.size() + " entries", target.size() <= HOT_KEYS);
+
+        for (int i = 0; i < HOT_KEYS; i++) {
+            assertEquals(CONTENT, target.get(keys[i]));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Test class for the incremental resizing of the large tables of the
+ * AbstractConcurrentReadCache, and for the sizing of the table for an
+ * expected number of entries.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestIncrementalResize extends TestCase {
+    /**
+     * Number of entries that starts the incremental resize of a single
+     * segment table
+     */
+    private static final int RESIZE_SIZE = (int) (AbstractConcurrentReadCache.INCREMENTAL_RESIZE_CAPACITY * AbstractConcurrentReadCache.DEFAULT_LOAD_FACTOR);
+
+    /**
+     * Number of entries of the concurrent test, enough for several
+     * incremental resizes
+     */
+    private static final int CONCURRENT_SIZE = RESIZE_SIZE * 8;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Incremental Resize key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Incremental Resize content";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestIncrementalResize(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestIncrementalResize.class);
+    }
+
+    /**
+     * While the bins are being moved, every entry stays reachable through
+     * get, the iterators and remove, and the resize eventually completes
+     */
+    public void testResizeInProgress() {
+        UnlimitedCache cache = new UnlimitedCache();
+        fill(cache, RESIZE_SIZE);
+
+        AbstractConcurrentReadCache.Segment seg = cache.segments[0];
+        assertNotNull("The resize should be in progress", seg.nextTable);
+        assertEquals(AbstractConcurrentReadCache.INCREMENTAL_RESIZE_CAPACITY, cache.capacity());
+
+        // Move some bins, removing and adding entries along the way
+        for (int i = 0; i < 20; i++) {
+            assertEquals(CONTENT + i, cache.remove(KEY + i));
+            cache.put(KEY + i, CONTENT + i);
+        }
+
+        assertNotNull(seg.nextTable);
+        assertTrue(seg.resizeIndex > 0);
+        checkContents(cache, RESIZE_SIZE);
+
+        assertNull(cache.remove(KEY + RESIZE_SIZE));
+        assertTrue(cache.containsValue(CONTENT + 0));
+
+        // Every write moves some bins until the next table takes over
+        int writes = 0;
+
+        while (seg.nextTable != null) {
+            cache.put(KEY + writes, CONTENT + writes);
+            writes++;
+        }
+
+        assertTrue(writes <= (AbstractConcurrentReadCache.INCREMENTAL_RESIZE_CAPACITY / AbstractConcurrentReadCache.RESIZE_STRIDE));
+        assertEquals(AbstractConcurrentReadCache.INCREMENTAL_RESIZE_CAPACITY * 2, cache.capacity());
+        checkContents(cache, RESIZE_SIZE);
+    }
+
+    /**
+     * Clearing, cloning or serializing the cache completes the resize
+     */
+    public void testCompletedByWholeTableOperations() {
+        UnlimitedCache cache = new UnlimitedCache();
+        fill(cache, RESIZE_SIZE);
+        assertNotNull(cache.segments[0].nextTable);
+
+        UnlimitedCache copy = (UnlimitedCache) cache.clone();
+        assertNull(cache.segments[0].nextTable);
+        checkContents(copy, RESIZE_SIZE);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(KEY + 0));
+    }
+
+    /**
+     * Readers find every entry already put while the writer goes through
+     * several resizes
+     */
+    public void testConcurrentReads() throws Exception {
+        final UnlimitedCache cache = new UnlimitedCache();
+        final int[] published = new int[1];
+        final String[] failure = new String[1];
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Thread[] readers = new Thread[Math.max(2, cpus - 1)];
+
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t);
+
+            readers[t] = new Thread() {
+                        public void run() {
+                            for (;;) {
+                                int count;
+
+                                synchronized (published) {
+                                    count = published[0];
+                                }
+
+                                if (count >= CONCURRENT_SIZE) {
+                                    return;
+                                }
+
+                                if (count > 0) {
+                                    int i = random.nextInt(count);
+
+                                    if (!(CONTENT + i).equals(cache.get(KEY + i))) {
+                                        synchronized (published) {
+                                            failure[0] = KEY + i + " not found";
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    };
+            readers[t].start();
+        }
+
+        for (int i = 0; i < CONCURRENT_SIZE; i++) {
+            cache.put(KEY + i, CONTENT + i);
+
+            synchronized (published) {
+                published[0] = i + 1;
+            }
+        }
+
+        for (int t = 0; t < readers.length; t++) {
+            readers[t].join();
+        }
+
+        synchronized (published) {
+            assertNull(failure[0], failure[0]);
+        }
+
+        checkContents(cache, CONCURRENT_SIZE);
+    }
+
+    /**
+     * A cache sized for its entries is never resized
+     */
+    public void testExpectedSize() {
+        UnlimitedCache cache = new UnlimitedCache();
+        cache.setConcurrencyLevel(4);
+        cache.setExpectedSize(CONCURRENT_SIZE);
+
+        int capacity = cache.capacity();
+        assertTrue(capacity >= (CONCURRENT_SIZE / AbstractConcurrentReadCache.DEFAULT_LOAD_FACTOR));
+        assertEquals(4, cache.getConcurrencyLevel());
+
+        fill(cache, CONCURRENT_SIZE / 2);
+        assertEquals(capacity, cache.capacity());
+
+        try {
+            cache.setExpectedSize(10);
+            fail("Expected size changed on a filled cache");
+        } catch (IllegalStateException e) {
+            // This is what we expect
+        }
+
+        try {
+            new UnlimitedCache().setExpectedSize(-1);
+            fail("Negative expected size accepted");
+        } catch (IllegalArgumentException e) {
+            // This is what we expect
+        }
+    }
+
+    private void fill(AbstractConcurrentReadCache cache, int size) {
+        for (int i = 0; i < size; i++) {
+            cache.put(KEY + i, CONTENT + i);
+        }
+    }
+
+    /**
+     * Checks that get finds every entry, and that the iterator returns each
+     * of them exactly once
+     */
+    private void checkContents(AbstractConcurrentReadCache cache, int size) {
+        assertEquals(size, cache.size());
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(CONTENT + i, cache.get(KEY + i));
+        }
+
+        Set seen = new HashSet();
+
+        for (Iterator it = cache.keySet().iterator(); it.hasNext();) {
+            assertTrue("Key returned twice", seen.add(it.next()));
+        }
+
+        assertEquals(size, seen.size());
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+import com.opensymphony.oscache.base.Config;
+import com.opensymphony.oscache.base.persistence.PersistenceListener;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test class for the off-heap tier: the slab allocation of the store itself,
+ * and the entries evicted from the cache into the tier and read back.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestOffHeapStore extends TestCase {
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Off-Heap Store key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Off-Heap Store content";
+
+    /**
+     * Group name
+     */
+    private static final String GROUP = "Test Off-Heap Store group";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestOffHeapStore(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestOffHeapStore.class);
+    }
+
+    /**
+     * Values are read back as they were stored, in slots of their size class
+     */
+    public void testStoreAndTake() {
+        OffHeapStore store = new OffHeapStore(64 * 1024);
+        List evicted = new ArrayList();
+
+        assertTrue(store.store(KEY, bytes(10, 1), null, evicted));
+        assertTrue(store.store(KEY + 1, bytes(100, 2), null, evicted));
+        assertEquals(2, store.size());
+        assertEquals(64 + 128, store.getUsedBytes());
+
+        // Replacing a value frees its previous slot
+        assertTrue(store.store(KEY, bytes(20, 3), null, evicted));
+        assertEquals(64 + 128, store.getUsedBytes());
+
+        assertTrue(Arrays.equals(bytes(20, 3), store.take(KEY)));
+        assertNull(store.take(KEY));
+        assertTrue(Arrays.equals(bytes(100, 2), store.take(KEY + 1)));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+        assertTrue(evicted.isEmpty());
+
+        // Values larger than a page, here a sixteenth of the capacity, are not kept
+        assertFalse(store.store(KEY, bytes(4097, 4), null, evicted));
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Once the store is full the eldest values of the class are evicted, and
+     * a class without pages gets one freed by another class
+     */
+    public void testEviction() {
+        OffHeapStore store = new OffHeapStore(2048);
+        List evicted = new ArrayList();
+        Set groups = new HashSet();
+        groups.add(GROUP);
+
+        // The 16 pages of 128 bytes hold 32 slots of 64 bytes
+        for (int i = 0; i < 32; i++) {
+            assertTrue(store.store(KEY + i, bytes(50, i), groups, evicted));
+        }
+
+        assertEquals(32, store.size());
+        assertTrue(evicted.isEmpty());
+
+        assertTrue(store.store(KEY + 32, bytes(50, 32), null, evicted));
+        assertEquals(1, evicted.size());
+
+        OffHeapStore.Record record = (OffHeapStore.Record) evicted.get(0);
+        assertEquals(KEY + 0, record.key);
+        assertEquals(groups, record.groups);
+        assertTrue(Arrays.equals(bytes(50, 0), record.data));
+        assertFalse(store.contains(KEY + 0));
+
+        // A value of another class needs a page, freed by evicting the eldest
+        // values until one of the pages is empty: the first page still holds
+        // the last value
+        evicted.clear();
+        assertTrue(store.store(KEY, bytes(100, 1), null, evicted));
+        assertEquals(3, evicted.size());
+        assertEquals(30, store.size());
+        assertEquals((29 * 64) + 128, store.getUsedBytes());
+        assertTrue(Arrays.equals(bytes(100, 1), store.take(KEY)));
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    /**
+     * The values evicted from the cache go off-heap, and are put back in
+     * memory when they are requested again
+     */
+    public void testCacheEviction() {
+        LRUCache cache = new LRUCache(2);
+        cache.setOffHeapBytes(64 * 1024);
+        assertEquals(64 * 1024, cache.getOffHeapBytes());
+
+        cache.put(KEY + 0, newGroupEntry(KEY + 0));
+        cache.put(KEY + 1, CONTENT + 1);
+        cache.put(KEY + 2, CONTENT + 2);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getOffHeapSize());
+
+        // The evicted entry is still in its group
+        assertTrue(cache.getGroup(GROUP).contains(KEY + 0));
+
+        CacheEntry entry = (CacheEntry) cache.get(KEY + 0);
+        assertNotNull(entry);
+        assertEquals(CONTENT, entry.getContent());
+        assertEquals(2, cache.size());
+
+        // Reading it back evicted the least recently used entry in turn
+        assertEquals(1, cache.getOffHeapSize());
+        assertEquals(CONTENT + 1, cache.get(KEY + 1));
+
+        // A new value replaces the off-heap copy, a removed key leaves the tier
+        cache.put(KEY + 0, CONTENT);
+        assertEquals(1, cache.getOffHeapSize());
+        assertNull(cache.getGroup(GROUP));
+        cache.remove(KEY + 2);
+        cache.remove(KEY + 0);
+        cache.remove(KEY + 1);
+        assertEquals(0, cache.getOffHeapSize());
+        assertNull(cache.get(KEY + 0));
+
+        // Values that can't be serialized are dropped as before
+        cache.put(KEY + 3, new Object());
+        cache.put(KEY + 4, CONTENT);
+        cache.put(KEY + 5, CONTENT);
+        assertEquals(0, cache.getOffHeapSize());
+        assertNull(cache.get(KEY + 3));
+
+        cache.clear();
+        assertEquals(0, cache.getOffHeapSize());
+
+        try {
+            cache.put(KEY, CONTENT);
+            cache.setOffHeapBytes(0);
+            fail("The off-heap capacity of a populated cache should not change");
+        } catch (IllegalStateException e) {
+            // This is what we expected
+        }
+    }
+
+    /**
+     * With overflow persistence, the values evicted from the tier go to disk
+     */
+    public void testOverflowToDisk() {
+        LRUCache cache = new LRUCache(1);
+        cache.setOffHeapBytes(64);
+
+        MapPersistenceListener listener = new MapPersistenceListener();
+        cache.setPersistenceListener(listener);
+        cache.setOverflowPersistence(true);
+
+        // The tier has room for one value
+        cache.put(KEY + 0, CONTENT + 0);
+        cache.put(KEY + 1, CONTENT + 1);
+        assertEquals(1, cache.getOffHeapSize());
+        assertFalse(listener.isStored(KEY + 0));
+
+        cache.put(KEY + 2, CONTENT + 2);
+        assertEquals(1, cache.getOffHeapSize());
+        assertTrue(listener.isStored(KEY + 0));
+
+        assertEquals(CONTENT + 0, cache.get(KEY + 0));
+        assertEquals(CONTENT + 1, cache.get(KEY + 1));
+        assertEquals(CONTENT + 2, cache.get(KEY + 2));
+    }
+
+    private CacheEntry newGroupEntry(String key) {
+        CacheEntry entry = new CacheEntry(key);
+        Set groups = new HashSet();
+        groups.add(GROUP);
+        entry.setGroups(groups);
+        entry.setContent(CONTENT);
+
+        return entry;
+    }
+
+    private byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+
+        return data;
+    }
+
+    /**
+     * A persistence listener keeping the entries in a map
+     */
+    private static final class MapPersistenceListener implements PersistenceListener {
+        private final Map entries = new HashMap();
+        private final Map groups = new HashMap();
+
+        public PersistenceListener configure(Config config) {
+            return this;
+        }
+
+        public synchronized boolean isStored(String key) {
+            return entries.containsKey(key);
+        }
+
+        public synchronized boolean isGroupStored(String groupName) {
+            return groups.containsKey(groupName);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            groups.clear();
+        }
+
+        public synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        public synchronized void removeGroup(String groupName) {
+            groups.remove(groupName);
+        }
+
+        public synchronized Object retrieve(String key) {
+            return entries.get(key);
+        }
+
+        public synchronized Set retrieveGroup(String groupName) {
+            return (Set) groups.get(groupName);
+        }
+
+        public synchronized void store(String key, Object obj) {
+            entries.put(key, obj);
+        }
+
+        public synchronized void storeGroup(String groupName, Set group) {
+            groups.put(groupName, group);
+        }
+    }
+}
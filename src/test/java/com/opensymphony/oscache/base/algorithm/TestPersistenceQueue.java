@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+import com.opensymphony.oscache.base.Config;
+import com.opensymphony.oscache.base.persistence.CachePersistenceException;
+import com.opensymphony.oscache.base.persistence.PersistenceListener;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test class for the persistence writes performed outside of the cache
+ * locks. A persistence listener blocks while storing a particular key, and
+ * the tests check that other writers and readers carry on meanwhile, that
+ * the writes of a key keep their order and that reads see the writes that
+ * have not been performed yet.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestPersistenceQueue extends TestCase {
+    /**
+     * Key whose storage blocks until released
+     */
+    private static final String BLOCKING_KEY = "Test Persistence Queue blocking key";
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Persistence Queue key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Persistence Queue content";
+
+    /**
+     * Number of operations performed while the listener is blocked
+     */
+    private static final int OPERATIONS = 200;
+
+    /**
+     * How long the tests wait for the blocked store to be entered
+     */
+    private static final long TIMEOUT = 10000;
+
+    private SlowPersistenceListener listener = null;
+    private LRUCache cache = null;
+    private Thread blockedWriter = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestPersistenceQueue(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestPersistenceQueue.class);
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        listener = new SlowPersistenceListener();
+        cache = new LRUCache(OPERATIONS * 2);
+        cache.setPersistenceListener(listener);
+    }
+
+    /**
+     * Releases the blocked writer, if any, so that no thread is left behind
+     */
+    public void tearDown() throws Exception {
+        listener.release();
+
+        if (blockedWriter != null) {
+            blockedWriter.join(TIMEOUT);
+        }
+    }
+
+    /**
+     * While one writer is stuck in the listener, the other writers and the
+     * readers are not blocked, and their writes are performed once the
+     * listener recovers
+     */
+    public void testWritersNotBlocked() throws Exception {
+        startBlockedWriter();
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            cache.put(KEY + i, CONTENT + i);
+            assertEquals(CONTENT + i, cache.get(KEY + i));
+        }
+
+        cache.remove(KEY + 0);
+        assertEquals(CONTENT, cache.get(BLOCKING_KEY));
+
+        // All of this happened while the listener was blocked
+        assertTrue(listener.isBlocked());
+        assertTrue("Writers were blocked by the listener", (System.currentTimeMillis() - start) < TIMEOUT);
+        assertEquals(0, listener.size());
+
+        // The blocked writer performs the queued writes once released
+        listener.release();
+        blockedWriter.join(TIMEOUT);
+
+        assertTrue(listener.isStored(BLOCKING_KEY));
+        assertTrue(!listener.isStored(KEY + 0));
+
+        for (int i = 1; i < OPERATIONS; i++) {
+            assertEquals(CONTENT + i, listener.retrieve(KEY + i));
+        }
+    }
+
+    /**
+     * A store can't overtake a later remove of the same key
+     */
+    public void testPerKeyOrdering() throws Exception {
+        startBlockedWriter();
+
+        cache.put(KEY, CONTENT);
+        cache.put(KEY, CONTENT + 1);
+        cache.remove(KEY);
+        cache.put(KEY + 1, CONTENT);
+        cache.remove(KEY + 1);
+        cache.put(KEY + 1, CONTENT + 1);
+
+        listener.release();
+        blockedWriter.join(TIMEOUT);
+
+        assertTrue(!listener.isStored(KEY));
+        assertEquals(CONTENT + 1, listener.retrieve(KEY + 1));
+    }
+
+    /**
+     * Without memory cache, reads return the writes that are still queued
+     */
+    public void testPendingWritesVisible() throws Exception {
+        cache.setMemoryCaching(false);
+        startBlockedWriter();
+
+        cache.put(KEY, CONTENT);
+        assertEquals(0, listener.size());
+        assertEquals(CONTENT, cache.get(KEY));
+
+        cache.put(KEY, CONTENT + 1);
+        assertEquals(CONTENT + 1, cache.get(KEY));
+
+        // The old value is taken from the queue as well
+        assertEquals(CONTENT + 1, cache.remove(KEY));
+        assertNull(cache.get(KEY));
+
+        listener.release();
+        blockedWriter.join(TIMEOUT);
+
+        assertTrue(!listener.isStored(KEY));
+        assertEquals(CONTENT, cache.get(BLOCKING_KEY));
+    }
+
+    /**
+     * Writes queued before a clear are dropped, later ones are kept
+     */
+    public void testClear() throws Exception {
+        startBlockedWriter();
+
+        cache.put(KEY, CONTENT);
+        cache.clear();
+        cache.put(KEY + 1, CONTENT);
+
+        listener.release();
+        blockedWriter.join(TIMEOUT);
+
+        assertTrue(!listener.isStored(KEY));
+        assertTrue(listener.isStored(KEY + 1));
+    }
+
+    /**
+     * The queued writes to a group are merged into a single group store,
+     * in their order
+     */
+    public void testGroupWritesMerged() throws Exception {
+        startBlockedWriter();
+
+        String[] groups = {"group"};
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            CacheEntry entry = new CacheEntry(KEY + i);
+            entry.setContent(CONTENT + i);
+            entry.setGroups(groups);
+            cache.put(KEY + i, entry);
+        }
+
+        cache.remove(KEY + 0);
+
+        listener.release();
+        blockedWriter.join(TIMEOUT);
+
+        Set group = listener.retrieveGroup("group");
+        assertEquals(OPERATIONS - 1, group.size());
+        assertTrue(!group.contains(KEY + 0));
+        assertEquals(1, listener.getGroupStores());
+
+        // Removing the remaining keys removes the group
+        for (int i = 1; i < OPERATIONS; i++) {
+            cache.remove(KEY + i);
+        }
+
+        assertTrue(!listener.isGroupStored("group"));
+    }
+
+    /**
+     * Once too many writes are queued, the writers wait for the drainer
+     */
+    public void testBackPressure() throws Exception {
+        final PersistenceQueue queue = new PersistenceQueue(cache, 10, 1000);
+        startBlockedDrainer(queue);
+
+        for (int i = 0; i < 10; i++) {
+            queue.store(KEY + i, CONTENT + i);
+            queue.drain();
+        }
+
+        Thread writer = new Thread() {
+                public void run() {
+                    queue.store(KEY + 10, CONTENT + 10);
+                    queue.drain();
+                }
+            };
+
+        writer.start();
+        writer.join(200);
+        assertTrue("The writer did not wait for the queue to shrink", writer.isAlive());
+
+        listener.release();
+        writer.join(TIMEOUT);
+        blockedWriter.join(TIMEOUT);
+
+        for (int i = 0; i <= 10; i++) {
+            assertEquals(CONTENT + i, listener.retrieve(KEY + i));
+        }
+    }
+
+    /**
+     * A drainer that has performed its quota hands over to the next writer,
+     * and finishes the queue itself when no writer comes
+     */
+    public void testHandOff() throws Exception {
+        final PersistenceQueue queue = new PersistenceQueue(cache, 1000, 1);
+        queue.store(KEY + 0, CONTENT);
+        startBlockedDrainer(queue);
+        queue.store(KEY + 1, CONTENT);
+
+        Thread writer = new Thread() {
+                public void run() {
+                    queue.store(KEY + 2, CONTENT);
+                    queue.drain();
+                }
+            };
+
+        writer.start();
+        writer.join(200);
+        assertTrue("The writer did not wait to take over", writer.isAlive());
+
+        listener.release();
+        writer.join(TIMEOUT);
+        blockedWriter.join(TIMEOUT);
+
+        assertEquals(blockedWriter, listener.getWriter(KEY + 0));
+        assertEquals(blockedWriter, listener.getWriter(BLOCKING_KEY));
+        assertEquals(writer, listener.getWriter(KEY + 1));
+        assertEquals(writer, listener.getWriter(KEY + 2));
+
+        // Without a writer to take over, the drainer goes on past its quota
+        for (int i = 3; i < 10; i++) {
+            queue.store(KEY + i, CONTENT);
+        }
+
+        queue.drain();
+
+        for (int i = 3; i < 10; i++) {
+            assertEquals(Thread.currentThread(), listener.getWriter(KEY + i));
+        }
+    }
+
+    /**
+     * The writes are never performed under a segment lock
+     */
+    public void testNoDrainUnderSegmentLock() {
+        PersistenceQueue queue = new PersistenceQueue(cache);
+
+        synchronized (cache.segments[0].lock) {
+            queue.store(KEY, CONTENT);
+            queue.drain();
+            assertTrue(!listener.isStored(KEY));
+        }
+
+        queue.drain();
+        assertTrue(listener.isStored(KEY));
+    }
+
+    /**
+     * Starts a thread storing the blocking key through the supplied queue,
+     * and waits until it is stuck in the listener.
+     */
+    private void startBlockedDrainer(final PersistenceQueue queue) throws InterruptedException {
+        blockedWriter = new Thread() {
+                    public void run() {
+                        queue.store(BLOCKING_KEY, CONTENT);
+                        queue.drain();
+                    }
+                };
+        blockedWriter.start();
+        listener.awaitBlocked();
+        assertTrue("The drainer did not reach the listener", listener.isBlocked());
+    }
+
+    /**
+     * Starts a thread putting the blocking key, and waits until it is stuck
+     * in the listener.
+     */
+    private void startBlockedWriter() throws InterruptedException {
+        blockedWriter = new Thread() {
+                    public void run() {
+                        cache.put(BLOCKING_KEY, CONTENT);
+                    }
+                };
+        blockedWriter.start();
+        listener.awaitBlocked();
+        assertTrue("The writer did not reach the listener", listener.isBlocked());
+    }
+
+    /**
+     * Persistence listener keeping the entries in memory. Storing the
+     * blocking key blocks until released.
+     */
+    private static final class SlowPersistenceListener implements PersistenceListener {
+        private final Map entries = new HashMap();
+        private final Map groups = new HashMap();
+        private final Map writers = new HashMap();
+        private boolean blocked = false;
+        private boolean released = false;
+        private int groupStores = 0;
+
+        public PersistenceListener configure(Config config) {
+            return this;
+        }
+
+        public synchronized boolean isStored(String key) {
+            return entries.containsKey(key);
+        }
+
+        public synchronized boolean isGroupStored(String groupName) {
+            return groups.containsKey(groupName);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            groups.clear();
+        }
+
+        public synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        public synchronized void removeGroup(String groupName) {
+            groups.remove(groupName);
+        }
+
+        public synchronized Object retrieve(String key) {
+            return entries.get(key);
+        }
+
+        public synchronized Set retrieveGroup(String groupName) {
+            Set group = (Set) groups.get(groupName);
+
+            return (group == null) ? null : new HashSet(group);
+        }
+
+        public synchronized void store(String key, Object obj) throws CachePersistenceException {
+            if (BLOCKING_KEY.equals(key)) {
+                blocked = true;
+                notifyAll();
+
+                long deadline = System.currentTimeMillis() + TIMEOUT;
+
+                while (!released && (System.currentTimeMillis() < deadline)) {
+                    try {
+                        wait(deadline - System.currentTimeMillis());
+                    } catch (InterruptedException e) {
+                        throw new CachePersistenceException("Interrupted");
+                    }
+                }
+
+                blocked = false;
+            }
+
+            entries.put(key, obj);
+            writers.put(key, Thread.currentThread());
+        }
+
+        synchronized Thread getWriter(String key) {
+            return (Thread) writers.get(key);
+        }
+
+        public synchronized void storeGroup(String groupName, Set group) {
+            groups.put(groupName, new HashSet(group));
+            groupStores++;
+        }
+
+        synchronized int getGroupStores() {
+            return groupStores;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized boolean isBlocked() {
+            return blocked;
+        }
+
+        synchronized void awaitBlocked() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+
+            while (!blocked && (System.currentTimeMillis() < deadline)) {
+                wait(deadline - System.currentTimeMillis());
+            }
+        }
+
+        synchronized void release() {
+            released = true;
+            notifyAll();
+        }
+    }
+}
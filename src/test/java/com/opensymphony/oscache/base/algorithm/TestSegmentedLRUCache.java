@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.util.Set;
+
+/**
+ * Test class for an LRUCache split into several lock segments. It runs the
+ * shared queue cache tests against the segmented table, and checks that
+ * concurrent writers to different segments keep the capacity and the group
+ * mappings consistent.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestSegmentedLRUCache extends TestQueueCache {
+    /**
+     * Number of lock segments of the tested cache
+     */
+    private static final int CONCURRENCY_LEVEL = 8;
+
+    /**
+     * Number of writer threads of the concurrent tests
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * Number of puts done by each writer thread
+     */
+    private static final int PUTS_PER_THREAD = 500;
+
+    /**
+     * Segmented LRU Cache object
+     */
+    private static LRUCache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestSegmentedLRUCache(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestSegmentedLRUCache.class);
+    }
+
+    /**
+     * Abstract method used by the TestAbstractCache class
+     * <p>
+     * @return  A cache instance
+     */
+    public AbstractConcurrentReadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        // Create a cache instance on first invocation
+        if (cache == null) {
+            cache = new LRUCache();
+            cache.setConcurrencyLevel(CONCURRENCY_LEVEL);
+            assertNotNull(cache);
+        }
+    }
+
+    /**
+     * Test the cache algorithm
+     */
+    public void testRemoveItem() {
+        // Add 3 elements
+        cache.itemPut(KEY);
+        cache.itemPut(KEY + 1);
+        cache.itemPut(KEY + 2);
+
+        // Get the last element
+        cache.itemRetrieved(KEY);
+
+        // The least recently used item is key + 1
+        assertTrue((KEY + 1).equals(cache.removeItem()));
+
+        // Keep the queue in line with the (empty) table for the other tests
+        cache.itemRemoved(KEY);
+        cache.itemRemoved(KEY + 2);
+    }
+
+    /**
+     * Test the segment count and its validation
+     */
+    public void testConcurrencyLevel() {
+        assertEquals(CONCURRENCY_LEVEL, cache.getConcurrencyLevel());
+
+        // A level is rounded up to the next power of two
+        LRUCache other = new LRUCache();
+        other.setConcurrencyLevel(3);
+        assertEquals(4, other.getConcurrencyLevel());
+
+        try {
+            other.setConcurrencyLevel(0);
+            fail("Concurrency level set with an invalid argument");
+        } catch (IllegalArgumentException e) {
+            // This is what we expect
+        }
+
+        // A populated cache cannot be re-segmented
+        other.put(KEY, CONTENT);
+
+        try {
+            other.setConcurrencyLevel(16);
+            fail("Concurrency level changed on a populated cache");
+        } catch (IllegalStateException e) {
+            // This is what we expect
+        }
+    }
+
+    /**
+     * Concurrent writers must never grow the cache beyond its capacity
+     */
+    public void testConcurrentPutCapacity() throws Exception {
+        cache.clear();
+        cache.setMaxEntries(MAX_ENTRIES);
+
+        runWriters(new Writer() {
+                public void write(int thread, int i) {
+                    cache.put(KEY + thread + "_" + i, CONTENT);
+                }
+            });
+
+        assertTrue(cache.size() <= MAX_ENTRIES);
+
+        int iterated = 0;
+
+        for (java.util.Iterator it = cache.keySet().iterator(); it.hasNext();) {
+            it.next();
+            iterated++;
+        }
+
+        assertEquals(cache.size(), iterated);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Group mappings written from several segments must not lose members
+     */
+    public void testConcurrentGroupMappings() throws Exception {
+        cache.clear();
+        cache.setMaxEntries(THREADS * PUTS_PER_THREAD);
+
+        final String[] groups = new String[] {"segmented group"};
+
+        runWriters(new Writer() {
+                public void write(int thread, int i) {
+                    String key = KEY + thread + "_" + i;
+                    CacheEntry entry = new CacheEntry(key, null, groups);
+                    entry.setContent(CONTENT);
+                    cache.put(key, entry);
+                }
+            });
+
+        Set group = cache.getGroup(groups[0]);
+        assertNotNull(group);
+        assertEquals(THREADS * PUTS_PER_THREAD, group.size());
+        assertEquals(THREADS * PUTS_PER_THREAD, cache.size());
+
+        cache.clear();
+        cache.setMaxEntries(MAX_ENTRIES);
+    }
+
+    /**
+     * The size can be polled without locking while the writers run, and
+     * the exact size matches the entries once they are done
+     */
+    public void testSizeCounters() throws Exception {
+        cache.clear();
+        cache.setMaxEntries(THREADS * PUTS_PER_THREAD);
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.exactSize());
+
+        final boolean[] done = new boolean[1];
+        final int[] polls = new int[1];
+        Thread monitor = new Thread() {
+                public void run() {
+                    for (;;) {
+                        synchronized (done) {
+                            if (done[0]) {
+                                return;
+                            }
+
+                            int size = cache.exactSize();
+
+                            if ((size < 0) || (size > (THREADS * PUTS_PER_THREAD)) || (cache.size() < 0)) {
+                                return;
+                            }
+
+                            polls[0]++;
+                        }
+                    }
+                }
+            };
+        monitor.start();
+
+        runWriters(new Writer() {
+                public void write(int thread, int i) {
+                    cache.put(KEY + thread + "_" + i, CONTENT);
+
+                    if ((i % 2) == 0) {
+                        cache.remove(KEY + thread + "_" + i);
+                    }
+                }
+            });
+
+        synchronized (done) {
+            done[0] = true;
+        }
+
+        monitor.join();
+        assertTrue(polls[0] > 0);
+
+        int iterated = 0;
+
+        for (java.util.Iterator it = cache.keySet().iterator(); it.hasNext();) {
+            it.next();
+            iterated++;
+        }
+
+        assertEquals((THREADS * PUTS_PER_THREAD) / 2, iterated);
+        assertEquals(iterated, cache.size());
+        assertEquals(iterated, cache.exactSize());
+        assertTrue(!cache.isEmpty());
+
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        cache.setMaxEntries(MAX_ENTRIES);
+    }
+
+    /**
+     * Starts the writer threads and waits for all of them to finish
+     */
+    private void runWriters(final Writer writer) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+
+            threads[t] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                                    writer.write(thread, i);
+                                }
+                            } catch (Throwable e) {
+                                failure[0] = e;
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < THREADS; t++) {
+            threads[t].join();
+        }
+
+        if (failure[0] != null) {
+            fail("A writer failed: " + failure[0]);
+        }
+    }
+
+    /**
+     * A single write done by the writer threads
+     */
+    private interface Writer {
+        void write(int thread, int i);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test class for the TinyLFUCache class. Besides the shared queue cache
+ * tests, it checks the admission policy and compares the hit rate of the
+ * TinyLFUCache with the LRUCache on a Zipf distributed trace and on a trace
+ * mixing a popular working set with one-off scans.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestTinyLFUCache extends TestQueueCache {
+    /**
+     * Capacity of the caches compared by the hit rate tests
+     */
+    private static final int TRACE_CAPACITY = 500;
+
+    /**
+     * Number of distinct keys of the Zipf distribution
+     */
+    private static final int TRACE_KEYS = 10000;
+
+    /**
+     * Number of accesses of each trace
+     */
+    private static final int TRACE_LENGTH = 200000;
+
+    /**
+     * TinyLFU Cache object
+     */
+    private static TinyLFUCache cache = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestTinyLFUCache(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestTinyLFUCache.class);
+    }
+
+    /**
+     * Abstract method used by the TestAbstractCache class
+     * <p>
+     * @return  A cache instance
+     */
+    public AbstractConcurrentReadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        // Create a cache instance on first invocation
+        if (cache == null) {
+            cache = new TinyLFUCache(MAX_ENTRIES);
+            assertNotNull(cache);
+        }
+    }
+
+    /**
+     * Test the cache algorithm: a key that was only seen once must not
+     * displace a key that was accessed several times
+     */
+    public void testRemoveItem() {
+        TinyLFUCache tinyLFU = new TinyLFUCache(MAX_ENTRIES);
+
+        // The window holds one key, the two older ones are on probation
+        tinyLFU.itemPut(KEY);
+        tinyLFU.itemPut(KEY + 1);
+        tinyLFU.itemPut(KEY + 2);
+
+        // Make the newest key popular: it wins against the probation victim
+        tinyLFU.itemRetrieved(KEY + 2);
+        tinyLFU.itemRetrieved(KEY + 2);
+        assertEquals(KEY, tinyLFU.removeItem());
+
+        // A newcomer seen once loses against the same victim
+        tinyLFU.itemPut(KEY + 3);
+        assertEquals(KEY + 3, tinyLFU.removeItem());
+
+        // Drain the remaining keys
+        assertNotNull(tinyLFU.removeItem());
+        assertNotNull(tinyLFU.removeItem());
+        assertNull(tinyLFU.removeItem());
+    }
+
+    /**
+     * Test if bug CACHE-255 disappeared. The TinyLFU victim is not the
+     * eldest entry, but <code>put</code> must still return whichever value
+     * was evicted.
+     */
+    public void testBugCache255() {
+        if (!getCache().isMemoryCaching()) {
+            return; // nothing to test since memory won't be used.
+        }
+
+        getCache().clear();
+        getCache().setMaxEntries(MAX_ENTRIES);
+
+        // fill up the cache
+        for (int count = 0; count < MAX_ENTRIES; count++) {
+            getCache().put(KEY + count, CONTENT + count);
+        }
+
+        // get the old value
+        Object oldValue = getCache().put(KEY + MAX_ENTRIES, CONTENT + MAX_ENTRIES);
+        assertNotNull("The evicted object content must be returned", oldValue);
+
+        int evicted = -1;
+
+        for (int count = 0; count <= MAX_ENTRIES; count++) {
+            if (!getCache().containsKey(KEY + count)) {
+                evicted = count;
+            }
+        }
+
+        assertEquals("Evicted object content should be the same", CONTENT + evicted, oldValue);
+
+        getCache().clear();
+    }
+
+    /**
+     * Test the frequency sketch estimates and aging
+     */
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch();
+        sketch.ensureCapacity(64);
+
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(KEY);
+        }
+
+        // Counters saturate at 15
+        assertEquals(15, sketch.frequency(KEY));
+        assertEquals(0, sketch.frequency(KEY + 1));
+
+        // After enough increments every counter is halved
+        for (int i = 0; i < 640; i++) {
+            sketch.increment(KEY + i);
+        }
+
+        assertTrue(sketch.frequency(KEY) < 15);
+    }
+
+    /**
+     * TinyLFU must beat LRU on a skewed, Zipf distributed trace
+     */
+    public void testZipfHitRate() {
+        Random random = new Random(1);
+        double[] distribution = zipf(TRACE_KEYS, 0.9);
+        String[] trace = new String[TRACE_LENGTH];
+
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            trace[i] = KEY + sample(distribution, random);
+        }
+
+        double lru = hitRate(new LRUCache(TRACE_CAPACITY), trace);
+        double tinyLFU = hitRate(new TinyLFUCache(TRACE_CAPACITY), trace);
+        System.out.println("Zipf trace hit rate: LRUCache " + lru + ", TinyLFUCache " + tinyLFU);
+
+        assertTrue("TinyLFU hit rate " + tinyLFU + " should beat LRU " + lru, tinyLFU > lru);
+    }
+
+    /**
+     * TinyLFU must keep its popular entries while one-off keys are scanned,
+     * whereas LRU gets flushed by every scan
+     */
+    public void testScanHitRate() {
+        Random random = new Random(2);
+        String[] trace = new String[TRACE_LENGTH];
+        int scanned = 0;
+
+        for (int i = 0; i < TRACE_LENGTH;) {
+            // A burst of requests to a working set that fits in the cache
+            for (int n = 0; (n < 2000) && (i < TRACE_LENGTH); n++) {
+                trace[i++] = KEY + random.nextInt(TRACE_CAPACITY / 2);
+            }
+
+            // A crawler scanning keys that are never requested again
+            for (int n = 0; (n < 1000) && (i < TRACE_LENGTH); n++) {
+                trace[i++] = KEY + "scan" + scanned++;
+            }
+        }
+
+        double lru = hitRate(new LRUCache(TRACE_CAPACITY), trace);
+        double tinyLFU = hitRate(new TinyLFUCache(TRACE_CAPACITY), trace);
+        System.out.println("Scan trace hit rate: LRUCache " + lru + ", TinyLFUCache " + tinyLFU);
+
+        assertTrue("TinyLFU hit rate " + tinyLFU + " should beat LRU " + lru, tinyLFU > (lru + 0.05));
+    }
+
+    /**
+     * Replays a trace against a cache, putting each missed key.
+     *
+     * @return the ratio of hits
+     */
+    private double hitRate(AbstractConcurrentReadCache target, String[] trace) {
+        int hits = 0;
+
+        for (int i = 0; i < trace.length; i++) {
+            if (target.get(trace[i]) != null) {
+                hits++;
+            } else {
+                target.put(trace[i], CONTENT);
+            }
+        }
+
+        return hits / (double) trace.length;
+    }
+
+    /**
+     * Returns the cumulative probabilities of a Zipf distribution.
+     */
+    private double[] zipf(int size, double exponent) {
+        double[] cumulative = new double[size];
+        double sum = 0;
+
+        for (int i = 0; i < size; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+
+        for (int i = 0; i < size; i++) {
+            cumulative[i] /= sum;
+        }
+
+        return cumulative;
+    }
+
+    /**
+     * Draws a rank from a cumulative distribution.
+     */
+    private int sample(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+
+        return (index >= 0) ? index : Math.min(-index - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Method;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Test class for the unlinking storage of the AbstractConcurrentReadCache,
+ * which removes entries from their bin in place instead of copying the
+ * entries ahead of them. Besides the functional tests, it compares the
+ * throughput and the allocations of both storages on a churning cache.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestUnlinkingStorage extends TestCase {
+    /**
+     * Number of entries of the churn benchmark
+     */
+    private static final int CHURN_KEYS = 50000;
+
+    /**
+     * Number of remove and put pairs of the churn benchmark
+     */
+    private static final int CHURN_OPERATIONS = 1000000;
+
+    /**
+     * Duration of the concurrent test
+     */
+    private static final long MEASURE_MILLIS = 1000;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Unlinking Storage key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Unlinking Storage content";
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestUnlinkingStorage(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestUnlinkingStorage.class);
+    }
+
+    /**
+     * Removing the first, a middle or the last entry of a bin keeps the
+     * other entries reachable
+     */
+    public void testRemoveFromBin() {
+        UnlimitedCache cache = new UnlimitedCache();
+        cache.setUnlinkingStorage(true);
+        assertTrue(cache.isUnlinkingStorage());
+
+        // All these keys end up in the same bin
+        for (int i = 0; i < 6; i++) {
+            cache.put(new CollidingKey(i), CONTENT + i);
+        }
+
+        int[] removals = {5, 2, 0, 4};
+        Set removed = new HashSet();
+
+        for (int r = 0; r < removals.length; r++) {
+            assertEquals(CONTENT + removals[r], cache.remove(new CollidingKey(removals[r])));
+            removed.add(new Integer(removals[r]));
+
+            for (int i = 0; i < 6; i++) {
+                Object value = cache.get(new CollidingKey(i));
+
+                if (removed.contains(new Integer(i))) {
+                    assertNull(value);
+                } else {
+                    assertEquals(CONTENT + i, value);
+                }
+            }
+        }
+
+        assertEquals(2, cache.size());
+        assertNull(cache.remove(new CollidingKey(0)));
+    }
+
+    /**
+     * Entries removed while iterating are not returned twice, and the
+     * others are all returned
+     */
+    public void testIteratorWhileRemoving() {
+        UnlimitedCache cache = new UnlimitedCache();
+        cache.setUnlinkingStorage(true);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(new CollidingKey(i % 10, i), CONTENT + i);
+        }
+
+        Set seen = new HashSet();
+
+        for (Iterator it = cache.keySet().iterator(); it.hasNext();) {
+            CollidingKey key = (CollidingKey) it.next();
+            assertTrue("Key returned twice", seen.add(key));
+
+            // Remove another key of the same bin, possibly not seen yet
+            cache.remove(new CollidingKey(key.hash, (key.id + 10) % 100));
+        }
+
+        assertTrue(seen.size() >= cache.size());
+    }
+
+    /**
+     * Readers never see a wrong value while writers churn colliding keys
+     */
+    public void testConcurrentChurn() throws Exception {
+        final UnlimitedCache cache = new UnlimitedCache();
+        cache.setUnlinkingStorage(true);
+
+        final boolean[] stop = new boolean[1];
+        final String[] failure = new String[1];
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Thread[] threads = new Thread[Math.max(4, cpus)];
+
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = (t % 2) == 0;
+            final Random random = new Random(t);
+
+            threads[t] = new Thread() {
+                        public void run() {
+                            while (!stopped(stop)) {
+                                int id = random.nextInt(64);
+                                CollidingKey key = new CollidingKey(id % 4, id);
+
+                                if (writer) {
+                                    if (random.nextBoolean()) {
+                                        cache.put(key, CONTENT + id);
+                                    } else {
+                                        cache.remove(key);
+                                    }
+                                } else {
+                                    Object value = cache.get(key);
+
+                                    if ((value != null) && !value.equals(CONTENT + id)) {
+                                        synchronized (stop) {
+                                            failure[0] = key + " mapped to " + value;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+
+        Thread.sleep(MEASURE_MILLIS);
+
+        synchronized (stop) {
+            stop[0] = true;
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        synchronized (stop) {
+            assertNull(failure[0], failure[0]);
+        }
+
+        int count = 0;
+
+        for (Iterator it = cache.keySet().iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+
+        assertEquals(cache.size(), count);
+    }
+
+    /**
+     * Compares both storages on a cache whose entries are constantly
+     * removed and put back. Allocations are only measured where the virtual
+     * machine can count the bytes allocated by a thread.
+     */
+    public void testChurnBenchmark() {
+        String[] keys = new String[CHURN_KEYS];
+
+        for (int i = 0; i < CHURN_KEYS; i++) {
+            keys[i] = KEY + i;
+        }
+
+        // Warm up both code paths
+        churn(false, keys, CHURN_OPERATIONS / 10);
+        churn(true, keys, CHURN_OPERATIONS / 10);
+
+        long[] copying = churn(false, keys, CHURN_OPERATIONS);
+        long[] unlinking = churn(true, keys, CHURN_OPERATIONS);
+
+        System.out.println("Churn of " + CHURN_OPERATIONS + " removes and puts over " + CHURN_KEYS + " keys: copying storage " + copying[0] + " ms, " + describe(copying[1]) + "; unlinking storage " + unlinking[0] + " ms, " + describe(unlinking[1]));
+
+        if ((copying[1] >= 0) && (unlinking[1] >= 0)) {
+            assertTrue("Unlinking storage should allocate less", unlinking[1] < copying[1]);
+        }
+    }
+
+    /**
+     * Removes random keys from a full cache and puts them back.
+     *
+     * @return the elapsed milliseconds and the allocated bytes, <code>-1</code>
+     * if unknown
+     */
+    private long[] churn(boolean unlinkingStorage, String[] keys, int operations) {
+        UnlimitedCache cache = new UnlimitedCache();
+        cache.setUnlinkingStorage(unlinkingStorage);
+
+        for (int i = 0; i < keys.length; i++) {
+            cache.put(keys[i], CONTENT);
+        }
+
+        Random random = new Random(1);
+        long allocated = allocatedBytes();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < operations; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            cache.remove(key);
+            cache.put(key, CONTENT);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (allocated >= 0) {
+            allocated = allocatedBytes() - allocated;
+        }
+
+        return new long[] {elapsed, allocated};
+    }
+
+    private String describe(long bytes) {
+        return (bytes < 0) ? "allocations unknown" : ((bytes / 1024) + " KB allocated");
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, through the
+     * com.sun.management extension of the thread MX bean when available.
+     *
+     * @return the allocated bytes, or <code>-1</code> if they can't be measured
+     */
+    private long allocatedBytes() {
+        try {
+            Class factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getThreadMXBean", null).invoke(null, null);
+            Class beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            Method method = beanClass.getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+            Object threadId = Thread.class.getMethod("getId", null).invoke(Thread.currentThread(), null);
+
+            return ((Long) method.invoke(bean, new Object[] {threadId})).longValue();
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    private static boolean stopped(boolean[] stop) {
+        synchronized (stop) {
+            return stop[0];
+        }
+    }
+
+    /**
+     * A key whose hash code is chosen by the test, so that keys can be
+     * forced into the same bin.
+     */
+    private static final class CollidingKey {
+        final int hash;
+        final int id;
+
+        CollidingKey(int id) {
+            this(0, id);
+        }
+
+        CollidingKey(int hash, int id) {
+            this.hash = hash;
+            this.id = id;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return (o instanceof CollidingKey) && (((CollidingKey) o).hash == hash) && (((CollidingKey) o).id == id);
+        }
+
+        public String toString() {
+            return "key " + id;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+import com.opensymphony.oscache.base.Config;
+import com.opensymphony.oscache.base.persistence.PersistenceListener;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test class for the values held by soft or weak references. The tests use
+ * weak references, so that the values are collected as soon as the garbage
+ * collector runs, and check that the entries of the collected values leave
+ * the table, the algorithm and the groups, and that persisted values are
+ * read back from the persistence listener.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestValueReferences extends TestCase {
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Value References key";
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Value References content";
+
+    /**
+     * Group name
+     */
+    private static final String GROUP = "Test Value References group";
+
+    /**
+     * How many times the tests run the garbage collector before giving up
+     */
+    private static final int MAX_GC = 20;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestValueReferences(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestValueReferences.class);
+    }
+
+    /**
+     * Values that are still in use are not collected, and are replaced by
+     * their new versions
+     */
+    public void testReachableValues() {
+        LRUCache cache = new LRUCache(10);
+        cache.setValueReferences(AbstractConcurrentReadCache.WEAK_REFERENCES);
+
+        String content = new String(CONTENT);
+        cache.put(KEY, content);
+        collectGarbage();
+
+        assertSame(content, cache.get(KEY));
+        assertEquals(1, cache.size());
+
+        String newContent = new String(CONTENT);
+        assertSame(content, cache.put(KEY, newContent));
+        assertSame(newContent, cache.get(KEY));
+        assertSame(newContent, cache.remove(KEY));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * The entries of the collected values leave the table, the algorithm and
+     * their groups
+     */
+    public void testCollectedEntriesRemoved() {
+        LRUCache cache = new LRUCache(10);
+        cache.setValueReferences(AbstractConcurrentReadCache.WEAK_REFERENCES);
+
+        for (int i = 0; i < 5; i++) {
+            cache.put(KEY + i, newGroupEntry(KEY + i));
+        }
+
+        assertEquals(5, cache.getGroup(GROUP).size());
+
+        String kept = new String(CONTENT);
+        cache.put(KEY, kept);
+
+        for (int i = 0; (i < MAX_GC) && (cache.size() > 1); i++) {
+            collectGarbage();
+
+            // Writers remove the entries of the collected values
+            cache.remove(KEY + "missing");
+        }
+
+        assertEquals(1, cache.size());
+        assertNull(cache.get(KEY + 0));
+        assertNull(cache.getGroup(GROUP));
+
+        // The collected keys, older than the kept one, have left the algorithm
+        assertEquals(KEY, cache.removeItem());
+    }
+
+    /**
+     * A collected value is read back from the persistence listener
+     */
+    public void testPersistedFallback() {
+        LRUCache cache = new LRUCache(10);
+        cache.setValueReferences(AbstractConcurrentReadCache.WEAK_REFERENCES);
+
+        CopyingPersistenceListener listener = new CopyingPersistenceListener();
+        cache.setPersistenceListener(listener);
+        cache.put(KEY, new StringBuffer(CONTENT));
+
+        for (int i = 0; (i < MAX_GC) && (cache.size() > 0); i++) {
+            collectGarbage();
+            cache.remove(KEY + "missing");
+        }
+
+        assertEquals(0, cache.size());
+        assertTrue(listener.isStored(KEY));
+        assertEquals(CONTENT, cache.get(KEY));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * The reference type is validated, and can't change once the cache holds entries
+     */
+    public void testSetValueReferences() {
+        LRUCache cache = new LRUCache(10);
+        assertEquals(AbstractConcurrentReadCache.STRONG_REFERENCES, cache.getValueReferences());
+
+        try {
+            cache.setValueReferences(-1);
+            fail("An unknown reference type should be rejected");
+        } catch (IllegalArgumentException e) {
+            // This is what we expected
+        }
+
+        cache.setValueReferences(AbstractConcurrentReadCache.SOFT_REFERENCES);
+        assertEquals(AbstractConcurrentReadCache.SOFT_REFERENCES, cache.getValueReferences());
+        cache.put(KEY, CONTENT);
+
+        try {
+            cache.setValueReferences(AbstractConcurrentReadCache.WEAK_REFERENCES);
+            fail("The reference type of a populated cache should not change");
+        } catch (IllegalStateException e) {
+            // This is what we expected
+        }
+
+        // Softly referenced values stay while memory is plentiful
+        collectGarbage();
+        assertEquals(CONTENT, cache.get(KEY));
+    }
+
+    private CacheEntry newGroupEntry(String key) {
+        CacheEntry entry = new CacheEntry(key);
+        Set groups = new HashSet();
+        groups.add(GROUP);
+        entry.setGroups(groups);
+        entry.setContent(new String(CONTENT));
+
+        return entry;
+    }
+
+    private void collectGarbage() {
+        System.gc();
+
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            // Carry on
+        }
+    }
+
+    /**
+     * A persistence listener storing copies of the values, so that it doesn't
+     * keep the cached values themselves from being collected
+     */
+    private static final class CopyingPersistenceListener implements PersistenceListener {
+        private final Map entries = new HashMap();
+        private final Map groups = new HashMap();
+
+        public PersistenceListener configure(Config config) {
+            return this;
+        }
+
+        public synchronized boolean isStored(String key) {
+            return entries.containsKey(key);
+        }
+
+        public synchronized boolean isGroupStored(String groupName) {
+            return groups.containsKey(groupName);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            groups.clear();
+        }
+
+        public synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        public synchronized void removeGroup(String groupName) {
+            groups.remove(groupName);
+        }
+
+        public synchronized Object retrieve(String key) {
+            return entries.get(key);
+        }
+
+        public synchronized Set retrieveGroup(String groupName) {
+            return (Set) groups.get(groupName);
+        }
+
+        public synchronized void store(String key, Object obj) {
+            entries.put(key, obj.toString());
+        }
+
+        public synchronized void storeGroup(String groupName, Set group) {
+            groups.put(groupName, new HashSet(group));
+        }
+    }
+}
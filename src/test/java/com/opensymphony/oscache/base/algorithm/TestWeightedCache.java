@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.algorithm;
+
+import com.opensymphony.oscache.base.CacheEntry;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test class for the byte capacity of the AbstractConcurrentReadCache. It
+ * checks that the weight of the entries is tracked on puts, updates and
+ * removals, and that entries are evicted through the algorithm until the
+ * cache fits its byte budget.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestWeightedCache extends TestCase {
+    /**
+     * Byte budget of the tested caches
+     */
+    private static final long MAX_BYTES = 1000;
+
+    /**
+     * Entry key
+     */
+    private static final String KEY = "Test Weighted Cache key";
+
+    /**
+     * Weighs every value by its length, so the tests control the weights
+     */
+    private static final EntryWeigher LENGTH_WEIGHER = new EntryWeigher() {
+            public int weigh(Object key, Object value) {
+                return ((String) value).length();
+            }
+        };
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestWeightedCache(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestWeightedCache.class);
+    }
+
+    /**
+     * Without a byte budget nothing is weighed
+     */
+    public void testDisabledByDefault() {
+        LRUCache cache = new LRUCache(100);
+        cache.put(KEY, content(500));
+        assertEquals(0, cache.getMaxBytes());
+        assertEquals(0, cache.weight());
+    }
+
+    /**
+     * The weight follows puts, updates, removals and clears
+     */
+    public void testWeightTracking() {
+        LRUCache cache = newCache(new LRUCache(100));
+
+        cache.put(KEY + 1, content(100));
+        cache.put(KEY + 2, content(200));
+        assertEquals(300, cache.weight());
+
+        // An update is weighed again
+        cache.put(KEY + 1, content(50));
+        assertEquals(250, cache.weight());
+
+        cache.remove(KEY + 2);
+        assertEquals(50, cache.weight());
+
+        cache.clear();
+        assertEquals(0, cache.weight());
+    }
+
+    /**
+     * Least recently used entries are evicted until the budget is met
+     */
+    public void testEvictionUnderBudget() {
+        LRUCache cache = newCache(new LRUCache(100));
+
+        for (int i = 0; i < 4; i++) {
+            cache.put(KEY + i, content(300));
+        }
+
+        // 4 * 300 > 1000: the eldest entry had to go
+        assertEquals(900, cache.weight());
+        assertEquals(3, cache.size());
+        assertTrue(!cache.containsKey(KEY + 0));
+
+        // A large entry pushes out as many entries as needed
+        cache.put(KEY + "large", content(800));
+        assertTrue(cache.weight() <= MAX_BYTES);
+        assertEquals(1, cache.size());
+        assertTrue(cache.containsKey(KEY + "large"));
+
+        // Growing an entry through an update evicts others as well
+        cache.clear();
+        cache.put(KEY + 1, content(400));
+        cache.put(KEY + 2, content(400));
+        cache.put(KEY + 2, content(700));
+        assertEquals(700, cache.weight());
+        assertTrue(!cache.containsKey(KEY + 1));
+    }
+
+    /**
+     * An entry larger than the whole budget is not kept
+     */
+    public void testOversizedEntry() {
+        LRUCache cache = newCache(new LRUCache(100));
+        cache.put(KEY, content(100));
+        cache.put(KEY + "huge", content(5000));
+
+        assertTrue(cache.weight() <= MAX_BYTES);
+        assertTrue(!cache.containsKey(KEY + "huge"));
+    }
+
+    /**
+     * Enabling or lowering the budget weighs and shrinks a populated cache
+     */
+    public void testSetMaxBytes() {
+        LRUCache cache = new LRUCache(100);
+        cache.setEntryWeigher(LENGTH_WEIGHER);
+
+        for (int i = 0; i < 5; i++) {
+            cache.put(KEY + i, content(100));
+        }
+
+        assertEquals(0, cache.weight());
+
+        cache.setMaxBytes(MAX_BYTES);
+        assertEquals(500, cache.weight());
+
+        cache.setMaxBytes(250);
+        assertEquals(200, cache.weight());
+        assertEquals(2, cache.size());
+
+        try {
+            cache.setMaxBytes(-1);
+            fail("Cache byte capacity set with an invalid argument");
+        } catch (IllegalArgumentException e) {
+            // This is what we expect
+        }
+    }
+
+    /**
+     * The unlimited cache never evicts, so it refuses a byte budget
+     */
+    public void testUnlimitedCache() {
+        UnlimitedCache cache = new UnlimitedCache();
+        cache.setMaxBytes(0);
+
+        try {
+            cache.setMaxBytes(MAX_BYTES);
+            fail("A byte budget was accepted by the unlimited cache");
+        } catch (IllegalArgumentException e) {
+            // This is what we expect
+        }
+
+        assertEquals(0, cache.getMaxBytes());
+    }
+
+    /**
+     * The byte budget also applies to a segmented cache
+     */
+    public void testSegmentedCache() {
+        LRUCache lru = new LRUCache(100);
+        lru.setConcurrencyLevel(4);
+
+        LRUCache cache = newCache(lru);
+
+        for (int i = 0; i < 50; i++) {
+            cache.put(KEY + i, content(100));
+        }
+
+        assertEquals(MAX_BYTES, cache.weight());
+        assertEquals(10, cache.size());
+    }
+
+    /**
+     * The default weigher relies on CacheEntry.getSize()
+     */
+    public void testDefaultWeigher() {
+        LRUCache cache = new LRUCache(100);
+        cache.setMaxBytes(1024 * 1024);
+
+        CacheEntry entry = new CacheEntry(KEY);
+        entry.setContent(content(1000));
+        cache.put(KEY, entry);
+
+        assertEquals(entry.getSize(), cache.weight());
+        assertTrue(cache.weight() > 2000);
+    }
+
+    /**
+     * The default weigher sizes the usual JDK contents, including the
+     * elements of the collections, whether or not reflection can read the
+     * fields of the JDK classes
+     */
+    public void testDefaultWeigherJdkContent() {
+        LRUCache cache = new LRUCache(100);
+        cache.setMaxBytes(1024 * 1024);
+
+        List list = new ArrayList();
+        Map map = new HashMap();
+
+        for (int i = 0; i < 10; i++) {
+            list.add(content(100));
+            map.put(new Integer(i), content(100));
+        }
+
+        Object[] contents = {list, map, new Integer(1), new Date()};
+
+        for (int i = 0; i < contents.length; i++) {
+            CacheEntry entry = new CacheEntry(KEY + i);
+            entry.setContent(contents[i]);
+            cache.put(KEY + i, entry);
+            assertTrue(entry.getSize() > 0);
+        }
+
+        // The ten strings of 100 characters are counted
+        CacheEntry entry = (CacheEntry) cache.get(KEY + 0);
+        assertTrue(entry.getSize() > 2000);
+        entry = (CacheEntry) cache.get(KEY + 1);
+        assertTrue(entry.getSize() > 2000);
+        assertEquals(4, cache.size());
+    }
+
+    /**
+     * A weigher failing on an update leaves the entry as it was
+     */
+    public void testFailingWeigher() {
+        LRUCache cache = newCache(new LRUCache(100));
+        cache.put(KEY, content(100));
+
+        try {
+            cache.put(KEY, new Integer(1));
+            fail("The weigher should have failed");
+        } catch (ClassCastException e) {
+            // This is what we expect
+        }
+
+        assertEquals(content(100), cache.get(KEY));
+        assertEquals(100, cache.weight());
+
+        try {
+            cache.put(KEY + "new", new Integer(1));
+            fail("The weigher should have failed");
+        } catch (ClassCastException e) {
+            // This is what we expect
+        }
+
+        assertTrue(!cache.containsKey(KEY + "new"));
+        assertEquals(100, cache.weight());
+    }
+
+    private LRUCache newCache(LRUCache cache) {
+        cache.setEntryWeigher(LENGTH_WEIGHER);
+        cache.setMaxBytes(MAX_BYTES);
+
+        return cache;
+    }
+
+    private String content(int length) {
+        StringBuffer buffer = new StringBuffer(length);
+
+        for (int i = 0; i < length; i++) {
+            buffer.append('x');
+        }
+
+        return buffer.toString();
+    }
+}
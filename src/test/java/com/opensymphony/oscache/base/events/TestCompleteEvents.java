@@ -52,6 +52,8 @@ public final class TestCompleteEvents extends TestCase {
         suite.addTest(TestCachewideEvent.suite());
         suite.addTest(TestCachePatternEvent.suite());
         suite.addTest(TestCacheGroupEvent.suite());
+        suite.addTest(TestEventQueue.suite());
+        suite.addTest(TestListenerRegistry.suite());
 
         return suite;
     }
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+import com.opensymphony.oscache.base.Cache;
+import com.opensymphony.oscache.extra.CacheEntryEventListenerImpl;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test class for the events delivered asynchronously by the event dispatcher
+ * of the cache, and for the overflow policies of its queue.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestEventQueue extends TestCase {
+    /**
+     * How long the tests wait for the dispatcher
+     */
+    private static final long MAX_WAIT = 5000;
+
+    /**
+     * Entry content
+     */
+    private static final String CONTENT = "Test Event Queue content";
+
+    private Cache cache = null;
+    private RecordingListener asyncListener = null;
+    private SynchronousListener syncListener = null;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestEventQueue(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestEventQueue.class);
+    }
+
+    /**
+     * This method is invoked before each testXXXX methods of the
+     * class. It set ups the variables required for each tests.
+     */
+    public void setUp() {
+        cache = new Cache(true, false, false);
+        asyncListener = new RecordingListener();
+        syncListener = new SynchronousListener();
+        cache.addCacheEventListener(asyncListener);
+        cache.addCacheEventListener(syncListener);
+    }
+
+    /**
+     * Stops the dispatcher, releasing the listener if it is held
+     */
+    public void tearDown() {
+        asyncListener.release();
+        cache.setEventQueue(0, 1, Cache.EVENT_OVERFLOW_BLOCK);
+    }
+
+    /**
+     * The asynchronous listeners get the events in order once the dispatcher
+     * delivers them, while the synchronous listeners get them straight away
+     */
+    public void testAsynchronousDelivery() throws Exception {
+        cache.setEventQueue(100, 10, Cache.EVENT_OVERFLOW_BLOCK);
+        assertEquals(100, cache.getEventQueueSize());
+        asyncListener.hold();
+
+        for (int i = 0; i < 20; i++) {
+            cache.putInCache("key" + i, CONTENT);
+        }
+
+        cache.flushGroup("group");
+        cache.flushPattern("key1");
+        cache.flushAll(new Date());
+
+        // The cache operations did not wait for the held listener
+        assertEquals(20, syncListener.getEntryAddedCount());
+        assertEquals(1, syncListener.getGroupFlushedCount());
+        assertEquals(1, syncListener.getPatternFlushedCount());
+        assertEquals(1, syncListener.getCacheFlushedCount());
+        assertEquals(0, asyncListener.getEntryAddedCount());
+
+        asyncListener.release();
+        waitForEvents(23);
+
+        List expected = new ArrayList();
+
+        for (int i = 0; i < 20; i++) {
+            expected.add("key" + i);
+        }
+
+        expected.add("group");
+        expected.add("key1");
+        expected.add("cache");
+        assertEquals(expected, asyncListener.getEvents());
+        assertEquals(0, cache.getEventQueueDepth());
+        assertEquals(0, cache.getNbDroppedEvents());
+
+        // Back to synchronous delivery
+        cache.setEventQueue(0, 1, Cache.EVENT_OVERFLOW_BLOCK);
+        assertEquals(0, cache.getEventQueueSize());
+        cache.putInCache("key", CONTENT);
+        assertEquals(24, asyncListener.getEvents().size());
+    }
+
+    /**
+     * The events fired while the queue is full are dropped and counted
+     */
+    public void testDropOverflow() throws Exception {
+        cache.setEventQueue(2, 10, Cache.EVENT_OVERFLOW_DROP);
+        fillQueue();
+
+        for (int i = 0; i < 3; i++) {
+            cache.putInCache("dropped" + i, CONTENT);
+        }
+
+        assertEquals(2, cache.getEventQueueDepth());
+        assertEquals(3, cache.getNbDroppedEvents());
+        assertEquals(6, syncListener.getEntryAddedCount());
+
+        asyncListener.release();
+        waitForEvents(3);
+        assertEquals(3, asyncListener.getEvents().size());
+    }
+
+    /**
+     * The events fired while the queue is full replace the queued events for
+     * the same key, or else wait for room
+     */
+    public void testCoalesceOverflow() throws Exception {
+        // The queued events are updates, like the ones fired afterwards
+        cache.putInCache("queued0", CONTENT);
+        cache.putInCache("queued1", CONTENT);
+        cache.setEventQueue(2, 10, Cache.EVENT_OVERFLOW_COALESCE);
+        fillQueue();
+
+        for (int i = 0; i < 3; i++) {
+            cache.putInCache("queued0", CONTENT + i);
+        }
+
+        assertEquals(2, cache.getEventQueueDepth());
+        assertEquals(3, cache.getNbCoalescedEvents());
+        assertEquals(0, cache.getNbDroppedEvents());
+
+        // An event that can't be coalesced waits for the dispatcher
+        Thread releaser = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        // Release straight away
+                    }
+
+                    asyncListener.release();
+                }
+            };
+
+        releaser.start();
+        cache.putInCache("other", CONTENT);
+        releaser.join();
+        waitForEvents(6);
+
+        List events = asyncListener.getEvents();
+        assertEquals("held", events.get(2));
+        assertEquals("queued0", events.get(3));
+        assertEquals("queued1", events.get(4));
+        assertEquals("other", events.get(5));
+        assertEquals(CONTENT + 2, cache.getFromCache("queued0"));
+    }
+
+    /**
+     * An event is only coalesced into the latest queued event for its key,
+     * and only if no event queued after it concerns the same entry, so that
+     * the listeners see the events of each entry in order
+     */
+    public void testCoalesceKeepsOrder() throws Exception {
+        // The queued events for other are updates, like the ones fired afterwards
+        cache.putInCache("other", CONTENT);
+        cache.setEventQueue(3, 10, Cache.EVENT_OVERFLOW_COALESCE);
+        asyncListener.hold();
+        cache.putInCache("held", CONTENT);
+        asyncListener.awaitHeld();
+
+        // Queued: update of key, removal of key, update of other
+        cache.putInCache("key", CONTENT);
+        cache.removeEntry("key");
+        cache.putInCache("other", CONTENT);
+        assertEquals(3, cache.getEventQueueDepth());
+
+        // Merged into the update of other, whatever was queued before it
+        cache.putInCache("other", CONTENT + 1);
+        assertEquals(1, cache.getNbCoalescedEvents());
+
+        // The addition of key can't move before its removal, and the
+        // update of other can't move before the flush of the cache
+        releaseLater();
+        cache.putInCache("key", CONTENT + 1);
+        cache.flushAll(new Date());
+        asyncListener.hold();
+        releaseLater();
+        cache.putInCache("other", CONTENT + 2);
+        waitForEvents(8);
+
+        List expected = new ArrayList();
+        expected.add("other");
+        expected.add("held");
+        expected.add("key");
+        expected.add("removed key");
+        expected.add("other");
+        expected.add("key");
+        expected.add("cache");
+        expected.add("other");
+        assertEquals(expected, asyncListener.getEvents());
+        assertEquals(1, cache.getNbCoalescedEvents());
+    }
+
+    /**
+     * Releases the listener from another thread after a while, for the
+     * events that have to wait for room in the queue
+     */
+    private void releaseLater() {
+        new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        // Release straight away
+                    }
+
+                    asyncListener.release();
+                }
+            }.start();
+    }
+
+    /**
+     * Holds the listener on a first event, and fills the queue behind it
+     */
+    private void fillQueue() throws InterruptedException {
+        asyncListener.hold();
+        cache.putInCache("held", CONTENT);
+        asyncListener.awaitHeld();
+        cache.putInCache("queued0", CONTENT);
+        cache.putInCache("queued1", CONTENT);
+        assertEquals(2, cache.getEventQueueDepth());
+    }
+
+    private void waitForEvents(int count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        while ((asyncListener.getEvents().size() < count) && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, asyncListener.getEvents().size());
+    }
+
+    /**
+     * A listener that must be notified straight away
+     */
+    private static final class SynchronousListener extends CacheEntryEventListenerImpl implements SynchronousEventListener {
+    }
+
+    /**
+     * An asynchronous listener recording what its events apply to, which can
+     * be held on an event until the test releases it
+     */
+    private static final class RecordingListener extends CacheEntryEventListenerImpl {
+        private final List events = new ArrayList();
+        private boolean held = false;
+        private boolean waiting = false;
+
+        public void cacheEntryAdded(CacheEntryEvent event) {
+            awaitRelease();
+            super.cacheEntryAdded(event);
+            record(event.getKey());
+        }
+
+        public void cacheEntryUpdated(CacheEntryEvent event) {
+            awaitRelease();
+            super.cacheEntryUpdated(event);
+            record(event.getKey());
+        }
+
+        public void cacheEntryRemoved(CacheEntryEvent event) {
+            super.cacheEntryRemoved(event);
+            record("removed " + event.getKey());
+        }
+
+        public void cacheGroupFlushed(CacheGroupEvent event) {
+            super.cacheGroupFlushed(event);
+            record(event.getGroup());
+        }
+
+        public void cachePatternFlushed(CachePatternEvent event) {
+            super.cachePatternFlushed(event);
+            record(event.getPattern());
+        }
+
+        public void cacheFlushed(CachewideEvent event) {
+            super.cacheFlushed(event);
+            record("cache");
+        }
+
+        synchronized List getEvents() {
+            return new ArrayList(events);
+        }
+
+        synchronized void hold() {
+            held = true;
+        }
+
+        synchronized void release() {
+            held = false;
+            notifyAll();
+        }
+
+        synchronized void awaitHeld() throws InterruptedException {
+            long start = System.currentTimeMillis();
+
+            while (!waiting && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+                wait(MAX_WAIT);
+            }
+
+            assertTrue("The listener was not called", waiting);
+        }
+
+        private synchronized void record(String subject) {
+            events.add(subject);
+        }
+
+        private synchronized void awaitRelease() {
+            long start = System.currentTimeMillis();
+            waiting = true;
+            notifyAll();
+
+            while (held && ((System.currentTimeMillis() - start) < MAX_WAIT)) {
+                try {
+                    wait(MAX_WAIT);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.base.events;
+
+import com.opensymphony.oscache.base.Cache;
+import com.opensymphony.oscache.extra.CacheEntryEventListenerImpl;
+import com.opensymphony.oscache.extra.CacheMapAccessEventListenerImpl;
+import com.opensymphony.oscache.extra.StatisticListenerImpl;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Test class for the registry splitting the cache listeners by interface.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestListenerRegistry extends TestCase {
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestListenerRegistry(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestListenerRegistry.class);
+    }
+
+    /**
+     * The listeners are split by interface, in registration order, and the
+     * arrays already handed out are left untouched by later changes
+     */
+    public void testSplitByInterface() {
+        ListenerRegistry registry = new ListenerRegistry();
+        CacheEntryEventListenerImpl entryListener = new CacheEntryEventListenerImpl();
+        CacheMapAccessEventListenerImpl accessListener = new CacheMapAccessEventListenerImpl();
+        StatisticListenerImpl statisticListener = new StatisticListenerImpl();
+
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getEntryListeners().length);
+        assertFalse(registry.hasAsynchronousListeners());
+
+        registry.add(accessListener);
+        assertEquals(0, registry.getEntryListeners().length);
+        assertEquals(1, registry.getAccessListeners().length);
+        assertFalse(registry.hasAsynchronousListeners());
+
+        CacheEntryEventListener[] before = registry.getEntryListeners();
+        registry.add(entryListener);
+        registry.add(statisticListener);
+        assertEquals(0, before.length);
+        assertEquals(3, registry.size());
+        assertTrue(registry.hasAsynchronousListeners());
+
+        // The statistics listener implements all three interfaces
+        CacheEntryEventListener[] entryListeners = registry.getEntryListeners();
+        assertEquals(2, entryListeners.length);
+        assertSame(entryListener, entryListeners[0]);
+        assertSame(statisticListener, entryListeners[1]);
+        assertEquals(2, registry.getAccessListeners().length);
+        assertEquals(1, registry.getScopeListeners().length);
+
+        assertTrue(registry.remove(entryListener));
+        assertFalse(registry.remove(entryListener));
+        assertEquals(2, entryListeners.length);
+        assertEquals(1, registry.getEntryListeners().length);
+    }
+
+    /**
+     * A listener registered twice is notified twice, and removed once at a time
+     */
+    public void testDuplicates() {
+        Cache cache = new Cache(true, false, false);
+        CacheEntryEventListenerImpl listener = new CacheEntryEventListenerImpl();
+        cache.addCacheEventListener(listener);
+        cache.addCacheEventListener(listener);
+        assertEquals(2, cache.getCacheEventListeners().length);
+        assertEquals(2, cache.getCacheEventListenerList().getListenerCount());
+
+        cache.putInCache("key", "content");
+        assertEquals(2, listener.getEntryAddedCount());
+
+        cache.removeCacheEventListener(listener);
+        cache.putInCache("key", "content");
+        assertEquals(1, listener.getEntryUpdatedCount());
+
+        cache.removeCacheEventListener(listener);
+        cache.flushEntry("key");
+        assertEquals(0, listener.getEntryFlushedCount());
+        assertEquals(0, cache.getCacheEventListeners().length);
+    }
+
+    /**
+     * Only the serializable listeners are serialized
+     */
+    public void testSerialization() throws Exception {
+        ListenerRegistry registry = new ListenerRegistry();
+        registry.add(new CacheEntryEventListenerImpl());
+        registry.add(new SerializableListener());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(registry);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ListenerRegistry copy = (ListenerRegistry) in.readObject();
+        assertEquals(1, copy.size());
+        assertEquals(1, copy.getEntryListeners().length);
+        assertTrue(copy.getEntryListeners()[0] instanceof SerializableListener);
+        assertFalse(copy.hasAsynchronousListeners());
+    }
+
+    /**
+     * A serializable listener, to be notified synchronously
+     */
+    private static final class SerializableListener extends CacheEntryEventListenerImpl implements Serializable, SynchronousEventListener {
+    }
+}
@@ -4,9 +4,12 @@
  */
 package com.opensymphony.oscache.general;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Properties;
 
 import com.opensymphony.oscache.base.*;
+import com.opensymphony.oscache.base.algorithm.UnlimitedCache;
 import com.opensymphony.oscache.extra.CacheEntryEventListenerImpl;
 import com.opensymphony.oscache.extra.CacheMapAccessEventListenerImpl;
 
@@ -294,6 +297,45 @@ public class TestGeneralCacheAdministrator extends TestAbstractCacheAdministrato
 	}
 
 
+    /**
+     * A byte budget configured without an entry capacity evicts entries,
+     * except with the unlimited cache algorithm, where it is ignored
+     */
+    public void testCapacityBytesOnly() {
+        Properties p = new Properties();
+        p.setProperty(AbstractCacheAdministrator.CACHE_CAPACITY_BYTES_KEY, "65536");
+
+        GeneralCacheAdministrator cacheAdmin = new GeneralCacheAdministrator(p);
+        Cache cache = cacheAdmin.getCache();
+        assertEquals(65536, cache.getCapacityBytes());
+
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+
+        String content = new String(chars);
+
+        for (int i = 0; i < 500; i++) {
+            cacheAdmin.putInCache(KEY + i, content);
+        }
+
+        assertTrue(cache.getSize() > 0);
+        assertTrue(cache.getSize() < 500);
+
+        try {
+            assertEquals(content, cacheAdmin.getFromCache(KEY + 499));
+        } catch (NeedsRefreshException e) {
+            cacheAdmin.cancelUpdate(KEY + 499);
+            fail("The last entry put should not have been evicted");
+        }
+
+        cacheAdmin.destroy();
+
+        p.setProperty(AbstractCacheAdministrator.CACHE_ALGORITHM_KEY, UnlimitedCache.class.getName());
+        cacheAdmin = new GeneralCacheAdministrator(p);
+        assertEquals(0, cacheAdmin.getCache().getCapacityBytes());
+        cacheAdmin.destroy();
+    }
+
     /**
      * Utility method that tries to get an item from the cache and verify
      * if all goes as expected
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2002-2007 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.oscache.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.text.ParseException;
+
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Test class for the compiled cron schedules, that must agree with the
+ * parser they remember the matches of.
+ *
+ * $Id$
+ * @version        $Revision$
+ */
+public final class TestCronSchedule extends TestCase {
+    private static final long MINUTE = 60 * 1000L;
+
+    /**
+     * Constructor
+     * <p>
+     * @param str The test name (required by JUnit)
+     */
+    public TestCronSchedule(String str) {
+        super(str);
+    }
+
+    /**
+     * This methods returns the name of this test class to JUnit
+     * <p>
+     * @return The test for this class
+     */
+    public static Test suite() {
+        return new TestSuite(TestCronSchedule.class);
+    }
+
+    /**
+     * The schedule finds the same matches as the parser as the clock goes
+     * forward, including on the very times the expression fires at
+     */
+    public void testMatchesParser() throws ParseException {
+        String[] expressions = {"* * * * *", "*/5 * * * *", "30 23 * * *", "0 0 1 1 *", "10 * 22 * *", "0 9 * * 1-5"};
+        Random random = new Random(1);
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2003, Calendar.DECEMBER, 20, 10, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        for (int i = 0; i < expressions.length; i++) {
+            FastCronParser parser = new FastCronParser(expressions[i]);
+            CronSchedule schedule = new CronSchedule(expressions[i]);
+            assertEquals(expressions[i], schedule.getCronExpression());
+
+            long now = calendar.getTime().getTime();
+
+            for (int step = 0; step < 2000; step++) {
+                assertEquals(expressions[i] + " at " + now, parser.getTimeBefore(now), schedule.getPreviousFireTime(now));
+                assertEquals(expressions[i] + " at " + now, parser.getTimeAfter(now), schedule.getNextFireTime(now));
+
+                // Land on the next match from time to time
+                if (random.nextInt(4) == 0) {
+                    now = schedule.getNextFireTime(now);
+                } else {
+                    now += random.nextInt(3 * (int) MINUTE);
+                }
+            }
+        }
+    }
+
+    /**
+     * The matches are kept until the next match, and worked out again if the
+     * clock goes back
+     */
+    public void testWindow() throws ParseException {
+        CronSchedule schedule = new CronSchedule("*/5 * * * *");
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2003, Calendar.DECEMBER, 20, 10, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        long fire = calendar.getTime().getTime();
+        assertEquals(fire, schedule.getPreviousFireTime(fire));
+        assertEquals(fire + (5 * MINUTE), schedule.getNextFireTime(fire + (5 * MINUTE) - 1));
+        assertEquals(fire + (5 * MINUTE), schedule.getPreviousFireTime(fire + (5 * MINUTE)));
+
+        // The clock went back
+        assertEquals(fire - (5 * MINUTE), schedule.getPreviousFireTime(fire - 1));
+        assertEquals(fire, schedule.getNextFireTime(fire - 1));
+    }
+
+    /**
+     * Entries updated before the expression last fired are stale
+     */
+    public void testHasFiredSince() throws ParseException {
+        CronSchedule schedule = new CronSchedule("* * * * *");
+        long now = System.currentTimeMillis();
+
+        assertTrue(schedule.hasFiredSince(now - (2 * MINUTE)));
+        assertFalse(schedule.hasFiredSince(now + MINUTE));
+
+        try {
+            new CronSchedule("not a cron expression");
+            fail("An invalid expression should be rejected");
+        } catch (ParseException e) {
+            // This is what we expected
+        }
+    }
+}
@@ -97,6 +97,35 @@ public class TestFastCronParser extends TestCase {
         cronCall("20/12/2003 10:00", "20-25,27-30/2 10/8 * * *", "19/12/2003 18:29", false);
     }
 
+    /**
+    * Tests to see if the cron class can calculate the next matching
+    * time correctly in various circumstances
+    */
+    public void testNextEvaluations() {
+        // Minute tests, the supplied time itself never matches
+        nextCronCall("01/01/2003 0:00", "45 * * * *", "01/01/2003 00:45");
+        nextCronCall("01/01/2003 0:45", "45 * * * *", "01/01/2003 01:45");
+        nextCronCall("31/12/2002 23:50", "45 * * * *", "01/01/2003 00:45");
+        nextCronCall("20/12/2003 10:30", "* * * * *", "20/12/2003 10:31");
+
+        // Hour tests
+        nextCronCall("20/12/2003 10:00", "* 3/4 * * *", "20/12/2003 11:00");
+        nextCronCall("20/12/2003 23:59", "* 3 * * *", "21/12/2003 03:00");
+
+        // Day of month and month tests, skipping the months that are too short
+        nextCronCall("07/01/2003 0:00", "30 * 1 * *", "01/02/2003 00:30");
+        nextCronCall("30/04/2003 12:00", "0 0 31 * *", "31/05/2003 00:00");
+        nextCronCall("01/01/2003 5:00", "10 * * 6 *", "01/06/2003 00:10");
+
+        // Day of week tests
+        nextCronCall("26/06/2003 10:00", "30 6 * * 0", "29/06/2003 06:30");
+        nextCronCall("31/12/2002 23:59", "0 12 * * Tue", "07/01/2003 12:00");
+
+        // Leap year tests
+        nextCronCall("01/03/2003 12:00", "* * 29 2 *", "29/02/2004 00:00");
+        nextCronCall("01/03/2004 12:00", "* * 29 2 *", "29/02/2008 00:00");
+    }
+
     /**
     * Tests a range of invalid cron expressions
     */
@@ -285,6 +314,27 @@ public class TestFastCronParser extends TestCase {
         }
     }
 
+    /**
+    * Makes a call to the FastCronParser for the next matching time.
+    *
+    * @param dateStr   The date string to use as the base date. The format must be
+    * <code>"dd/MM/yyyy HH:mm"</code>.
+    * @param cronExpr  The cron expression to test.
+    * @param result    The expected result. This should be a date in the same format
+    * as <code>dateStr</code>.
+    */
+    private void nextCronCall(String dateStr, String cronExpr, String result) {
+        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm");
+
+        try {
+            long baseTime = sdf.parse(dateStr).getTime();
+            long time = new FastCronParser(cronExpr).getTimeAfter(baseTime);
+            assertEquals(result, sdf.format(new Date(time)));
+        } catch (ParseException e) {
+            fail("Unexpected ParseException while parsing " + cronExpr + " or " + dateStr + ": " + e);
+        }
+    }
+
     /**
     * Used by the benchmarking
     */